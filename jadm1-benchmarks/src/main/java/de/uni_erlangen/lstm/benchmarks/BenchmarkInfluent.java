@@ -0,0 +1,83 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.uni_erlangen.lstm.file.CSVReader;
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+
+/**
+ * Dynamic influent for the benchmarks, either read from a BSM2 "digesterin.csv" export 
+ * or generated from the BSM2 default influent with daily and weekly load variations, 
+ * so the benchmarks run without the (unpublished) BSM2 influent file
+ * 
+ * @author liampetti
+ *
+ */
+public class BenchmarkInfluent {
+	
+	public static final double STEP = 0.01041666667; // 15 minutes in days
+	
+	/**
+	 * @param filename 	BSM2 influent export (comma separated), empty for the synthetic influent
+	 * @param days 		Number of days to generate or read
+	 * @return 			Influent rows in the 42 variable layout of {@link StateVariables}
+	 */
+	public static double[][] load(String filename, double days) {
+		int n = (int) Math.round(days/STEP);
+		List<double[]> rows = new ArrayList<double[]>();
+		StateVariables influent = new StateVariables();
+		
+		if (filename != null && !filename.isEmpty()) {
+			CSVReader reader = new CSVReader(filename, ",");
+			while (!reader.finished() && rows.size() < n) {
+				String[] inString = reader.getNextString();
+				if (inString.length > 0) {
+					double[] in = new double[inString.length];
+					for (int i=0;i<in.length;i++) {
+						in[i] = Double.parseDouble(inString[i]);
+					}
+					influent.setVar(in);
+					rows.add(influent.getVar());
+				}
+			}
+			return rows.toArray(new double[rows.size()][]);
+		}
+		
+		double[] base = new BSM2Defaults().Influent();
+		for (int k=0;k<n;k++) {
+			double t = k*STEP;
+			// Diurnal and weekly load pattern with a small deterministic ripple
+			double load = 1.0+0.3*Math.sin(2.0*Math.PI*t)+0.1*Math.sin(2.0*Math.PI*t/7.0)+0.02*Math.sin(2.0*Math.PI*t*13.7);
+			double[] row = base.clone();
+			for (int i : new int[] {0, 1, 2, 12, 13, 14, 15}) {
+				row[i] = base[i]*load; // Soluble and particulate organics
+			}
+			row[35] = base[35]*(1.0+0.2*Math.sin(2.0*Math.PI*t+1.0)); // Flow
+			rows.add(row);
+		}
+		return rows.toArray(new double[rows.size()][]);
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.uni_erlangen.lstm.modelaccess.Model;
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+
+/**
+ * Dynamic simulation (609 days by default) without the file output, either sample by sample
+ * as in Main.runDynamic (rows) or in one integration as with -continuous (continuous)
+ * 
+ * The work per simulated day (right-hand side evaluations and accepted steps) is reported 
+ * as secondary results next to the run time
+ * 
+ * @author liampetti
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class DynamicBenchmark {
+	
+	private static final double STEP = BenchmarkInfluent.STEP;
+	
+	@Param({"ab", "ros23", "auto", "radau"})
+	public String solver;
+	
+	@Param({"rows", "continuous"})
+	public String mode;
+	
+	@Param({"609"})
+	public double days;
+	
+	@Param({""})
+	public String influentFile; // BSM2 "digesterin.csv", synthetic influent when empty
+	
+	@Param({""})
+	public String rtol; // Relative tolerance, the default of the solver when empty
+	
+	private double[][] rows;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		rows = BenchmarkInfluent.load(influentFile, days);
+	}
+	
+	private DefaultIntegratorFactory factory() {
+		DefaultIntegratorFactory factory = new DefaultIntegratorFactory(solver);
+		if (!rtol.isEmpty()) {
+			factory.setRelativeTolerance(Double.parseDouble(rtol));
+		}
+		return factory;
+	}
+	
+	@Benchmark
+	public double[] simulate(SolverWork work) {
+		StateVariables initial = new StateVariables();
+		initial.setVar(new BSM2Defaults().DigesterInit());
+		StateVariables influent = new StateVariables();
+		influent.setVar(rows[0]);
+		double simulated = rows.length*STEP;
+		
+		if (mode.equals("continuous")) {
+			InfluentSeries series = new InfluentSeries(0.0, STEP, rows);
+			Model model = new Model(0.0, series.getEnd(), STEP, new DigesterParameters(), initial, influent, false, null);
+			model.setIntegratorFactory(factory());
+			model.setInfluentSeries(series);
+			model.simulate();
+			work.record(model.getStatistics(), simulated);
+			return model.getX();
+		}
+		
+		// Sample by sample, the outputs are copied as if they were written out
+		Model model = new Model(0.0, STEP, STEP, new DigesterParameters(), initial, influent, false, null);
+		model.setIntegratorFactory(factory());
+		double[] timemodel = new double[model.getX().length+1];
+		double start = 0.0;
+		for (double[] row : rows) {
+			influent.setVar(row);
+			model.setInfluent(influent);
+			model.setTime(start, start+STEP);
+			model.run();
+			timemodel[0] = start;
+			System.arraycopy(model.getX(), 0, timemodel, 1, timemodel.length-1);
+			start = start+STEP;
+		}
+		work.record(model.getStatistics(), simulated);
+		return timemodel;
+	}
+}
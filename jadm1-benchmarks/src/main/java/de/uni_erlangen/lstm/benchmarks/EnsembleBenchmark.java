@@ -0,0 +1,144 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.DAEModel;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.EnsembleModel;
+import de.uni_erlangen.lstm.solvers.EnsembleIntegrator;
+
+/**
+ * Batched ensemble kernel against one DAEModel per member, for a batch of BSM2 reactors 
+ * with the acetate uptake rate spread over +-20 %
+ * 
+ * The derivative benchmarks evaluate all members once per operation. The integration 
+ * benchmarks advance all members by a tenth of a day (Dormand-Prince 5(4), rtol 1e-6) in lock 
+ * step (batch) or one after the other (scalar) and report the throughput in reactor-days 
+ * per second as a secondary result. The states carry on from one operation to the next, 
+ * so after the warmup the members are close to their steady states.
+ * 
+ * @author liampetti
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EnsembleBenchmark {
+	
+	private static final double DAYS = 0.1; // Simulated per integration operation
+	private static final double RTOL = 1.0e-6;
+	private static final double ATOL = 1.0e-10;
+	
+	@Param({"1", "16", "128"})
+	public int members;
+	
+	private EnsembleModel batch;
+	private EnsembleIntegrator batchIntegrator;
+	private double[][] y; // [variable][member]
+	private double[][] dy;
+	private DAEModel[] models;
+	private FirstOrderIntegrator integrator;
+	private double[][] x; // [member][variable]
+	private double[] dx;
+	
+	@Setup
+	public void setup() {
+		BSM2Defaults defaults = new BSM2Defaults();
+		double[] u = defaults.Influent();
+		double[] x0 = defaults.DigesterInit();
+		x0[35] = u[35]; // Effluent flow rate = Influent flow rate
+		double[] p0 = new DigesterParameters().getParameters();
+		
+		double[][] influent = new double[members][];
+		double[][] parameters = new double[members][];
+		x = new double[members][];
+		models = new DAEModel[members];
+		for (int m=0;m<members;m++) {
+			influent[m] = u.clone();
+			parameters[m] = p0.clone();
+			parameters[m][38] *= (members == 1) ? 1.0 : 0.8+0.4*m/(members-1); // k_m_ac
+			x[m] = x0.clone();
+			models[m] = new DAEModel(influent[m], parameters[m], DAEModel.initialS_H_ion(x0, parameters[m]), true, -1.0);
+		}
+		batch = new EnsembleModel(influent, parameters, x);
+		y = new double[x0.length][members];
+		dy = new double[x0.length][members];
+		for (int m=0;m<members;m++) {
+			for (int i=0;i<x0.length;i++) {
+				y[i][m] = x0[i];
+			}
+		}
+		dx = new double[x0.length];
+		batchIntegrator = new EnsembleIntegrator(1.0e-14, 100.0, ATOL, RTOL);
+		integrator = new DormandPrince54Integrator(1.0e-14, 100.0, ATOL, RTOL);
+	}
+	
+	@Benchmark
+	public double[][] batchDerivatives() {
+		batch.computeDerivatives(y, dy);
+		return dy;
+	}
+	
+	@Benchmark
+	public double[] scalarDerivatives() {
+		for (int m=0;m<members;m++) {
+			models[m].computeDerivatives(0.0, x[m], dx);
+		}
+		return dx;
+	}
+	
+	@Benchmark
+	public double[][] batchIntegrate(ReactorDays days) {
+		batchIntegrator.integrate(batch, y, DAYS);
+		days.add(members, DAYS);
+		return y;
+	}
+	
+	@Benchmark
+	public double[][] scalarIntegrate(ReactorDays days) {
+		for (int m=0;m<members;m++) {
+			integrator.integrate(models[m], 0.0, x[m], DAYS, x[m]);
+		}
+		days.add(members, DAYS);
+		return x;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.DAEModel;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+
+/**
+ * Right-hand side, Jacobian and algebraic solver of the model at the BSM2 operating point
+ * 
+ * Run with "-prof gc" for the allocation rate (should be zero for all of them)
+ * 
+ * @author liampetti
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KernelBenchmark {
+	
+	@Param({"true", "false"})
+	public boolean dae;
+	
+	private DAEModel model;
+	private double[] x;
+	private double[] xPerturbed;
+	private double[] dx;
+	private double[] outputs;
+	private double[][] jacobian;
+	private boolean flip;
+	
+	@Setup
+	public void setup() {
+		BSM2Defaults defaults = new BSM2Defaults();
+		double[] u = defaults.Influent();
+		x = defaults.DigesterInit();
+		x[35] = u[35]; // Effluent flow rate = Influent flow rate
+		model = new DAEModel(u, new DigesterParameters().getParameters(), Math.pow(10, -7.47), dae, -1.0);
+		dx = new double[x.length];
+		outputs = new double[x.length];
+		jacobian = new double[x.length][x.length];
+		
+		// Second operating point, moves pH and S_h2 so the Newton solvers have work to do
+		xPerturbed = x.clone();
+		xPerturbed[6] *= 1.05; // S_ac
+		xPerturbed[9] *= 0.98; // S_IC
+		xPerturbed[10] *= 1.02; // S_IN
+		model.computeDerivatives(0.0, x, dx);
+	}
+	
+	@Benchmark
+	public double[] computeDerivatives() {
+		model.computeDerivatives(0.0, x, dx);
+		return dx;
+	}
+	
+	@Benchmark
+	public double[] evaluate() {
+		model.evaluate(0.0, x, dx, outputs);
+		return outputs;
+	}
+	
+	@Benchmark
+	public double[][] computeJacobian() {
+		model.computeJacobian(0.0, x, jacobian);
+		return jacobian;
+	}
+	
+	/**
+	 * Charge balance and S_h2 Newton iterations, alternating between two operating points 
+	 * (only does work with the algebraic equations switched on)
+	 */
+	@Benchmark
+	public double runDAE() {
+		double[] s = model.getDimensions();
+		System.arraycopy(flip ? xPerturbed : x, 0, s, 0, 37);
+		flip = !flip;
+		model.runDAE();
+		return s[7]+s[30];
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import de.uni_erlangen.lstm.solvers.SolverStatistics;
+
+/**
+ * Work counters of the simulations normalised by the simulated time, 
+ * reported by JMH as secondary results
+ * 
+ * JMH sums these counters over the measurement iterations of all forks, so each run adds its share
+ * 
+ * @author liampetti
+ *
+ */
+@AuxCounters(AuxCounters.Type.EVENTS)
+@State(Scope.Thread)
+public class SolverWork {
+	public double rhsPerDay; // Right-hand side evaluations per simulated day
+	public double stepsPerDay; // Accepted steps per simulated day
+	
+	private int runs; // Measurement iterations over all forks
+	
+	@Setup(Level.Trial)
+	public void setup(BenchmarkParams params) {
+		runs = params.getMeasurement().getCount()*Math.max(1, params.getForks());
+	}
+	
+	@Setup(Level.Iteration)
+	public void clean() {
+		rhsPerDay = 0;
+		stepsPerDay = 0;
+	}
+	
+	public void record(SolverStatistics statistics, double days) {
+		rhsPerDay = statistics.getEvaluations()/days/runs;
+		stepsPerDay = statistics.getSteps()/days/runs;
+	}
+}
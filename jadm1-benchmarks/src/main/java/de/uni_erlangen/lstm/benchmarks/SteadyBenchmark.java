@@ -0,0 +1,95 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.uni_erlangen.lstm.modelaccess.Model;
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+import de.uni_erlangen.lstm.solvers.SteadyStateSolver;
+
+/**
+ * 200 day BSM2 steady state simulation through Model.simulate, as run by Main.runSteady 
+ * without the file output, or solved directly for the steady state as with -direct
+ * 
+ * The work per simulated day (right-hand side evaluations and accepted steps) is reported 
+ * as secondary results next to the run time
+ * 
+ * @author liampetti
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SteadyBenchmark {
+	
+	private static final double STEP = 0.01041666667; // 15 minutes in days
+	
+	@Param({"ab", "ros23", "auto", "radau", "direct"})
+	public String solver;
+	
+	@Param({""})
+	public String rtol; // Relative tolerance, the default of the solver when empty
+	
+	@Benchmark
+	public double[] simulate(SolverWork work) {
+		BSM2Defaults defaults = new BSM2Defaults();
+		StateVariables initial = new StateVariables();
+		initial.setVar(defaults.DigesterInit());
+		StateVariables influent = new StateVariables();
+		influent.setVar(defaults.Influent());
+		
+		Model model = new Model(0.0, 200.0, STEP, new DigesterParameters(), initial, influent, false, null);
+		if (solver.equals("direct")) {
+			if (!model.solveSteady(new SteadyStateSolver())) {
+				throw new IllegalStateException("Steady state not found");
+			}
+			return model.getX();
+		}
+		DefaultIntegratorFactory factory = new DefaultIntegratorFactory(solver);
+		if (!rtol.isEmpty()) {
+			factory.setRelativeTolerance(Double.parseDouble(rtol));
+		}
+		model.setIntegratorFactory(factory);
+		model.simulate();
+		work.record(model.getStatistics(), 200.0);
+		return model.getX();
+	}
+}
@@ -63,6 +63,7 @@ public class CSVReader {
 			br = new BufferedReader(new FileReader(filename));
 		} catch (FileNotFoundException e) {
 			LOGGER.severe(e.toString());
+			finished = true; // Nothing to read
 		}
 	}
 	
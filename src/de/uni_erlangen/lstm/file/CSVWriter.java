@@ -21,21 +21,159 @@
 
 package de.uni_erlangen.lstm.file;
 
+import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * Writes specified data to a CSV file
  * 
+ * The default constructor gives a writer that opens and closes the named file for every call.
+ * The streaming constructors keep one buffered file open for a whole simulation, rows are 
+ * formatted into a reused buffer and the file is flushed every flushInterval rows and on close
+ * (use with try-with-resources).
+ * 
  * @author liampetti
  *
  */
-public class CSVWriter {
+public class CSVWriter implements TrajectoryOutput {
 	public final static Logger LOGGER = Logger.getLogger(CSVWriter.class.getName());
 	
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final String NEWLINE = System.getProperty("line.separator");
+	
+	// Streaming output
+	private Writer out;
+	private int flushInterval; // Rows between flushes, 0 to flush only on close
+	private int rows;
+	private StringBuilder line;
+	private char[] chars;
+	
+	public CSVWriter() {
+	}
+	
+	/**
+	 * Open a file for streaming output, flushed only on close
+	 * 
+	 * @param filename 	Output file
+	 * @param append 	Append to the file instead of clearing it
+	 */
+	public CSVWriter(String filename, boolean append) {
+		this(filename, append, 0);
+	}
+	
+	/**
+	 * Open a file for streaming output
+	 * 
+	 * @param filename 			Output file
+	 * @param append 			Append to the file instead of clearing it
+	 * @param flushInterval 	Number of rows between flushes, 0 to flush only on close
+	 */
+	public CSVWriter(String filename, boolean append, int flushInterval) {
+		this.flushInterval = flushInterval;
+		line = new StringBuilder(1024);
+		chars = new char[1024];
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename, append), StandardCharsets.UTF_8), BUFFER_SIZE);
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+		}
+	}
+	
+	/**
+	 * Write one row to the open file, in the same format as WriteArray
+	 */
+	public void write(double[] outputs) {
+		line.setLength(0);
+		for (int i=0;i<outputs.length;i++) {
+			line.append(outputs[i]).append(';');
+		}
+		writeLine();
+	}
+	
+	/**
+	 * Write one row starting with the time to the open file, saves copying the outputs
+	 */
+	@Override
+	public void write(double t, double[] outputs) {
+		line.setLength(0);
+		line.append(t).append(';');
+		for (int i=0;i<outputs.length;i++) {
+			line.append(outputs[i]).append(';');
+		}
+		writeLine();
+	}
+	
+	/**
+	 * Write one line of text to the open file
+	 */
+	public void write(String output) {
+		line.setLength(0);
+		line.append(output);
+		writeLine();
+	}
+	
+	private void writeLine() {
+		if (out == null) {
+			return;
+		}
+		line.append(NEWLINE);
+		int n = line.length();
+		if (chars.length < n) {
+			chars = new char[Math.max(n, 2*chars.length)];
+		}
+		line.getChars(0, n, chars, 0);
+		try {
+			out.write(chars, 0, n);
+			rows++;
+			if (flushInterval > 0 && rows%flushInterval == 0) {
+				out.flush();
+			}
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+		}
+	}
+	
+	public void flush() {
+		if (out != null) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				LOGGER.severe(e.toString());
+			}
+		}
+	}
+	
+	public int getFlushInterval() {
+		return flushInterval;
+	}
+	
+	public void setFlushInterval(int flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+	
+	/**
+	 * Flush and close the open file, does nothing for the default writer
+	 */
+	@Override
+	public void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOGGER.severe(e.toString());
+			}
+			out = null;
+		}
+	}
+	
 	/*
 	 * Print one line of data
 	 */
@@ -55,9 +193,9 @@ public class CSVWriter {
 	public void WriteArray(String filename, double[] outputs, boolean append) {				
 		try {
 			PrintStream fileStream = new PrintStream(new FileOutputStream(filename, append));
-			String printer = "";
+			StringBuilder printer = new StringBuilder();
 			for (int i=0;i<outputs.length;i++) {
-				printer += outputs[i] + ";";
+				printer.append(outputs[i]).append(';');
 			}
 			fileStream.println(printer);
 			fileStream.close();
@@ -73,12 +211,12 @@ public class CSVWriter {
 		try {
 			// Set the fileoutput stream to append mode
 			PrintStream fileStream = new PrintStream(new FileOutputStream(filename, append));			
-			String printer = "";
+			StringBuilder printer = new StringBuilder();
 					
 			for (double[] data : dataset) {
-				printer = data[0] + ";";
-				for (int i=1;i<data.length;i++) {
-					printer += data[i] + ";";
+				printer.setLength(0);
+				for (int i=0;i<data.length;i++) {
+					printer.append(data[i]).append(';');
 				}
 				fileStream.println(printer);
 			}
@@ -89,6 +227,30 @@ public class CSVWriter {
 		} 
 	}
 	
+	/*
+	 * Keep the first lines of a file and drop the rest, e.g. the rows written after the checkpoint a run is resumed from
+	 */
+	public void Truncate(String filename, long lines) {
+		try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long position = 0;
+			long count = 0;
+			int n;
+			while (count < lines && (n = file.read(buffer)) > 0) {
+				int i = 0;
+				while (i < n && count < lines) {
+					if (buffer[i++] == '\n') {
+						count++;
+					}
+				}
+				position += i;
+			}
+			file.setLength(position);
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+		} 
+	}
+	
 	/*
 	 * Clear file
 	 */
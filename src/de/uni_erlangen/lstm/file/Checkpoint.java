@@ -0,0 +1,258 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2015 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * State of a dynamic simulation at a sample time, written during long runs so they can be resumed
+ * (or forked into several scenarios) without simulating the common part again
+ *
+ * All values are little-endian. The file holds
+ *
+ * 	magic "JADM1CKP" (8 bytes), version (int), state variables (int), time (double), S_H_ion (double),
+ * 	last integrator step (double), influent file offset (long), influent line (long), output rows (long),
+ * 	the state, the influent of the last sample, then the influent file name length (short) and the UTF-8 name
+ *
+ * The influent offset is the position of the next line to read, the output rows are the rows of the
+ * trajectory written up to the checkpoint. A checkpoint replaces the previous one only once it is
+ * completely written, so a run that dies while writing leaves the last checkpoint intact.
+ *
+ * @author liampetti
+ *
+ */
+public class Checkpoint {
+	public final static Logger LOGGER = Logger.getLogger(Checkpoint.class.getName());
+
+	public static final byte[] MAGIC = "JADM1CKP".getBytes(StandardCharsets.US_ASCII);
+	public static final int VERSION = 1;
+	private static final int HEADER = 68;
+
+	private double time;
+	private double[] x;
+	private double[] u;
+	private double S_H_ion;
+	private double step;
+	private String influentFile;
+	private long influentOffset;
+	private long influentLine;
+	private long outputRows;
+
+	/**
+	 * @param time 		Simulation time
+	 * @param x 		Model state (copied)
+	 * @param u 		Influent of the last sample (copied)
+	 * @param S_H_ion 	S_H_ion of the charge balance
+	 * @param step 		Last integrator step (in days)
+	 */
+	public Checkpoint(double time, double[] x, double[] u, double S_H_ion, double step) {
+		this.time = time;
+		this.x = x.clone();
+		this.u = u.clone();
+		this.S_H_ion = S_H_ion;
+		this.step = step;
+		influentFile = "";
+		influentOffset = -1;
+	}
+
+	/**
+	 * Position of the next influent line to read
+	 *
+	 * @param influentFile 	Influent file name
+	 * @param offset 		Byte offset of the next line
+	 * @param line 			Lines read so far
+	 */
+	public void setInfluent(String influentFile, long offset, long line) {
+		this.influentFile = influentFile;
+		this.influentOffset = offset;
+		this.influentLine = line;
+	}
+
+	/**
+	 * Write the checkpoint to a temporary file and move it over the named file
+	 */
+	public void write(String filename) {
+		byte[] name = influentFile.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER+(x.length+u.length)*8+2+name.length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(x.length);
+		buffer.putDouble(time);
+		buffer.putDouble(S_H_ion);
+		buffer.putDouble(step);
+		buffer.putLong(influentOffset);
+		buffer.putLong(influentLine);
+		buffer.putLong(outputRows);
+		buffer.putInt(u.length);
+		for (double v : x) {
+			buffer.putDouble(v);
+		}
+		for (double v : u) {
+			buffer.putDouble(v);
+		}
+		buffer.putShort((short) name.length);
+		buffer.put(name);
+		buffer.flip();
+
+		Path target = Paths.get(filename);
+		Path temp = Paths.get(filename + ".tmp");
+		try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+			return;
+		}
+		try {
+			try {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+		}
+	}
+
+	/**
+	 * Read a checkpoint
+	 *
+	 * @param filename 	Checkpoint file
+	 * @throws IOException If the file can not be read or is not a checkpoint
+	 */
+	public static Checkpoint read(String filename) throws IOException {
+		byte[] bytes = Files.readAllBytes(Paths.get(filename));
+		if (!isCheckpoint(bytes)) {
+			throw new IOException(filename + " is not a checkpoint");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			buffer.position(MAGIC.length);
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException(filename + " has unsupported version " + version);
+			}
+			double[] x = new double[buffer.getInt()];
+			double time = buffer.getDouble();
+			double S_H_ion = buffer.getDouble();
+			double step = buffer.getDouble();
+			long offset = buffer.getLong();
+			long line = buffer.getLong();
+			long rows = buffer.getLong();
+			double[] u = new double[buffer.getInt()];
+			for (int i=0;i<x.length;i++) {
+				x[i] = buffer.getDouble();
+			}
+			for (int i=0;i<u.length;i++) {
+				u[i] = buffer.getDouble();
+			}
+			byte[] name = new byte[buffer.getShort()];
+			buffer.get(name);
+
+			Checkpoint checkpoint = new Checkpoint(time, x, u, S_H_ion, step);
+			checkpoint.setInfluent(new String(name, StandardCharsets.UTF_8), offset, line);
+			checkpoint.setOutputRows(rows);
+			return checkpoint;
+		} catch (RuntimeException e) {
+			throw new IOException(filename + " is truncated or corrupt");
+		}
+	}
+
+	/**
+	 * @return True if the file starts like a checkpoint
+	 */
+	public static boolean isCheckpoint(String filename) {
+		byte[] magic = new byte[MAGIC.length];
+		try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+			if (file.length() < HEADER) {
+				return false;
+			}
+			file.readFully(magic);
+		} catch (IOException e) {
+			return false;
+		}
+		return Arrays.equals(magic, MAGIC);
+	}
+
+	private static boolean isCheckpoint(byte[] bytes) {
+		return bytes.length >= HEADER && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC);
+	}
+
+	public double getTime() {
+		return time;
+	}
+
+	public double[] getX() {
+		return x.clone();
+	}
+
+	public double[] getU() {
+		return u.clone();
+	}
+
+	public double getS_H_ion() {
+		return S_H_ion;
+	}
+
+	public double getStep() {
+		return step;
+	}
+
+	public String getInfluentFile() {
+		return influentFile;
+	}
+
+	/**
+	 * @return Byte offset of the next influent line, -1 if not known
+	 */
+	public long getInfluentOffset() {
+		return influentOffset;
+	}
+
+	public long getInfluentLine() {
+		return influentLine;
+	}
+
+	public long getOutputRows() {
+		return outputRows;
+	}
+
+	public void setOutputRows(long outputRows) {
+		this.outputRows = outputRows;
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * Streaming reader for numeric influent files, parses each line straight into a reused double array
+ * 
+ * The file is read through a byte buffer (or memory mapped in windows of 256 MB for large files) and
+ * tokenised by hand, so no Strings are created per line. Numbers whose significant digits are below 2^53 
+ * and whose decimal exponent is at most 22 either way (the usual BSM2 export) are converted exactly without 
+ * Double.parseDouble, everything else (long mantissas, large exponents, NaN, Infinity, hexadecimal) falls 
+ * back to it, so the values are always the same as Double.parseDouble gives (see InfluentReaderTest).
+ * 
+ * @author liampetti
+ *
+ */
+public class InfluentReader implements AutoCloseable {
+	public final static Logger LOGGER = Logger.getLogger(InfluentReader.class.getName());
+	
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long MAP_WINDOW = 1L << 28;
+	private static final long MAX_EXACT = 1L << 53;
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	
+	private String filename;
+	private int separator;
+	private boolean mapped;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private byte[] bytes; // Backing array of the buffer when not mapped
+	private int pos;
+	private int limit;
+	private long filePosition; // Next file position to load (mapped mode)
+	private long bufferStart; // File position of the start of the buffer
+	private long size;
+	private boolean finished;
+	private boolean skipLF; // Line ended with '\r', skip a following '\n'
+	private long line;
+	
+	// Current token, only needed when falling back to Double.parseDouble
+	private byte[] token;
+	private int tokenLength;
+	private int terminator; // Character that ended the last field
+	
+	/**
+	 * @param filename 	Influent file
+	 * @param separator Column separator
+	 */
+	public InfluentReader(String filename, char separator) {
+		this(filename, separator, false);
+	}
+	
+	/**
+	 * @param filename 	Influent file
+	 * @param separator Column separator
+	 * @param mapped 	Memory map the file instead of reading it through a buffer
+	 */
+	public InfluentReader(String filename, char separator, boolean mapped) {
+		this.filename = filename;
+		this.separator = separator;
+		this.mapped = mapped;
+		token = new byte[64];
+		try {
+			file = new RandomAccessFile(filename, "r");
+			channel = file.getChannel();
+			size = channel.size();
+			if (!mapped) {
+				bytes = new byte[BUFFER_SIZE];
+				buffer = ByteBuffer.wrap(bytes);
+			}
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+			finished = true; // Nothing to read
+		}
+	}
+	
+	public boolean finished() {
+		return finished;
+	}
+	
+	/**
+	 * Number of the line read last (starting at 1)
+	 */
+	public long getLine() {
+		return line;
+	}
+	
+	/**
+	 * File position of the next line, where {@link #seek} continues reading
+	 */
+	public long getPosition() {
+		if (skipLF) {
+			// Line ended with '\r', step over a following '\n' so the position is at the next line
+			skipLF = false;
+			int c = read();
+			if (c != '\n' && c != -1) {
+				pos--;
+			}
+		}
+		return bufferStart+pos;
+	}
+	
+	/**
+	 * Continue reading at a line start given by {@link #getPosition}
+	 * 
+	 * @param position 	File position of the next line
+	 * @param line 		Number of lines before the position
+	 */
+	public void seek(long position, long line) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			if (!mapped) {
+				channel.position(position);
+			}
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+			return;
+		}
+		filePosition = position;
+		bufferStart = position;
+		pos = 0;
+		limit = 0;
+		skipLF = false;
+		finished = false;
+		this.line = line;
+	}
+	
+	/**
+	 * Parse the next line into the given array
+	 * 
+	 * @param values 	Array to fill, long enough for all values of a line
+	 * @return 			Number of values on the line (0 for an empty line), -1 at the end of the file
+	 * @throws NumberFormatException 	If a value is not a number
+	 * @throws IllegalArgumentException If the line has more values than the array
+	 */
+	public int next(double[] values) {
+		if (finished) {
+			return -1;
+		}
+		int c = read();
+		if (c == '\n' && skipLF) {
+			c = read();
+		}
+		skipLF = false;
+		if (c == -1) {
+			finished = true;
+			close();
+			return -1;
+		}
+		line++;
+		
+		int n = 0;
+		while (true) {
+			while (c == ' ' || c == '\t') {
+				c = read();
+			}
+			if (c == '\n' || c == '\r' || c == -1) {
+				skipLF = c == '\r';
+				return n;
+			}
+			if (n == values.length) {
+				throw new IllegalArgumentException(filename + " line " + line + " has more than " + values.length + " values");
+			}
+			values[n++] = parseField(c);
+			if (terminator != separator) {
+				skipLF = terminator == '\r';
+				return n;
+			}
+			c = read();
+		}
+	}
+	
+	/**
+	 * Parse one number starting with the given character, up to the next separator or line end
+	 */
+	private double parseField(int c) {
+		tokenLength = 0;
+		boolean negative = false;
+		boolean digits = false;
+		boolean exact = true;
+		long mantissa = 0;
+		int significant = 0;
+		int exponent = 0;
+		
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			c = add(c);
+		}
+		while (c >= '0' && c <= '9') {
+			digits = true;
+			if (mantissa != 0 || c != '0') {
+				if (significant < 18) {
+					mantissa = mantissa*10+(c-'0');
+					significant++;
+				} else {
+					exact = false;
+				}
+			}
+			c = add(c);
+		}
+		if (c == '.') {
+			c = add(c);
+			while (c >= '0' && c <= '9') {
+				digits = true;
+				if (mantissa != 0 || c != '0') {
+					if (significant < 18) {
+						mantissa = mantissa*10+(c-'0');
+						significant++;
+					} else {
+						exact = false;
+					}
+				}
+				if (exact) {
+					exponent--;
+				}
+				c = add(c);
+			}
+		}
+		if (digits && (c == 'e' || c == 'E')) {
+			c = add(c);
+			boolean negativeExp = false;
+			if (c == '-' || c == '+') {
+				negativeExp = c == '-';
+				c = add(c);
+			}
+			int e = 0;
+			boolean expDigits = false;
+			while (c >= '0' && c <= '9') {
+				expDigits = true;
+				if (e < 100000) {
+					e = e*10+(c-'0');
+				}
+				c = add(c);
+			}
+			exact &= expDigits;
+			exponent += negativeExp ? -e : e;
+		}
+		// Anything but blanks up to the end of the field is left to Double.parseDouble
+		while (c != separator && c != '\n' && c != '\r' && c != -1) {
+			if (c != ' ' && c != '\t') {
+				exact = false;
+			}
+			c = add(c);
+		}
+		terminator = c;
+		
+		if (digits && exact) {
+			if (mantissa == 0) {
+				return negative ? -0.0 : 0.0;
+			}
+			if (mantissa < MAX_EXACT && exponent >= -22 && exponent <= 22) {
+				// Both numbers are exact doubles, so one operation rounds correctly
+				double value = exponent >= 0 ? mantissa*POW10[exponent] : mantissa/POW10[-exponent];
+				return negative ? -value : value;
+			}
+		}
+		try {
+			return Double.parseDouble(new String(token, 0, tokenLength, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			throw new NumberFormatException(filename + " line " + line + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Add a character to the current token and read the next one
+	 */
+	private int add(int c) {
+		if (tokenLength == token.length) {
+			byte[] larger = new byte[2*token.length];
+			System.arraycopy(token, 0, larger, 0, tokenLength);
+			token = larger;
+		}
+		token[tokenLength++] = (byte) c;
+		return read();
+	}
+	
+	private int read() {
+		if (pos == limit && !refill()) {
+			return -1;
+		}
+		return (bytes != null ? bytes[pos++] : buffer.get(pos++)) & 0xff;
+	}
+	
+	private boolean refill() {
+		if (channel == null) {
+			return false;
+		}
+		try {
+			bufferStart += limit;
+			limit = 0;
+			pos = 0;
+			if (mapped) {
+				if (filePosition >= size) {
+					return false;
+				}
+				long n = Math.min(MAP_WINDOW, size-filePosition);
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, filePosition, n);
+				filePosition += n;
+				limit = (int) n;
+			} else {
+				buffer.clear();
+				int n = channel.read(buffer);
+				if (n <= 0) {
+					return false;
+				}
+				limit = n;
+			}
+			pos = 0;
+			return true;
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+			return false;
+		}
+	}
+	
+	@Override
+	public void close() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				LOGGER.severe(e.toString());
+			}
+			file = null;
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.file;
+
+/**
+ * Destination for a simulation trajectory, one row of outputs per sample time
+ * 
+ * @author liampetti
+ *
+ */
+public interface TrajectoryOutput extends AutoCloseable {
+	
+	/**
+	 * Write one row, the time followed by the outputs
+	 */
+	void write(double t, double[] outputs);
+	
+	/**
+	 * Write everything still buffered, the file stays open
+	 */
+	void flush();
+	
+	/**
+	 * Write everything still buffered and release the file
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,200 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Random access to a binary trajectory written by {@link TrajectoryWriter}
+ * 
+ * The file is memory mapped (in pieces of up to 1 GB), so only the pages that are read are loaded
+ * 
+ * @author liampetti
+ *
+ */
+public class TrajectoryReader implements AutoCloseable {
+	public final static Logger LOGGER = Logger.getLogger(TrajectoryReader.class.getName());
+	
+	private static final long MAX_MAP = 1L << 30;
+	
+	private RandomAccessFile file;
+	private String[] names;
+	private int columns;
+	private int blockRows;
+	private long rows;
+	private long blockBytes;
+	private int blocksPerMap;
+	private MappedByteBuffer[] maps;
+	
+	/**
+	 * Open and map a trajectory file
+	 * 
+	 * @param filename 	Binary trajectory file
+	 * @throws IOException If the file can not be read or is not a trajectory file
+	 */
+	public TrajectoryReader(String filename) throws IOException {
+		file = new RandomAccessFile(filename, "r");
+		FileChannel channel = file.getChannel();
+		
+		ByteBuffer header = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(header, 0);
+		header.flip();
+		byte[] magic = new byte[TrajectoryWriter.MAGIC.length];
+		if (header.limit() == 40) {
+			header.get(magic);
+		}
+		if (!Arrays.equals(magic, TrajectoryWriter.MAGIC)) {
+			file.close();
+			throw new IOException(filename + " is not a trajectory file");
+		}
+		int version = header.getInt();
+		if (version != TrajectoryWriter.VERSION) {
+			file.close();
+			throw new IOException(filename + " has unsupported version " + version);
+		}
+		columns = header.getInt();
+		blockRows = header.getInt();
+		header.getInt();
+		rows = header.getLong();
+		long offset = header.getLong();
+		
+		ByteBuffer nameBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 40, offset-40).order(ByteOrder.LITTLE_ENDIAN);
+		names = new String[columns];
+		for (int i=0;i<columns;i++) {
+			byte[] name = new byte[nameBuffer.getShort()];
+			nameBuffer.get(name);
+			names[i] = new String(name, StandardCharsets.UTF_8);
+		}
+		
+		blockBytes = (long) columns*blockRows*8;
+		long blocks = (rows+blockRows-1)/blockRows;
+		blocksPerMap = (int) Math.max(1, MAX_MAP/blockBytes);
+		maps = new MappedByteBuffer[(int) ((blocks+blocksPerMap-1)/blocksPerMap)];
+		for (int m=0;m<maps.length;m++) {
+			long n = Math.min(blocksPerMap, blocks-(long) m*blocksPerMap);
+			maps[m] = channel.map(FileChannel.MapMode.READ_ONLY, offset+m*blocksPerMap*blockBytes, n*blockBytes);
+			maps[m].order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+	
+	/**
+	 * Value of one column at a row (row 0 is the first sample, column 0 is the time)
+	 */
+	public double get(long row, int column) {
+		long block = row/blockRows;
+		int position = (int) ((block%blocksPerMap)*blockBytes) + (column*blockRows+(int) (row%blockRows))*8;
+		return maps[(int) (block/blocksPerMap)].getDouble(position);
+	}
+	
+	public double getTime(long row) {
+		return get(row, 0);
+	}
+	
+	/**
+	 * Copy a whole row (time and outputs) into the given array
+	 */
+	public void getRow(long row, double[] values) {
+		for (int i=0;i<columns;i++) {
+			values[i] = get(row, i);
+		}
+	}
+	
+	/**
+	 * Copy a part of one column into the given array
+	 * 
+	 * @param column 	Column number, 0 for the time
+	 * @param from 		First row
+	 * @param values 	Array to fill, values.length rows are copied
+	 */
+	public void getColumn(int column, long from, double[] values) {
+		for (int i=0;i<values.length;i++) {
+			values[i] = get(from+i, column);
+		}
+	}
+	
+	/**
+	 * Row of a given time, the times have to be increasing
+	 * 
+	 * @param t 	Time (in days)
+	 * @return 		Last row with a time not after t, 0 if t is before the first row
+	 */
+	public long indexOf(double t) {
+		long lo = 0;
+		long hi = rows-1;
+		if (rows == 0 || t < getTime(0)) {
+			return 0;
+		}
+		while (lo < hi) {
+			long mid = (lo+hi+1) >>> 1;
+			if (getTime(mid) <= t) {
+				lo = mid;
+			} else {
+				hi = mid-1;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * Column number of a variable name, -1 if there is none
+	 */
+	public int getColumn(String name) {
+		for (int i=0;i<columns;i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public String[] getNames() {
+		return names;
+	}
+	
+	public int getColumns() {
+		return columns;
+	}
+	
+	public long getRows() {
+		return rows;
+	}
+	
+	/**
+	 * Closes the file, the mapping is released once the reader is no longer referenced
+	 */
+	@Override
+	public void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Writes a simulation trajectory in a compact binary format, read back with {@link TrajectoryReader}
+ * 
+ * All values are little-endian. The file starts with a header
+ * 
+ * 	magic "JADM1TRJ" (8 bytes), version (int), columns (int), rows per block (int), reserved (int),
+ * 	rows (long), offset of the first block (long), then for each column the name length (short) 
+ * 	and the UTF-8 name, padded to a multiple of 8 bytes
+ * 
+ * followed by blocks of rows stored column by column (all values of the first column of the block, 
+ * then the second column...). Every block has the full size, the last one is padded with zeros, 
+ * so value (row, column) is at offset + (row/block*columns + column)*block + row%block doubles.
+ * The first column is the time.
+ * 
+ * @author liampetti
+ *
+ */
+public class TrajectoryWriter implements TrajectoryOutput {
+	public final static Logger LOGGER = Logger.getLogger(TrajectoryWriter.class.getName());
+	
+	public static final byte[] MAGIC = "JADM1TRJ".getBytes(StandardCharsets.US_ASCII);
+	public static final int VERSION = 1;
+	public static final int DEFAULT_BLOCK = 1024;
+	static final int ROWS_POSITION = 24; // Header position of the row count
+	
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private ByteBuffer block;
+	private int columns;
+	private int blockRows;
+	private int row; // Row within the current block
+	private long rows;
+	private long blockPosition; // File position of the current block
+	
+	/**
+	 * @param filename 	Output file, replaced if it exists
+	 * @param names 	Column names, the first column is the time
+	 */
+	public TrajectoryWriter(String filename, String[] names) {
+		this(filename, names, DEFAULT_BLOCK);
+	}
+	
+	/**
+	 * @param filename 		Output file, replaced if it exists
+	 * @param names 		Column names, the first column is the time
+	 * @param blockRows 	Rows per block
+	 */
+	public TrajectoryWriter(String filename, String[] names, int blockRows) {
+		this.columns = names.length;
+		this.blockRows = blockRows;
+		block = ByteBuffer.allocateDirect(columns*blockRows*8).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			file = new RandomAccessFile(filename, "rw");
+			file.setLength(0);
+			channel = file.getChannel();
+			blockPosition = writeHeader(names);
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+			channel = null;
+		}
+	}
+	
+	/**
+	 * Continue an existing trajectory after its first rows, e.g. when a run is resumed from a checkpoint. 
+	 * Rows after these are dropped, the names have to match the file in number.
+	 * 
+	 * @param filename 	Trajectory file written by this class
+	 * @param names 	Column names, the first column is the time
+	 * @param rows 		Rows to keep
+	 */
+	public TrajectoryWriter(String filename, String[] names, long rows) {
+		this.columns = names.length;
+		try {
+			file = new RandomAccessFile(filename, "rw");
+			channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			if (header.limit() == 40) {
+				header.get(magic);
+			}
+			if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION || header.getInt() != columns) {
+				throw new IOException(filename + " is not a trajectory file with " + columns + " columns");
+			}
+			blockRows = header.getInt();
+			header.getInt();
+			header.getLong();
+			long offset = header.getLong();
+			
+			block = ByteBuffer.allocateDirect(columns*blockRows*8).order(ByteOrder.LITTLE_ENDIAN);
+			this.rows = rows;
+			row = (int) (rows%blockRows);
+			blockPosition = offset+(rows/blockRows)*block.capacity();
+			if (row > 0) {
+				// Reload the partial block, the rows after the kept ones are zeroed
+				while (block.hasRemaining() && channel.read(block, blockPosition+block.position()) > 0) {
+				}
+				int stride = blockRows*8;
+				for (int c=0;c<columns;c++) {
+					for (int r=row;r<blockRows;r++) {
+						block.putLong(c*stride+r*8, 0L);
+					}
+				}
+			}
+			file.setLength(blockPosition);
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+			if (block == null) {
+				// Rows are still accepted (and dropped) as with an output that could not be created
+				blockRows = DEFAULT_BLOCK;
+				block = ByteBuffer.allocateDirect(columns*blockRows*8).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} catch (IOException closeError) {
+				LOGGER.severe(closeError.toString());
+			}
+			channel = null;
+		}
+	}
+	
+	/**
+	 * Column names for a model trajectory, the time followed by the state variables
+	 */
+	public static String[] names(String[] variables) {
+		String[] names = new String[variables.length+1];
+		names[0] = "time";
+		System.arraycopy(variables, 0, names, 1, variables.length);
+		return names;
+	}
+	
+	/**
+	 * @return Offset of the first block
+	 */
+	private long writeHeader(String[] names) throws IOException {
+		int size = 40;
+		byte[][] bytes = new byte[names.length][];
+		for (int i=0;i<names.length;i++) {
+			bytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+			size += 2+bytes[i].length;
+		}
+		int offset = (size+7)/8*8;
+		ByteBuffer header = ByteBuffer.allocate(offset).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(columns);
+		header.putInt(blockRows);
+		header.putInt(0);
+		header.putLong(0); // Row count, written on close
+		header.putLong(offset);
+		for (byte[] name : bytes) {
+			header.putShort((short) name.length);
+			header.put(name);
+		}
+		header.rewind();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		return offset;
+	}
+	
+	/**
+	 * Write one row, the time followed by the outputs (columns-1 values)
+	 */
+	@Override
+	public void write(double t, double[] outputs) {
+		int base = row*8;
+		int stride = blockRows*8;
+		block.putDouble(base, t);
+		for (int i=1;i<columns;i++) {
+			block.putDouble(base+i*stride, outputs[i-1]);
+		}
+		next();
+	}
+	
+	/**
+	 * Write one complete row (columns values)
+	 */
+	public void write(double[] values) {
+		int base = row*8;
+		int stride = blockRows*8;
+		for (int i=0;i<columns;i++) {
+			block.putDouble(base+i*stride, values[i]);
+		}
+		next();
+	}
+	
+	private void next() {
+		row++;
+		rows++;
+		if (row == blockRows) {
+			writeBlock();
+		}
+	}
+	
+	private void writeBlock() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			block.clear();
+			while (block.hasRemaining()) {
+				channel.write(block, blockPosition+block.position());
+			}
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+		}
+		blockPosition += block.capacity();
+		// Zero the block so a partial last block is padded with zeros
+		block.clear();
+		for (int i=0;i<block.capacity();i+=8) {
+			block.putLong(i, 0L);
+		}
+		row = 0;
+	}
+	
+	public long getRows() {
+		return rows;
+	}
+	
+	public int getColumns() {
+		return columns;
+	}
+	
+	/**
+	 * Write the current (partial) block and the row count, writing continues in the same block
+	 */
+	@Override
+	public void flush() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			if (row > 0) {
+				block.clear();
+				while (block.hasRemaining()) {
+					channel.write(block, blockPosition+block.position());
+				}
+			}
+			writeRows();
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+		}
+	}
+	
+	private void writeRows() throws IOException {
+		ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		count.putLong(0, rows);
+		channel.write(count, ROWS_POSITION);
+	}
+	
+	/**
+	 * Write the last (partial) block and the row count
+	 */
+	@Override
+	public void close() {
+		if (channel == null) {
+			return;
+		}
+		if (row > 0) {
+			writeBlock();
+		}
+		try {
+			writeRows();
+			channel.close();
+			file.close();
+		} catch (IOException e) {
+			LOGGER.severe(e.toString());
+		}
+		channel = null;
+	}
+}
@@ -21,23 +21,39 @@
 
 package de.uni_erlangen.lstm.main;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
 
-import de.uni_erlangen.lstm.file.CSVReader;
 import de.uni_erlangen.lstm.file.CSVWriter;
+import de.uni_erlangen.lstm.file.Checkpoint;
+import de.uni_erlangen.lstm.file.InfluentReader;
+import de.uni_erlangen.lstm.file.TrajectoryOutput;
+import de.uni_erlangen.lstm.file.TrajectoryWriter;
+import de.uni_erlangen.lstm.modelaccess.Calibration;
 import de.uni_erlangen.lstm.modelaccess.DiscreteEvent;
+import de.uni_erlangen.lstm.modelaccess.Ensemble;
+import de.uni_erlangen.lstm.modelaccess.EnsembleStatistics;
 import de.uni_erlangen.lstm.modelaccess.Model;
+import de.uni_erlangen.lstm.modelaccess.Parareal;
+import de.uni_erlangen.lstm.modelaccess.ScenarioBatch;
+import de.uni_erlangen.lstm.modelaccess.ScenarioResult;
+import de.uni_erlangen.lstm.modelaccess.SensitivityAnalysis;
 import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
 import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
 import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+import de.uni_erlangen.lstm.solvers.SteadyStateSolver;
 
 /**
  * Main class allows user access to the model through a command line interface
  * 
  * Command line arguments ->
  * -steady	Run steady state simulation
+ * -direct 	Solve for the steady state directly (pseudo-transient Newton), integrating to it only if that fails
  * -dynamic Run dynamic simulation
  * -cont 	Write continuous output model to CSV file
  * -s  		Start time (in days)
@@ -47,6 +63,40 @@ import de.uni_erlangen.lstm.models.adm1.StateVariables;
  * -param	Reactor parameters
  * -step 	Step size for dynamic model influent (in days)
  * -ode 	Run ODE model (very slow!)
+ * -stiff 	Use the implicit stiff integrator (recommended with -ode), same as -solver ros23
+ * -solver 	Integration method: ab, am, dp54, dp853, hh54, gbs, ros23, auto, radau
+ * -rtol 	Relative tolerance of the integrator
+ * -atol 	Absolute tolerance of the integrator
+ * -hmin 	Minimum integrator step (in days)
+ * -hmax 	Maximum integrator step (in days)
+ * -h0 		Initial integrator step (in days)
+ * -continuous Run the dynamic influent in one integration (influent held constant over each sample)
+ * -interp 	As -continuous with the influent interpolated linearly between samples
+ * -mmap 	Memory map the dynamic influent file (for very long influent files)
+ * -out-format Trajectory output format, csv (default) or bin (binary, see TrajectoryWriter)
+ * -checkpoint Write the state of -dynamic and -continuous runs to this file at regular intervals (see Checkpoint), not with -parareal
+ * -checkpoint-every Simulated time between checkpoints (in days, default 10)
+ * -resume 	Continue a -dynamic or -continuous run from a checkpoint
+ * -parareal Run the dynamic influent parallel in time, split into this many slices (see Parareal)
+ * -parareal-tol Relative tolerance of the slice start states of -parareal (default 1e-6)
+ * -parareal-speedup Also run -parareal serially afterwards and report the measured speedup
+ * -coarse-step Time between the averaged influent samples of the -parareal coarse propagator (in days, default 1)
+ * -flush 	Output rows between flushes of the output file (0 flushes at the end only)
+ * -batch 	Run the scenarios of a batch file in parallel (one scenario per line)
+ * -threads Number of scenarios (or -parareal slices) run at the same time (default is the number of processors)
+ * -sens 	Sensitivities of the outputs to the given parameters (comma separated positions) in one integration
+ * -sens-outputs State variables and outputs for -sens (comma separated positions, default 37,38,39)
+ * -calib 	Fit the digester parameters of a bounds file (name; lower; upper per line) to measurements, in parallel
+ * -measured Measurements for -calib (';' separated, header line time; output names)
+ * -calib-evals Maximum number of simulations for -calib
+ * -calib-pop Candidate parameter sets per generation for -calib (default 4+3ln(n) or the number of threads)
+ * -ensemble Ensemble over the uncertain inputs of a file (parameter|influent; name; distribution; a; b per line), in parallel
+ * -members Number of ensemble members (default 1000)
+ * -sampling Sampling of the ensemble inputs: lhs (Latin hypercube, default) or mc (Monte Carlo)
+ * -ens-res Time between the samples of the ensemble statistics (in days, default 1)
+ * -ens-outputs State variables and outputs for -ensemble (comma separated positions, default 37,38,39)
+ * -ens-batch Members of -ensemble evaluated together by the batched kernel (explicit Dormand-Prince 5(4) in lock step, opt-in, default 0: one by one with -solver)
+ * -ens-step Fixed step of -ens-batch (in days, default 0: adaptive with -rtol, -atol, -hmin and -hmax)
  * -event 	Add state event to the simulation to tell it when to stop, three variables: variable number, variable value, rising/falling (true/false)
  * 
  * @author liampetti
@@ -57,6 +107,7 @@ public class Main {
 	
 	private Model model;
 	private boolean steady;
+	private boolean direct; // Solve for the steady state instead of integrating to it
 	private String[] args;
 	
 	private double stime;
@@ -68,8 +119,34 @@ public class Main {
 	private boolean modOut; // Store all model outputs (needed for plotting)
 	private double step; // Adjust time step size for model outputs
 	private boolean dae; // Tells the model to run the algebraic equations
+	private boolean reduced; // Integrate only the differential states
+	private DefaultIntegratorFactory solver; // Integration method and settings
+	private boolean continuous; // Run the dynamic influent without restarting the integrator
+	private boolean interpolate; // Interpolate between the dynamic influent samples
+	private int threads; // Scenarios run at the same time in batch mode
+	private int flushInterval = 96; // Output rows between flushes of the output file
+	private boolean binary; // Write trajectories in the binary format instead of CSV
 	private List<DiscreteEvent> events; // Discrete event detection
-	private CSVReader dynamicIn; // Input file for dynamic influent
+	private String dynamicFile; // Input file for dynamic influent
+	private boolean mapped; // Memory map the dynamic influent file
+	private InfluentReader dynamicIn;
+	private String checkpointFile; // Checkpoints of dynamic runs, none if not set
+	private double checkpointInterval; // Simulated time between checkpoints
+	private String resumeFile; // Checkpoint the dynamic run continues from
+	private int slices; // Time slices of parallel-in-time runs, 0 for a serial run
+	private double pararealTolerance; // Relative tolerance of the slice start states
+	private double coarseStep; // Time between the influent samples of the coarse propagator
+	private boolean measureSpeedup; // Run parallel-in-time runs serially as well to measure the speedup
+	private int[] sensOutputs; // State variables and outputs recorded by the sensitivity analysis
+	private String measuredFile; // Measurements the calibration is fitted to
+	private int calibEvaluations; // Maximum number of calibration simulations
+	private int calibPopulation; // Calibration candidates per generation, 0 for the default
+	private int members; // Ensemble members
+	private boolean latinHypercube; // Latin hypercube sampling of the ensemble inputs
+	private double ensResolution; // Time between the samples of the ensemble statistics
+	private int[] ensOutputs; // State variables and outputs of the ensemble statistics
+	private int ensBatch; // Ensemble members per batch of the batched kernel, 0 runs them one by one
+	private double ensStep; // Fixed step of the ensemble batches, 0 for adaptive steps
 
 	public void start(String[] args) {
 		this.args = args;
@@ -77,12 +154,25 @@ public class Main {
 		if (args.length > 0) {
 			for (int i=0;i<args.length;i++) {
 				switch (args[i]) {
-					case "-steady":		runSteady();
-										steady = true;
+					case "-steady":		steady = true; // Before the run, so -in is read as a steady influent
+										runSteady();
 										spec = true;
 										break;
-					case "-dynamic": 	runDynamic();
-										steady = false;
+					case "-dynamic": 	steady = false;
+										runDynamic();
+										spec = true;
+										break;
+					case "-batch": 		steady = false;
+										runBatch(args[i+1]);
+										spec = true;
+										break;
+					case "-sens": 		runSensitivity(args[i+1]);
+										spec = true;
+										break;
+					case "-calib": 		runCalibration(args[i+1]);
+										spec = true;
+										break;
+					case "-ensemble": 	runEnsemble(args[i+1]);
 										spec = true;
 										break;
 					default:			break;
@@ -92,8 +182,8 @@ public class Main {
 		
 		// User did not specify what simulation type, default to steady
 		if (!spec) {
-			runSteady();
 			steady = true;
+			runSteady();
 		}
 	}
 	
@@ -114,29 +204,35 @@ public class Main {
 		step = 0.01041666667; // 15 minutes in days as standard resolution
 		modOut = false;
 		dae = true;
+		solver = new DefaultIntegratorFactory();
+		direct = false;
 		
 		checkArgs();
 
-		model = new Model(start, finish, step, parameters, initial, influent, modOut, "steady_out.csv");	
+		model = new Model(start, finish, step, parameters, initial, influent, modOut, outputFile("steady_out"));	
+		model.setBinaryOutput(binary);
 		model.setDAE(dae);		
+		model.setReduced(reduced);
+		model.setIntegratorFactory(solver);
+		model.setFlushInterval(flushInterval);
 		model.addEvents(events);
 		
 		if (modOut) {
 			writer.Clear("cont_model_output.csv");
 		}
 		
-		new Thread(model).start();
+		// Direct solution first, integration as the fallback
+		SteadyStateSolver steadySolver = null;
+		if (direct) {
+			steadySolver = new SteadyStateSolver();
+			if (!model.solveSteady(steadySolver)) {
+				LOGGER.warning("Steady state not found directly (" + steadySolver + "), integrating to it");
+				steadySolver = null;
+			}
+		}
 		
-		while(!model.isFinished()) {
-			try {
-				Thread.sleep(3000); // Wait 3 seconds before checking
-				System.out.println("Progress = " +
-						String.format("%.2f",(model.getProgress()/finish)*100)
-						+ "%");
-			} catch (InterruptedException e) {
-				LOGGER.severe(e.toString());
-			} 
-			
+		if (steadySolver == null && !simulate()) {
+			return;
 		}
 		
 		double[] x = model.getX();
@@ -144,7 +240,9 @@ public class Main {
 		
 		String output = "Simulation time; " + (System.currentTimeMillis()-stime) + 
 				"; Start; " + start + 
-				"; Finish; " + model.getEnd() + "\n";
+				"; Finish; " + model.getEnd() + 
+				"; Solver; " + (steadySolver != null ? "direct" : solver.getName()) + 
+				"; " + (steadySolver != null ? steadySolver : model.getStatistics()) + "\n";
 		for (int i=0;i<x.length;i++) {
 			output += "State no; " + (i+1) + 
 					";\t Influent; " + u[i] + 
@@ -156,15 +254,14 @@ public class Main {
 	
 	private void runDynamic() {
 		double stime = System.currentTimeMillis();
-		CSVWriter writer = new CSVWriter();
-		writer.Clear("dynamic_output.csv");
 		events = new ArrayList<DiscreteEvent>();
 		// Setup model outputs and parameters (default is BSM2)
 		BSM2Defaults defaults = new BSM2Defaults();
 		initial = new StateVariables();
 		initial.setVar(defaults.DigesterInit());
 		influent = new StateVariables();
-		dynamicIn = new CSVReader("digesterin.csv", ",");
+		dynamicFile = "digesterin.csv";
+		mapped = false;
 		parameters = new DigesterParameters();
 		// No command line arguments, run a default setup
 		start = 0.0;
@@ -173,45 +270,526 @@ public class Main {
 		// Continuous output models are not used in dynamic models at the moment
 		modOut = false;	
 		dae = true;
+		solver = new DefaultIntegratorFactory();
+		continuous = false;
+		interpolate = false;
+		checkpointFile = null;
+		checkpointInterval = 10.0;
+		resumeFile = null;
+		slices = 0;
+		pararealTolerance = 1.0e-6;
+		coarseStep = 1.0;
+		measureSpeedup = false;
+		threads = Runtime.getRuntime().availableProcessors();
 		
 		checkArgs();
+		
+		// State, influent and output position of the run to continue
+		Checkpoint resume = null;
+		if (resumeFile != null) {
+			try {
+				resume = Checkpoint.read(resumeFile);
+			} catch (IOException e) {
+				LOGGER.severe(e.toString());
+				return;
+			}
+			initial.setVar(resume.getX());
+			influent.setVar(resume.getU());
+		}
+		
+		if (!binary && resume == null) {
+			new CSVWriter().Clear(outputFile("dynamic_output"));
+		}
+		dynamicIn = new InfluentReader(dynamicFile, ',', mapped);
+		
+		if (slices > 0) {
+			runParareal(stime, resume);
+			return;
+		}
+		if (continuous) {
+			runContinuous(stime, resume);
+			return;
+		}
 
+		long rows = 0; // Output rows, also counted over the runs before a resume
+		if (resume != null) {
+			start = resume.getTime();
+			rows = resume.getOutputRows();
+			skipInfluent(resume);
+		}
 		model = new Model(start, start+step, step, parameters, initial, influent, modOut, "dynamic_out.csv");
 		model.setDAE(dae);
+		model.setReduced(reduced);
+		model.setIntegratorFactory(solver);
 		model.addEvents(events);
+		if (resume != null) {
+			model.setS_H_ion(resume.getS_H_ion());
+			if (solver.getInitialStep() <= 0) {
+				model.setInitialStep(resume.getStep());
+			}
+		}
 		
 		int t = 0;
+		long checkpointRows = Math.max(1, Math.round(checkpointInterval/step)); // Samples between checkpoints
+		double[] in = new double[42]; // Influent line, reused for every sample
 		
-		while (!dynamicIn.finished()) {
-			String[] inString = dynamicIn.getNextString();		
-			if (inString.length > 0) {
-				double[] in = new double[inString.length];
-				for (int i=0;i<in.length;i++) {
-					in[i] = Double.parseDouble(inString[i]);
+		// Output file kept open for the whole simulation
+		String[] names = TrajectoryWriter.names(StateVariables.NAMES);
+		if (resume != null && !binary) {
+			new CSVWriter().Truncate(outputFile("dynamic_output"), rows);
+		}
+		try (TrajectoryOutput output = binary ? 
+				(resume == null ? new TrajectoryWriter(outputFile("dynamic_output"), names) : 
+					new TrajectoryWriter(outputFile("dynamic_output"), names, rows)) :
+				new CSVWriter(outputFile("dynamic_output"), true, flushInterval)) {
+			while (!dynamicIn.finished()) {
+				int n = dynamicIn.next(in);
+				if (n > 0) {
+					influent.setVar(in, n);
+					model.setInfluent(influent);
 				}
-				influent.setVar(in);
-				model.setInfluent(influent);
-			}
 			
-			model.setTime(start, start+step);
-			model.run();
+				model.setTime(start, start+step);
+				model.run();
 			
-			// Add time to the beginning of the array and save to csv
-			double[] timemodel = new double[model.getX().length+1];
-			timemodel[0] = start;
-			for (int i=1;i<timemodel.length;i++) {
-				timemodel[i] = model.getX()[i-1];
-			}
-			writer.WriteArray("dynamic_output.csv", timemodel, true);
+				// Add time to the beginning of the array and save to csv
+				output.write(start, model.getX());
+				rows++;
 			
-			start = start+step;
-			if (t%(Math.round(finish/100)) == 0) {
-				System.out.println("Progress = " + String.format("%.2f",(start/finish)*100) + "%");
+				start = start+step;
+				if (checkpointFile != null && rows%checkpointRows == 0) {
+					// Everything written so far has to be in the output file before the checkpoint refers to it
+					output.flush();
+					Checkpoint checkpoint = new Checkpoint(start, model.getX(), influent.getVar(), model.getS_H_ion(), model.getLastStep());
+					checkpoint.setInfluent(dynamicFile, dynamicIn.getPosition(), dynamicIn.getLine());
+					checkpoint.setOutputRows(rows);
+					checkpoint.write(checkpointFile);
+				}
+				if (t%Math.max(1, Math.round(finish/100)) == 0) {
+					System.out.println("Progress = " + String.format("%.2f",(start/finish)*100) + "%");
+				}
+				t++;
+			}
+		}
+		
+		System.out.println("Simulation time; " + (System.currentTimeMillis()-stime) + 
+				"; Solver; " + solver.getName() + 
+				"; " + model.getStatistics());
+	}
+	
+	/**
+	 * Run the model on its own thread until it finishes, printing the progress every 5% of the simulated time
+	 * 
+	 * @return False if the run failed
+	 */
+	private boolean simulate() {
+		double interval = (model.getEnd()-start)/20.0;
+		if (interval > 0) {
+			model.addProgressListener(new Model.ProgressListener() {
+				@Override
+				public void progress(double t, double start, double end) {
+					System.out.println("Progress = " + String.format("%.2f",((t-start)/(end-start))*100) + "%");
+				}
+			}, interval);
+		}
+		try {
+			model.simulateAsync().join();
+			return true;
+		} catch (CompletionException e) {
+			LOGGER.severe("Simulation failed: " + e.getCause());
+			return false;
+		}
+	}
+	
+	/**
+	 * Continue reading the influent after the line a checkpoint was taken at, by file position
+	 * for the same influent file and by counting lines for a different one
+	 */
+	private void skipInfluent(Checkpoint checkpoint) {
+		if (checkpoint.getInfluentOffset() >= 0 && checkpoint.getInfluentFile().equals(dynamicFile)) {
+			dynamicIn.seek(checkpoint.getInfluentOffset(), checkpoint.getInfluentLine());
+			return;
+		}
+		double[] in = new double[42];
+		for (long i=0;i<checkpoint.getInfluentLine() && !dynamicIn.finished();i++) {
+			dynamicIn.next(in);
+		}
+	}
+	
+	/**
+	 * Dynamic simulation over the whole influent file in a single integration,
+	 * writes the same output file as the sample by sample simulation
+	 * 
+	 * The sample by sample simulation runs one more interval at the end of the file with the last influent 
+	 * held, so the integration also ends one step after the last sample and the files have the same rows.
+	 * 
+	 * @param resume 	Checkpoint the integration starts from, null to start at the start time
+	 */
+	private void runContinuous(double stime, Checkpoint resume) {
+		InfluentSeries series = InfluentSeries.read(dynamicIn, start, step);
+		series.setInterpolated(interpolate);
+		finish = series.getEnd()+step;
+		if (resume != null) {
+			start = resume.getTime();
+		}
+		
+		model = new Model(start, finish, step, parameters, initial, influent, true, outputFile("dynamic_output"));
+		model.setBinaryOutput(binary);
+		model.setDAE(dae);
+		model.setReduced(reduced);
+		model.setIntegratorFactory(solver);
+		model.setInfluentSeries(series);
+		model.setFlushInterval(flushInterval);
+		model.addEvents(events);
+		model.setCheckpoints(checkpointFile, checkpointInterval, dynamicFile);
+		if (resume != null) {
+			model.setS_H_ion(resume.getS_H_ion());
+			model.setOutputRows(resume.getOutputRows());
+			if (solver.getInitialStep() <= 0) {
+				model.setInitialStep(resume.getStep());
+			}
+		}
+		
+		if (!simulate()) {
+			return;
+		}
+		
+		System.out.println("Simulation time; " + (System.currentTimeMillis()-stime) + 
+				"; Solver; " + solver.getName() + 
+				"; " + model.getStatistics());
+	}
+	
+	/**
+	 * Dynamic simulation over the whole influent file parallel in time, writes the same output 
+	 * file as the continuous simulation and reports the iterations and the speedup over serial
+	 * 
+	 * @param resume 	Checkpoint the integration starts from, null to start at the start time
+	 */
+	private void runParareal(double stime, Checkpoint resume) {
+		if (checkpointFile != null) {
+			LOGGER.severe("Checkpoints can not be written with -parareal, run without -checkpoint or use -continuous");
+			return;
+		}
+		if (!events.isEmpty()) {
+			LOGGER.warning("Discrete events are ignored with -parareal");
+		}
+		InfluentSeries series = InfluentSeries.read(dynamicIn, start, step);
+		series.setInterpolated(interpolate);
+		finish = series.getEnd()+step; // One interval with the last influent held, as in runContinuous
+		if (resume != null) {
+			start = resume.getTime();
+		}
+		
+		Parareal parareal = new Parareal(start, finish, step, parameters, initial, series, slices);
+		parareal.setDAE(dae);
+		parareal.setReduced(reduced);
+		parareal.setIntegratorFactory(solver);
+		parareal.setCoarseStep(coarseStep);
+		parareal.setThreads(threads);
+		parareal.setMeasureSerial(measureSpeedup);
+		parareal.setTolerance(parareal.getAbsoluteTolerance(), pararealTolerance);
+		parareal.setOutputFile(outputFile("dynamic_output"));
+		parareal.setBinaryOutput(binary);
+		parareal.setFlushInterval(flushInterval);
+		if (resume != null) {
+			parareal.setS_H_ion(resume.getS_H_ion());
+			parareal.setOutputRows(resume.getOutputRows());
+		}
+		
+		try {
+			parareal.run();
+		} catch (CompletionException e) {
+			LOGGER.severe("Simulation failed: " + e.getCause());
+			return;
+		}
+		
+		System.out.println("Simulation time; " + (System.currentTimeMillis()-stime) + 
+				"; Solver; " + solver.getName() + 
+				"; " + parareal + 
+				"; Threads; " + threads + 
+				"; " + parareal.getStatistics());
+	}
+	
+	/**
+	 * Runs the scenarios of a batch file in parallel, each scenario with its own model,
+	 * the final states are written to "batch_result.csv"
+	 */
+	private void runBatch(String filename) {
+		double stime = System.currentTimeMillis();
+		events = new ArrayList<DiscreteEvent>();
+		BSM2Defaults defaults = new BSM2Defaults();
+		initial = new StateVariables();
+		initial.setVar(defaults.DigesterInit());
+		influent = new StateVariables();
+		influent.setVar(defaults.Influent());
+		parameters = new DigesterParameters();
+		solver = new DefaultIntegratorFactory();
+		threads = Runtime.getRuntime().availableProcessors();
+		
+		checkArgs();
+		
+		ScenarioBatch batch = new ScenarioBatch(threads);
+		batch.read(filename, solver.getName());
+		batch.setOutputFile("batch_result.csv");
+		List<ScenarioResult> results = batch.run();
+		
+		int failed = 0;
+		for (ScenarioResult result : results) {
+			System.out.println("Scenario; " + result.getScenario().getName() + 
+					"; Simulation time; " + result.getTime() + 
+					(result.isFailed() ? "; Failed; " + result.getError() : "; " + result.getStatistics()));
+			if (result.isFailed()) {
+				failed++;
+			}
+		}
+		System.out.println("Batch time; " + (System.currentTimeMillis()-stime) + 
+				"; Scenarios; " + results.size() + 
+				"; Failed; " + failed + 
+				"; Threads; " + threads);
+	}
+	
+	/**
+	 * Sensitivities of the outputs to the given parameters in one integration of the model and 
+	 * its sensitivity equations, with the steady influent or (with -continuous or -interp) the 
+	 * dynamic influent file. The trajectory is written to "sensitivity_output.csv" (or .bin)
+	 * 
+	 * @param list 	Comma separated parameter positions
+	 */
+	private void runSensitivity(String list) {
+		double stime = System.currentTimeMillis();
+		events = new ArrayList<DiscreteEvent>();
+		BSM2Defaults defaults = new BSM2Defaults();
+		initial = new StateVariables();
+		initial.setVar(defaults.DigesterInit());
+		influent = new StateVariables();
+		influent.setVar(defaults.Influent());
+		parameters = new DigesterParameters();
+		dynamicFile = "digesterin.csv";
+		start = 0.0;
+		finish = 200.0;
+		step = 0.01041666667; // 15 minutes in days
+		dae = true;
+		solver = new DefaultIntegratorFactory();
+		sensOutputs = new int[] {37, 38, 39};
+		// -in names a dynamic influent file if the influent is run as a series
+		steady = true;
+		for (String arg : args) {
+			if (arg.equals("-continuous") || arg.equals("-interp")) {
+				steady = false;
+			}
+		}
+		
+		checkArgs();
+		
+		InfluentSeries series = null;
+		if (!steady) {
+			series = InfluentSeries.read(new InfluentReader(dynamicFile, ',', mapped), start, step);
+			series.setInterpolated(interpolate);
+			finish = series.getEnd();
+		}
+		SensitivityAnalysis analysis = new SensitivityAnalysis(start, finish, step, parameters, initial, influent, parseIndices(list));
+		analysis.setInfluentSeries(series);
+		analysis.setOutputs(sensOutputs);
+		analysis.setDAE(dae);
+		analysis.setIntegratorFactory(solver);
+		analysis.setFlushInterval(flushInterval);
+		analysis.setOutputFile(outputFile("sensitivity_output"));
+		analysis.run();
+		
+		String[] names = analysis.getNames();
+		double[] x = analysis.getX();
+		double[][] ds = analysis.getSensitivities();
+		int[] indices = analysis.getIndices();
+		String output = "Simulation time; " + (System.currentTimeMillis()-stime) + 
+				"; Start; " + start + 
+				"; Finish; " + analysis.getEnd() + 
+				"; Solver; " + solver.getName() + 
+				"; " + analysis.getStatistics() + "\n";
+		int c = 0;
+		for (int j : sensOutputs) {
+			output += names[c++] + "; " + x[j] + "\n";
+			for (int k=0;k<indices.length;k++) {
+				output += names[c++] + "; " + ds[k][j] + "\n";
+			}
+		}
+		System.out.println(output);
+	}
+	
+	/**
+	 * Fits the parameters of a bounds file to the measurements, simulating the candidate 
+	 * parameter sets in parallel, with the steady influent or (with -continuous or -interp) 
+	 * the dynamic influent file. The best parameters are written to "calibrated_parameters.csv"
+	 * 
+	 * @param filename 	Fitted parameters, one per line: name or position; lower bound; upper bound
+	 */
+	private void runCalibration(String filename) {
+		double stime = System.currentTimeMillis();
+		events = new ArrayList<DiscreteEvent>();
+		BSM2Defaults defaults = new BSM2Defaults();
+		initial = new StateVariables();
+		initial.setVar(defaults.DigesterInit());
+		influent = new StateVariables();
+		influent.setVar(defaults.Influent());
+		parameters = new DigesterParameters();
+		dynamicFile = "digesterin.csv";
+		measuredFile = "measured.csv";
+		start = 0.0;
+		step = 0.01041666667; // 15 minutes in days
+		dae = true;
+		solver = new DefaultIntegratorFactory();
+		threads = Runtime.getRuntime().availableProcessors();
+		calibEvaluations = 1000;
+		calibPopulation = 0;
+		// -in names a dynamic influent file if the influent is run as a series
+		steady = true;
+		for (String arg : args) {
+			if (arg.equals("-continuous") || arg.equals("-interp")) {
+				steady = false;
+			}
+		}
+		
+		checkArgs();
+		
+		Calibration calibration = new Calibration(start, parameters, initial, influent);
+		if (!steady) {
+			InfluentSeries series = InfluentSeries.read(new InfluentReader(dynamicFile, ',', mapped), start, step);
+			series.setInterpolated(interpolate);
+			calibration.setInfluentSeries(series);
+		}
+		calibration.readParameters(filename);
+		calibration.readMeasurements(measuredFile);
+		calibration.setDAE(dae);
+		calibration.setIntegratorFactory(solver);
+		calibration.getOptimizer().setThreads(threads);
+		calibration.getOptimizer().setMaxEvaluations(calibEvaluations);
+		calibration.getOptimizer().setPopulationSize(calibPopulation);
+		DigesterParameters best = calibration.run();
+		best.writeParameters("calibrated_parameters.csv");
+		
+		double[] p0 = parameters.getParameters();
+		double[] p = best.getParameters();
+		String output = "Calibration time; " + (System.currentTimeMillis()-stime) + 
+				"; Simulations; " + calibration.getOptimizer().getEvaluations() + 
+				"; Generations; " + calibration.getOptimizer().getGenerations() + 
+				"; Failed; " + calibration.getFailures() + 
+				"; Threads; " + threads + 
+				"; Solver; " + solver.getName() + 
+				"; Initial cost; " + calibration.getInitialCost() + 
+				"; Best cost; " + calibration.getBestCost() + "\n";
+		for (int k : calibration.getIndices()) {
+			output += DigesterParameters.NAMES[k] + "; " + p0[k] + "; " + p[k] + "\n";
+		}
+		System.out.println(output);
+	}
+	
+	/**
+	 * Runs an ensemble over the uncertain inputs of a file in parallel, with the steady influent or 
+	 * (with -continuous or -interp) the dynamic influent file. The mean, standard deviation, range 
+	 * and quantiles of the outputs are written to "ensemble_output.csv" (or .bin)
+	 * 
+	 * @param filename 	Uncertain inputs, one per line: parameter|influent; name or position; distribution; a; b
+	 */
+	private void runEnsemble(String filename) {
+		double stime = System.currentTimeMillis();
+		events = new ArrayList<DiscreteEvent>();
+		BSM2Defaults defaults = new BSM2Defaults();
+		initial = new StateVariables();
+		initial.setVar(defaults.DigesterInit());
+		influent = new StateVariables();
+		influent.setVar(defaults.Influent());
+		parameters = new DigesterParameters();
+		dynamicFile = "digesterin.csv";
+		start = 0.0;
+		finish = Double.NaN; // 200 days steady, the end of the influent file dynamic
+		step = 0.01041666667; // 15 minutes in days
+		dae = true;
+		solver = new DefaultIntegratorFactory();
+		threads = Runtime.getRuntime().availableProcessors();
+		members = 1000;
+		latinHypercube = true;
+		ensResolution = 1.0;
+		ensOutputs = new int[] {37, 38, 39};
+		ensBatch = 0;
+		ensStep = 0.0;
+		// -in names a dynamic influent file if the influent is run as a series
+		steady = true;
+		for (String arg : args) {
+			if (arg.equals("-continuous") || arg.equals("-interp")) {
+				steady = false;
 			}
-			t++;
 		}
 		
-		System.out.println("Simulation time; " + (System.currentTimeMillis()-stime));
+		checkArgs();
+		
+		InfluentSeries series = null;
+		if (!steady) {
+			series = InfluentSeries.read(new InfluentReader(dynamicFile, ',', mapped), start, step);
+			series.setInterpolated(interpolate);
+			finish = Double.isNaN(finish) ? series.getEnd() : Math.min(finish, series.getEnd());
+		} else if (Double.isNaN(finish)) {
+			finish = 200.0;
+		}
+		Ensemble ensemble = new Ensemble(start, finish, ensResolution, parameters, initial, influent);
+		ensemble.setInfluentSeries(series);
+		ensemble.readUncertainty(filename);
+		ensemble.setOutputs(ensOutputs);
+		ensemble.setMembers(members);
+		ensemble.setLatinHypercube(latinHypercube);
+		ensemble.setThreads(threads);
+		ensemble.setDAE(dae);
+		ensemble.setIntegratorFactory(solver);
+		ensemble.setBatch(ensBatch);
+		ensemble.setBatchStep(ensStep);
+		EnsembleStatistics statistics = ensemble.run();
+		
+		String[] names = statistics.getNames();
+		if (binary) {
+			try (TrajectoryOutput output = new TrajectoryWriter(outputFile("ensemble_output"), TrajectoryWriter.names(names))) {
+				statistics.write(output);
+			}
+		} else {
+			try (CSVWriter output = new CSVWriter(outputFile("ensemble_output"), false, flushInterval)) {
+				output.write("time;" + String.join(";", names) + ";");
+				statistics.write(output);
+			}
+		}
+		
+		double[] times = statistics.getTimes();
+		int last = times.length-1;
+		String output = "Ensemble time; " + (System.currentTimeMillis()-stime) + 
+				"; Members; " + members + 
+				"; Failed; " + ensemble.getFailures() + 
+				"; Sampling; " + (latinHypercube ? "lhs" : "mc") + 
+				"; Threads; " + threads + 
+				"; Solver; " + (ensemble.getBatch() > 0 ? "batch " + ensemble.getBatch() : solver.getName()) + 
+				"; Finish; " + times[last] + "\n";
+		for (int j=0;j<ensOutputs.length;j++) {
+			output += StateVariables.NAMES[ensOutputs[j]] + 
+					"; Mean; " + statistics.getMean(last, j) + 
+					"; SD; " + statistics.getStandardDeviation(last, j) + 
+					"; 5%; " + statistics.getQuantile(last, j, 0) + 
+					"; 95%; " + statistics.getQuantile(last, j, 2) + "\n";
+		}
+		System.out.println(output);
+	}
+	
+	/**
+	 * Comma separated positions
+	 */
+	private static int[] parseIndices(String list) {
+		String[] fields = list.split(",");
+		int[] indices = new int[fields.length];
+		for (int i=0;i<fields.length;i++) {
+			indices[i] = Integer.parseInt(fields[i].trim());
+		}
+		return indices;
+	}
+	
+	/**
+	 * Output file name with the extension of the output format
+	 */
+	private String outputFile(String name) {
+		return name + (binary ? ".bin" : ".csv");
 	}
 	
 	private void checkArgs() {
@@ -227,7 +805,7 @@ public class Main {
 					case "-in":		if (steady) {	
 										influent.readVar(args[i+1]);
 									} else {
-										dynamicIn = new CSVReader(args[i+1], ",");
+										dynamicFile = args[i+1];
 									}
 									break;
 					case "-init":	initial.readVar(args[i+1]);
@@ -238,6 +816,71 @@ public class Main {
 									break;
 					case "-ode":	dae = false;
 									break;
+					case "-reduced": reduced = true;
+									break;
+					case "-direct":	direct = true;
+									break;
+					case "-stiff":	solver.setSolver(DefaultIntegratorFactory.Solver.ROS23);
+									break;
+					case "-solver":	solver.setSolver(args[i+1]);
+									break;
+					case "-rtol":	solver.setRelativeTolerance(Double.parseDouble(args[i+1]));
+									break;
+					case "-atol":	solver.setAbsoluteTolerance(Double.parseDouble(args[i+1]));
+									break;
+					case "-hmin":	solver.setMinStep(Double.parseDouble(args[i+1]));
+									break;
+					case "-hmax":	solver.setMaxStep(Double.parseDouble(args[i+1]));
+									break;
+					case "-h0":		solver.setInitialStep(Double.parseDouble(args[i+1]));
+									break;
+					case "-continuous": continuous = true;
+									break;
+					case "-interp":	continuous = true;
+									interpolate = true;
+									break;
+					case "-threads": threads = Integer.parseInt(args[i+1]);
+									break;
+					case "-flush":	flushInterval = Integer.parseInt(args[i+1]);
+									break;
+					case "-mmap":	mapped = true;
+									break;
+					case "-out-format": binary = args[i+1].equalsIgnoreCase("bin");
+									break;
+					case "-checkpoint": checkpointFile = args[i+1];
+									break;
+					case "-checkpoint-every": checkpointInterval = Double.parseDouble(args[i+1]);
+									break;
+					case "-resume":	resumeFile = args[i+1];
+									break;
+					case "-parareal": slices = Integer.parseInt(args[i+1]);
+									break;
+					case "-parareal-tol": pararealTolerance = Double.parseDouble(args[i+1]);
+									break;
+					case "-parareal-speedup": measureSpeedup = true;
+									break;
+					case "-coarse-step": coarseStep = Double.parseDouble(args[i+1]);
+									break;
+					case "-sens-outputs": sensOutputs = parseIndices(args[i+1]);
+									break;
+					case "-measured": measuredFile = args[i+1];
+									break;
+					case "-calib-evals": calibEvaluations = Integer.parseInt(args[i+1]);
+									break;
+					case "-calib-pop": calibPopulation = Integer.parseInt(args[i+1]);
+									break;
+					case "-members": members = Integer.parseInt(args[i+1]);
+									break;
+					case "-sampling": latinHypercube = !args[i+1].equalsIgnoreCase("mc");
+									break;
+					case "-ens-res": ensResolution = Double.parseDouble(args[i+1]);
+									break;
+					case "-ens-outputs": ensOutputs = parseIndices(args[i+1]);
+									break;
+					case "-ens-batch": ensBatch = Integer.parseInt(args[i+1]);
+									break;
+					case "-ens-step": ensStep = Double.parseDouble(args[i+1]);
+									break;
 					case "-event":	DiscreteEvent event = new DiscreteEvent(Integer.parseInt(args[i+1]),
 										Double.parseDouble(args[i+2]),
 										Boolean.parseBoolean(args[i+3]));
@@ -0,0 +1,417 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+
+import de.uni_erlangen.lstm.file.CSVReader;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+import de.uni_erlangen.lstm.solvers.IntegratorFactory;
+import de.uni_erlangen.lstm.solvers.ParallelCMAES;
+
+/**
+ * Fits a subset of the digester parameters to measured outputs (e.g. gas flow and pH)
+ * 
+ * Every candidate parameter set is one simulation from the initial conditions to the last 
+ * measurement, sampled at the measurement times ({@link SampledSimulation}). The cost is the mean squared error of each 
+ * measured output, scaled by the variance of its measurements, summed over the outputs. 
+ * The cost is minimised with {@link ParallelCMAES}, which simulates the candidates of a 
+ * generation in parallel, each with its own model, integrator and copy of the influent series.
+ * Parameters with a positive lower bound are searched on a logarithmic scale.
+ * 
+ * @author liampetti
+ *
+ */
+public class Calibration {
+	public final static Logger LOGGER = Logger.getLogger(Calibration.class.getName());
+	
+	private double[] x;
+	private double[] u;
+	private double[] param; // Starting parameters, the fitted ones are replaced
+	private InfluentSeries influentSeries; // Time varying influent, null for constant influent
+	private double start;
+	private boolean dae;
+	private double fix_pH;
+	private IntegratorFactory integratorFactory;
+	private List<Integer> indices; // Fitted parameters
+	private List<double[]> bounds; // Lower and upper bound of each fitted parameter
+	private double[] times; // Measurement times, ascending
+	private int[] outputs; // Measured state variables and outputs
+	private double[][] measured; // [time][output], NaN where nothing was measured
+	private double[] scale; // Standard deviation of the measurements of each output
+	private ParallelCMAES optimizer;
+	private AtomicInteger failures;
+	private double initialCost;
+	private double bestCost;
+	
+	/**
+	 * @param start 		Initial time of the simulations
+	 * @param parameters 	Starting parameters, also the values of the parameters that are not fitted
+	 * @param initial 		Initial reactor conditions
+	 * @param influent 		Constant influent (see {@link #setInfluentSeries} for dynamic influent)
+	 */
+	public Calibration(double start, DigesterParameters parameters, StateVariables initial, StateVariables influent) {
+		this.start = start;
+		param = parameters.getParameters();
+		x = initial.getVar();
+		u = influent.getVar();
+		x[35] = u[35]; // Effluent flow rate = Influent flow rate
+		dae = true;
+		fix_pH = -1.0;
+		integratorFactory = new DefaultIntegratorFactory();
+		indices = new ArrayList<Integer>();
+		bounds = new ArrayList<double[]>();
+		optimizer = new ParallelCMAES();
+		failures = new AtomicInteger();
+		initialCost = Double.NaN;
+		bestCost = Double.NaN;
+	}
+	
+	/**
+	 * Run the whole influent series (influent held constant over each sample or interpolated)
+	 */
+	public void setInfluentSeries(InfluentSeries influentSeries) {
+		this.influentSeries = influentSeries;
+		if (influentSeries != null) {
+			u = influentSeries.getRow(0).clone();
+			x[35] = u[35]; // Effluent flow rate = Influent flow rate
+		}
+	}
+	
+	/**
+	 * Fit a parameter within the given bounds
+	 * 
+	 * @param index 	Position in {@link DigesterParameters#getParameters()}
+	 * @param lower 	Lower bound
+	 * @param upper 	Upper bound
+	 */
+	public void addParameter(int index, double lower, double upper) {
+		if (index < 0 || index >= param.length || !(upper > lower)) {
+			throw new IllegalArgumentException("Invalid parameter " + index + " [" + lower + ", " + upper + "]");
+		}
+		indices.add(index);
+		bounds.add(new double[] {lower, upper});
+	}
+	
+	/**
+	 * Read the fitted parameters from a file, one parameter per line (';' separated):
+	 * name or position; lower bound; upper bound
+	 * 
+	 * Lines starting with '#' are skipped
+	 */
+	public void readParameters(String filename) {
+		CSVReader reader = new CSVReader(filename, ";");
+		while (!reader.finished()) {
+			String[] fields = reader.getNextString();
+			if (fields.length < 3 || fields[0].trim().isEmpty() || fields[0].trim().startsWith("#")) {
+				continue;
+			}
+			try {
+				addParameter(position(fields[0].trim(), DigesterParameters.NAMES), 
+						Double.parseDouble(fields[1].trim()), Double.parseDouble(fields[2].trim()));
+			} catch (IllegalArgumentException e) {
+				LOGGER.severe("Skipping parameter " + fields[0] + ": " + e.toString());
+			}
+		}
+	}
+	
+	/**
+	 * Read the measurements from a file (';' separated), the first line names the columns:
+	 * time; followed by the measured state variables or outputs (names as in 
+	 * {@link StateVariables#NAMES}, e.g. gas_vol; ph). Each further line holds a 
+	 * measurement time (in days) and the measured values, empty fields are skipped.
+	 */
+	public void readMeasurements(String filename) {
+		CSVReader reader = new CSVReader(filename, ";");
+		String[] header = reader.getNextString();
+		if (header.length < 2) {
+			throw new IllegalArgumentException("No measured outputs in " + filename);
+		}
+		int[] columns = new int[header.length-1];
+		for (int j=0;j<columns.length;j++) {
+			columns[j] = position(header[j+1].trim(), StateVariables.NAMES);
+		}
+		List<Double> t = new ArrayList<Double>();
+		List<double[]> rows = new ArrayList<double[]>();
+		while (!reader.finished()) {
+			String[] fields = reader.getNextString();
+			if (fields.length == 0 || fields[0].trim().isEmpty()) {
+				continue;
+			}
+			double[] row = new double[columns.length];
+			for (int j=0;j<columns.length;j++) {
+				row[j] = j+1 < fields.length && !fields[j+1].trim().isEmpty() ? Double.parseDouble(fields[j+1].trim()) : Double.NaN;
+			}
+			t.add(Double.parseDouble(fields[0].trim()));
+			rows.add(row);
+		}
+		double[] times = new double[t.size()];
+		for (int i=0;i<times.length;i++) {
+			times[i] = t.get(i);
+		}
+		setMeasurements(times, columns, rows.toArray(new double[rows.size()][]));
+	}
+	
+	/**
+	 * @param times 	Measurement times (in days), ascending
+	 * @param outputs 	Measured state variables and outputs (positions as in {@link StateVariables#NAMES})
+	 * @param measured 	Measured values [time][output], NaN where nothing was measured
+	 */
+	public void setMeasurements(double[] times, int[] outputs, double[][] measured) {
+		for (int i=1;i<times.length;i++) {
+			if (times[i] < times[i-1]) {
+				throw new IllegalArgumentException("Measurement times are not ascending at " + times[i]);
+			}
+		}
+		this.times = times.clone();
+		this.outputs = outputs.clone();
+		this.measured = measured;
+		
+		// Each output is scaled by the spread of its measurements, so all outputs count alike
+		scale = new double[outputs.length];
+		for (int j=0;j<outputs.length;j++) {
+			double sum = 0.0;
+			double sumSq = 0.0;
+			int n = 0;
+			for (double[] row : measured) {
+				if (!Double.isNaN(row[j])) {
+					sum += row[j];
+					sumSq += row[j]*row[j];
+					n++;
+				}
+			}
+			double mean = n > 0 ? sum/n : 0.0;
+			double var = n > 0 ? sumSq/n-mean*mean : 0.0;
+			if (var > 1.0e-12*mean*mean) {
+				scale[j] = Math.sqrt(var);
+			} else if (mean != 0.0) {
+				scale[j] = Math.abs(mean);
+			} else {
+				scale[j] = 1.0;
+			}
+		}
+	}
+	
+	/**
+	 * Position of a name in a list (ignoring case) or a position given as a number
+	 */
+	private static int position(String name, String[] names) {
+		for (int i=0;i<names.length;i++) {
+			if (names[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		try {
+			return Integer.parseInt(name);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Unknown name " + name);
+		}
+	}
+	
+	public void setDAE(boolean dae) {
+		this.dae = dae;
+	}
+	
+	public void setpH(double ph) {
+		this.fix_pH = ph;
+	}
+	
+	/**
+	 * The factory is called from several threads, it should not be changed while the calibration runs
+	 */
+	public void setIntegratorFactory(IntegratorFactory integratorFactory) {
+		this.integratorFactory = integratorFactory;
+	}
+	
+	/**
+	 * Optimizer settings (threads, population size, evaluations, seed)
+	 */
+	public ParallelCMAES getOptimizer() {
+		return optimizer;
+	}
+	
+	/**
+	 * Fit the parameters
+	 * 
+	 * @return Starting parameters with the fitted parameters replaced by the best values found
+	 */
+	public DigesterParameters run() {
+		if (indices.isEmpty() || times == null || times.length == 0) {
+			throw new IllegalStateException("Calibration needs parameters and measurements");
+		}
+		final int n = indices.size();
+		double[] z0 = new double[n];
+		double[] lower = new double[n];
+		double[] upper = new double[n];
+		for (int k=0;k<n;k++) {
+			z0[k] = scaled(k, param[indices.get(k)]);
+			upper[k] = 1.0;
+		}
+		failures.set(0);
+		initialCost = cost(param);
+		
+		double[] z = optimizer.minimize(new MultivariateFunction() {
+			public double value(double[] point) {
+				return cost(parameters(point));
+			}
+		}, z0, lower, upper);
+		
+		bestCost = optimizer.getBestValue();
+		double[] p = param;
+		if (bestCost < initialCost) {
+			p = parameters(z);
+		} else {
+			bestCost = initialCost;
+		}
+		DigesterParameters best = new DigesterParameters();
+		best.setParameters(p);
+		return best;
+	}
+	
+	/**
+	 * Unit interval coordinate of a fitted parameter value (logarithmic for positive bounds)
+	 */
+	private double scaled(int k, double p) {
+		double[] b = bounds.get(k);
+		double z;
+		if (b[0] > 0.0) {
+			z = Math.log(Math.max(p, b[0])/b[0])/Math.log(b[1]/b[0]);
+		} else {
+			z = (p-b[0])/(b[1]-b[0]);
+		}
+		return Math.min(Math.max(z, 0.0), 1.0);
+	}
+	
+	/**
+	 * Full parameter array for unit interval coordinates of the fitted parameters
+	 */
+	private double[] parameters(double[] z) {
+		double[] p = param.clone();
+		for (int k=0;k<z.length;k++) {
+			double[] b = bounds.get(k);
+			if (b[0] > 0.0) {
+				p[indices.get(k)] = b[0]*Math.exp(z[k]*Math.log(b[1]/b[0]));
+			} else {
+				p[indices.get(k)] = b[0]+z[k]*(b[1]-b[0]);
+			}
+		}
+		return p;
+	}
+	
+	/**
+	 * Scaled squared error of a simulation with the given parameters, 
+	 * infinite if the simulation fails. Can be called from several threads.
+	 * 
+	 * @param p 	Full parameter array
+	 */
+	public double cost(double[] p) {
+		double[][] predicted;
+		try {
+			predicted = simulate(p);
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+			LOGGER.warning("Simulation failed: " + e.toString());
+			return Double.POSITIVE_INFINITY;
+		}
+		double total = 0.0;
+		for (int j=0;j<outputs.length;j++) {
+			double sum = 0.0;
+			int count = 0;
+			for (int i=0;i<times.length;i++) {
+				if (!Double.isNaN(measured[i][j])) {
+					double e = (predicted[i][j]-measured[i][j])/scale[j];
+					sum += e*e;
+					count++;
+				}
+			}
+			if (count > 0) {
+				total += sum/count;
+			}
+		}
+		return Double.isNaN(total) ? Double.POSITIVE_INFINITY : total;
+	}
+	
+	/**
+	 * Simulate from the start to the last measurement with the given parameters
+	 * 
+	 * @param p 	Full parameter array
+	 * @return Measured outputs at the measurement times [time][output]
+	 */
+	public double[][] simulate(double[] p) {
+		final double[][] predicted = new double[times.length][outputs.length];
+		SampledSimulation simulation = new SampledSimulation(start);
+		simulation.setDAE(dae);
+		simulation.setpH(fix_pH);
+		simulation.setIntegratorFactory(integratorFactory);
+		simulation.run(x.clone(), u.clone(), influentSeries == null ? null : influentSeries.copy(), p, times, 
+				new SampledSimulation.Sink() {
+			public void sample(int i, double t, double[] s) {
+				for (int j=0;j<outputs.length;j++) {
+					predicted[i][j] = s[outputs[j]];
+				}
+			}
+		});
+		return predicted;
+	}
+	
+	public int[] getIndices() {
+		int[] copy = new int[indices.size()];
+		for (int k=0;k<copy.length;k++) {
+			copy[k] = indices.get(k);
+		}
+		return copy;
+	}
+	
+	public int[] getOutputs() {
+		return outputs.clone();
+	}
+	
+	/**
+	 * @return Cost of the starting parameters
+	 */
+	public double getInitialCost() {
+		return initialCost;
+	}
+	
+	/**
+	 * @return Cost of the returned parameters
+	 */
+	public double getBestCost() {
+		return bestCost;
+	}
+	
+	/**
+	 * @return Simulations that failed (ranked last by the optimizer)
+	 */
+	public int getFailures() {
+		return failures.get();
+	}
+}
@@ -0,0 +1,600 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.distribution.LogNormalDistribution;
+import org.apache.commons.math3.distribution.NormalDistribution;
+import org.apache.commons.math3.distribution.RealDistribution;
+import org.apache.commons.math3.distribution.UniformRealDistribution;
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+
+import de.uni_erlangen.lstm.file.CSVReader;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.EnsembleModel;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+import de.uni_erlangen.lstm.solvers.EnsembleIntegrator;
+import de.uni_erlangen.lstm.solvers.IntegratorFactory;
+
+/**
+ * Monte Carlo uncertainty propagation, runs an ensemble of simulations with uncertain 
+ * digester parameters and influent composition in parallel
+ * 
+ * The uncertain parameters are drawn from their distributions, the uncertain influent 
+ * variables are multiplied by a factor drawn from theirs (for constant and dynamic influent alike). 
+ * The inputs are sampled by Latin hypercube (one draw from each of the members equally likely 
+ * strata of every input, randomly paired) or plain Monte Carlo, all on the calling thread 
+ * with a fixed seed. The members run on a fork-join pool, each with its own model, integrator 
+ * and influent copy ({@link SampledSimulation}), and are folded into {@link EnsembleStatistics}
+ * as they finish, so no trajectories are kept or written.
+ * 
+ * With {@link #setBatch} the members are instead run in batches, each batch evaluated at once by 
+ * {@link EnsembleModel} and integrated in lock step by {@link EnsembleIntegrator} (DAE model with 
+ * constant or piecewise constant influent only, otherwise the members are run one by one).
+ * 
+ * @author liampetti
+ *
+ */
+public class Ensemble {
+	public final static Logger LOGGER = Logger.getLogger(Ensemble.class.getName());
+	
+	private double[] x;
+	private double[] u;
+	private double[] param;
+	private InfluentSeries influentSeries; // Time varying influent, null for constant influent
+	private double start;
+	private double end;
+	private double resolution; // Time between the samples of the statistics (in days)
+	private boolean dae;
+	private double fix_pH;
+	private IntegratorFactory integratorFactory;
+	private List<Integer> parameterIndices; // Uncertain parameters
+	private List<RealDistribution> parameterDistributions;
+	private List<Integer> influentIndices; // Uncertain influent variables
+	private List<RealDistribution> influentDistributions; // Factors of the influent variables
+	private int[] outputs;
+	private double[] quantiles; // In percent
+	private int members;
+	private boolean latinHypercube;
+	private long seed;
+	private int threads;
+	private int batch; // Members per batch of the ensemble kernel, 0 runs the members one by one
+	private double batchStep; // Fixed step of the batches, 0 for adaptive steps
+	private EnsembleStatistics statistics;
+	private int failures;
+	
+	/**
+	 * @param start 		Initial time
+	 * @param end 			Final time
+	 * @param resolution 	Time between the samples of the statistics (in days)
+	 * @param parameters 	Digester parameters, the uncertain ones are replaced in each member
+	 * @param initial 		Initial reactor conditions
+	 * @param influent 		Constant influent (see {@link #setInfluentSeries} for dynamic influent)
+	 */
+	public Ensemble(double start, double end, double resolution, DigesterParameters parameters, 
+			StateVariables initial, StateVariables influent) {
+		this.start = start;
+		this.end = end;
+		this.resolution = resolution;
+		param = parameters.getParameters();
+		x = initial.getVar();
+		u = influent.getVar();
+		x[35] = u[35]; // Effluent flow rate = Influent flow rate
+		dae = true;
+		fix_pH = -1.0;
+		integratorFactory = new DefaultIntegratorFactory();
+		parameterIndices = new ArrayList<Integer>();
+		parameterDistributions = new ArrayList<RealDistribution>();
+		influentIndices = new ArrayList<Integer>();
+		influentDistributions = new ArrayList<RealDistribution>();
+		outputs = new int[] {37, 38, 39}; // Methane, gas flow and pH
+		quantiles = new double[] {5.0, 50.0, 95.0};
+		members = 1000;
+		latinHypercube = true;
+		seed = 42;
+		threads = Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Run the whole influent series (influent held constant over each sample or interpolated)
+	 */
+	public void setInfluentSeries(InfluentSeries influentSeries) {
+		this.influentSeries = influentSeries;
+		if (influentSeries != null) {
+			u = influentSeries.getRow(0).clone();
+			x[35] = u[35]; // Effluent flow rate = Influent flow rate
+		}
+	}
+	
+	/**
+	 * @param index 		Position in {@link DigesterParameters#getParameters()}
+	 * @param distribution 	Distribution of the parameter value
+	 */
+	public void addParameter(int index, RealDistribution distribution) {
+		if (index < 0 || index >= param.length) {
+			throw new IllegalArgumentException("Invalid parameter " + index);
+		}
+		parameterIndices.add(index);
+		parameterDistributions.add(distribution);
+	}
+	
+	/**
+	 * @param index 		Influent variable (position in {@link StateVariables#NAMES})
+	 * @param distribution 	Distribution of the factor the influent variable is multiplied by
+	 */
+	public void addInfluent(int index, RealDistribution distribution) {
+		if (index < 0 || index >= u.length) {
+			throw new IllegalArgumentException("Invalid influent variable " + index);
+		}
+		influentIndices.add(index);
+		influentDistributions.add(distribution);
+	}
+	
+	/**
+	 * Read the uncertain inputs from a file, one per line (';' separated):
+	 * parameter|influent; name or position; uniform|normal|lognormal; a; b
+	 * 
+	 * uniform takes the lower and upper bound, normal the mean and standard deviation, 
+	 * lognormal the median and the standard deviation of the logarithm. 
+	 * Influent lines give the distribution of a factor. Lines starting with '#' are skipped.
+	 */
+	public void readUncertainty(String filename) {
+		CSVReader reader = new CSVReader(filename, ";");
+		while (!reader.finished()) {
+			String[] fields = reader.getNextString();
+			if (fields.length < 5 || fields[0].trim().isEmpty() || fields[0].trim().startsWith("#")) {
+				continue;
+			}
+			try {
+				String type = fields[0].trim();
+				RealDistribution distribution = distribution(fields[2].trim(), 
+						Double.parseDouble(fields[3].trim()), Double.parseDouble(fields[4].trim()));
+				if (type.equalsIgnoreCase("parameter")) {
+					addParameter(position(fields[1].trim(), DigesterParameters.NAMES), distribution);
+				} else if (type.equalsIgnoreCase("influent")) {
+					addInfluent(position(fields[1].trim(), StateVariables.NAMES), distribution);
+				} else {
+					throw new IllegalArgumentException("Unknown input type " + type);
+				}
+			} catch (RuntimeException e) {
+				LOGGER.severe("Skipping uncertain input " + fields[1] + ": " + e.toString());
+			}
+		}
+	}
+	
+	private static RealDistribution distribution(String name, double a, double b) {
+		switch (name.toLowerCase()) {
+			case "uniform": 	return new UniformRealDistribution(a, b);
+			case "normal": 		return new NormalDistribution(a, b);
+			case "lognormal": 	return new LogNormalDistribution(Math.log(a), b);
+			default: 			throw new IllegalArgumentException("Unknown distribution " + name);
+		}
+	}
+	
+	/**
+	 * Position of a name in a list (ignoring case) or a position given as a number
+	 */
+	private static int position(String name, String[] names) {
+		for (int i=0;i<names.length;i++) {
+			if (names[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return Integer.parseInt(name);
+	}
+	
+	/**
+	 * @param outputs 	State variables and outputs (positions as in {@link StateVariables#NAMES}), default methane, gas flow and pH
+	 */
+	public void setOutputs(int[] outputs) {
+		this.outputs = outputs.clone();
+	}
+	
+	/**
+	 * @param quantiles 	Estimated quantiles in percent, default 5, 50 and 95
+	 */
+	public void setQuantiles(double[] quantiles) {
+		this.quantiles = quantiles.clone();
+	}
+	
+	public void setMembers(int members) {
+		this.members = members;
+	}
+	
+	public int getMembers() {
+		return members;
+	}
+	
+	/**
+	 * @param latinHypercube 	Latin hypercube sampling (default), plain Monte Carlo if false
+	 */
+	public void setLatinHypercube(boolean latinHypercube) {
+		this.latinHypercube = latinHypercube;
+	}
+	
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	/**
+	 * @param batch 	Members evaluated together by the ensemble kernel, 0 (default) runs the members one by one
+	 */
+	public void setBatch(int batch) {
+		this.batch = batch;
+	}
+	
+	/**
+	 * @return Members per batch, 0 if the members are run one by one (also after a run that could not use batches)
+	 */
+	public int getBatch() {
+		return batch;
+	}
+	
+	/**
+	 * @param batchStep 	Fixed step of the batches without error control, 0 (default) for adaptive steps 
+	 * 						with the tolerances of the integrator factory
+	 */
+	public void setBatchStep(double batchStep) {
+		this.batchStep = batchStep;
+	}
+	
+	public void setDAE(boolean dae) {
+		this.dae = dae;
+	}
+	
+	public void setpH(double ph) {
+		this.fix_pH = ph;
+	}
+	
+	/**
+	 * The factory is called from several threads, it should not be changed while the ensemble runs
+	 */
+	public void setIntegratorFactory(IntegratorFactory integratorFactory) {
+		this.integratorFactory = integratorFactory;
+	}
+	
+	/**
+	 * Sample times, every resolution days from the start and the end
+	 */
+	private double[] times() {
+		int n = (int) Math.floor((end-start)/resolution+1.0e-9);
+		boolean last = start+n*resolution < end-1.0e-9*resolution;
+		double[] times = new double[n+1+(last ? 1 : 0)];
+		for (int i=0;i<=n;i++) {
+			times[i] = start+i*resolution;
+		}
+		if (last) {
+			times[n+1] = end;
+		}
+		return times;
+	}
+	
+	/**
+	 * Draw the uncertain inputs of all members
+	 * 
+	 * @return [member][input], the parameters first, then the influent factors
+	 */
+	private double[][] sample() {
+		List<RealDistribution> distributions = new ArrayList<RealDistribution>(parameterDistributions);
+		distributions.addAll(influentDistributions);
+		RandomGenerator random = new MersenneTwister(seed);
+		double[][] samples = new double[members][distributions.size()];
+		int[] strata = new int[members];
+		for (int k=0;k<distributions.size();k++) {
+			if (latinHypercube) {
+				// Random permutation of the strata (Fisher-Yates)
+				for (int m=0;m<members;m++) {
+					strata[m] = m;
+				}
+				for (int m=members-1;m>0;m--) {
+					int r = random.nextInt(m+1);
+					int tmp = strata[m];
+					strata[m] = strata[r];
+					strata[r] = tmp;
+				}
+			}
+			RealDistribution distribution = distributions.get(k);
+			for (int m=0;m<members;m++) {
+				double p = latinHypercube ? (strata[m]+random.nextDouble())/members : random.nextDouble();
+				samples[m][k] = distribution.inverseCumulativeProbability(p);
+			}
+		}
+		return samples;
+	}
+	
+	/**
+	 * Run all members and wait for them to finish
+	 * 
+	 * @return Statistics over the members that succeeded
+	 */
+	public EnsembleStatistics run() {
+		final double[] times = times();
+		statistics = new EnsembleStatistics(times, outputs, quantiles);
+		failures = 0;
+		final double[][] samples = sample();
+		
+		final SampledSimulation simulation = new SampledSimulation(start);
+		simulation.setDAE(dae);
+		simulation.setpH(fix_pH);
+		simulation.setIntegratorFactory(integratorFactory);
+		final boolean batched = isBatched();
+		int size = batched ? batch : 1;
+		
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			// Each task returns its failed members
+			CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(pool);
+			int tasks = 0;
+			for (int first=0;first<members;first+=size) {
+				final int from = first;
+				final int to = Math.min(members, first+size);
+				completion.submit(new Callable<Integer>() {
+					public Integer call() {
+						if (batched) {
+							return runBatch(times, samples, from, to);
+						}
+						return runMember(simulation, times, samples[from]) ? 0 : 1;
+					}
+				});
+				tasks++;
+			}
+			int report = Math.max(1, members/20);
+			int finished = 0;
+			for (int k=0;k<tasks;k++) {
+				failures += completion.take().get();
+				int before = finished;
+				finished = Math.min(members, finished+size);
+				if (finished/report > before/report) {
+					LOGGER.info("Members finished " + finished + "/" + members + ", failed " + failures);
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.toString());
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOGGER.severe(e.toString());
+		} finally {
+			pool.shutdownNow();
+		}
+		return statistics;
+	}
+	
+	/**
+	 * The ensemble kernel only runs the DAE model and holds the influent constant between its calls
+	 */
+	private boolean isBatched() {
+		if (batch <= 0) {
+			return false;
+		}
+		if (!dae || fix_pH >= 0 || (influentSeries != null && influentSeries.isInterpolated())) {
+			LOGGER.warning("Batches need the DAE model without fixed pH and influent that is not interpolated, members are run one by one");
+			batch = 0;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Digester parameters of a member
+	 */
+	private double[] parameters(double[] sample) {
+		double[] p = param.clone();
+		int c = 0;
+		for (int index : parameterIndices) {
+			p[index] = sample[c++];
+		}
+		return p;
+	}
+	
+	/**
+	 * Factors of the influent variables of a member
+	 */
+	private double[] factors(double[] sample) {
+		double[] factors = new double[u.length];
+		Arrays.fill(factors, 1.0);
+		int c = parameterIndices.size();
+		for (int index : influentIndices) {
+			factors[index] = sample[c++];
+		}
+		return factors;
+	}
+	
+	/**
+	 * Simulate one member and add it to the statistics
+	 * 
+	 * @return False if the simulation failed
+	 */
+	private boolean runMember(SampledSimulation simulation, double[] times, double[] sample) {
+		double[] p = parameters(sample);
+		double[] factors = factors(sample);
+		double[] uMember = u.clone();
+		for (int i=0;i<u.length;i++) {
+			uMember[i] *= factors[i];
+		}
+		double[] xMember = x.clone();
+		xMember[35] = uMember[35]; // Effluent flow rate = Influent flow rate
+		InfluentSeries series = influentSeries == null ? null : influentSeries.scaled(factors);
+		
+		final double[][] trajectory = new double[times.length][outputs.length];
+		try {
+			simulation.run(xMember, uMember, series, p, times, new SampledSimulation.Sink() {
+				public void sample(int i, double t, double[] s) {
+					for (int j=0;j<outputs.length;j++) {
+						trajectory[i][j] = s[outputs[j]];
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			LOGGER.warning("Member failed: " + e.toString());
+			return false;
+		}
+		if (!isFinite(trajectory)) {
+			LOGGER.warning("Member failed: not finite outputs");
+			return false;
+		}
+		statistics.add(trajectory);
+		return true;
+	}
+	
+	/**
+	 * Simulate a batch of members with the ensemble kernel and add them to the statistics, 
+	 * the influent of a dynamic run is held constant over each interval of the series
+	 * 
+	 * @param from 	First member
+	 * @param to 	End of the batch (exclusive)
+	 * @return Failed members of the batch
+	 */
+	private int runBatch(double[] times, double[][] samples, int from, int to) {
+		int size = to-from;
+		double[][] p = new double[size][];
+		double[][] uBatch = new double[size][];
+		double[][] xBatch = new double[size][];
+		InfluentSeries[] series = new InfluentSeries[size];
+		for (int m=0;m<size;m++) {
+			p[m] = parameters(samples[from+m]);
+			double[] factors = factors(samples[from+m]);
+			uBatch[m] = u.clone();
+			for (int i=0;i<u.length;i++) {
+				uBatch[m][i] *= factors[i];
+			}
+			xBatch[m] = x.clone();
+			xBatch[m][35] = uBatch[m][35]; // Effluent flow rate = Influent flow rate
+			series[m] = influentSeries == null ? null : influentSeries.scaled(factors);
+		}
+		
+		EnsembleModel model = new EnsembleModel(uBatch, p, xBatch);
+		// Separate model for the samples, evaluating them must not change the S_H_ion and 
+		// S_h2 starting values of the model the integrator works with (see Model)
+		EnsembleModel sampler = new EnsembleModel(uBatch, p, xBatch);
+		int dim = model.getDimension();
+		double[][] y = new double[dim][size];
+		for (int m=0;m<size;m++) {
+			for (int i=0;i<dim;i++) {
+				y[i][m] = xBatch[m][i];
+			}
+		}
+		double[][] dx = new double[dim][size];
+		double[][] s = new double[dim][size];
+		double[][][] trajectories = new double[size][times.length][outputs.length];
+		EnsembleIntegrator integrator = batchIntegrator();
+		
+		double t = start;
+		int next = 0; // Next sample
+		while (next < times.length) {
+			if (times[next] <= t) {
+				// Algebraic states and outputs are pulled from the model, twice so the S_h2 balance 
+				// uses the S_H_ion of this sample and not that of the previous one
+				sampler.evaluate(y, dx, s);
+				sampler.evaluate(y, dx, s);
+				for (int j=0;j<outputs.length;j++) {
+					double[] output = s[outputs[j]];
+					for (int m=0;m<size;m++) {
+						trajectories[m][next][j] = output[m];
+					}
+				}
+				next++;
+				continue;
+			}
+			double tNext = times[next];
+			if (influentSeries != null) {
+				double step = influentSeries.getStep();
+				int k = (int) Math.floor((t-influentSeries.getStart())/step+1.0e-9);
+				tNext = Math.min(tNext, influentSeries.getStart()+(k+1)*step);
+				for (int m=0;m<size;m++) {
+					series[m].setTime(t);
+					series[m].getInfluent(t, uBatch[m]);
+					model.setInfluent(m, uBatch[m]);
+					sampler.setInfluent(m, uBatch[m]);
+					y[35][m] = uBatch[m][35]; // Effluent flow rate = Influent flow rate
+				}
+			}
+			integrator.integrate(model, y, tNext-t);
+			t = tNext;
+		}
+		
+		int failed = 0;
+		for (int m=0;m<size;m++) {
+			if (integrator.isFailed(m) || !isFinite(trajectories[m])) {
+				LOGGER.warning("Member failed: integration of the batch did not converge");
+				failed++;
+			} else {
+				statistics.add(trajectories[m]);
+			}
+		}
+		return failed;
+	}
+	
+	/**
+	 * Tolerances and step limits from the integrator factory if it has them
+	 */
+	private EnsembleIntegrator batchIntegrator() {
+		EnsembleIntegrator integrator;
+		if (integratorFactory instanceof DefaultIntegratorFactory) {
+			DefaultIntegratorFactory factory = (DefaultIntegratorFactory) integratorFactory;
+			integrator = new EnsembleIntegrator(factory.getMinStep(), factory.getMaxStep(), 
+					factory.getAbsoluteTolerance(), factory.getRelativeTolerance());
+		} else {
+			integrator = new EnsembleIntegrator(1.0e-14, 100.0, 1.0e-10, 1.0e-6);
+		}
+		integrator.setFixedStep(batchStep);
+		return integrator;
+	}
+	
+	private static boolean isFinite(double[][] trajectory) {
+		for (double[] row : trajectory) {
+			for (double v : row) {
+				if (Double.isNaN(v) || Double.isInfinite(v)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	public EnsembleStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * @return Members whose simulation failed, they are left out of the statistics
+	 */
+	public int getFailures() {
+		return failures;
+	}
+}
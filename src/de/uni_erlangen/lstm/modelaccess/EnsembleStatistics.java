@@ -0,0 +1,178 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import org.apache.commons.math3.stat.descriptive.rank.PSquarePercentile;
+
+import de.uni_erlangen.lstm.file.TrajectoryOutput;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+
+/**
+ * Streaming statistics of an ensemble, per output and sample time
+ * 
+ * Each member trajectory is added once it is complete and then dropped, only the running mean 
+ * and variance (Welford), the minimum and maximum and the P-square estimates of the quantiles 
+ * are kept, so the memory does not grow with the number of members. The quantile estimates 
+ * depend slightly on the order in which the members are added.
+ * 
+ * @author liampetti
+ *
+ */
+public class EnsembleStatistics {
+	
+	private final double[] times;
+	private final int[] outputs;
+	private final double[] quantiles; // In percent
+	private long count;
+	private final double[][] mean; // [time][output]
+	private final double[][] m2; // Sum of squared deviations from the mean
+	private final double[][] min;
+	private final double[][] max;
+	private final PSquarePercentile[][][] estimators; // [time][output][quantile]
+	
+	/**
+	 * @param times 	Sample times
+	 * @param outputs 	State variables and outputs (positions as in {@link StateVariables#NAMES})
+	 * @param quantiles Estimated quantiles (in percent)
+	 */
+	public EnsembleStatistics(double[] times, int[] outputs, double[] quantiles) {
+		this.times = times.clone();
+		this.outputs = outputs.clone();
+		this.quantiles = quantiles.clone();
+		mean = new double[times.length][outputs.length];
+		m2 = new double[times.length][outputs.length];
+		min = new double[times.length][outputs.length];
+		max = new double[times.length][outputs.length];
+		estimators = new PSquarePercentile[times.length][outputs.length][quantiles.length];
+		for (int i=0;i<times.length;i++) {
+			for (int j=0;j<outputs.length;j++) {
+				min[i][j] = Double.POSITIVE_INFINITY;
+				max[i][j] = Double.NEGATIVE_INFINITY;
+				for (int q=0;q<quantiles.length;q++) {
+					estimators[i][j][q] = new PSquarePercentile(quantiles[q]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Add a complete member trajectory, called by the ensemble threads
+	 * 
+	 * @param trajectory 	Outputs [time][output]
+	 */
+	public synchronized void add(double[][] trajectory) {
+		count++;
+		for (int i=0;i<times.length;i++) {
+			double[] row = trajectory[i];
+			for (int j=0;j<outputs.length;j++) {
+				double v = row[j];
+				double delta = v-mean[i][j];
+				mean[i][j] += delta/count;
+				m2[i][j] += delta*(v-mean[i][j]);
+				if (v < min[i][j]) {
+					min[i][j] = v;
+				}
+				if (v > max[i][j]) {
+					max[i][j] = v;
+				}
+				for (PSquarePercentile estimator : estimators[i][j]) {
+					estimator.increment(v);
+				}
+			}
+		}
+	}
+	
+	public synchronized long getCount() {
+		return count;
+	}
+	
+	public double[] getTimes() {
+		return times.clone();
+	}
+	
+	public synchronized double getMean(int i, int j) {
+		return mean[i][j];
+	}
+	
+	/**
+	 * @return Sample standard deviation, NaN for fewer than two members
+	 */
+	public synchronized double getStandardDeviation(int i, int j) {
+		return count > 1 ? Math.sqrt(m2[i][j]/(count-1)) : Double.NaN;
+	}
+	
+	public synchronized double getMin(int i, int j) {
+		return min[i][j];
+	}
+	
+	public synchronized double getMax(int i, int j) {
+		return max[i][j];
+	}
+	
+	/**
+	 * @param q 	Position of the quantile in the list given to the constructor
+	 */
+	public synchronized double getQuantile(int i, int j, int q) {
+		return estimators[i][j][q].getResult();
+	}
+	
+	/**
+	 * Column names without the time, for each output: mean, sd, min, quantiles, max
+	 */
+	public String[] getNames() {
+		int columns = 4+quantiles.length;
+		String[] names = new String[outputs.length*columns];
+		int c = 0;
+		for (int j : outputs) {
+			String name = StateVariables.NAMES[j];
+			names[c++] = name + "_mean";
+			names[c++] = name + "_sd";
+			names[c++] = name + "_min";
+			for (double q : quantiles) {
+				names[c++] = name + "_p" + (q == Math.rint(q) ? String.valueOf((long) q) : String.valueOf(q));
+			}
+			names[c++] = name + "_max";
+		}
+		return names;
+	}
+	
+	/**
+	 * Write one row per sample time with the columns of {@link #getNames()}
+	 */
+	public synchronized void write(TrajectoryOutput output) {
+		double[] row = new double[outputs.length*(4+quantiles.length)];
+		for (int i=0;i<times.length;i++) {
+			int c = 0;
+			for (int j=0;j<outputs.length;j++) {
+				row[c++] = mean[i][j];
+				row[c++] = getStandardDeviation(i, j);
+				row[c++] = min[i][j];
+				for (int q=0;q<quantiles.length;q++) {
+					row[c++] = estimators[i][j][q].getResult();
+				}
+				row[c++] = max[i][j];
+			}
+			output.write(times[i], row);
+		}
+	}
+}
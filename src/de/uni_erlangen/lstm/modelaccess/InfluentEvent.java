@@ -0,0 +1,174 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.ode.events.EventHandler;
+
+import de.uni_erlangen.lstm.file.TrajectoryOutput;
+import de.uni_erlangen.lstm.models.adm1.DAEModel;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.models.adm1.ReducedModel;
+
+/**
+ * Stops the integrator at each influent sample time of an {@link InfluentSeries}
+ * 
+ * For influent held constant over each interval the next row is switched in and the 
+ * derivatives are reset, so no integration step straddles a jump in the influent. 
+ * For interpolated influent the integration simply continues. Optionally the model
+ * outputs are recorded at each sample time and a listener is notified (e.g. to write checkpoints).
+ * 
+ * @author liampetti
+ *
+ */
+public class InfluentEvent implements EventHandler {
+	public final static Logger LOGGER = Logger.getLogger(InfluentEvent.class.getName());
+	
+	/**
+	 * Notified at each sample time after the outputs are recorded
+	 */
+	public interface SampleListener {
+		
+		/**
+		 * @param t 		Sample time
+		 * @param outputs 	Complete model state at the sample time (42 variables), only valid during the call
+		 * @param S_H_ion 	S_H_ion of the charge balance at the sample time
+		 */
+		void sample(double t, double[] outputs, double S_H_ion);
+	}
+	
+	private InfluentSeries series;
+	private DAEModel ode;
+	private ReducedModel reduced; // Null if the complete model state is integrated
+	private TrajectoryOutput writer; // Null if nothing is recorded
+	private SampleListener listener; // Null if none
+	private double[] dx;
+	private double[] outputs;
+	private double lastSample;
+	private double lastEvent;
+	
+	/**
+	 * @param series 		Influent series used by the model
+	 * @param ode 			Model to evaluate the algebraic outputs with when recording, a separate instance 
+	 * 						from the integrated one as evaluating changes its S_H_ion
+	 * @param writer 		Open output to record the outputs at each sample time, null for none
+	 */
+	public InfluentEvent(InfluentSeries series, DAEModel ode, TrajectoryOutput writer) {
+		this.series = series;
+		this.ode = ode;
+		this.writer = writer;
+		lastSample = Double.NEGATIVE_INFINITY;
+		lastEvent = Double.NEGATIVE_INFINITY;
+	}
+	
+	/**
+	 * @param series 		Influent series used by the model
+	 * @param reduced 		Differential states of the integrated model, on a separate model instance to evaluate the outputs with
+	 * @param writer 		Open output to record the outputs at each sample time, null for none
+	 */
+	public InfluentEvent(InfluentSeries series, ReducedModel reduced, TrajectoryOutput writer) {
+		this(series, reduced.getModel(), writer);
+		this.reduced = reduced;
+	}
+
+	/**
+	 * @param listener 	Called at each sample time, e.g. to write checkpoints, null for none
+	 */
+	public void setSampleListener(SampleListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void init(double t0, double[] y0, double t) {
+		series.setTime(t0);
+		lastSample = t0;
+		lastEvent = t0;
+	}
+
+	/**
+	 * Crosses zero at every sample time
+	 */
+	@Override
+	public double g(double t, double[] y) {
+		return Math.sin(Math.PI*(t-series.getStart())/series.getStep());
+	}
+
+	@Override
+	public Action eventOccurred(double t, double[] y, boolean increasing) {
+		// A run starting on a sample time can see g change sign right after the start from rounding
+		if (t-lastEvent < 0.5*series.getStep()) {
+			return Action.CONTINUE;
+		}
+		lastEvent = t;
+		if (writer != null || listener != null) {
+			record(t, y);
+		}
+		if (series.isInterpolated()) {
+			return Action.CONTINUE;
+		}
+		series.nextRow();
+		return Action.RESET_DERIVATIVES;
+	}
+
+	@Override
+	public void resetState(double t, double[] y) {
+	}
+	
+	/**
+	 * Record the final state if the integration did not end on an event, 
+	 * also used to record after each interval when integrating one sample at a time
+	 */
+	public void complete(double t, double[] y) {
+		if ((writer != null || listener != null) && t-lastSample > 0.5*series.getStep()) {
+			record(t, y);
+		}
+	}
+	
+	/**
+	 * Write the outputs, labelled with the start of the influent interval 
+	 * as in the sample by sample simulation, and notify the listener
+	 */
+	private void record(double t, double[] y) {
+		if (dx == null) {
+			dx = new double[y.length];
+			outputs = new double[ode.getDimension()];
+		}
+		// We need to pull variables (S_h2 and acid-base) directly from the model if using DAE, 
+		// twice so the S_h2 balance uses the S_H_ion of this sample and not that of the previous one
+		for (int pass=0;pass<2;pass++) {
+			if (reduced != null) {
+				reduced.evaluate(t, y, outputs);
+			} else {
+				ode.evaluate(t, y, dx, outputs);
+			}
+		}
+		double step = series.getStep();
+		if (writer != null) {
+			writer.write(series.getStart()+(Math.round((t-series.getStart())/step)-1)*step, outputs);
+		}
+		lastSample = t;
+		if (listener != null) {
+			listener.sample(t, outputs, ode.getS_H_ion());
+		}
+	}
+}
@@ -23,41 +23,104 @@ package de.uni_erlangen.lstm.modelaccess;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
 import org.apache.commons.math3.ode.FirstOrderIntegrator;
-import org.apache.commons.math3.ode.nonstiff.AdamsBashforthIntegrator;
+import org.apache.commons.math3.ode.MultistepIntegrator;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
+import org.apache.commons.math3.ode.events.EventHandler;
 import org.apache.commons.math3.ode.sampling.StepHandler;
 import org.apache.commons.math3.ode.sampling.StepInterpolator;
 
 import de.uni_erlangen.lstm.file.CSVWriter;
+import de.uni_erlangen.lstm.file.Checkpoint;
+import de.uni_erlangen.lstm.file.TrajectoryOutput;
+import de.uni_erlangen.lstm.file.TrajectoryWriter;
 import de.uni_erlangen.lstm.models.adm1.DAEModel;
 import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.models.adm1.ReducedModel;
 import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+import de.uni_erlangen.lstm.solvers.IntegratorFactory;
+import de.uni_erlangen.lstm.solvers.RadauIntegrator;
+import de.uni_erlangen.lstm.solvers.SolverStatistics;
+import de.uni_erlangen.lstm.solvers.SteadyStateSolver;
 
 /**
  * Class for controlling the ADM1 model, can be run on a separate thread
  * 
+ * {@link #simulateAsync} runs the model in the background and completes a future when the run ends, 
+ * progress listeners are called at fixed intervals of simulated time, so callers neither poll nor block
+ * 
  * @author liampetti
  *
  */
 public class Model implements Runnable {
 	public final static Logger LOGGER = Logger.getLogger(Model.class.getName());
 	
+	/**
+	 * Notified as a run passes each interval of simulated time, called on the thread running the model
+	 */
+	public interface ProgressListener {
+		
+		/**
+		 * @param t 		Simulated time reached
+		 * @param start 	Start time of the run
+		 * @param end 		End time of the run
+		 */
+		void progress(double t, double start, double end);
+	}
+	
+	/**
+	 * Listener with its interval and the next time it is due
+	 */
+	private static class Progress {
+		final ProgressListener listener;
+		final double interval;
+		double next;
+		
+		Progress(ProgressListener listener, double interval) {
+			this.listener = listener;
+			this.interval = interval;
+		}
+	}
+	
 	private double[] x;
 	private double[] u;
+	private InfluentSeries influentSeries; // Time varying influent for continuous dynamic runs
 	private double[] param;
 	private double S_H_ion;
 	private double start;
 	private double end; 
 	private List<DiscreteEvent> events;
-	private boolean finished;
+	private volatile boolean finished; // Polled from other threads
 	private boolean onlineRecord; // Record model to CSV
 	private double resolution; // How often to sample data from continuous model
-	private double progress;
+	private volatile double progress;
 	private boolean dae;
+	private boolean reduced; // Integrate only the differential states
+	private IntegratorFactory integratorFactory; // Creates the integrator on first use
+	private FirstOrderIntegrator integrator; // Kept between runs, handlers are replaced each run
+	private SolverStatistics statistics; // Work counters summed over all runs
+	private long steps; // Accepted steps of the current run
+	private double lastStep; // Last accepted step (in days)
 	private double fix_pH;
 	private String output_file;
+	private int flushInterval; // Output rows between flushes, 0 to flush only at the end of a run
+	private boolean binaryOutput; // Record to a binary trajectory file instead of CSV
+	private long outputRows; // Rows of an existing output file the next run continues after, -1 for a new file
+	private boolean carryS_H_ion; // Start each run from the S_H_ion at the end of the previous run
+	private double initialStep; // Integrator step the next run starts with, 0 to let the integrator choose
+	private String checkpointFile; // Checkpoints written at the sample times of influent series runs, null for none
+	private double checkpointInterval; // Simulated time between checkpoints
+	private String influentFile; // Influent file named in the checkpoints
+	private final List<Progress> listeners = new CopyOnWriteArrayList<Progress>(); // May be added while running
 		
 	/**
 	 * Initialise model using custom parameters and outputs
@@ -72,6 +135,9 @@ public class Model implements Runnable {
 		this.output_file = output_file;
 		dae = true;
 		fix_pH = -1.0;
+		integratorFactory = new DefaultIntegratorFactory();
+		statistics = new SolverStatistics();
+		outputRows = -1;
 		this.onlineRecord = onlineRecord;
 		this.resolution = resolution; // 15 minutes in days as standard resolution
 		u = influent.getVar(); // Influent
@@ -90,10 +156,7 @@ public class Model implements Runnable {
 		x[35] = u[35]; // Effluent flow rate = Influent flow rate
 		
 		// Initialise the S_H_ion
-		double factor = (1.0/param[0] - 1.0/param[1])/(100.0*0.083145);
-		double K_w = Math.pow(10,-param[2])*Math.exp(55900.0*factor); // T adjustment for K_w 
-		double phi = x[24]+(x[10]-x[31])-x[30]-(x[29]/64.0)-(x[28]/112.0)-(x[27]/160.0)-(x[26]/208.0)-x[25];
-		S_H_ion = (-phi*0.5)+0.5*Math.sqrt(phi*phi+(4.0*K_w)); // SH+	
+		S_H_ion = DAEModel.initialS_H_ion(x, param);
 	}
 	
 	public void setTime(double start, double end) {
@@ -103,10 +166,25 @@ public class Model implements Runnable {
 	}
 	
 	public void setInfluent(StateVariables influent) {		
-		u = influent.getVar(); // Influent
+		influent.getVar(u); // Influent
 		x[35] = u[35]; // Effluent flow rate = Influent flow rate
 	}
 	
+	/**
+	 * Run the whole influent series in one integration, the integrator keeps its step size
+	 * (and history) over the influent changes instead of being restarted for every sample.
+	 * When recording, the outputs are written at each sample time.
+	 * 
+	 * @param influentSeries 	Influent series, null to go back to a constant influent
+	 */
+	public void setInfluentSeries(InfluentSeries influentSeries) {
+		this.influentSeries = influentSeries;
+		if (influentSeries != null) {
+			u = influentSeries.getRow(0).clone();
+			x[35] = u[35]; // Effluent flow rate = Influent flow rate
+		}
+	}
+	
 	public void setInitial(StateVariables initial) {
 		x = initial.getVar(); // Initial effluent
 	}
@@ -119,6 +197,30 @@ public class Model implements Runnable {
 		this.dae = dae;
 	}
 	
+	/**
+	 * @param reduced 	Integrate only the differential states, the algebraic states and outputs 
+	 * 					are calculated at the sample times and the end of a run ({@link ReducedModel})
+	 */
+	public void setReduced(boolean reduced) {
+		this.reduced = reduced;
+	}
+	
+	public boolean isReduced() {
+		return reduced;
+	}
+	
+	/**
+	 * Select the integration method, the integrator is rebuilt on the next run
+	 */
+	public void setIntegratorFactory (IntegratorFactory integratorFactory) {
+		this.integratorFactory = integratorFactory;
+		this.integrator = null;
+	}
+	
+	public IntegratorFactory getIntegratorFactory() {
+		return integratorFactory;
+	}
+	
 	public void setpH (double ph) {
 		this.fix_pH = ph;
 	}
@@ -135,24 +237,159 @@ public class Model implements Runnable {
 		this.resolution = res;
 	}
 	
+	/**
+	 * @param flushInterval 	Output rows between flushes of the output file, 0 to flush only at the end of a run
+	 */
+	public void setFlushInterval(int flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+	
+	public int getFlushInterval() {
+		return flushInterval;
+	}
+	
+	/**
+	 * @param binaryOutput 	Record to a binary trajectory file ({@link TrajectoryWriter}) instead of appending to CSV
+	 */
+	public void setBinaryOutput(boolean binaryOutput) {
+		this.binaryOutput = binaryOutput;
+	}
+	
+	public boolean isBinaryOutput() {
+		return binaryOutput;
+	}
+	
+	/**
+	 * Continue the output file of an earlier run instead of starting a new one, 
+	 * used when resuming from a checkpoint
+	 * 
+	 * @param outputRows 	Rows of the existing file to keep, the next run writes after them
+	 */
+	public void setOutputRows(long outputRows) {
+		this.outputRows = outputRows;
+	}
+	
+	/**
+	 * @param carryS_H_ion 	Start the charge balance of each run from the S_H_ion at the end of the previous run 
+	 * 						instead of the one the model was set up with (default false)
+	 */
+	public void setCarryS_H_ion(boolean carryS_H_ion) {
+		this.carryS_H_ion = carryS_H_ion;
+	}
+	
+	public boolean isCarryS_H_ion() {
+		return carryS_H_ion;
+	}
+	
+	/**
+	 * Start the next run with a given integrator step, e.g. the last step of a checkpoint,
+	 * later runs choose their own again
+	 * 
+	 * @param initialStep 	Initial step (in days), 0 to let the integrator choose
+	 */
+	public void setInitialStep(double initialStep) {
+		this.initialStep = initialStep;
+	}
+	
+	/**
+	 * Write checkpoints at the sample times of runs over an influent series ({@link #setInfluentSeries}),
+	 * every interval of simulated time counted in output rows from the start of the series
+	 * 
+	 * @param checkpointFile 		Checkpoint file, null to write none
+	 * @param checkpointInterval 	Simulated time between checkpoints (in days)
+	 * @param influentFile 			Influent file named in the checkpoints
+	 */
+	public void setCheckpoints(String checkpointFile, double checkpointInterval, String influentFile) {
+		this.checkpointFile = checkpointFile;
+		this.checkpointInterval = checkpointInterval;
+		this.influentFile = influentFile;
+	}
+	
 	/**
 	 * Run the model using set parameters
 	 */
 	public void simulate() {		
 		finished = false;		
 		/*
-		 * Integrator selection 
+		 * Integrator selection, created once by the factory and reused for every run
+		 * (e.g. once per influent sample in dynamic simulations). A run with its own 
+		 * initial step gets a new integrator, which is not kept for the next run.
 		 */
-		//FirstOrderIntegrator integrator = new HighamHall54Integrator(1.0e-8, 100.0, 1.0e-10, 1.0e-10);
-		//FirstOrderIntegrator integrator = new DormandPrince54Integrator(1.0e-12, 100.0, 1.0e-12, 1.0e-12);
-		//FirstOrderIntegrator integrator = new DormandPrince853Integrator(1.0e-8, 100.0, 1.0e-10, 1.0e-10);
-		//FirstOrderIntegrator integrator = new GraggBulirschStoerIntegrator(1.0e-8, 100.0, 1.0e-10, 1.0e-10);
-		FirstOrderIntegrator integrator = new AdamsBashforthIntegrator(2, 1.0e-14, 100.0, 1.0e-10, 1.0e-10);
-		//FirstOrderIntegrator integrator = new AdamsMoultonIntegrator(2, 1.0e-8, 100.0, 1.0e-10, 1.0e-10);
+		final boolean ownStep = initialStep > 0;
+		if (integrator == null || ownStep) {
+			integrator = integratorFactory.create();
+			if (ownStep && integrator instanceof AdaptiveStepsizeIntegrator) {
+				((AdaptiveStepsizeIntegrator) integrator).setInitialStepSize(initialStep);
+			}
+			initialStep = 0.0;
+		} else {
+			integrator.clearStepHandlers();
+			integrator.clearEventHandlers();
+		}
+		steps = 0;
+		for (Progress p : listeners) {
+			p.next = start+p.interval;
+		}
 		
 		// influent values, digester parameters, S_H_ion, dae system
 		final DAEModel ode = new DAEModel(u, param, S_H_ion, dae, fix_pH);
-		//FirstOrderDifferentialEquations ode = model; 
+		
+		/*
+		 * Integrated equations and state, the complete model or only its differential states.
+		 * Integrators for DAEs get S_h2 and the pH as algebraic unknowns (semi-explicit form) 
+		 * instead of the model solving their balances in every evaluation.
+		 */
+		final boolean semiExplicit = dae && fix_pH < 0 && integrator instanceof RadauIntegrator;
+		final boolean packed = reduced || semiExplicit;
+		final ReducedModel reducedOde = packed ? new ReducedModel(ode, x, semiExplicit) : null;
+		final FirstOrderDifferentialEquations equations = packed ? reducedOde : ode;
+		final double[] y = packed ? reducedOde.pack(x) : x;
+		
+		/*
+		 * Separate model for the outputs at the sample times and the end, evaluating them must not
+		 * change the S_H_ion and warm start history of the model the integrator works with
+		 */
+		final DAEModel sampler = new DAEModel(u, param, S_H_ion, dae, fix_pH);
+		final ReducedModel reducedSampler = packed ? new ReducedModel(sampler, x, semiExplicit) : null;
+		
+		/*
+		 * Influent series switched in at the sample times
+		 * maxCheck is below the sample step so no switch is missed
+		 * 
+		 * Multistep methods have to restart at every jump of a piecewise constant influent anyway,
+		 * and commons-math restarts them from the initial time after an event reset, so for them
+		 * the samples are integrated one after the other (still with the same integrator and model)
+		 */
+		// Output file kept open for the whole run
+		final TrajectoryOutput writer;
+		if (!onlineRecord) {
+			writer = null;
+		} else if (binaryOutput) {
+			writer = outputRows < 0 ? new TrajectoryWriter(output_file, TrajectoryWriter.names(StateVariables.NAMES)) : 
+				new TrajectoryWriter(output_file, TrajectoryWriter.names(StateVariables.NAMES), outputRows);
+		} else {
+			if (outputRows >= 0) {
+				new CSVWriter().Truncate(output_file, outputRows);
+			}
+			writer = new CSVWriter(output_file, true, flushInterval);
+		}
+		final long firstRow = Math.max(outputRows, 0); // Rows before the first one of this run
+		outputRows = -1;
+		
+		InfluentEvent influentEvent = null;
+		boolean byInterval = false;
+		if (influentSeries != null) {
+			ode.setInfluentSeries(influentSeries);
+			sampler.setInfluentSeries(influentSeries);
+			influentEvent = packed ? new InfluentEvent(influentSeries, reducedSampler, writer) : new InfluentEvent(influentSeries, sampler, writer);
+			byInterval = !influentSeries.isInterpolated() && integrator instanceof MultistepIntegrator;
+			if (checkpointFile != null) {
+				influentEvent.setSampleListener(checkpoints(writer, firstRow));
+			}
+			if (!byInterval) {
+				integrator.addEventHandler(influentEvent, 0.5*influentSeries.getStep(), 1.0e-10, 100);
+			}
+		}
 		
 		// Records progress
 		StepHandler progHandler = new StepHandler() {
@@ -160,36 +397,55 @@ public class Model implements Runnable {
 		    }
 		            
 		    public void handleStep(StepInterpolator interpolator, boolean isLast) {
-		    	progress = interpolator.getCurrentTime();		        
+		    	progress = interpolator.getCurrentTime();
+		    	lastStep = Math.abs(progress-interpolator.getPreviousTime());
+		    	steps++;
+		    	for (Progress p : listeners) {
+		    		if (progress >= p.next) {
+		    			p.next += p.interval*Math.floor((progress-p.next)/p.interval+1.0);
+		    			p.listener.progress(progress, start, end);
+		    		}
+		    	}
 		    }
 		};
 		integrator.addStepHandler(progHandler);
 		
 		/*
-		 * Continuous model recorded in CSV
+		 * Continuous model recorded in CSV or binary every resolution days from the start
+		 * 
+		 * The states at the sample times are interpolated from the dense output of the 
+		 * integrator steps, so the rows are on a regular grid and match their times 
+		 * whatever steps the integrator takes, and the steps are not shortened to hit them
 		 */
-		if (onlineRecord) {
-			final CSVWriter writer = new CSVWriter();
+		if (onlineRecord && influentSeries == null) {
 			StepHandler stepHandler = new StepHandler() {
-				double prevT = 0.0;
+				long sample = 1; // Next sample, the grid is counted from the start so it does not drift
+				double[] dx = new double[x.length];
+				double[] s = new double[sampler.getDimension()];
 				
 			    public void init(double t0, double[] y0, double t) {
 			    }
 			            
 			    public void handleStep(StepInterpolator interpolator, boolean isLast) {
-			        double   t = interpolator.getCurrentTime();
-			        if (t-prevT > resolution) {
-			        	// Add time to the beginning of the array
-						double[] timemodel = new double[ode.getDimensions().length+1];
-						timemodel[0] = t;
-						
-						// We need to pull variables (S_h2 and acid-base) directly from the model if using DAE
-						for (int i=1;i<timemodel.length;i++) {
-							timemodel[i] = ode.getDimensions()[i-1];
-						}
-							
-			        	writer.WriteArray(output_file, timemodel, true);
-			        	prevT = t;
+			        double t = interpolator.getCurrentTime();
+			        double tSample = start+sample*resolution;
+			        // Rounding of the resolution must not lose the sample at the end
+			        while (tSample <= t+1.0e-6*resolution) {
+			        	tSample = Math.min(tSample, t);
+			        	interpolator.setInterpolatedTime(tSample);
+			        	// We need to pull variables (S_h2 and acid-base) directly from the model if using DAE,
+			        	// twice so the S_h2 balance uses the S_H_ion of this sample and not that of the previous one
+			        	double[] state = interpolator.getInterpolatedState();
+			        	for (int pass=0;pass<2;pass++) {
+			        		if (packed) {
+			        			reducedSampler.evaluate(tSample, state, s);
+			        		} else {
+			        			sampler.evaluate(tSample, state, dx, s);
+			        		}
+			        	}
+			        	writer.write(tSample, s);
+			        	sample++;
+			        	tSample = start+sample*resolution;
 			        }
 			    }
 			};
@@ -207,11 +463,41 @@ public class Model implements Runnable {
 				double maxCheck = Double.POSITIVE_INFINITY;
 				double conv = 1.0e-20;
 				int maxIt = 100;
-				integrator.addEventHandler(event, maxCheck, conv, maxIt);
+				integrator.addEventHandler(packed ? new ReducedEvent(event, reducedSampler) : event, maxCheck, conv, maxIt);
 			}
 		}
 			
-		integrator.integrate(ode, start, x, end, x);
+		double stopTime;
+		try {
+			if (byInterval) {
+				stopTime = integrateIntervals(equations, y, influentEvent);
+			} else {
+				stopTime = integrator.integrate(equations, start, y, end, y);
+				statistics.add(integrator, steps);
+				if (influentEvent != null) {
+					influentEvent.complete(stopTime, y);
+				}
+			}
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+		statistics.addAlgebraic(ode.getAlgebraicSolves(), ode.getAlgebraicIterations(), ode.getAlgebraicMaxIterations(), 
+				ode.getAlgebraicBisections(), ode.getAlgebraicFailures());
+
+		// We need to pull variables (S_h2 and acid-base) directly from the model, at the time the integration stopped
+		x = new double[sampler.getDimension()];
+		double[] dxEnd = new double[y.length];
+		for (int pass=0;pass<2;pass++) {
+			if (packed) {
+				reducedSampler.evaluate(stopTime, y, x);
+			} else {
+				sampler.evaluate(stopTime, y, dxEnd, x);
+			}
+		}
+		statistics.addAlgebraic(sampler.getAlgebraicSolves(), sampler.getAlgebraicIterations(), sampler.getAlgebraicMaxIterations(), 
+				sampler.getAlgebraicBisections(), sampler.getAlgebraicFailures());
 
 		/*
 		 * Return the time that the discrete event occurred
@@ -224,12 +510,214 @@ public class Model implements Runnable {
 			}
 		}
 
-		// We need to pull variables (S_h2 and acid-base) directly from the model
-		x = ode.getDimensions();
+		if (carryS_H_ion) {
+			S_H_ion = sampler.getS_H_ion(); // Starting value of the next run
+		}
+		if (ownStep) {
+			integrator = null; // The next run gets an integrator choosing its own initial step again
+		}
 		
 		finished = true;
 	}
 	
+	/**
+	 * Writes a checkpoint at every sample time that completes another checkpoint interval, 
+	 * once the rows recorded up to it are in the output file
+	 * 
+	 * @param writer 	Open output, null if nothing is recorded
+	 * @param firstRow 	Rows of the output before the first sample of the run
+	 */
+	private InfluentEvent.SampleListener checkpoints(final TrajectoryOutput writer, final long firstRow) {
+		final double step = influentSeries.getStep();
+		final long checkpointRows = Math.max(1, Math.round(checkpointInterval/step)); // Samples between checkpoints
+		return new InfluentEvent.SampleListener() {
+			long rows = firstRow;
+			
+			@Override
+			public void sample(double t, double[] outputs, double S_H_ion) {
+				rows++;
+				if (rows%checkpointRows != 0) {
+					return;
+				}
+				if (writer != null) {
+					writer.flush();
+				}
+				long samples = Math.round((t-influentSeries.getStart())/step); // Samples of the series used up to here
+				double[] influent = influentSeries.getRow((int) Math.min(Math.max(samples-1, 0), influentSeries.size()-1));
+				Checkpoint checkpoint = new Checkpoint(t, outputs, influent, S_H_ion, lastStep);
+				// Lines of the influent file read up to here, the position in the file is not known
+				checkpoint.setInfluent(influentFile, -1, samples);
+				checkpoint.setOutputRows(rows);
+				checkpoint.write(checkpointFile);
+			}
+		};
+	}
+	
+	/**
+	 * Solve for the steady state of the constant influent directly instead of integrating to it.
+	 * 
+	 * The differential states are solved by the given solver, the algebraic states (DAE model), 
+	 * flow, temperature and outputs follow from the model at the solution. Nothing is changed 
+	 * if the solver does not converge, so the caller can fall back to {@link #simulate()}.
+	 * 
+	 * @param solver 	Steady state solver, keeps the iteration counts and residual norms
+	 * @return 			True if the steady state was found, the state is then available from {@link #getX()}
+	 */
+	public boolean solveSteady(SteadyStateSolver solver) {
+		finished = false;
+		final DAEModel ode = new DAEModel(u, param, S_H_ion, dae, fix_pH);
+		
+		// States with a derivative, the rows of everything else are empty in the Jacobian pattern
+		boolean[][] pattern = ode.getJacobianPattern();
+		boolean[] solved = new boolean[pattern.length];
+		for (int i=0;i<pattern.length;i++) {
+			for (boolean entry : pattern[i]) {
+				solved[i] |= entry;
+			}
+		}
+		
+		double[] y = x.clone();
+		boolean converged = solver.solve(ode, start, y, solved);
+		statistics.addAlgebraic(ode.getAlgebraicSolves(), ode.getAlgebraicIterations(), ode.getAlgebraicMaxIterations(), 
+				ode.getAlgebraicBisections(), ode.getAlgebraicFailures());
+		if (converged) {
+			// We need to pull variables (S_h2 and acid-base) directly from the model
+			x = ode.getDimensions();
+			S_H_ion = ode.getS_H_ion();
+			progress = end;
+			finished = true;
+		}
+		return converged;
+	}
+	
+	/**
+	 * Integrate the influent series one sample interval at a time
+	 * 
+	 * @return 	Time the integration stopped at
+	 */
+	private double integrateIntervals(FirstOrderDifferentialEquations equations, double[] y, InfluentEvent influentEvent) {
+		double step = influentSeries.getStep();
+		int k = (int) Math.floor((start-influentSeries.getStart())/step+1.0e-9);
+		double t = start;
+		while (t < end-1.0e-9*step) {
+			double tNext = Math.min(influentSeries.getStart()+(k+1)*step, end);
+			influentSeries.setTime(t);
+			steps = 0;
+			double stopTime = integrator.integrate(equations, t, y, tNext, y);
+			statistics.add(integrator, steps);
+			influentEvent.complete(stopTime, y);
+			if (stopTime < tNext) {
+				return stopTime; // Stopped by a discrete event
+			}
+			t = tNext;
+			k++;
+		}
+		return t;
+	}
+	
+	/**
+	 * Discrete event on the complete model state while only the differential states are integrated,
+	 * the algebraic states and outputs the event sees are calculated for the packed state
+	 */
+	private static class ReducedEvent implements EventHandler {
+		private DiscreteEvent event;
+		private ReducedModel ode;
+		private double[] s;
+		
+		/**
+		 * @param ode 	Packed state of a separate model instance from the integrated one, evaluating changes its S_H_ion
+		 */
+		ReducedEvent(DiscreteEvent event, ReducedModel ode) {
+			this.event = event;
+			this.ode = ode;
+			s = new double[ode.getModel().getDimension()];
+		}
+
+		@Override
+		public void init(double t0, double[] y0, double t) {
+			evaluate(t0, y0);
+			event.init(t0, s, t);
+		}
+
+		@Override
+		public double g(double t, double[] y) {
+			evaluate(t, y);
+			return event.g(t, s);
+		}
+
+		@Override
+		public Action eventOccurred(double t, double[] y, boolean increasing) {
+			evaluate(t, y);
+			return event.eventOccurred(t, s, increasing);
+		}
+		
+		/**
+		 * Twice, so the S_h2 balance uses the S_H_ion of this point and not that of the last one
+		 */
+		private void evaluate(double t, double[] y) {
+			ode.evaluate(t, y, s);
+			ode.evaluate(t, y, s);
+		}
+
+		@Override
+		public void resetState(double t, double[] y) {
+		}
+	}
+	
+	/**
+	 * Run the model on the given executor
+	 * 
+	 * @param executor 	Runs the simulation, e.g. a thread pool of a scheduler
+	 * @return 			Future completed with this model when the run ends, or exceptionally if it fails
+	 */
+	public CompletableFuture<Model> simulateAsync(Executor executor) {
+		return CompletableFuture.supplyAsync(new Supplier<Model>() {
+			@Override
+			public Model get() {
+				simulate();
+				return Model.this;
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Run the model on a new thread
+	 * 
+	 * @return 	Future completed with this model when the run ends, or exceptionally if it fails
+	 */
+	public CompletableFuture<Model> simulateAsync() {
+		return simulateAsync(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				new Thread(command, "Model").start();
+			}
+		});
+	}
+	
+	/**
+	 * Call a listener each time the simulated time of a run passes another interval from the start, 
+	 * listeners can be added and removed while the model runs
+	 * 
+	 * @param listener 	Listener, called on the thread running the model
+	 * @param interval 	Simulated time between calls (in days)
+	 */
+	public void addProgressListener(ProgressListener listener, double interval) {
+		if (!(interval > 0)) {
+			throw new IllegalArgumentException("Progress interval must be positive: " + interval);
+		}
+		Progress p = new Progress(listener, interval);
+		p.next = progress+interval;
+		listeners.add(p);
+	}
+	
+	public void removeProgressListener(ProgressListener listener) {
+		for (Progress p : listeners) {
+			if (p.listener == listener) {
+				listeners.remove(p);
+			}
+		}
+	}
+	
 	public boolean isFinished() {
 		return finished;
 	}
@@ -243,7 +731,7 @@ public class Model implements Runnable {
 	}
 	
 	public void setX(double[] x) {
-		this.x = x; // Initial effluent
+		this.x = x.clone(); // Initial effluent, copied so the caller array is not integrated in place
 	}
 	
 	public double[] getU() {
@@ -254,10 +742,38 @@ public class Model implements Runnable {
 		return param;
 	}
 	
+	/**
+	 * S_H_ion the next run starts from, the one at the end of the last run if carried over ({@link #setCarryS_H_ion})
+	 */
+	public double getS_H_ion() {
+		return S_H_ion;
+	}
+	
+	/**
+	 * Continue from a known S_H_ion, e.g. of a checkpoint, instead of the one calculated from the initial state
+	 */
+	public void setS_H_ion(double S_H_ion) {
+		this.S_H_ion = S_H_ion;
+	}
+	
+	/**
+	 * @return Last accepted integrator step (in days)
+	 */
+	public double getLastStep() {
+		return lastStep;
+	}
+	
 	public double getEnd() {
 		return end;
 	}
 	
+	/**
+	 * @return Steps, rejected steps and right-hand side evaluations summed over all runs
+	 */
+	public SolverStatistics getStatistics() {
+		return statistics;
+	}
+	
 	/**
 	 * Allows the simulation to run on a separate thread
 	 * 
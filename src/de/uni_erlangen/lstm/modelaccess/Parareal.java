@@ -0,0 +1,571 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2015 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import de.uni_erlangen.lstm.file.CSVWriter;
+import de.uni_erlangen.lstm.file.TrajectoryReader;
+import de.uni_erlangen.lstm.file.TrajectoryWriter;
+import de.uni_erlangen.lstm.models.adm1.DAEModel;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+import de.uni_erlangen.lstm.solvers.IntegratorFactory;
+import de.uni_erlangen.lstm.solvers.SolverStatistics;
+
+/**
+ * Parallel-in-time (Parareal) integration of a dynamic run over an influent series
+ *
+ * The horizon is split into time slices on the influent grid. A coarse propagator G (the influent
+ * averaged over blocks of samples, {@link InfluentSeries#averaged}, and a stiff integrator with
+ * relaxed tolerances) runs over the slices one after the other, the fine propagator F (the
+ * integrator of the serial run on the full influent) runs on all slices at the same time, each
+ * slice with its own model, integrator and influent copy. Iteration k corrects the slice start states
+ *
+ * 	U[n+1] = G(U[n]) + F(U_old[n]) - G(U_old[n])
+ *
+ * After k iterations the first k slices are the serial solution, so their fine runs are not repeated,
+ * and the iteration ends when no start state changes by more than the tolerance (scaled as the
+ * integrator error, |dU|/(atol+rtol*|U|) below one) or every slice is exact.
+ *
+ * The speedup can at best reach the number of slices over the number of iterations, and only with a
+ * core for every slice and coarse sweeps that are cheap against the fine run of a slice. It is only
+ * reported when measured ({@link #setMeasureSerial}): the fine propagator then also runs over the
+ * whole horizon on one thread after the parallel run, and the speedup is its wall time over the
+ * wall time of the parallel run.
+ *
+ * When recording, each slice writes its samples to its own file, the files of the last iteration are
+ * joined into the output file in order and removed, giving the rows of the serial continuous run.
+ *
+ * @author liampetti
+ *
+ */
+public class Parareal {
+	public final static Logger LOGGER = Logger.getLogger(Parareal.class.getName());
+
+	private double[] x;
+	private double[] param;
+	private InfluentSeries influentSeries;
+	private double start;
+	private double end;
+	private double resolution;
+	private boolean dae;
+	private boolean reduced;
+	private double fix_pH;
+	private IntegratorFactory integratorFactory; // Fine propagator
+	private IntegratorFactory coarseFactory; // Coarse propagator
+	private int coarseSamples; // Influent samples averaged into one coarse sample
+	private int slices;
+	private int sliceCount; // Slices of the last run, fewer than asked for if the run has fewer influent samples
+	private int threads;
+	private int maxIterations; // 0 to iterate until every slice is exact
+	private double atol;
+	private double rtol;
+	private String output_file; // Null to record nothing
+	private boolean binaryOutput;
+	private int flushInterval;
+	private long outputRows; // Rows of an existing output file to continue after, -1 for a new file
+
+	private double S_H_ion;
+	private int iterations;
+	private boolean converged;
+	private double[] changes; // Largest scaled change of a slice start state in each iteration
+	private long wallTime; // Milliseconds
+	private boolean measureSerial; // Also run the fine propagator serially to measure the speedup
+	private long serialTime; // Measured serial run, milliseconds, -1 if not measured
+	private long fineTime; // Parallel fine runs, milliseconds
+	private long coarseTime; // All coarse runs, milliseconds
+	private SolverStatistics statistics; // Fine runs
+
+	/**
+	 * @param start 			Initial time, on the grid of the influent series
+	 * @param end 				Final time
+	 * @param resolution 		Time between recorded samples (in days)
+	 * @param parameters 		Digester parameters
+	 * @param initial 			Initial reactor conditions
+	 * @param influentSeries 	Influent series
+	 * @param slices 			Number of time slices, the largest number of fine runs at the same time
+	 */
+	public Parareal(double start, double end, double resolution, DigesterParameters parameters,
+			StateVariables initial, InfluentSeries influentSeries, int slices) {
+		this.start = start;
+		this.end = end;
+		this.resolution = resolution;
+		this.influentSeries = influentSeries;
+		this.slices = slices;
+		param = parameters.getParameters();
+		x = initial.getVar();
+		dae = true;
+		fix_pH = -1.0;
+		integratorFactory = new DefaultIntegratorFactory();
+		DefaultIntegratorFactory coarse = new DefaultIntegratorFactory(DefaultIntegratorFactory.Solver.ROS23.getName());
+		coarse.setRelativeTolerance(1.0e-2);
+		coarse.setAbsoluteTolerance(1.0e-8);
+		coarse.setInitialStep(0.1);
+		coarseFactory = coarse;
+		coarseSamples = Math.max(1, (int) Math.round(1.0/influentSeries.getStep())); // One day
+		threads = Runtime.getRuntime().availableProcessors();
+		atol = 1.0e-8;
+		rtol = 1.0e-6;
+		S_H_ion = DAEModel.initialS_H_ion(x, param);
+		changes = new double[0];
+		statistics = new SolverStatistics();
+		outputRows = -1;
+	}
+
+	/**
+	 * Run the slices until the start states converge
+	 *
+	 * @return 	True if the start states converged, the final state is available from {@link #getX()}
+	 * @throws java.util.concurrent.CompletionException If a fine run fails
+	 */
+	public boolean run() {
+		long wall = System.currentTimeMillis();
+		double[] times = boundaries();
+		final int n = times.length-1;
+		sliceCount = n;
+		int limit = maxIterations > 0 ? Math.min(maxIterations, n) : n;
+		InfluentSeries coarseSeries = influentSeries.averaged(coarseSamples);
+
+		Model coarse = model(coarseSeries.copy(), coarseFactory, null);
+		Model[] fine = new Model[n];
+		String[] files = new String[n];
+		for (int i=0;i<n;i++) {
+			files[i] = output_file == null ? null : output_file + ".slice" + i;
+			fine[i] = model(influentSeries.copy(), integratorFactory, files[i]);
+		}
+
+		// Start states of the slices, S_H_ion of each as the starting value of the charge balance
+		double[][] u = new double[n+1][];
+		double[] sh = new double[n+1];
+		double[][] g = new double[n][]; // Coarse result of each slice from the current start state
+		double[][] f = new double[n][];
+		u[0] = x.clone();
+		sh[0] = S_H_ion;
+
+		iterations = 0;
+		converged = false;
+		changes = new double[limit];
+		serialTime = -1;
+		fineTime = 0;
+		coarseTime = 0;
+		statistics = new SolverStatistics();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(threads, n)));
+		try {
+			// Iteration 0, the coarse propagator alone
+			long t0 = System.currentTimeMillis();
+			for (int i=0;i<n;i++) {
+				g[i] = propagate(coarse, times, i, u[i], sh[i]);
+				u[i+1] = g[i];
+				sh[i+1] = coarse.getS_H_ion();
+			}
+			coarseTime += System.currentTimeMillis()-t0;
+
+			while (iterations < limit && !converged) {
+				int first = iterations; // Slices before this one start from the serial solution
+
+				// Fine runs of the remaining slices at the same time
+				t0 = System.currentTimeMillis();
+				List<CompletableFuture<Model>> futures = new ArrayList<CompletableFuture<Model>>();
+				for (int i=first;i<n;i++) {
+					prepare(fine[i], times, i, u[i], sh[i]);
+					if (files[i] != null && !binaryOutput) {
+						new CSVWriter().Clear(files[i]);
+					}
+					futures.add(fine[i].simulateAsync(pool));
+				}
+				for (int i=first;i<n;i++) {
+					f[i] = futures.get(i-first).join().getX().clone();
+				}
+				fineTime += System.currentTimeMillis()-t0;
+
+				// Coarse sweep with the correction of the fine runs
+				t0 = System.currentTimeMillis();
+				double change = 0.0;
+				double[] next = u[first].clone();
+				double nextSh = sh[first];
+				for (int i=first;i<n;i++) {
+					// The start of the first slice is unchanged, so is its coarse result
+					double[] gNew = i == first ? g[i] : propagate(coarse, times, i, next, nextSh);
+					double[] corrected = new double[gNew.length];
+					for (int j=0;j<corrected.length;j++) {
+						corrected[j] = Math.max(0.0, gNew[j]+f[i][j]-g[i][j]);
+					}
+					g[i] = gNew;
+					change = Math.max(change, norm(corrected, u[i+1]));
+					u[i+1] = corrected;
+					sh[i+1] = i == first ? fine[i].getS_H_ion() : Math.pow(10, -corrected[39]);
+					next = corrected;
+					nextSh = sh[i+1];
+				}
+				coarseTime += System.currentTimeMillis()-t0;
+
+				changes[iterations] = change;
+				iterations++;
+				converged = change <= 1.0 || iterations >= n;
+				LOGGER.info("Parareal iteration " + iterations + ", largest change " + change);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		changes = Arrays.copyOf(changes, iterations);
+
+		for (Model model : fine) {
+			statistics.add(model.getStatistics());
+		}
+		x = u[n];
+		S_H_ion = sh[n];
+		if (output_file != null) {
+			join(files);
+		}
+		wallTime = System.currentTimeMillis()-wall;
+		if (measureSerial) {
+			long t0 = System.currentTimeMillis();
+			Model serial = model(influentSeries.copy(), integratorFactory, null);
+			serial.setX(u[0]);
+			serial.setS_H_ion(sh[0]);
+			serial.simulate();
+			serialTime = System.currentTimeMillis()-t0;
+		}
+		if (!converged) {
+			LOGGER.warning("Parareal not converged after " + iterations + " iterations, largest change " + changes[iterations-1]);
+		}
+		return converged;
+	}
+
+	/**
+	 * Slice boundaries on the influent grid, as even as the grid allows
+	 */
+	private double[] boundaries() {
+		double step = influentSeries.getStep();
+		long samples = Math.max(1, Math.round((end-start)/step));
+		int n = (int) Math.max(1, Math.min(slices, samples));
+		double[] times = new double[n+1];
+		for (int i=0;i<n;i++) {
+			times[i] = start+Math.round((double) i*samples/n)*step;
+		}
+		times[n] = end;
+		return times;
+	}
+
+	/**
+	 * Model of one propagator, kept for all its runs so the integrator is reused
+	 *
+	 * @param file 	Output file, null to record nothing
+	 */
+	private Model model(InfluentSeries series, IntegratorFactory factory, String file) {
+		StateVariables initial = new StateVariables();
+		initial.setVar(x);
+		StateVariables influent = new StateVariables();
+		influent.setVar(series.getRow(0));
+		DigesterParameters parameters = new DigesterParameters();
+		parameters.setParameters(param);
+		Model model = new Model(start, end, resolution, parameters, initial, influent, file != null, file);
+		model.setDAE(dae);
+		model.setReduced(reduced);
+		model.setpH(fix_pH);
+		model.setCarryS_H_ion(true); // The S_H_ion at the end of a slice starts the next one
+		model.setIntegratorFactory(factory);
+		model.setInfluentSeries(series);
+		model.setBinaryOutput(binaryOutput);
+		model.setFlushInterval(flushInterval);
+		return model;
+	}
+
+	private void prepare(Model model, double[] times, int i, double[] u, double sh) {
+		model.setX(u);
+		model.setS_H_ion(sh);
+		model.setTime(times[i], times[i+1]);
+	}
+
+	/**
+	 * Run the coarse propagator over one slice
+	 *
+	 * @return 	State at the end of the slice
+	 */
+	private double[] propagate(Model coarse, double[] times, int i, double[] u, double sh) {
+		prepare(coarse, times, i, u, sh);
+		coarse.simulate();
+		return coarse.getX().clone();
+	}
+
+	/**
+	 * Largest change of a start state, scaled by the tolerances
+	 */
+	private double norm(double[] u, double[] old) {
+		double max = 0.0;
+		for (int j=0;j<u.length;j++) {
+			max = Math.max(max, Math.abs(u[j]-old[j])/(atol+rtol*Math.abs(u[j])));
+		}
+		return max;
+	}
+
+	/**
+	 * Join the slice files into the output file in order and remove them
+	 */
+	private void join(String[] files) {
+		String[] names = TrajectoryWriter.names(StateVariables.NAMES);
+		if (binaryOutput) {
+			try (TrajectoryWriter writer = outputRows < 0 ? new TrajectoryWriter(output_file, names) : 
+					new TrajectoryWriter(output_file, names, outputRows)) {
+				double[] row = new double[writer.getColumns()];
+				for (String file : files) {
+					try (TrajectoryReader reader = new TrajectoryReader(file)) {
+						for (long r=0;r<reader.getRows();r++) {
+							reader.getRow(r, row);
+							writer.write(row);
+						}
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.severe(e.toString());
+			}
+		} else {
+			if (outputRows >= 0) {
+				new CSVWriter().Truncate(output_file, outputRows);
+			}
+			try (OutputStream out = new FileOutputStream(output_file, true)) {
+				for (String file : files) {
+					Files.copy(Paths.get(file), out);
+				}
+			} catch (IOException e) {
+				LOGGER.severe(e.toString());
+			}
+		}
+		for (String file : files) {
+			try {
+				Files.deleteIfExists(Paths.get(file));
+			} catch (IOException e) {
+				LOGGER.warning(e.toString());
+			}
+		}
+	}
+
+	public void setDAE(boolean dae) {
+		this.dae = dae;
+	}
+
+	public void setReduced(boolean reduced) {
+		this.reduced = reduced;
+	}
+
+	public void setpH(double ph) {
+		this.fix_pH = ph;
+	}
+
+	/**
+	 * Continue from a known S_H_ion, e.g. of a checkpoint, instead of the one calculated from the initial state
+	 */
+	public void setS_H_ion(double S_H_ion) {
+		this.S_H_ion = S_H_ion;
+	}
+
+	/**
+	 * @param integratorFactory 	Integrator of the fine propagator, the one of the serial run.
+	 * 								Called from several threads, it should not be changed while running.
+	 */
+	public void setIntegratorFactory(IntegratorFactory integratorFactory) {
+		this.integratorFactory = integratorFactory;
+	}
+
+	public IntegratorFactory getIntegratorFactory() {
+		return integratorFactory;
+	}
+
+	/**
+	 * @param coarseFactory 	Integrator of the coarse propagator (default Rosenbrock-W with rtol 1e-2, 
+	 * 							starting with a step of 0.1 days)
+	 */
+	public void setCoarseIntegratorFactory(IntegratorFactory coarseFactory) {
+		this.coarseFactory = coarseFactory;
+	}
+
+	public IntegratorFactory getCoarseIntegratorFactory() {
+		return coarseFactory;
+	}
+
+	/**
+	 * @param coarseStep 	Time between the averaged influent samples of the coarse propagator
+	 * 						(in days, rounded to whole influent samples, default one day)
+	 */
+	public void setCoarseStep(double coarseStep) {
+		coarseSamples = Math.max(1, (int) Math.round(coarseStep/influentSeries.getStep()));
+	}
+
+	public double getCoarseStep() {
+		return coarseSamples*influentSeries.getStep();
+	}
+
+	public void setSlices(int slices) {
+		this.slices = slices;
+	}
+
+	public int getSlices() {
+		return slices;
+	}
+
+	/**
+	 * @param threads 	Fine runs at the same time
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param maxIterations 	Largest number of iterations, 0 (default) to iterate until every slice is exact
+	 */
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Tolerances of the change of the slice start states between iterations
+	 */
+	public void setTolerance(double atol, double rtol) {
+		this.atol = atol;
+		this.rtol = rtol;
+	}
+
+	public double getAbsoluteTolerance() {
+		return atol;
+	}
+
+	public double getRelativeTolerance() {
+		return rtol;
+	}
+
+	/**
+	 * @param output_file 	Output file of the recorded samples, null (default) to record nothing.
+	 * 						CSV rows are appended, a binary trajectory file is replaced (see {@link #setOutputRows}).
+	 */
+	public void setOutputFile(String output_file) {
+		this.output_file = output_file;
+	}
+
+	/**
+	 * Continue the output file of an earlier run instead of starting a new one, 
+	 * used when resuming from a checkpoint
+	 * 
+	 * @param outputRows 	Rows of the existing file to keep, the run writes after them
+	 */
+	public void setOutputRows(long outputRows) {
+		this.outputRows = outputRows;
+	}
+
+	public void setBinaryOutput(boolean binaryOutput) {
+		this.binaryOutput = binaryOutput;
+	}
+
+	public void setFlushInterval(int flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * @return 	State at the end of the run
+	 */
+	public double[] getX() {
+		return x;
+	}
+
+	public double getS_H_ion() {
+		return S_H_ion;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	public boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * @return 	Largest scaled change of a slice start state in each iteration
+	 */
+	public double[] getChanges() {
+		return changes.clone();
+	}
+
+	/**
+	 * @return 	Wall time of the last run (in milliseconds)
+	 */
+	public long getTime() {
+		return wallTime;
+	}
+
+	/**
+	 * @param measureSerial 	Also run the fine propagator serially after the parallel run, to measure the speedup
+	 */
+	public void setMeasureSerial(boolean measureSerial) {
+		this.measureSerial = measureSerial;
+	}
+
+	/**
+	 * @return 	Wall time of the serial run of the fine propagator (in milliseconds), -1 if not measured
+	 */
+	public long getSerialTime() {
+		return serialTime;
+	}
+
+	/**
+	 * @return 	Serial over parallel wall time, not a number if the serial run was not measured
+	 */
+	public double getSpeedup() {
+		return serialTime >= 0 && wallTime > 0 ? (double) serialTime/wallTime : Double.NaN;
+	}
+
+	/**
+	 * @return 	Work counters of all fine runs
+	 */
+	public SolverStatistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public String toString() {
+		return "Slices; " + sliceCount +
+				"; Iterations; " + iterations +
+				"; Converged; " + converged +
+				"; Cores; " + Runtime.getRuntime().availableProcessors() +
+				"; Tolerance; " + rtol +
+				"; Wall time; " + wallTime +
+				(serialTime >= 0 ? "; Serial time; " + serialTime + "; Speedup; " + String.format("%.2f", getSpeedup()) : "") +
+				"; Fine time; " + fineTime +
+				"; Coarse time; " + coarseTime;
+	}
+}
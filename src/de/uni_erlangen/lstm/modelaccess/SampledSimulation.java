@@ -0,0 +1,173 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.MultistepIntegrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import de.uni_erlangen.lstm.models.adm1.DAEModel;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+import de.uni_erlangen.lstm.solvers.IntegratorFactory;
+
+/**
+ * One simulation sampled at given times, used for the many short runs of the calibration and the ensembles
+ * 
+ * Every run builds its own model and integrator, the states at the sample times are interpolated 
+ * from the integrator steps, so the samples of different runs are on the same time grid whatever 
+ * steps the integrator takes. The influent series of a run must not be shared with other threads 
+ * (see {@link InfluentSeries#copy()}).
+ * 
+ * @author liampetti
+ *
+ */
+public class SampledSimulation {
+	
+	/**
+	 * Receives the model at each sample time
+	 */
+	public interface Sink {
+		
+		/**
+		 * @param i 	Index of the sample time
+		 * @param t 	Sample time
+		 * @param s 	State with the algebraic states and outputs (42 variables), only valid during the call
+		 */
+		void sample(int i, double t, double[] s);
+	}
+	
+	private double start;
+	private boolean dae;
+	private double fix_pH;
+	private IntegratorFactory integratorFactory;
+	
+	/**
+	 * @param start 	Initial time
+	 */
+	public SampledSimulation(double start) {
+		this.start = start;
+		dae = true;
+		fix_pH = -1.0;
+		integratorFactory = new DefaultIntegratorFactory();
+	}
+	
+	public void setDAE(boolean dae) {
+		this.dae = dae;
+	}
+	
+	public void setpH(double ph) {
+		this.fix_pH = ph;
+	}
+	
+	/**
+	 * The factory may be called from several threads, it should not be changed while runs are going on
+	 */
+	public void setIntegratorFactory(IntegratorFactory integratorFactory) {
+		this.integratorFactory = integratorFactory;
+	}
+	
+	/**
+	 * Simulate from the start to the last sample time
+	 * 
+	 * @param x 		Initial reactor conditions, integrated in place
+	 * @param u 		Constant influent, or the influent until the series takes over
+	 * @param series 	Influent series of this run, null for constant influent
+	 * @param param 	Digester parameters
+	 * @param times 	Sample times, ascending
+	 * @param sink 		Receives the model at every sample time
+	 */
+	public void run(double[] x, double[] u, InfluentSeries series, double[] param, final double[] times, final Sink sink) {
+		double S_H_ion = DAEModel.initialS_H_ion(x, param);
+		final DAEModel ode = new DAEModel(u, param, S_H_ion, dae, fix_pH);
+		// Separate model for the samples, evaluating them must not change the S_H_ion and 
+		// warm start history of the model the integrator works with (see Model)
+		final DAEModel sampler = new DAEModel(u, param, S_H_ion, dae, fix_pH);
+		final double[] dx = new double[x.length];
+		final double[] s = new double[sampler.getDimension()];
+		final int[] next = {0}; // Next sample
+		
+		// Samples at (or before) the start
+		while (next[0] < times.length && times[next[0]] <= start) {
+			sample(sampler, sink, next[0], times[next[0]], x, dx, s);
+			next[0]++;
+		}
+		if (next[0] == times.length) {
+			return;
+		}
+		double end = times[times.length-1];
+		
+		FirstOrderIntegrator integrator = integratorFactory.create();
+		integrator.addStepHandler(new StepHandler() {
+		    public void init(double t0, double[] y0, double t) {
+		    }
+		            
+		    public void handleStep(StepInterpolator interpolator, boolean isLast) {
+		        double t = interpolator.getCurrentTime();
+		        while (next[0] < times.length && times[next[0]] <= t) {
+		        	interpolator.setInterpolatedTime(times[next[0]]);
+		        	sample(sampler, sink, next[0], times[next[0]], interpolator.getInterpolatedState(), dx, s);
+		        	next[0]++;
+		        }
+		    }
+		});
+		
+		if (series == null) {
+			integrator.integrate(ode, start, x, end, x);
+		} else {
+			ode.setInfluentSeries(series);
+			sampler.setInfluentSeries(series);
+			if (!series.isInterpolated() && integrator instanceof MultistepIntegrator) {
+				// Multistep methods restart at every influent jump anyway (see Model)
+				double step = series.getStep();
+				int k = (int) Math.floor((start-series.getStart())/step+1.0e-9);
+				double t = start;
+				while (t < end-1.0e-9*step) {
+					double tNext = Math.min(series.getStart()+(k+1)*step, end);
+					series.setTime(t);
+					integrator.integrate(ode, t, x, tNext, x);
+					t = tNext;
+					k++;
+				}
+			} else {
+				integrator.addEventHandler(new InfluentEvent(series, sampler, null), 0.5*series.getStep(), 1.0e-10, 100);
+				integrator.integrate(ode, start, x, end, x);
+			}
+		}
+		
+		// Rounding at the end of the integration
+		while (next[0] < times.length) {
+			sample(sampler, sink, next[0], times[next[0]], x, dx, s);
+			next[0]++;
+		}
+	}
+	
+	private static void sample(DAEModel sampler, Sink sink, int i, double t, double[] y, double[] dx, double[] s) {
+		// Algebraic states and outputs are pulled from the model, twice so the S_h2 balance uses the 
+		// S_H_ion of this sample and not that of the previous one (the sample would depend on the grid)
+		sampler.evaluate(t, y, dx, s);
+		sampler.evaluate(t, y, dx, s);
+		sink.sample(i, t, s);
+	}
+}
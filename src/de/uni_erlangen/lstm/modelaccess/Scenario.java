@@ -0,0 +1,291 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import de.uni_erlangen.lstm.file.CSVWriter;
+import de.uni_erlangen.lstm.file.Checkpoint;
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+import de.uni_erlangen.lstm.solvers.IntegratorFactory;
+import de.uni_erlangen.lstm.solvers.SteadyStateSolver;
+
+/**
+ * One simulation of a batch, steady (constant influent) or dynamic (influent file run in one integration)
+ * 
+ * Steady scenarios can be solved directly for the steady state (see {@link SteadyStateSolver}), 
+ * they are integrated over the run time only if the direct solution fails
+ * 
+ * The initial conditions can be a {@link Checkpoint} of an earlier dynamic run, the scenario then 
+ * starts at the time of the checkpoint, so many scenarios can branch off one warmed-up run
+ * 
+ * Everything the simulation needs (initial conditions, parameters, influent, integrator and model) 
+ * is created when it is called, so scenarios share nothing and can run on any thread
+ * 
+ * @author liampetti
+ *
+ */
+public class Scenario implements Callable<ScenarioResult> {
+	public final static Logger LOGGER = Logger.getLogger(Scenario.class.getName());
+	
+	private String name;
+	private boolean steady;
+	private boolean direct; // Solve steady scenarios directly instead of integrating
+	private double start; // Model start time
+	private double finish; // Model end time, end of the influent file if not set for dynamic runs
+	private double step; // Influent sample time and output resolution (in days)
+	private String influentFile; // Influent, one line for steady and multiple lines for dynamic runs
+	private String initialFile; // Digester initial conditions or checkpoint, BSM2 defaults if not set
+	private String parametersFile; // Digester parameters, BSM2 defaults if not set
+	private String outputFile; // Continuous output (binary if it ends with ".bin"), not recorded if not set
+	private boolean dae;
+	private boolean interpolate;
+	private IntegratorFactory integratorFactory;
+	
+	public Scenario(String name) {
+		this.name = name;
+		steady = true;
+		start = 0.0;
+		finish = Double.NaN;
+		step = 0.01041666667; // 15 minutes in days
+		dae = true;
+		interpolate = false;
+		integratorFactory = new DefaultIntegratorFactory();
+	}
+	
+	/**
+	 * Scenario from one line of a batch file, the columns are
+	 * name; steady|direct|dynamic; start; finish; influent; initial; parameters; solver; output
+	 * 
+	 * Empty or missing columns keep the defaults
+	 * 
+	 * @param fields 			Columns of the line
+	 * @param defaultSolver 	Solver used when the line does not name one
+	 */
+	public static Scenario parse(String[] fields, String defaultSolver) {
+		Scenario scenario = new Scenario(field(fields, 0, "scenario"));
+		String type = field(fields, 1, "steady");
+		scenario.setSteady(!type.equalsIgnoreCase("dynamic"));
+		scenario.setDirect(type.equalsIgnoreCase("direct"));
+		scenario.setStart(Double.parseDouble(field(fields, 2, "0.0")));
+		scenario.setFinish(Double.parseDouble(field(fields, 3, scenario.isSteady() ? "200.0" : "NaN")));
+		scenario.setInfluentFile(field(fields, 4, null));
+		scenario.setInitialFile(field(fields, 5, null));
+		scenario.setParametersFile(field(fields, 6, null));
+		scenario.setIntegratorFactory(new DefaultIntegratorFactory(field(fields, 7, defaultSolver)));
+		scenario.setOutputFile(field(fields, 8, null));
+		return scenario;
+	}
+	
+	private static String field(String[] fields, int i, String def) {
+		if (i < fields.length && !fields[i].trim().isEmpty()) {
+			return fields[i].trim();
+		}
+		return def;
+	}
+	
+	/**
+	 * Run the simulation on the calling thread, failures are logged and returned in the result
+	 */
+	@Override
+	public ScenarioResult call() {
+		long stime = System.currentTimeMillis();
+		try {
+			BSM2Defaults defaults = new BSM2Defaults();
+			StateVariables initial = new StateVariables();
+			initial.setVar(defaults.DigesterInit());
+			Checkpoint checkpoint = null;
+			if (initialFile != null && Checkpoint.isCheckpoint(initialFile)) {
+				checkpoint = Checkpoint.read(initialFile);
+				initial.setVar(checkpoint.getX());
+			} else if (initialFile != null) {
+				initial.readVar(initialFile);
+			}
+			double from = checkpoint == null ? start : checkpoint.getTime(); // Model start time
+			DigesterParameters parameters = new DigesterParameters();
+			if (parametersFile != null) {
+				parameters.readParameters(parametersFile);
+			}
+			StateVariables influent = new StateVariables();
+			influent.setVar(defaults.Influent());
+			
+			boolean binary = outputFile != null && outputFile.endsWith(".bin");
+			if (outputFile != null && !binary) {
+				new CSVWriter().Clear(outputFile);
+			}
+			
+			Model model;
+			if (steady) {
+				if (influentFile != null) {
+					influent.readVar(influentFile);
+				}
+				model = new Model(from, Double.isNaN(finish) ? 200.0 : finish, step, parameters, initial, influent, outputFile != null, outputFile);
+			} else {
+				InfluentSeries series = InfluentSeries.read(influentFile == null ? "digesterin.csv" : influentFile, ',', start, step);
+				series.setInterpolated(interpolate);
+				double end = Double.isNaN(finish) ? series.getEnd() : Math.min(finish, series.getEnd());
+				model = new Model(from, end, step, parameters, initial, influent, outputFile != null, outputFile);
+				model.setInfluentSeries(series);
+			}
+			if (checkpoint != null) {
+				model.setS_H_ion(checkpoint.getS_H_ion());
+			}
+			model.setDAE(dae);
+			model.setIntegratorFactory(integratorFactory);
+			model.setBinaryOutput(binary);
+			if (!(steady && direct && solveSteady(model))) {
+				model.simulate();
+			}
+			
+			return new ScenarioResult(this, model.getX().clone(), model.getEnd(), model.getStatistics(), 
+					System.currentTimeMillis()-stime, null);
+		} catch (RuntimeException | IOException e) {
+			LOGGER.severe(name + ": " + e.toString());
+			return new ScenarioResult(this, null, Double.NaN, null, System.currentTimeMillis()-stime, e.toString());
+		}
+	}
+	
+	/**
+	 * Direct steady state solution, false if it did not converge
+	 */
+	private boolean solveSteady(Model model) {
+		SteadyStateSolver solver = new SteadyStateSolver();
+		if (model.solveSteady(solver)) {
+			return true;
+		}
+		LOGGER.warning(name + ": steady state not found directly (" + solver + "), integrating to it");
+		return false;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	public boolean isSteady() {
+		return steady;
+	}
+	
+	public void setSteady(boolean steady) {
+		this.steady = steady;
+	}
+	
+	public boolean isDirect() {
+		return direct;
+	}
+	
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+	}
+	
+	public double getStart() {
+		return start;
+	}
+	
+	public void setStart(double start) {
+		this.start = start;
+	}
+	
+	public double getFinish() {
+		return finish;
+	}
+	
+	public void setFinish(double finish) {
+		this.finish = finish;
+	}
+	
+	public double getStep() {
+		return step;
+	}
+	
+	public void setStep(double step) {
+		this.step = step;
+	}
+	
+	public String getInfluentFile() {
+		return influentFile;
+	}
+	
+	public void setInfluentFile(String influentFile) {
+		this.influentFile = influentFile;
+	}
+	
+	public String getInitialFile() {
+		return initialFile;
+	}
+	
+	public void setInitialFile(String initialFile) {
+		this.initialFile = initialFile;
+	}
+	
+	public String getParametersFile() {
+		return parametersFile;
+	}
+	
+	public void setParametersFile(String parametersFile) {
+		this.parametersFile = parametersFile;
+	}
+	
+	public String getOutputFile() {
+		return outputFile;
+	}
+	
+	public void setOutputFile(String outputFile) {
+		this.outputFile = outputFile;
+	}
+	
+	public boolean isDAE() {
+		return dae;
+	}
+	
+	public void setDAE(boolean dae) {
+		this.dae = dae;
+	}
+	
+	public boolean isInterpolated() {
+		return interpolate;
+	}
+	
+	public void setInterpolated(boolean interpolate) {
+		this.interpolate = interpolate;
+	}
+	
+	public IntegratorFactory getIntegratorFactory() {
+		return integratorFactory;
+	}
+	
+	/**
+	 * Each scenario needs its own factory if the factories are changed while the batch runs
+	 */
+	public void setIntegratorFactory(IntegratorFactory integratorFactory) {
+		this.integratorFactory = integratorFactory;
+	}
+}
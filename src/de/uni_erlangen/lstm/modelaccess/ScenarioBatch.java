@@ -0,0 +1,154 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import de.uni_erlangen.lstm.file.CSVReader;
+import de.uni_erlangen.lstm.file.CSVWriter;
+
+/**
+ * Runs independent scenarios in parallel on a fork-join pool
+ * 
+ * Each scenario builds its own model, integrator and influent, so the only thing the threads 
+ * share is the pool. Results are written to the combined output file in the order the runs 
+ * finish (by the calling thread), trajectories go to each scenario's own output file.
+ * 
+ * @author liampetti
+ *
+ */
+public class ScenarioBatch {
+	public final static Logger LOGGER = Logger.getLogger(ScenarioBatch.class.getName());
+	
+	private List<Scenario> scenarios;
+	private int threads;
+	private String output_file; // Combined results, one line per scenario
+	
+	/**
+	 * @param threads 	Number of simulations run at the same time
+	 */
+	public ScenarioBatch(int threads) {
+		this.threads = threads;
+		scenarios = new ArrayList<Scenario>();
+	}
+	
+	public ScenarioBatch() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	public void add(Scenario scenario) {
+		scenarios.add(scenario);
+	}
+	
+	/**
+	 * Add the scenarios from a batch file, one scenario per line (';' separated, see {@link Scenario#parse}),
+	 * lines starting with '#' are skipped
+	 * 
+	 * @param filename 			Batch file
+	 * @param defaultSolver 	Solver for scenarios that do not name one
+	 */
+	public void read(String filename, String defaultSolver) {
+		CSVReader reader = new CSVReader(filename, ";");
+		while (!reader.finished()) {
+			String[] fields = reader.getNextString();
+			if (fields.length > 0 && !fields[0].trim().isEmpty() && !fields[0].trim().startsWith("#")) {
+				try {
+					scenarios.add(Scenario.parse(fields, defaultSolver));
+				} catch (IllegalArgumentException e) {
+					LOGGER.severe("Skipping scenario " + fields[0] + ": " + e.toString());
+				}
+			}
+		}
+	}
+	
+	public List<Scenario> getScenarios() {
+		return scenarios;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * @param output_file 	Combined result file, null to keep the results in memory only
+	 */
+	public void setOutputFile(String output_file) {
+		this.output_file = output_file;
+	}
+	
+	/**
+	 * Run all scenarios and wait for them to finish
+	 * 
+	 * @return Results in the order the scenarios were added
+	 */
+	public List<ScenarioResult> run() {
+		List<ScenarioResult> results = new ArrayList<ScenarioResult>();
+		if (scenarios.isEmpty()) {
+			return results;
+		}
+		CSVWriter writer = new CSVWriter();
+		if (output_file != null) {
+			writer.Clear(output_file);
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			CompletionService<ScenarioResult> completion = new ExecutorCompletionService<ScenarioResult>(pool);
+			List<Future<ScenarioResult>> futures = new ArrayList<Future<ScenarioResult>>();
+			for (Scenario scenario : scenarios) {
+				futures.add(completion.submit(scenario));
+			}
+			
+			// Stream the results as the runs finish
+			for (int i=0;i<scenarios.size();i++) {
+				ScenarioResult result = completion.take().get();
+				if (output_file != null) {
+					writer.WriteString(output_file, result.toString(), true);
+				}
+				LOGGER.info(result.getScenario().getName() + " finished (" + (i+1) + "/" + scenarios.size() + ")");
+			}
+			
+			for (Future<ScenarioResult> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.toString());
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOGGER.severe(e.toString());
+		} finally {
+			pool.shutdownNow();
+		}
+		return results;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import de.uni_erlangen.lstm.solvers.SolverStatistics;
+
+/**
+ * Final state and run statistics of one scenario
+ * 
+ * @author liampetti
+ *
+ */
+public class ScenarioResult {
+	
+	private final Scenario scenario;
+	private final double[] x;
+	private final double end;
+	private final SolverStatistics statistics;
+	private final long time;
+	private final String error;
+	
+	/**
+	 * @param scenario 		The scenario that was run
+	 * @param x 			Final digester state, null if the run failed
+	 * @param end 			Final time (earlier than the finish time if stopped by an event)
+	 * @param statistics 	Solver statistics of the run
+	 * @param time 			Wall clock time of the run (in ms)
+	 * @param error 		Reason the run failed, null if it succeeded
+	 */
+	public ScenarioResult(Scenario scenario, double[] x, double end, SolverStatistics statistics, long time, String error) {
+		this.scenario = scenario;
+		this.x = x;
+		this.end = end;
+		this.statistics = statistics;
+		this.time = time;
+		this.error = error;
+	}
+	
+	public Scenario getScenario() {
+		return scenario;
+	}
+	
+	public double[] getX() {
+		return x;
+	}
+	
+	public double getEnd() {
+		return end;
+	}
+	
+	public SolverStatistics getStatistics() {
+		return statistics;
+	}
+	
+	public long getTime() {
+		return time;
+	}
+	
+	public String getError() {
+		return error;
+	}
+	
+	public boolean isFailed() {
+		return error != null;
+	}
+	
+	/**
+	 * One line of the combined batch output
+	 */
+	@Override
+	public String toString() {
+		String output = "Scenario; " + scenario.getName() + 
+				"; Simulation time; " + time;
+		if (isFailed()) {
+			return output + "; Failed; " + error;
+		}
+		output += "; Finish; " + end + 
+				"; Solver; " + scenario.getIntegratorFactory().getName() + 
+				"; " + statistics + 
+				"; Effluent";
+		for (int i=0;i<x.length;i++) {
+			output += "; " + x[i];
+		}
+		return output;
+	}
+}
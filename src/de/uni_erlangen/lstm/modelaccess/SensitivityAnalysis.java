@@ -0,0 +1,327 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.MultistepIntegrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import de.uni_erlangen.lstm.file.CSVWriter;
+import de.uni_erlangen.lstm.file.TrajectoryOutput;
+import de.uni_erlangen.lstm.file.TrajectoryWriter;
+import de.uni_erlangen.lstm.models.adm1.DAEModel;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.models.adm1.SensitivityEquations;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+import de.uni_erlangen.lstm.solvers.IntegratorFactory;
+import de.uni_erlangen.lstm.solvers.SolverStatistics;
+
+/**
+ * Sensitivities of selected model outputs to selected digester parameters in one integration
+ * 
+ * The model is integrated together with its forward sensitivity equations 
+ * ({@link SensitivityEquations}). The outputs and their derivatives with respect to the 
+ * parameters are recorded every resolution days, with the columns
+ * time; output 1; d(output 1)/d(parameter 1); ...; d(output 1)/d(parameter k); output 2; ...
+ * 
+ * @author liampetti
+ *
+ */
+public class SensitivityAnalysis {
+	public final static Logger LOGGER = Logger.getLogger(SensitivityAnalysis.class.getName());
+	
+	private double[] x;
+	private double[] u;
+	private double[] param;
+	private int[] indices; // Selected parameters
+	private int[] outputs; // Recorded state variables and outputs
+	private InfluentSeries influentSeries; // Time varying influent, null for constant influent
+	private double start;
+	private double end;
+	private double resolution; // How often to record the sensitivities
+	private boolean dae;
+	private double fix_pH;
+	private IntegratorFactory integratorFactory;
+	private SolverStatistics statistics;
+	private long steps;
+	private String outputFile; // Not recorded if null
+	private boolean binaryOutput;
+	private int flushInterval;
+	private double[] s; // Evaluated model at the last record
+	private double[][] ds; // Sensitivities of s at the last record
+	
+	/**
+	 * @param start 		Initial time
+	 * @param end 			Final time
+	 * @param resolution 	Time between recorded rows (in days)
+	 * @param parameters 	Digester parameters
+	 * @param initial 		Initial reactor conditions
+	 * @param influent 		Constant influent (see {@link #setInfluentSeries} for dynamic influent)
+	 * @param indices 		Parameters (positions in {@link DigesterParameters#getParameters()}) to calculate the sensitivities for
+	 */
+	public SensitivityAnalysis(double start, double end, double resolution, DigesterParameters parameters, 
+			StateVariables initial, StateVariables influent, int[] indices) {
+		this.start = start;
+		this.end = end;
+		this.resolution = resolution;
+		this.indices = indices.clone();
+		param = parameters.getParameters();
+		x = initial.getVar();
+		u = influent.getVar();
+		x[35] = u[35]; // Effluent flow rate = Influent flow rate
+		outputs = new int[] {37, 38, 39}; // Methane, gas flow and pH
+		dae = true;
+		fix_pH = -1.0;
+		integratorFactory = new DefaultIntegratorFactory();
+		statistics = new SolverStatistics();
+		flushInterval = 96;
+	}
+	
+	/**
+	 * Run the whole influent series (influent held constant over each sample or interpolated)
+	 */
+	public void setInfluentSeries(InfluentSeries influentSeries) {
+		this.influentSeries = influentSeries;
+		if (influentSeries != null) {
+			u = influentSeries.getRow(0).clone();
+			x[35] = u[35]; // Effluent flow rate = Influent flow rate
+		}
+	}
+	
+	/**
+	 * @param outputs 	State variables and outputs (positions as in {@link StateVariables#NAMES}) to record, default methane, gas flow and pH
+	 */
+	public void setOutputs(int[] outputs) {
+		this.outputs = outputs.clone();
+	}
+	
+	public int[] getOutputs() {
+		return outputs.clone();
+	}
+	
+	public void setDAE(boolean dae) {
+		this.dae = dae;
+	}
+	
+	public void setpH(double ph) {
+		this.fix_pH = ph;
+	}
+	
+	public void setIntegratorFactory(IntegratorFactory integratorFactory) {
+		this.integratorFactory = integratorFactory;
+	}
+	
+	/**
+	 * @param outputFile 	Sensitivity trajectory file, binary if it ends with ".bin", not recorded if null
+	 */
+	public void setOutputFile(String outputFile) {
+		this.outputFile = outputFile;
+		this.binaryOutput = outputFile != null && outputFile.endsWith(".bin");
+	}
+	
+	/**
+	 * @param flushInterval 	Output rows between flushes of a CSV output file, 0 to flush only at the end
+	 */
+	public void setFlushInterval(int flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+	
+	/**
+	 * Column names of the recorded trajectory, without the time
+	 */
+	public String[] getNames() {
+		String[] names = new String[outputs.length*(1+indices.length)];
+		int c = 0;
+		for (int j : outputs) {
+			names[c++] = StateVariables.NAMES[j];
+			for (int k : indices) {
+				names[c++] = "d" + StateVariables.NAMES[j] + "/d" + DigesterParameters.NAMES[k];
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Integrate the model with the sensitivity equations from start to end
+	 */
+	public void run() {
+		FirstOrderIntegrator integrator = integratorFactory.create();
+		steps = 0;
+		double S_H_ion = DAEModel.initialS_H_ion(x, param);
+		final SensitivityEquations equations = new SensitivityEquations(u, param, S_H_ion, dae, fix_pH, indices);
+		// Separate models for the recorded rows and the end, evaluating them must not change the S_H_ion 
+		// and warm start history of the models the integrator works with (see Model)
+		final SensitivityEquations sampler = new SensitivityEquations(u, param, S_H_ion, dae, fix_pH, indices);
+		final double[] y = equations.initialState(x);
+		s = new double[x.length];
+		ds = new double[indices.length][x.length];
+		
+		final TrajectoryOutput writer;
+		if (outputFile == null) {
+			writer = null;
+		} else if (binaryOutput) {
+			writer = new TrajectoryWriter(outputFile, TrajectoryWriter.names(getNames()));
+		} else {
+			CSVWriter csv = new CSVWriter(outputFile, false, flushInterval);
+			csv.write("time;" + String.join(";", getNames()) + ";");
+			writer = csv;
+		}
+		final double[] row = new double[outputs.length*(1+indices.length)];
+		
+		InfluentEvent influentEvent = null;
+		boolean byInterval = false;
+		if (influentSeries != null) {
+			equations.setInfluentSeries(influentSeries);
+			sampler.setInfluentSeries(influentSeries);
+			influentEvent = new InfluentEvent(influentSeries, sampler.getModel(), null);
+			byInterval = !influentSeries.isInterpolated() && integrator instanceof MultistepIntegrator;
+			if (!byInterval) {
+				integrator.addEventHandler(influentEvent, 0.5*influentSeries.getStep(), 1.0e-10, 100);
+			}
+		}
+		
+		/*
+		 * Rows every resolution days from the start, interpolated from the dense output of the 
+		 * integrator steps so they are on a regular grid whatever steps the integrator takes (see Model)
+		 */
+		final double[] last = {start}; // Time of the last record
+		integrator.addStepHandler(new StepHandler() {
+			long sample = 1; // Next row, the grid is counted from the start so it does not drift
+			
+		    public void init(double t0, double[] y0, double t) {
+		    }
+		            
+		    public void handleStep(StepInterpolator interpolator, boolean isLast) {
+		    	steps++;
+		    	if (writer == null) {
+		    		return;
+		    	}
+		        double t = interpolator.getCurrentTime();
+		        double tSample = start+sample*resolution;
+		        // Rounding of the resolution must not lose the row at the end
+		        while (tSample <= t+1.0e-6*resolution) {
+		        	tSample = Math.min(tSample, t);
+		        	interpolator.setInterpolatedTime(tSample);
+		        	record(writer, row, sampler, tSample, interpolator.getInterpolatedState());
+		        	last[0] = tSample;
+		        	sample++;
+		        	tSample = start+sample*resolution;
+		        }
+		    }
+		});
+		
+		double stopTime = start;
+		try {
+			if (writer != null) {
+				record(writer, row, sampler, start, y);
+			}
+			if (byInterval) {
+				double step = influentSeries.getStep();
+				int k = (int) Math.floor((start-influentSeries.getStart())/step+1.0e-9);
+				double t = start;
+				while (t < end-1.0e-9*step) {
+					double tNext = Math.min(influentSeries.getStart()+(k+1)*step, end);
+					influentSeries.setTime(t);
+					stopTime = integrator.integrate(equations, t, y, tNext, y);
+					statistics.add(integrator, steps);
+					steps = 0;
+					t = tNext;
+					k++;
+				}
+			} else {
+				stopTime = integrator.integrate(equations, start, y, end, y);
+				statistics.add(integrator, steps);
+			}
+			// End off the grid or stopped early
+			if (writer != null && stopTime > last[0]+1.0e-6*resolution) {
+				record(writer, row, sampler, stopTime, y);
+			}
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+		DAEModel ode = equations.getModel();
+		statistics.addAlgebraic(ode.getAlgebraicSolves(), ode.getAlgebraicIterations(), ode.getAlgebraicMaxIterations(), 
+				ode.getAlgebraicBisections(), ode.getAlgebraicFailures());
+		
+		evaluate(sampler, stopTime, y);
+		end = stopTime;
+	}
+	
+	/**
+	 * Evaluate the sampler twice, so the S_h2 balances use the S_H_ion of this point and not that of the last record
+	 */
+	private void evaluate(SensitivityEquations sampler, double t, double[] y) {
+		sampler.evaluate(t, y, s, ds);
+		sampler.evaluate(t, y, s, ds);
+	}
+	
+	private void record(TrajectoryOutput writer, double[] row, SensitivityEquations sampler, double t, double[] y) {
+		evaluate(sampler, t, y);
+		int c = 0;
+		for (int j : outputs) {
+			row[c++] = s[j];
+			for (int k=0;k<indices.length;k++) {
+				row[c++] = ds[k][j];
+			}
+		}
+		writer.write(t, row);
+	}
+	
+	/**
+	 * @return Model state, algebraic states and outputs at the end of the run
+	 */
+	public double[] getX() {
+		return s.clone();
+	}
+	
+	/**
+	 * @return Sensitivities at the end of the run, [k][i] = d(x_i)/d(p_k) for the k-th selected parameter 
+	 * 			and every state variable and output i
+	 */
+	public double[][] getSensitivities() {
+		double[][] copy = new double[ds.length][];
+		for (int k=0;k<ds.length;k++) {
+			copy[k] = ds[k].clone();
+		}
+		return copy;
+	}
+	
+	public int[] getIndices() {
+		return indices.clone();
+	}
+	
+	public double getEnd() {
+		return end;
+	}
+	
+	public SolverStatistics getStatistics() {
+		return statistics;
+	}
+}
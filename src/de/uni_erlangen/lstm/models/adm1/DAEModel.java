@@ -21,11 +21,12 @@
 
 package de.uni_erlangen.lstm.models.adm1;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.exception.MaxCountExceededException;
-import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
 
 
 /**
@@ -40,31 +41,70 @@ import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
  * @author liampetti
  *
  */
-public class DAEModel implements FirstOrderDifferentialEquations {
+public class DAEModel implements MainStateJacobianProvider {
 	public final static Logger LOGGER = Logger.getLogger(DAEModel.class.getName());
 	
 	private boolean shDAE;
 	private boolean sh2DAE;
 
-	private double eps, phi, S_H_ion;
-	private double proc1, proc2, proc3, proc4, proc5, proc6, proc7, proc8, proc9, proc10, proc11, proc12, proc13;
-	private double proc14, proc15, proc16, proc17, proc18, proc19;
-	private double procT8, procT9, procT10;
-	private double I_pH_aa, I_pH_ac, I_pH_h2, I_IN_lim, I_h2_fa, I_h2_c4, I_h2_pro, I_nh3;
-	private double reac1, reac2, reac3, reac4, reac5, reac6, reac7, reac8, reac9, reac10, reac11, reac12, reac13;
-	private double reac14, reac15, reac16, reac17, reac18, reac19, reac20, reac21, reac22, reac23, reac24;
+	private double eps, S_H_ion;
 	private double stoich1, stoich2, stoich3, stoich4, stoich5, stoich6, stoich7, stoich8, stoich9, stoich10, stoich11, stoich12, stoich13;
-	private double p_gas_h2o, P_gas, p_gas_h2, p_gas_ch4, p_gas_co2, q_gas;
-	private double pHLim_aa, pHLim_ac, pHLim_h2, n_aa, n_ac, n_h2;
+	private double lnpHLim_aa, lnpHLim_ac, lnpHLim_h2, n_aa, n_ac, n_h2;
 	private double K_w, K_a_va, K_a_bu, K_a_pro, K_a_ac, K_a_co2, K_a_IN, K_H_co2, K_H_ch4, K_H_h2;
+	private double p_gas_h2o, T_K;
+	private double constantsT; // Temperature the constants above were calculated for, NaN if not calculated
+	
+	// Algebraic equations
+	private static final int CHARGE_BALANCE = 0;
+	private static final int H2_BALANCE = 1;
+	private static final double TOL = 1e-12; // Residual tolerance
+	private static final int MAX_ITERATIONS = 100;
+	private double dResidual; // Derivative of the last residual
+	private int lastIterations;
+	private double h2_D, h2_const, h2_c7, h2_c4, h2_c10, h2_rate12, h2_eq; // Terms of the S_h2 balance independent of S_h2
+	private double evalTime; // Time of the current evaluation, NaN if unknown
+	private double histT1, histT2, histSH1, histSH2, histH2_1, histH2_2; // Last two solutions (time, ln(S_H_ion), ln(S_h2)) for warm starts
+	private long algebraicSolves, algebraicIterations, algebraicBisections, algebraicFailures;
+	private int algebraicMaxIterations;
 
-	private double[] inhib;
 	private double[] param;
 	private double[] u; // influent
+	private InfluentSeries series; // Time varying influent, null for constant influent
 	private double[] xtemp;
-	private double factor, R, P_atm;
+	private double R, P_atm;
 	private double fix_pH;
 	
+	/*
+	 * Jacobian 
+	 * Water phase reactions as stoichiometric coefficients times process rates,
+	 * rows: states 0-23, columns: proc1-19, procT8-10
+	 */
+	private static final int[][] PROC_DEPS = {
+		{12}, {13}, {14}, {15}, // Disintegration and hydrolysis
+		{0, 16, 10}, {1, 17, 10}, {2, 18, 10, 7}, {3, 4, 19, 10, 7}, {3, 4, 19, 10, 7}, // Uptake
+		{5, 20, 10, 7}, {6, 21, 10, 31}, {7, 22, 10},
+		{16}, {17}, {18}, {19}, {20}, {21}, {22}, // Decay
+		{7, 32}, {8, 33}, {9, 30, 34} // Gas transfer
+	};
+	private static final boolean[] PROC_PH = {
+		false, false, false, false, 
+		true, true, true, true, true, true, true, true,
+		false, false, false, false, false, false, false,
+		false, false, false
+	};
+	// Acid-base pairs: ion state and the total it belongs to
+	private static final int[] ION = {26, 27, 28, 29, 30, 31};
+	private static final int[] ION_TOTAL = {3, 4, 5, 6, 9, 10};
+	private double[][] nu;
+	private double[][] dProc;
+	private double[] dProcSH;
+	private double[][] jac;
+	private double[] jacSH;
+	private double[] dSH;
+	private double[] dxJac;
+	private double[] K_a; // Acid-base constants in the order of ION
+	private static final double[] ION_CHARGE = {1.0/208.0, 1.0/160.0, 1.0/112.0, 1.0/64.0, 1.0, 1.0};
+	
 	/** 
 	 * Initiates the model using the defined parameters and pre-calculates the stoichiometry parameter values for use in the water phase
 	 * 
@@ -79,7 +119,6 @@ public class DAEModel implements FirstOrderDifferentialEquations {
 		sh2DAE = dae; // Turn on algebraic equations for SH2
 		S_H_ion = sh;
 		fix_pH = ph;
-		inhib = new double[6]; // holds inhibition functions
 		//u = influent; // Influent pointer
 		u = new double[influent.length];		
 		for (int i=0;i<influent.length;i++) {
@@ -119,45 +158,217 @@ public class DAEModel implements FirstOrderDifferentialEquations {
 		// stoich13 = -C_bac+C_xc
 		stoich13 = -param[78]+param[56];
 		
-		// pH Inhibition
-		pHLim_aa = Math.pow(10,(-(param[13] + param[14])/2.0));
-		pHLim_ac = Math.pow(10,(-(param[15] + param[16])/2.0));
-		pHLim_h2 = Math.pow(10,(-(param[17] + param[18])/2.0));
+		// Stoichiometric matrix of the reactions below (reac1-24), used by the Jacobian
+		nu = new double[24][22];
+		nu[0][1] = 1.0; nu[0][3] = 1.0-param[69]; nu[0][4] = -1.0;
+		nu[1][2] = 1.0; nu[1][5] = -1.0;
+		nu[2][3] = param[69]; nu[2][6] = -1.0;
+		nu[3][5] = (1.0-param[79])*param[80]; nu[3][7] = -1.0;
+		nu[4][4] = (1.0-param[71])*param[72]; nu[4][5] = (1.0-param[79])*param[82]; nu[4][8] = -1.0;
+		nu[5][4] = (1.0-param[71])*param[74]; nu[5][5] = (1.0-param[79])*param[83]; nu[5][7] = (1.0-param[86])*0.54; nu[5][9] = -1.0;
+		nu[6][4] = (1.0-param[71])*param[76]; nu[6][5] = (1.0-param[79])*param[84]; nu[6][6] = (1.0-param[85])*0.7;
+		nu[6][7] = (1.0-param[86])*0.31; nu[6][8] = (1.0-param[86])*0.8; nu[6][9] = (1.0-param[87])*0.57; nu[6][10] = -1.0;
+		nu[7][4] = (1.0-param[71])*param[91]; nu[7][5] = (1.0-param[79])*param[92]; nu[7][6] = (1.0-param[85])*0.3;
+		nu[7][7] = (1.0-param[86])*0.15; nu[7][8] = (1.0-param[86])*0.2; nu[7][9] = (1.0-param[87])*0.43; nu[7][11] = -1.0; nu[7][19] = -1.0;
+		nu[8][10] = 1.0-param[88]; nu[8][11] = 1.0-param[90]; nu[8][20] = -1.0;
+		nu[9][0] = -stoich1; nu[9][1] = -stoich2; nu[9][2] = -stoich3; nu[9][3] = -stoich4; nu[9][4] = -stoich5; nu[9][5] = -stoich6;
+		nu[9][6] = -stoich7; nu[9][7] = -stoich8; nu[9][8] = -stoich9; nu[9][9] = -stoich10; nu[9][10] = -stoich11; nu[9][11] = -stoich12;
+		nu[9][21] = -1.0;
+		nu[10][0] = -(param[93]-param[65]*param[94]-param[57]*param[94]-param[61]*param[95]);
+		nu[10][4] = -param[71]*param[96]; nu[10][5] = param[95]-param[79]*param[96]; nu[10][6] = -param[85]*param[96];
+		nu[10][7] = -param[86]*param[96]; nu[10][8] = -param[86]*param[96]; nu[10][9] = -param[87]*param[96];
+		nu[10][10] = -param[88]*param[96]; nu[10][11] = -param[90]*param[96];
+		for (int k=12;k<19;k++) {
+			nu[9][k] = -stoich13;
+			nu[10][k] = param[96]-param[93];
+			nu[12][k] = 1.0;
+		}
+		nu[11][0] = param[57];
+		nu[12][0] = -1.0;
+		nu[13][0] = param[59]; nu[13][1] = -1.0;
+		nu[14][0] = param[61]; nu[14][2] = -1.0;
+		nu[15][0] = param[63]; nu[15][3] = -1.0;
+		nu[16][4] = param[71]; nu[16][12] = -1.0;
+		nu[17][5] = param[79]; nu[17][13] = -1.0;
+		nu[18][6] = param[85]; nu[18][14] = -1.0;
+		nu[19][7] = param[86]; nu[19][8] = param[86]; nu[19][15] = -1.0;
+		nu[20][9] = param[87]; nu[20][16] = -1.0;
+		nu[21][10] = param[88]; nu[21][17] = -1.0;
+		nu[22][11] = param[90]; nu[22][18] = -1.0;
+		nu[23][0] = param[65];
+		dProc = new double[22][u.length];
+		dProcSH = new double[22];
+		jac = new double[u.length][u.length];
+		jacSH = new double[u.length];
+		dSH = new double[u.length];
+		dxJac = new double[u.length];
+		K_a = new double[ION.length];
+		
+		// pH Inhibition, natural logarithm of the S_H_ion at 50% inhibition (pHLim = 10^(-(pH_UL+pH_LL)/2))
+		lnpHLim_aa = -Math.log(10)*(param[13] + param[14])/2.0;
+		lnpHLim_ac = -Math.log(10)*(param[15] + param[16])/2.0;
+		lnpHLim_h2 = -Math.log(10)*(param[17] + param[18])/2.0;
 		n_aa = 3.0/(param[13]-param[14]);
 		n_ac = 3.0/(param[15]-param[16]);
 		n_h2 = 3.0/(param[17]-param[18]);
+		constantsT = Double.NaN;
+		evalTime = Double.NaN;
+		histT1 = Double.NaN;
+		histT2 = Double.NaN;
 	}
 	
-	// Function for retrieving the current variables from the model
-	public double[] getDimensions() {		
-		return xtemp;
+	/**
+	 * S_H_ion from the charge balance of a state with the given acid-base states, 
+	 * used as the starting value of the model
+	 * 
+	 * @param x 		Model state
+	 * @param param 	Digester parameters
+	 */
+	public static double initialS_H_ion(double[] x, double[] param) {
+		double factor = (1.0/param[0] - 1.0/param[1])/(100.0*0.083145);
+		double K_w = Math.pow(10,-param[2])*Math.exp(55900.0*factor); // T adjustment for K_w 
+		double phi = x[24]+(x[10]-x[31])-x[30]-(x[29]/64.0)-(x[28]/112.0)-(x[27]/160.0)-(x[26]/208.0)-x[25];
+		return (-phi*0.5)+0.5*Math.sqrt(phi*phi+(4.0*K_w)); // SH+
 	}
 	
-	@Override
-	public void computeDerivatives(double t, double[] x, double[] dx)
-			throws MaxCountExceededException, DimensionMismatchException {	
-		for (int i=0;i<x.length;i++) {
-			if (x[i]<0) {
-				xtemp[i] = 0.0;
-			} else {
-				xtemp[i] = x[i];
-			}
+	/**
+	 * Temperature dependent constants (acid-base, Henry's law and water vapour pressure), 
+	 * only recalculated when the temperature changes
+	 */
+	private void updateConstants(double T) {
+		if (T == constantsT) {
+			return;
 		}
-		
-		// Adjustments for acid-base equations
-		factor = (1.0/(param[0]) - 1.0/(273.15+xtemp[36]))/(100.0*R);
+		double factor = (1.0/(param[0]) - 1.0/(273.15+T))/(100.0*R);
 		K_w = Math.pow(10,-param[2])*Math.exp(55900.0*factor); // T adjustment for K_w 
 		K_a_co2 = Math.pow(10,-param[7])*Math.exp(7646.0*factor); // T adjustment for K_a_co2 
 		K_a_IN = Math.pow(10,-param[8])*Math.exp(51965.0*factor); // T adjustment for K_a_IN 		
 		K_H_h2 = param[9]*Math.exp(-4180.0*factor);     // T adjustment for K_H_h2
 		K_H_ch4 = param[10]*Math.exp(-14240.0*factor);  // T adjustment for K_H_ch4
 		K_H_co2 = param[11]*Math.exp(-19410.0*factor);  // T adjustment for K_H_co2
-		p_gas_h2o = param[12]*Math.exp(5290.0*(1.0/(param[0]) - 1.0/(273.15+xtemp[36])));  // T adjustment for water vapour saturation pressure	
+		p_gas_h2o = param[12]*Math.exp(5290.0*(1.0/(param[0]) - 1.0/(273.15+T)));  // T adjustment for water vapour saturation pressure	
 			
 		K_a_va = Math.pow(10,-param[3]);
 		K_a_bu = Math.pow(10,-param[4]);
 		K_a_pro = Math.pow(10,-param[5]);
 		K_a_ac = Math.pow(10,-param[6]);
+		
+		T_K = 273.15+T;
+		constantsT = T;
+	}
+	
+	/**
+	 * pH inhibition pHLim^n/(S_H_ion^n+pHLim^n), evaluated as 1/(1+(S_H_ion/pHLim)^n) 
+	 * from the logarithms so one Math.log of S_H_ion serves all three inhibition functions
+	 * 
+	 * @param lnS_H_ion		Natural logarithm of S_H_ion
+	 * @param n				Hill coefficient
+	 * @param lnpHLim		Natural logarithm of pHLim
+	 */
+	private static double pHInhibition(double lnS_H_ion, double n, double lnpHLim) {
+		return 1.0/(1.0+Math.exp(n*(lnS_H_ion-lnpHLim)));
+	}
+	
+	/**
+	 * Recalculate the temperature dependent constants on the next evaluation, 
+	 * needed if the parameter array has been changed in place
+	 */
+	public void resetConstants() {
+		constantsT = Double.NaN;
+	}
+	
+	/**
+	 * Take the influent from a time series instead of the constant influent given to the constructor,
+	 * the flow rate state follows the influent flow
+	 * 
+	 * @param series 	Influent series, null to keep the current influent constant
+	 */
+	public void setInfluentSeries(InfluentSeries series) {
+		this.series = series;
+	}
+	
+	// Function for retrieving the current variables from the model
+	public double[] getDimensions() {		
+		return xtemp;
+	}
+	
+	/**
+	 * S_H_ion of the last evaluation, the starting value of the next charge balance
+	 */
+	public double getS_H_ion() {
+		return S_H_ion;
+	}
+	
+	@Override
+	public void computeDerivatives(double t, double[] x, double[] dx)
+			throws MaxCountExceededException, DimensionMismatchException {	
+		evaluate(t, x, dx, xtemp);
+	}
+	
+	/**
+	 * Right-hand side of the model, all intermediate rates are local variables and nothing is allocated.
+	 * Only the last algebraic solutions (starting points for the next charge and S_h2 balances) and the 
+	 * temperature dependent constants (recalculated when the temperature changes) are kept in the model between calls.
+	 * 
+	 * @param t		Time
+	 * @param x		Current state (42 variables), not modified
+	 * @param dx	Derivatives, every entry is written (zero for algebraic states and outputs)
+	 * @param s		Caller supplied output buffer (42 variables), receives the state with negative values set to zero,
+	 * 				the algebraic states (S_h2 and acid-base) and the outputs (methane, gas flow, pH, S_co2, S_nh4)
+	 */
+	public void evaluate(double t, double[] x, double[] dx, double[] s) {
+		evaluate(t, x, dx, s, false);
+	}
+	
+	/**
+	 * Right-hand side of the semi-explicit form of the model, where S_h2 (x[7]) and the pH (x[39]) are 
+	 * algebraic unknowns of the integrator instead of being solved in every evaluation. 
+	 * The acid-base states follow from the given pH, nothing is iterated.
+	 * 
+	 * @param t		Time
+	 * @param x		Current state (42 variables), not modified
+	 * @param dx	Derivatives of the differential states, the residual of the S_h2 balance in dx[7] 
+	 * 				and the residual of the charge balance in dx[39], zero for the other states and outputs
+	 * @param s		Output buffer (42 variables) as {@link #evaluate(double, double[], double[], double[])}
+	 * @throws IllegalStateException If the algebraic equations are switched off or the pH is fixed
+	 */
+	public void evaluateSemiExplicit(double t, double[] x, double[] dx, double[] s) {
+		if (!shDAE || !sh2DAE || fix_pH >= 0) {
+			throw new IllegalStateException("The semi-explicit form needs the algebraic equations and a free pH");
+		}
+		evaluate(t, x, dx, s, true);
+	}
+	
+	/**
+	 * Residuals of the semi-explicit form into the model buffer, see {@link #evaluateSemiExplicit}
+	 */
+	public void computeResiduals(double t, double[] x, double[] dx) {
+		evaluateSemiExplicit(t, x, dx, xtemp);
+	}
+	
+	/**
+	 * @param given 	S_h2 and the pH are taken from the state (semi-explicit form) instead of being solved
+	 */
+	private void evaluate(double t, double[] x, double[] dx, double[] s, boolean given) {
+		for (int i=0;i<x.length;i++) {
+			if (x[i]<0) {
+				s[i] = 0.0;
+			} else {
+				s[i] = x[i];
+			}
+		}
+		if (given) {
+			s[7] = x[7]; // Unknown of the integrator, not clamped so its equation stays regular
+		}
+		
+		if (series != null) {
+			series.getInfluent(t, u);
+			s[35] = u[35]; // Effluent flow rate = Influent flow rate
+		}
+		
+		// Adjustments for acid-base equations and gas transfer
+		updateConstants(s[36]);
+		evalTime = t;
 
 		if (fix_pH >= 0) {
 			// S_H_ion based on set pH
@@ -165,295 +376,896 @@ public class DAEModel implements FirstOrderDifferentialEquations {
 			S_H_ion = Math.pow(10, -fix_pH);
 			
 			// Run the DAE functions
-			runDAE();
+			solveAlgebraic(s);
+		} else if (given) {
+			// S_H_ion from the pH unknown, the balances are returned as residuals
+			S_H_ion = Math.pow(10, -s[39]);
+			ionStates(s);
 		} else {
 			// Run the DAE functions
-			runDAE();
+			solveAlgebraic(s);
 			
 			// SH+ Equation (pH and ion states)
 			if (!shDAE) {
 				// Scat+(S_IN-Snh3)-hco3-(Sac/64)-(Spro/112)-(Sbu/160)-(Sva/208)-San
-				phi = xtemp[24]+(xtemp[10]-xtemp[31])-xtemp[30]-(xtemp[29]/64.0)-(xtemp[28]/112.0)-
-						(xtemp[27]/160.0)-(xtemp[26]/208.0)-xtemp[25];
+				double phi = s[24]+(s[10]-s[31])-s[30]-(s[29]/64.0)-(s[28]/112.0)-
+						(s[27]/160.0)-(s[26]/208.0)-s[25];
 				S_H_ion = (-phi*0.5)+0.5*Math.sqrt(phi*phi+(4.0*K_w)); // SH+
 			} 
 		}
 		
 		// Adjustments for gas pressure
-		p_gas_h2 = xtemp[32]*R*(273.15+xtemp[36])/16.0;
-		p_gas_ch4 = xtemp[33]*R*(273.15+xtemp[36])/64.0;
-		p_gas_co2 = xtemp[34]*R*(273.15+xtemp[36]);
-		P_gas = p_gas_h2 + p_gas_ch4 + p_gas_co2 + p_gas_h2o;
+		double p_gas_h2 = s[32]*R*T_K/16.0;
+		double p_gas_ch4 = s[33]*R*T_K/64.0;
+		double p_gas_co2 = s[34]*R*T_K;
+		double P_gas = p_gas_h2 + p_gas_ch4 + p_gas_co2 + p_gas_h2o;
 				
 		// pH Inhibition
-		I_pH_aa = Math.pow(pHLim_aa,n_aa)/(Math.pow(S_H_ion,n_aa)+Math.pow(pHLim_aa ,n_aa));
-		I_pH_ac = Math.pow(pHLim_ac,n_ac)/(Math.pow(S_H_ion,n_ac)+Math.pow(pHLim_ac ,n_ac));
-		I_pH_h2 = Math.pow(pHLim_h2,n_h2)/(Math.pow(S_H_ion,n_h2)+Math.pow(pHLim_h2 ,n_h2));
+		double lnS_H_ion = Math.log(S_H_ion);
+		double I_pH_aa = pHInhibition(lnS_H_ion, n_aa, lnpHLim_aa);
+		double I_pH_ac = pHInhibition(lnS_H_ion, n_ac, lnpHLim_ac);
+		double I_pH_h2 = pHInhibition(lnS_H_ion, n_h2, lnpHLim_h2);
 		
-		I_IN_lim = 1.0/(1.0+param[19]/xtemp[10]); // 1.0/(1.0+K_S_IN/S_IN)
-		I_h2_fa = 1.0/(1.0+xtemp[7]/param[20]); // 1.0/(1.0+S_h2/K_Ih2_fa)
-		I_h2_c4 = 1.0/(1.0+xtemp[7]/param[21]); // 1.0/(1.0+S_h2/K_Ih2_c4)
-		I_h2_pro = 1.0/(1.0+xtemp[7]/param[22]); // 1.0/(1.0+S_h2/K_Ih2_pro)
-		I_nh3 = 1.0/(1.0+xtemp[31]/param[23]); // 1.0/(1.0+S_nh3/K_I_nh3)
+		double I_IN_lim = 1.0/(1.0+param[19]/s[10]); // 1.0/(1.0+K_S_IN/S_IN)
+		double I_h2_fa = 1.0/(1.0+s[7]/param[20]); // 1.0/(1.0+S_h2/K_Ih2_fa)
+		double I_h2_c4 = 1.0/(1.0+s[7]/param[21]); // 1.0/(1.0+S_h2/K_Ih2_c4)
+		double I_h2_pro = 1.0/(1.0+s[7]/param[22]); // 1.0/(1.0+S_h2/K_Ih2_pro)
+		double I_nh3 = 1.0/(1.0+s[31]/param[23]); // 1.0/(1.0+S_nh3/K_I_nh3)
 		
 		// Inhibitors
-		inhib[0] = I_pH_aa*I_IN_lim; // Inhibition Equation 5 & 6
-		inhib[1] = inhib[0]*I_h2_fa; // Inhibition Equation 7
-		inhib[2] = inhib[0]*I_h2_c4; // Inhibition Equation 8 & 9
-		inhib[3] = inhib[0]*I_h2_pro; // Inhibition Equation 10
-		inhib[4] = I_pH_ac*I_IN_lim*I_nh3; // Inhibition Equation 11
-		inhib[5] = I_pH_h2*I_IN_lim; // Inhibition Equation 12	
+		double inhib0 = I_pH_aa*I_IN_lim; // Inhibition Equation 5 & 6
+		double inhib1 = inhib0*I_h2_fa; // Inhibition Equation 7
+		double inhib2 = inhib0*I_h2_c4; // Inhibition Equation 8 & 9
+		double inhib3 = inhib0*I_h2_pro; // Inhibition Equation 10
+		double inhib4 = I_pH_ac*I_IN_lim*I_nh3; // Inhibition Equation 11
+		double inhib5 = I_pH_h2*I_IN_lim; // Inhibition Equation 12	
 		
 		// Biochemical process rates
-		proc1 = param[24]*xtemp[12]; // k_dis*X_xc, Disintegration
-		proc2 = param[25]*xtemp[13]; // k_hyd_ch*X_ch, Hydrolysis of carbohydrates
-		proc3 = param[26]*xtemp[14]; // k_hyd_pr*X_pr, Hydrolysis of proteins
-		proc4 = param[27]*xtemp[15]; // k_hyd_li*X_li, Hydrolysis of lipids
-		proc5 = param[28]*xtemp[0]/(param[29]+xtemp[0])*xtemp[16]*inhib[0]; // k_m_su*(S_su/(K_S_su+S_su))*X_su*inhib_5, Uptake of sugars
-		proc6 = param[30]*xtemp[1]/(param[31]+xtemp[1])*xtemp[17]*inhib[0]; // k_m_aa*(S_aa/(K_S_aa+S_aa))*X_aa*inhib_6, Uptake of amino acids
-		proc7 = param[32]*xtemp[2]/(param[33]+xtemp[2])*xtemp[18]*inhib[1]; // k_m_fa*(S_fa/(K_S_fa+S_fa))*X_aa*inhib_7, Uptake of LCFA
-		proc8 = param[34]*xtemp[3]/(param[35]+xtemp[3])*xtemp[19]*xtemp[3]/(xtemp[3]+xtemp[4]+eps)*inhib[2]; // k_m_c4*(S_va/(K_S_c4+S_va))*X_c4*(S_va/(S_bu+S_va+eps))*inhib_8, Uptake of valerate
-		proc9 = param[34]*xtemp[4]/(param[35]+xtemp[4])*xtemp[19]*xtemp[4]/(xtemp[3]+xtemp[4]+eps)*inhib[2]; // k_m_c4*(S_bu/(K_S_c4+S_bu))*X_c4*(S_bu/(S_va+S_bu+eps))*inhib_9, Uptake of butyrate
-		proc10 = param[36]*xtemp[5]/(param[37]+xtemp[5])*xtemp[20]*inhib[3]; // k_m_pro*(S_pro/(K_S_pro+S_pro))*X_pro*inhib_10, Uptake of propionate
-		proc11 = param[38]*xtemp[6]/(param[39]+xtemp[6])*xtemp[21]*inhib[4]; // k_m_ac*(S_ac/(K_S_ac+S_ac))*X_ac*inhib_11, Uptake of acetate
-		proc12 = param[40]*xtemp[7]/(param[41]+xtemp[7])*xtemp[22]*inhib[5]; // k_m_h2*(S_h2/(K_S_h2+S_h2))*X_h2*inhib_12, Uptake of hydrogen
-		proc13 = param[42]*xtemp[16]; // k_dec_Xsu*X_su, Decay of X_su
-		proc14 = param[43]*xtemp[17]; // k_dec_Xaa*X_aa, Decay of X_aa
-		proc15 = param[44]*xtemp[18]; // k_dec_Xfa*X_fa, Decay of X_fa
-		proc16 = param[45]*xtemp[19]; // k_dec_Xc4*X_c4, Decay of X_c4
-		proc17 = param[46]*xtemp[20]; // k_dec_Xpro*X_pro, Decay of X_pro
-		proc18 = param[47]*xtemp[21]; // k_dec_Xac*X_ac, Decay of X_ac
-		proc19 = param[48]*xtemp[22]; // k_dec_Xh2*X_h2, Decay of X_h2
+		double proc1 = param[24]*s[12]; // k_dis*X_xc, Disintegration
+		double proc2 = param[25]*s[13]; // k_hyd_ch*X_ch, Hydrolysis of carbohydrates
+		double proc3 = param[26]*s[14]; // k_hyd_pr*X_pr, Hydrolysis of proteins
+		double proc4 = param[27]*s[15]; // k_hyd_li*X_li, Hydrolysis of lipids
+		double proc5 = param[28]*s[0]/(param[29]+s[0])*s[16]*inhib0; // k_m_su*(S_su/(K_S_su+S_su))*X_su*inhib_5, Uptake of sugars
+		double proc6 = param[30]*s[1]/(param[31]+s[1])*s[17]*inhib0; // k_m_aa*(S_aa/(K_S_aa+S_aa))*X_aa*inhib_6, Uptake of amino acids
+		double proc7 = param[32]*s[2]/(param[33]+s[2])*s[18]*inhib1; // k_m_fa*(S_fa/(K_S_fa+S_fa))*X_aa*inhib_7, Uptake of LCFA
+		double proc8 = param[34]*s[3]/(param[35]+s[3])*s[19]*s[3]/(s[3]+s[4]+eps)*inhib2; // k_m_c4*(S_va/(K_S_c4+S_va))*X_c4*(S_va/(S_bu+S_va+eps))*inhib_8, Uptake of valerate
+		double proc9 = param[34]*s[4]/(param[35]+s[4])*s[19]*s[4]/(s[3]+s[4]+eps)*inhib2; // k_m_c4*(S_bu/(K_S_c4+S_bu))*X_c4*(S_bu/(S_va+S_bu+eps))*inhib_9, Uptake of butyrate
+		double proc10 = param[36]*s[5]/(param[37]+s[5])*s[20]*inhib3; // k_m_pro*(S_pro/(K_S_pro+S_pro))*X_pro*inhib_10, Uptake of propionate
+		double proc11 = param[38]*s[6]/(param[39]+s[6])*s[21]*inhib4; // k_m_ac*(S_ac/(K_S_ac+S_ac))*X_ac*inhib_11, Uptake of acetate
+		double proc12 = param[40]*s[7]/(param[41]+s[7])*s[22]*inhib5; // k_m_h2*(S_h2/(K_S_h2+S_h2))*X_h2*inhib_12, Uptake of hydrogen
+		double proc13 = param[42]*s[16]; // k_dec_Xsu*X_su, Decay of X_su
+		double proc14 = param[43]*s[17]; // k_dec_Xaa*X_aa, Decay of X_aa
+		double proc15 = param[44]*s[18]; // k_dec_Xfa*X_fa, Decay of X_fa
+		double proc16 = param[45]*s[19]; // k_dec_Xc4*X_c4, Decay of X_c4
+		double proc17 = param[46]*s[20]; // k_dec_Xpro*X_pro, Decay of X_pro
+		double proc18 = param[47]*s[21]; // k_dec_Xac*X_ac, Decay of X_ac
+		double proc19 = param[48]*s[22]; // k_dec_Xh2*X_h2, Decay of X_h2
 		
 		// Gas transfer rates
-		procT8 = param[55]*(xtemp[7]-16.0*K_H_h2*p_gas_h2); // kLa*(S_h2-16.0*K_H_h2*p_gas_h2)
-		procT9 = param[55]*(xtemp[8]-64.0*K_H_ch4*p_gas_ch4); // kLa*(S_ch4-64.0*K_H_ch4*p_gas_ch4)
-		procT10 = param[55]*((xtemp[9]-xtemp[30])-K_H_co2*p_gas_co2); // kLa*((S_IC-S_hco3)-K_H_co2*p_gas_co2)
+		double procT8 = param[55]*(s[7]-16.0*K_H_h2*p_gas_h2); // kLa*(S_h2-16.0*K_H_h2*p_gas_h2)
+		double procT9 = param[55]*(s[8]-64.0*K_H_ch4*p_gas_ch4); // kLa*(S_ch4-64.0*K_H_ch4*p_gas_ch4)
+		double procT10 = param[55]*((s[9]-s[30])-K_H_co2*p_gas_co2); // kLa*((S_IC-S_hco3)-K_H_co2*p_gas_co2)
 		
 		// Reactions
 		// reac1 = proc2+(1.0-f_fa_li)*proc4-proc5;
-		reac1 = proc2+(1.0-param[69])*proc4-proc5;
-		reac2 = proc3-proc6;
+		double reac1 = proc2+(1.0-param[69])*proc4-proc5;
+		double reac2 = proc3-proc6;
 		// reac3 = f_fa_li*proc4-proc7;
-		reac3 = param[69]*proc4-proc7;
+		double reac3 = param[69]*proc4-proc7;
 		// reac4 = (1.0-Y_aa)*f_va_aa*proc6-proc8;
-		reac4 = (1.0-param[79])*param[80]*proc6-proc8;
+		double reac4 = (1.0-param[79])*param[80]*proc6-proc8;
 		//reac5 = (1.0-Y_su)*f_bu_su*proc5+(1.0-Y_aa)*f_bu_aa*proc6-proc9;
-		reac5 = (1.0-param[71])*param[72]*proc5+(1.0-param[79])*param[82]*proc6-proc9;
+		double reac5 = (1.0-param[71])*param[72]*proc5+(1.0-param[79])*param[82]*proc6-proc9;
 		// reac6 = (1.0-Y_su)*f_pro_su*proc5+(1.0-Y_aa)*f_pro_aa*proc6+(1.0-Y_c4)*0.54*proc8-proc10;
-		reac6 = (1.0-param[71])*param[74]*proc5+(1.0-param[79])*param[83]*proc6+(1.0-param[86])*0.54*proc8-proc10;
+		double reac6 = (1.0-param[71])*param[74]*proc5+(1.0-param[79])*param[83]*proc6+(1.0-param[86])*0.54*proc8-proc10;
 		// reac7 = (1.0-Y_su)*f_ac_su*proc5+(1.0-Y_aa)*f_ac_aa*proc6+(1.0-Y_fa)*0.7*proc7+(1.0-Y_c4)*0.31*proc8+(1.0-Y_c4)*0.8*proc9+(1.0-Y_pro)*0.57*proc10-proc11;
-		reac7 = (1.0-param[71])*param[76]*proc5+(1.0-param[79])*param[84]*proc6+(1.0-param[85])*0.7*proc7+(1.0-param[86])*0.31*proc8+(1.0-param[86])*0.8*proc9+(1.0-param[87])*0.57*proc10-proc11;
+		double reac7 = (1.0-param[71])*param[76]*proc5+(1.0-param[79])*param[84]*proc6+(1.0-param[85])*0.7*proc7+(1.0-param[86])*0.31*proc8+(1.0-param[86])*0.8*proc9+(1.0-param[87])*0.57*proc10-proc11;
 		// reac8 = (1.0-Y_su)*f_h2_su*proc5+(1.0-Y_aa)*f_h2_aa*proc6+(1.0-Y_fa)*0.3*proc7+(1.0-Y_c4)*0.15*proc8+(1.0-Y_c4)*0.2*proc9+(1.0-Y_pro)*0.43*proc10-proc12-procT8;
-		reac8 = (1.0-param[71])*param[91]*proc5+(1.0-param[79])*param[92]*proc6+(1.0-param[85])*0.3*proc7+(1.0-param[86])*0.15*proc8+(1.0-param[86])*0.2*proc9+(1.0-param[87])*0.43*proc10-proc12-procT8;
+		double reac8 = (1.0-param[71])*param[91]*proc5+(1.0-param[79])*param[92]*proc6+(1.0-param[85])*0.3*proc7+(1.0-param[86])*0.15*proc8+(1.0-param[86])*0.2*proc9+(1.0-param[87])*0.43*proc10-proc12-procT8;
 		// reac9 = (1.0-Y_ac)*proc11+(1.0-Y_h2)*proc12-procT9;
-		reac9 = (1.0-param[88])*proc11+(1.0-param[90])*proc12-procT9;		
-		reac10 = -stoich1*proc1-stoich2*proc2-stoich3*proc3-stoich4*proc4-stoich5*proc5-stoich6*proc6-stoich7*proc7-stoich8*proc8-stoich9*proc9-stoich10*proc10-stoich11*proc11-stoich12*proc12-stoich13*proc13-stoich13*proc14-stoich13*proc15-stoich13*proc16-stoich13*proc17-stoich13*proc18-stoich13*proc19-procT10;
+		double reac9 = (1.0-param[88])*proc11+(1.0-param[90])*proc12-procT9;		
+		double reac10 = -stoich1*proc1-stoich2*proc2-stoich3*proc3-stoich4*proc4-stoich5*proc5-stoich6*proc6-stoich7*proc7-stoich8*proc8-stoich9*proc9-stoich10*proc10-stoich11*proc11-stoich12*proc12-stoich13*proc13-stoich13*proc14-stoich13*proc15-stoich13*proc16-stoich13*proc17-stoich13*proc18-stoich13*proc19-procT10;
 		// reac11 = (N_xc-f_xI_xc*N_I-f_sI_xc*N_I-f_pr_xc*N_aa)*proc1-Y_su*N_bac*proc5+(N_aa-Y_aa*N_bac)*proc6-Y_fa*N_bac*proc7-Y_c4*N_bac*proc8-Y_c4*N_bac*proc9-Y_pro*N_bac*proc10-Y_ac*N_bac*proc11-Y_h2*N_bac*proc12+(N_bac-N_xc)*(proc13+proc14+proc15+proc16+proc17+proc18+proc19);
-		reac11 = -(param[93]-param[65]*param[94]-param[57]*param[94]-param[61]*param[95])*proc1-param[71]*param[96]*proc5+(param[95]-param[79]*param[96])*proc6-param[85]*param[96]*proc7-param[86]*param[96]*proc8-param[86]*param[96]*proc9-param[87]*param[96]*proc10-param[88]*param[96]*proc11-param[90]*param[96]*proc12+(param[96]-param[93])*(proc13+proc14+proc15+proc16+proc17+proc18+proc19);
+		double reac11 = -(param[93]-param[65]*param[94]-param[57]*param[94]-param[61]*param[95])*proc1-param[71]*param[96]*proc5+(param[95]-param[79]*param[96])*proc6-param[85]*param[96]*proc7-param[86]*param[96]*proc8-param[86]*param[96]*proc9-param[87]*param[96]*proc10-param[88]*param[96]*proc11-param[90]*param[96]*proc12+(param[96]-param[93])*(proc13+proc14+proc15+proc16+proc17+proc18+proc19);
 		// reac12 = f_sI_xc*proc1;
-		reac12 = param[57]*proc1;
-		reac13 = -proc1+proc13+proc14+proc15+proc16+proc17+proc18+proc19;
+		double reac12 = param[57]*proc1;
+		double reac13 = -proc1+proc13+proc14+proc15+proc16+proc17+proc18+proc19;
 		// reac14 = f_ch_xc*proc1-proc2;
-		reac14 = param[59]*proc1-proc2;
+		double reac14 = param[59]*proc1-proc2;
 		// reac15 = f_pr_xc*proc1-proc3;
-		reac15 = param[61]*proc1-proc3;
+		double reac15 = param[61]*proc1-proc3;
 		// reac16 = f_li_xc*proc1-proc4;
-		reac16 = param[63]*proc1-proc4;
+		double reac16 = param[63]*proc1-proc4;
 		// reac17 = Y_su*proc5-proc13;
-		reac17 = param[71]*proc5-proc13;
+		double reac17 = param[71]*proc5-proc13;
 		// reac18 = Y_aa*proc6-proc14;
-		reac18 = param[79]*proc6-proc14;
+		double reac18 = param[79]*proc6-proc14;
 		// reac19 = Y_fa*proc7-proc15;
-		reac19 = param[85]*proc7-proc15;
+		double reac19 = param[85]*proc7-proc15;
 		// reac20 = Y_c4*proc8+Y_c4*proc9-proc16;
-		reac20 = param[86]*proc8+param[86]*proc9-proc16;
+		double reac20 = param[86]*proc8+param[86]*proc9-proc16;
 		// reac21 = Y_pro*proc10-proc17;
-		reac21 = param[87]*proc10-proc17;
+		double reac21 = param[87]*proc10-proc17;
 		// reac22 = Y_ac*proc11-proc18;
-		reac22 = param[88]*proc11-proc18;
+		double reac22 = param[88]*proc11-proc18;
 		// reac23 = Y_h2*proc12-proc19;
-		reac23 = param[90]*proc12-proc19;
+		double reac23 = param[90]*proc12-proc19;
 		// reac24 = f_xI_xc*proc1;
-		reac24 = param[65]*proc1;
+		double reac24 = param[65]*proc1;
 
-		q_gas = param[97]*(P_gas-P_atm);
+		double q_gas = param[97]*(P_gas-P_atm);
 		if (q_gas < 0)
 		   q_gas = 0.0;
+		
+		double D = s[35]/param[98]; // Dilution rate
 			   
 		// DE's -> Soluble matter
 		// dSsu/dt = Qad/Vad,liq(Ssu,i-Ssu)+reac1
-		dx[0] = (xtemp[35]/param[98])*(u[0]-xtemp[0])+reac1; // Ssu
-		dx[1] = (xtemp[35]/param[98])*(u[1]-xtemp[1])+reac2; // Saa
-		dx[2] = (xtemp[35]/param[98])*(u[2]-xtemp[2])+reac3; // Sfa
-		dx[3] = (xtemp[35]/param[98])*(u[3]-xtemp[3])+reac4; // Sva
-		dx[4] = (xtemp[35]/param[98])*(u[4]-xtemp[4])+reac5; // Sbu
-		dx[5] = (xtemp[35]/param[98])*(u[5]-xtemp[5])+reac6; // Spro
-		dx[6] = (xtemp[35]/param[98])*(u[6]-xtemp[6])+reac7; // Sac
+		dx[0] = D*(u[0]-s[0])+reac1; // Ssu
+		dx[1] = D*(u[1]-s[1])+reac2; // Saa
+		dx[2] = D*(u[2]-s[2])+reac3; // Sfa
+		dx[3] = D*(u[3]-s[3])+reac4; // Sva
+		dx[4] = D*(u[4]-s[4])+reac5; // Sbu
+		dx[5] = D*(u[5]-s[5])+reac6; // Spro
+		dx[6] = D*(u[6]-s[6])+reac7; // Sac
 
-		if (!sh2DAE) {	
-			dx[7] = (xtemp[35]/param[98])*(u[7]-xtemp[7])+reac8; // Sh2
-		} 
+		if (!sh2DAE || given) {	
+			dx[7] = D*(u[7]-s[7])+reac8; // Sh2, residual of the balance in the semi-explicit form
+		} else {
+			dx[7] = 0.0; // Solved algebraically
+		}
 				
-		dx[8] = (xtemp[35]/param[98])*(u[8]-xtemp[8])+reac9; // Sch4
-		dx[9] = (xtemp[35]/param[98])*(u[9]-xtemp[9])+reac10;    // SIC
-		dx[10] = (xtemp[35]/param[98])*(u[10]-xtemp[10])+reac11; // SIN
-		dx[11] = (xtemp[35]/param[98])*(u[11]-xtemp[11])+reac12; // SI
+		dx[8] = D*(u[8]-s[8])+reac9; // Sch4
+		dx[9] = D*(u[9]-s[9])+reac10;    // SIC
+		dx[10] = D*(u[10]-s[10])+reac11; // SIN
+		dx[11] = D*(u[11]-s[11])+reac12; // SI
 		
 		// DE's -> Particulate matter
-		dx[12] = (xtemp[35]/param[98])*(u[12]-xtemp[12])+reac13; // Xc
-		dx[13] = (xtemp[35]/param[98])*(u[13]-xtemp[13])+reac14; // Xch
-		dx[14] = (xtemp[35]/param[98])*(u[14]-xtemp[14])+reac15; // Xpr
-		dx[15] = (xtemp[35]/param[98])*(u[15]-xtemp[15])+reac16; // Xli
-		dx[16] = (xtemp[35]/param[98])*(u[16]-xtemp[16])+reac17; // Xsu
-		dx[17] = (xtemp[35]/param[98])*(u[17]-xtemp[17])+reac18; // Xaa
-		dx[18] = (xtemp[35]/param[98])*(u[18]-xtemp[18])+reac19; // Xfa
-		dx[19] = (xtemp[35]/param[98])*(u[19]-xtemp[19])+reac20; // Xc4
-		dx[20] = (xtemp[35]/param[98])*(u[20]-xtemp[20])+reac21; // Xpro
-		dx[21] = (xtemp[35]/param[98])*(u[21]-xtemp[21])+reac22; // Xac
-		dx[22] = (xtemp[35]/param[98])*(u[22]-xtemp[22])+reac23; // Xh2
-		dx[23] = (xtemp[35]/param[98])*(u[23]-xtemp[23])+reac24; // XI
+		dx[12] = D*(u[12]-s[12])+reac13; // Xc
+		dx[13] = D*(u[13]-s[13])+reac14; // Xch
+		dx[14] = D*(u[14]-s[14])+reac15; // Xpr
+		dx[15] = D*(u[15]-s[15])+reac16; // Xli
+		dx[16] = D*(u[16]-s[16])+reac17; // Xsu
+		dx[17] = D*(u[17]-s[17])+reac18; // Xaa
+		dx[18] = D*(u[18]-s[18])+reac19; // Xfa
+		dx[19] = D*(u[19]-s[19])+reac20; // Xc4
+		dx[20] = D*(u[20]-s[20])+reac21; // Xpro
+		dx[21] = D*(u[21]-s[21])+reac22; // Xac
+		dx[22] = D*(u[22]-s[22])+reac23; // Xh2
+		dx[23] = D*(u[23]-s[23])+reac24; // XI
 
-		dx[24] = (xtemp[35]/param[98])*(u[24]-xtemp[24]); // Scat+
-		dx[25] = (xtemp[35]/param[98])*(u[25]-xtemp[25]); // San-
+		dx[24] = D*(u[24]-s[24]); // Scat+
+		dx[25] = D*(u[25]-s[25]); // San-
 		
 		// Acid-base process rates for ODE
 		//k_A_Bva*(S_hva*(K_A_va+S_H_ion)-K_a_va*S_va)
 		if (!shDAE && fix_pH < 0) {
-			dx[26] = -(param[49]*(xtemp[26]*(K_a_va+S_H_ion)-K_a_va*xtemp[3]));  // Sva-
-			dx[27] = -(param[50]*(xtemp[27]*(K_a_bu+S_H_ion)-K_a_bu*xtemp[4]));  // Sbu-
-			dx[28] = -(param[51]*(xtemp[28]*(K_a_pro+S_H_ion)-K_a_pro*xtemp[5]));  // Spro-
-			dx[29] = -(param[52]*(xtemp[29]*(K_a_ac+S_H_ion)-K_a_ac*xtemp[6]));  // Sac-
-			dx[30] = -(param[53]*(xtemp[30]*(K_a_co2+S_H_ion)-K_a_co2*xtemp[9])); // SHCO3-
-			dx[31] = -(param[54]*(xtemp[31]*(K_a_IN+S_H_ion)-K_a_IN*xtemp[10])); // SNH3	
+			dx[26] = -(param[49]*(s[26]*(K_a_va+S_H_ion)-K_a_va*s[3]));  // Sva-
+			dx[27] = -(param[50]*(s[27]*(K_a_bu+S_H_ion)-K_a_bu*s[4]));  // Sbu-
+			dx[28] = -(param[51]*(s[28]*(K_a_pro+S_H_ion)-K_a_pro*s[5]));  // Spro-
+			dx[29] = -(param[52]*(s[29]*(K_a_ac+S_H_ion)-K_a_ac*s[6]));  // Sac-
+			dx[30] = -(param[53]*(s[30]*(K_a_co2+S_H_ion)-K_a_co2*s[9])); // SHCO3-
+			dx[31] = -(param[54]*(s[31]*(K_a_IN+S_H_ion)-K_a_IN*s[10])); // SNH3	
+		} else {
+			for (int i=26;i<32;i++) {
+				dx[i] = 0.0; // Solved algebraically
+			}
 		}
 
-		dx[32] = -xtemp[32]*q_gas/param[99]+procT8*param[98]/param[99]; // Sgas,h2
-		dx[33] = -xtemp[33]*q_gas/param[99]+procT9*param[98]/param[99]; // Sgas,ch4
-		dx[34] = -xtemp[34]*q_gas/param[99]+procT10*param[98]/param[99]; // Sgas,co2
+		dx[32] = -s[32]*q_gas/param[99]+procT8*param[98]/param[99]; // Sgas,h2
+		dx[33] = -s[33]*q_gas/param[99]+procT9*param[98]/param[99]; // Sgas,ch4
+		dx[34] = -s[34]*q_gas/param[99]+procT10*param[98]/param[99]; // Sgas,co2
 
 		dx[35] = 0; // Flow
 		dx[36] = 0; // Temp
+		for (int i=37;i<dx.length;i++) {
+			dx[i] = 0.0; // Outputs
+		}
 		
 		// Correction by factor of 64.0 due to COD basis of Sgas,ch4  // Methane gas (m3/d)
-		//xtemp[37] = (q_gas*xtemp[33])*R*(273.15+xtemp[36])/64.0; // Calculate methane production from concentration in gas phase
-		xtemp[37] = q_gas*(p_gas_ch4/P_gas); // Calculate methane production from partial pressures
+		//s[37] = (q_gas*s[33])*R*(273.15+s[36])/64.0; // Calculate methane production from concentration in gas phase
+		s[37] = q_gas*(p_gas_ch4/P_gas); // Calculate methane production from partial pressures
 			
-		xtemp[38] = q_gas;// Gas production (m3/d)
-		
+		s[38] = q_gas;// Gas production (m3/d)
 		
-		xtemp[39] = -Math.log10(S_H_ion); // pH
+		s[39] = -Math.log10(S_H_ion); // pH
 		
 		// SCO2 = SIC - SHCO3
-		xtemp[40] = xtemp[9]-xtemp[30]; // SCO2
+		s[40] = s[9]-s[30]; // SCO2
 		// SNH4+ = SIN - SNH3
-		xtemp[41] = xtemp[10]-xtemp[31]; // SNH4+
+		s[41] = s[10]-s[31]; // SNH4+
+		
+		if (given) {
+			dx[39] = residual(CHARGE_BALANCE, S_H_ion, s);
+		}
 	}
 	
-	public void runDAE() {			
+	/**
+	 * Solve the algebraic equations on the model buffer
+	 */
+	public void runDAE() {
+		updateConstants(xtemp[36]);
+		evalTime = Double.NaN;
+		solveAlgebraic(xtemp);
+	}
+	
+	/**
+	 * Solution of the charge balance (S_H_ion and acid-base states) and the S_h2 balance, 
+	 * written into the given state buffer. 
+	 * 
+	 * Both equations are monotonic in their unknown, so each is solved by a safeguarded Newton 
+	 * iteration inside a bracket (see {@link #solveBracketed}), started from the last solutions 
+	 * extrapolated in time.
+	 * 
+	 * @param s		State buffer with negative values already set to zero
+	 */
+	private void solveAlgebraic(double[] s) {			
 		double prevS_H_ion = S_H_ion;
+		int iterations = 0;
 		
-		// Stiffness below
-		double shDelta = 1.0;
-		double shGradEqu = 1.0;
-		double sh2Delta = 1.0;
-		double sh2GradEqu = 1.0;
-
-		// Newton-Raphson Variables
-		double TOL = 1e-12;
-		double maxSteps = 1000;
-		int i = 1;
-		int j = 1;
+		// Warm start, extrapolate ln(S_H_ion) and ln(S_h2) linearly from the last two solutions 
+		double w = 0.0;
+		if (histT1 < histT2 && evalTime > histT2 && evalTime-histT2 <= 2.0*(histT2-histT1)) {
+			w = (evalTime-histT2)/(histT2-histT1);
+		}
 		
 		// SH+ Equation (pH and ion states)
 		if (shDAE) {
-			while ( (shDelta > TOL || shDelta < -TOL) && (i <= maxSteps) ) {
-				xtemp[26] = K_a_va*xtemp[3]/(K_a_va+S_H_ion); 	// Sva-
-				xtemp[27] = K_a_bu*xtemp[4]/(K_a_bu+S_H_ion);  	// Sbu-
-				xtemp[28] = K_a_pro*xtemp[5]/(K_a_pro+S_H_ion); // Spro-
-				xtemp[29] = K_a_ac*xtemp[6]/(K_a_ac+S_H_ion); 	// Sac-
-				xtemp[30] = K_a_co2*xtemp[9]/(K_a_co2+S_H_ion); // SHCO3-
-				xtemp[31] = K_a_IN*xtemp[10]/(K_a_IN+S_H_ion); 	// SNH3
-				
-				shDelta = xtemp[24]+(xtemp[10]-xtemp[31])+S_H_ion-xtemp[30]
-						-xtemp[29]/64.0-xtemp[28]/112.0-xtemp[27]/160.0
-						-xtemp[26]/208.0-K_w/S_H_ion-xtemp[25];
-				
-				shGradEqu = 1+K_a_IN*xtemp[10]/((K_a_IN+S_H_ion)*(K_a_IN+S_H_ion))
-			            +K_a_co2*xtemp[9]/((K_a_co2+S_H_ion)*(K_a_co2+S_H_ion))          
-			            +1/64.0*K_a_ac*xtemp[6]/((K_a_ac+S_H_ion)*(K_a_ac+S_H_ion))
-			            +1/112.0*K_a_pro*xtemp[5]/((K_a_pro+S_H_ion)*(K_a_pro+S_H_ion))
-			            +1/160.0*K_a_bu*xtemp[4]/((K_a_bu+S_H_ion)*(K_a_bu+S_H_ion))
-			            +1/208.0*K_a_va*xtemp[3]/((K_a_va+S_H_ion)*(K_a_va+S_H_ion))
-			            +K_w/(S_H_ion*S_H_ion);
-				
-				S_H_ion = S_H_ion - shDelta/shGradEqu;
-				
-				if (S_H_ion <= 0) {
-		            S_H_ion = TOL;
-		        }
-				i++;
-			}			
+			double guess = S_H_ion;
+			if (w > 0) {
+				guess = Math.exp(histSH2+w*(histSH2-histSH1));
+			}
+			S_H_ion = solveBracketed(CHARGE_BALANCE, guess, s);
+			iterations += lastIterations;
+			ionStates(s);
 		}
 
 		// SH2 Equation
 		if (sh2DAE) {
-			while ( (sh2Delta > TOL || sh2Delta < -TOL) && (j <= maxSteps) ) {
-				// Calculate ahead within loop	
-				I_pH_aa = Math.pow(pHLim_aa,n_aa)/(Math.pow(prevS_H_ion,n_aa)+Math.pow(pHLim_aa ,n_aa));
-				I_pH_h2 = Math.pow(pHLim_h2,n_h2)/(Math.pow(prevS_H_ion,n_h2)+Math.pow(pHLim_h2 ,n_h2));
-				
-				I_IN_lim = 1.0/(1.0+param[19]/xtemp[10]); // 1.0/(1.0+K_S_IN/S_IN)
-				I_h2_fa = 1.0/(1.0+xtemp[7]/param[20]); // 1.0/(1.0+S_h2/K_Ih2_fa)
-				I_h2_c4 = 1.0/(1.0+xtemp[7]/param[21]); // 1.0/(1.0+S_h2/K_Ih2_c4)
-				I_h2_pro = 1.0/(1.0+xtemp[7]/param[22]); // 1.0/(1.0+S_h2/K_Ih2_pro)
-				
-				// Inhibitors
-				inhib[0] = I_pH_aa*I_IN_lim; // Inhibition Equation 5 & 6
-				inhib[1] = inhib[0]*I_h2_fa; // Inhibition Equation 7
-				inhib[2] = inhib[0]*I_h2_c4; // Inhibition Equation 8 & 9
-				inhib[3] = inhib[0]*I_h2_pro; // Inhibition Equation 10
-				inhib[5] = I_pH_h2*I_IN_lim; // Inhibition Equation 12	
-				
-				proc5 = param[28]*xtemp[0]/(param[29]+xtemp[0])*xtemp[16]*inhib[0]; // k_m_su*(S_su/(K_S_su+S_su))*X_su*inhib_5, Uptake of sugars
-				proc6 = param[30]*xtemp[1]/(param[31]+xtemp[1])*xtemp[17]*inhib[0]; // k_m_aa*(S_aa/(K_S_aa+S_aa))*X_aa*inhib_6, Uptake of amino acids
-				proc7 = param[32]*xtemp[2]/(param[33]+xtemp[2])*xtemp[18]*inhib[1]; // k_m_fa*(S_fa/(K_S_fa+S_fa))*X_aa*inhib_7, Uptake of LCFA
-				proc8 = param[34]*xtemp[3]/(param[35]+xtemp[3])*xtemp[19]*xtemp[3]/(xtemp[3]+xtemp[4]+eps)*inhib[2]; // k_m_c4*(S_va/(K_S_c4+S_va))*X_c4*(S_va/(S_bu+S_va+eps))*inhib_8, Uptake of valerate
-				proc9 = param[34]*xtemp[4]/(param[35]+xtemp[4])*xtemp[19]*xtemp[4]/(xtemp[3]+xtemp[4]+eps)*inhib[2]; // k_m_c4*(S_bu/(K_S_c4+S_bu))*X_c4*(S_bu/(S_va+S_bu+eps))*inhib_9, Uptake of butyrate
-				proc10 = param[36]*xtemp[5]/(param[37]+xtemp[5])*xtemp[20]*inhib[3]; // k_m_pro*(S_pro/(K_S_pro+S_pro))*X_pro*inhib_10, Uptake of propionate
-				
-				proc12 = param[40]*xtemp[7]/(param[41]+xtemp[7])*xtemp[22]*inhib[5]; // k_m_h2*(S_h2/(K_S_h2+S_h2))*X_h2*inhib_12, Uptake of hydrogen
-					
-				p_gas_h2 = xtemp[32]*R*(273.15+xtemp[36])/16.0;
-				procT8 = param[55]*(xtemp[7]-16.0*K_H_h2*p_gas_h2); // kLa*(S_h2-16.0*K_H_h2*p_gas_h2)
-				
-				reac8 = (1.0-param[71])*param[91]*proc5+(1.0-param[79])*param[92]*proc6+(1.0-param[85])*0.3*proc7+(1.0-param[86])*0.15*proc8+(1.0-param[86])*0.2*proc9+(1.0-param[87])*0.43*proc10-proc12-procT8;
+			// Everything independent of S_h2 is calculated once before solving, 
+			// the inhibition uses the S_H_ion from the start of the step
+			double lnS_H_ion = Math.log(prevS_H_ion);
+			double I_pH_aa = pHInhibition(lnS_H_ion, n_aa, lnpHLim_aa);
+			double I_pH_h2 = pHInhibition(lnS_H_ion, n_h2, lnpHLim_h2);
+			double I_IN_lim = 1.0/(1.0+param[19]/s[10]); // 1.0/(1.0+K_S_IN/S_IN)
+			double inhib0 = I_pH_aa*I_IN_lim; // Inhibition Equation 5 & 6
+			double inhib5 = I_pH_h2*I_IN_lim; // Inhibition Equation 12
+			
+			double proc5 = param[28]*s[0]/(param[29]+s[0])*s[16]*inhib0; // k_m_su*(S_su/(K_S_su+S_su))*X_su*inhib_5, Uptake of sugars
+			double proc6 = param[30]*s[1]/(param[31]+s[1])*s[17]*inhib0; // k_m_aa*(S_aa/(K_S_aa+S_aa))*X_aa*inhib_6, Uptake of amino acids
+			// Uptake rates without the S_h2 inhibition
+			double rate7 = param[32]*s[2]/(param[33]+s[2])*s[18]*inhib0; // k_m_fa*(S_fa/(K_S_fa+S_fa))*X_aa*inhib_5, Uptake of LCFA
+			double rate8 = param[34]*s[3]/(param[35]+s[3])*s[19]*s[3]/(s[3]+s[4]+eps)*inhib0; // k_m_c4*(S_va/(K_S_c4+S_va))*X_c4*(S_va/(S_bu+S_va+eps))*inhib_5, Uptake of valerate
+			double rate9 = param[34]*s[4]/(param[35]+s[4])*s[19]*s[4]/(s[3]+s[4]+eps)*inhib0; // k_m_c4*(S_bu/(K_S_c4+S_bu))*X_c4*(S_bu/(S_va+S_bu+eps))*inhib_5, Uptake of butyrate
+			double rate10 = param[36]*s[5]/(param[37]+s[5])*s[20]*inhib0; // k_m_pro*(S_pro/(K_S_pro+S_pro))*X_pro*inhib_5, Uptake of propionate
+			
+			h2_c7 = (1.0-param[85])*0.3*rate7;
+			h2_c4 = (1.0-param[86])*(0.15*rate8+0.2*rate9);
+			h2_c10 = (1.0-param[87])*0.43*rate10;
+			h2_rate12 = param[40]*s[22]*inhib5; // k_m_h2*X_h2*inhib_12, Uptake of hydrogen
+			h2_D = s[35]/param[98];
+			double p_gas_h2 = s[32]*R*T_K/16.0;
+			h2_eq = 16.0*K_H_h2*p_gas_h2; // S_h2 in equilibrium with the gas phase
+			h2_const = h2_D*u[7]+(1.0-param[71])*param[91]*proc5+(1.0-param[79])*param[92]*proc6;
+			
+			double guess = s[7];
+			if (w > 0) {
+				guess = Math.exp(histH2_2+w*(histH2_2-histH2_1));
+			} else if (!Double.isNaN(histT2)) {
+				guess = Math.exp(histH2_2);
+			}
+			s[7] = solveBracketed(H2_BALANCE, guess, s);
+			iterations += lastIterations;
+		}
+		
+		// Remember the solution for the next warm start, the history restarts if the integrator goes back in time
+		if (!Double.isNaN(evalTime) && (shDAE || sh2DAE)) {
+			if (evalTime != histT2) {
+				if (evalTime > histT2) {
+					histT1 = histT2;
+					histSH1 = histSH2;
+					histH2_1 = histH2_2;
+				} else {
+					histT1 = Double.NaN;
+				}
+				histT2 = evalTime;
+			}
+			histSH2 = Math.log(S_H_ion);
+			histH2_2 = Math.log(s[7]);
+		}
+		
+		if (shDAE || sh2DAE) {
+			algebraicSolves++;
+			algebraicIterations += iterations;
+			algebraicMaxIterations = Math.max(algebraicMaxIterations, iterations);
+		}
+	}
+	
+	/**
+	 * Acid-base states in equilibrium with the current S_H_ion
+	 */
+	private void ionStates(double[] s) {
+		s[26] = K_a_va*s[3]/(K_a_va+S_H_ion); 	// Sva-
+		s[27] = K_a_bu*s[4]/(K_a_bu+S_H_ion);  	// Sbu-
+		s[28] = K_a_pro*s[5]/(K_a_pro+S_H_ion); // Spro-
+		s[29] = K_a_ac*s[6]/(K_a_ac+S_H_ion); 	// Sac-
+		s[30] = K_a_co2*s[9]/(K_a_co2+S_H_ion); // SHCO3-
+		s[31] = K_a_IN*s[10]/(K_a_IN+S_H_ion); 	// SNH3
+	}
+	
+	/**
+	 * Residual of an algebraic equation, written as a function increasing in its unknown, 
+	 * the derivative is left in dResidual
+	 * 
+	 * @param equation 	CHARGE_BALANCE (unknown S_H_ion) or H2_BALANCE (unknown S_h2)
+	 * @param x 		Value of the unknown
+	 * @param s 		State buffer
+	 */
+	private double residual(int equation, double x, double[] s) {
+		if (equation == CHARGE_BALANCE) {
+			double va = K_a_va+x, bu = K_a_bu+x, pro = K_a_pro+x, ac = K_a_ac+x, co2 = K_a_co2+x, IN = K_a_IN+x;
+			// Scat+(S_IN-Snh3)+SH+-hco3-(Sac/64)-(Spro/112)-(Sbu/160)-(Sva/208)-Kw/SH+-San
+			double delta = s[24]+(s[10]-K_a_IN*s[10]/IN)+x-K_a_co2*s[9]/co2
+					-K_a_ac*s[6]/ac/64.0-K_a_pro*s[5]/pro/112.0-K_a_bu*s[4]/bu/160.0
+					-K_a_va*s[3]/va/208.0-K_w/x-s[25];
+			dResidual = 1+K_a_IN*s[10]/(IN*IN)
+		            +K_a_co2*s[9]/(co2*co2)          
+		            +1/64.0*K_a_ac*s[6]/(ac*ac)
+		            +1/112.0*K_a_pro*s[5]/(pro*pro)
+		            +1/160.0*K_a_bu*s[4]/(bu*bu)
+		            +1/208.0*K_a_va*s[3]/(va*va)
+		            +K_w/(x*x);
+			return delta;
+		}
+		double I_h2_fa = 1.0/(1.0+x/param[20]); // 1.0/(1.0+S_h2/K_Ih2_fa)
+		double I_h2_c4 = 1.0/(1.0+x/param[21]); // 1.0/(1.0+S_h2/K_Ih2_c4)
+		double I_h2_pro = 1.0/(1.0+x/param[22]); // 1.0/(1.0+S_h2/K_Ih2_pro)
+		double monod_h2 = 1.0/(param[41]+x); // 1.0/(K_S_h2+S_h2)
+		// -(D*(S_h2_in-S_h2)+reac8), with reac8 including procT8 = kLa*(S_h2-16.0*K_H_h2*p_gas_h2)
+		double delta = -h2_const+h2_D*x-h2_c7*I_h2_fa-h2_c4*I_h2_c4-h2_c10*I_h2_pro
+				+h2_rate12*x*monod_h2+param[55]*(x-h2_eq);
+		// d/dS_h2 of 1/(1+S_h2/K_I) is -(1/(1+S_h2/K_I))^2/K_I
+		dResidual = h2_D
+				+h2_c7*I_h2_fa*I_h2_fa/param[20]
+				+h2_c4*I_h2_c4*I_h2_c4/param[21]
+				+h2_c10*I_h2_pro*I_h2_pro/param[22]
+				+h2_rate12*param[41]*monod_h2*monod_h2
+				+param[55];
+		return delta;
+	}
+	
+	/**
+	 * Safeguarded Newton iteration for a positive root of an increasing residual. 
+	 * 
+	 * Both residuals are negative towards zero and positive for large values, so every iterate 
+	 * narrows a bracket [lo, hi] around the root. A Newton step leaving the bracket is replaced 
+	 * by a bisection in log scale (or a factor of 10 while one side is still open), which keeps 
+	 * the iteration from stalling at the lower limit after sharp changes in the influent. 
+	 * The iteration ends when the residual is below TOL (after one more Newton step) or the 
+	 * Newton step is below the double precision of the unknown.
+	 * 
+	 * @param equation 	CHARGE_BALANCE or H2_BALANCE
+	 * @param x 		Starting value
+	 * @param s 		State buffer
+	 * @return 			The root, the number of residual evaluations is left in lastIterations
+	 */
+	private double solveBracketed(int equation, double x, double[] s) {
+		double lo = 0.0;
+		double hi = Double.POSITIVE_INFINITY;
+		if (!(x > 0.0 && x < hi)) {
+			x = TOL;
+		}
+		for (int k=1;k<=MAX_ITERATIONS;k++) {
+			double delta = residual(equation, x, s);
+			if (delta < 0.0) {
+				lo = x;
+			} else {
+				hi = x;
+			}
+			double next = x-delta/dResidual;
+			if (Math.abs(delta) <= TOL || Math.abs(next-x) <= 4.0*Math.ulp(x)) {
+				lastIterations = k;
+				return next > 0.0 ? next : x;
+			}
+			if (!(next > lo && next < hi)) {
+				// Newton step outside of the bracket (or not a number)
+				algebraicBisections++;
+				if (lo == 0.0) {
+					next = 0.1*hi;
+				} else if (hi == Double.POSITIVE_INFINITY) {
+					next = 10.0*lo;
+				} else {
+					next = Math.sqrt(lo*hi);
+				}
+			}
+			x = next;
+		}
+		lastIterations = MAX_ITERATIONS;
+		algebraicFailures++;
+		LOGGER.fine("Algebraic equation "+equation+" not converged after "+MAX_ITERATIONS+" iterations");
+		return x;
+	}
+	
+	/**
+	 * @return Number of algebraic solves (one per evaluation of the DAE model)
+	 */
+	public long getAlgebraicSolves() {
+		return algebraicSolves;
+	}
+	
+	/**
+	 * @return Newton iterations of the charge and S_h2 balances summed over all solves
+	 */
+	public long getAlgebraicIterations() {
+		return algebraicIterations;
+	}
+	
+	/**
+	 * @return Largest number of Newton iterations (both balances) of a single solve
+	 */
+	public int getAlgebraicMaxIterations() {
+		return algebraicMaxIterations;
+	}
+	
+	/**
+	 * @return Newton steps replaced by a bisection
+	 */
+	public long getAlgebraicBisections() {
+		return algebraicBisections;
+	}
+	
+	/**
+	 * @return Solves stopped at the iteration limit
+	 */
+	public long getAlgebraicFailures() {
+		return algebraicFailures;
+	}
 
-				sh2Delta = (xtemp[35]/param[98])*(u[7]-xtemp[7])+reac8;
-			               //-1/V_liq**u[26]
-				sh2GradEqu = -1/param[98]*xtemp[35]
-					  //-3.0/10.0*(1-Y_fa)*k_m_fa**u[2]/(K_S_fa+*u[2])**u[18]*I_pH_aa/(1+K_S_IN/(*u[10]))/((1+x[0]/K_Ih2_fa)*(1+x[0]/K_Ih2_fa))/K_Ih2_fa
-						-3.0/10.0*(1-param[85])*param[32]*xtemp[2]/(param[33]+xtemp[2])*xtemp[18]*I_pH_aa/(1+param[19]/(xtemp[10]))/((1+xtemp[7]/param[20])*(1+xtemp[7]/param[20]))/param[20]
-					  //-3.0/20.0*(1-Y_c4)*k_m_c4**u[3]**u[3]/(K_S_c4+*u[3])**u[19]/(*u[4]+*u[3]+eps)*I_pH_aa/(1+K_S_IN/(*u[10]))/((1+x[0]/K_Ih2_c4)*(1+x[0]/K_Ih2_c4))/K_Ih2_c4    
-						-3.0/20.0*(1-param[86])*param[34]*xtemp[3]*xtemp[3]/(param[35]+xtemp[3])*xtemp[19]/(xtemp[4]+xtemp[3]+eps)*I_pH_aa/(1+param[19]/(xtemp[10]))/((1+xtemp[7]/param[21])*(1+xtemp[7]/param[21]))/param[21]
-			          //-1.0/5.0*(1-Y_c4)*k_m_c4**u[4]**u[4]/(K_S_c4+*u[4])**u[19]/(*u[4]+*u[3]+eps)*I_pH_aa/(1+K_S_IN/(*u[10]))/((1+x[0]/K_Ih2_c4)*(1+x[0]/K_Ih2_c4))/K_Ih2_c4  
-						-1.0/5.0*(1-param[86])*param[34]*xtemp[4]*xtemp[4]/(param[35]+xtemp[4])*xtemp[19]/(xtemp[4]+xtemp[3]+eps)*I_pH_aa/(1+param[19]/(xtemp[10]))/((1+xtemp[7]/param[21])*(1+xtemp[7]/param[21]))/param[21]
-			          //-43.0/100.0*(1-Y_pro)*k_m_pro**u[5]/(K_S_pro+*u[5])**u[20]*I_pH_aa/(1+K_S_IN/(*u[10]))/((1+x[0]/K_Ih2_pro)*(1+x[0]/K_Ih2_pro))/K_Ih2_pro
-						-43.0/100.0*(1-param[87])*param[36]*xtemp[5]/(param[37]+xtemp[5])*xtemp[20]*I_pH_aa/(1+param[19]/(xtemp[10]))/((1+xtemp[7]/param[22])*(1+xtemp[7]/param[22]))/param[22]
-			          //-k_m_h2/(K_S_h2+x[0])**u[22]*I_pH_h2/(1+K_S_IN/(*u[10]))+k_m_h2*x[0]/((K_S_h2+x[0])*(K_S_h2+x[0]))**u[22]*I_pH_h2/(1+K_S_IN/(*u[10]))
-						-param[40]/(param[41]+xtemp[7])*xtemp[22]*I_pH_h2/(1+param[19]/(xtemp[10]))+param[40]*xtemp[7]/((param[41]+xtemp[7])*(param[41]+xtemp[7]))*xtemp[22]*I_pH_h2/(1+param[19]/(xtemp[10]))
-			          //-kLa;
-						-param[55];
-				
-				xtemp[7] = xtemp[7]-sh2Delta/sh2GradEqu;
-				
-				if (xtemp[7] <= 0) {
-		            xtemp[7] = TOL;
-		        }
-				
-				j++;
+	@Override
+	public void computeMainStateJacobian(double t, double[] y, double[] yDot, double[][] dFdY)
+			throws MaxCountExceededException, DimensionMismatchException {
+		computeJacobian(t, y, dFdY);
+	}
+	
+	/**
+	 * Analytic Jacobian df/dx of the right-hand side at the given point, written into a
+	 * preallocated dense buffer.
+	 * 
+	 * The process rates are differentiated directly and combined through the stoichiometric matrix.
+	 * With the algebraic equations switched on, S_H_ion, the acid-base states and S_h2 are functions
+	 * of the differential states, their dependency is added through the implicit function theorem.
+	 * Rows and columns of algebraic states, flow, temperature and derived outputs are zero.
+	 * 
+	 * @param t		Time
+	 * @param x		Current state
+	 * @param J		Jacobian buffer, at least 42 x 42, fully overwritten
+	 */
+	public void computeJacobian(double t, double[] x, double[][] J) {
+		jacobian(t, x, J, false);
+	}
+	
+	/**
+	 * Jacobian of the semi-explicit form ({@link #evaluateSemiExplicit}), the derivatives with respect to 
+	 * S_h2 and the pH are in columns 7 and 39, those of the S_h2 and charge balance residuals in rows 7 and 39.
+	 * 
+	 * @param t		Time
+	 * @param x		Current state
+	 * @param J		Jacobian buffer, at least 42 x 42, fully overwritten
+	 */
+	public void computeSemiExplicitJacobian(double t, double[] x, double[][] J) {
+		if (!shDAE || !sh2DAE || fix_pH >= 0) {
+			throw new IllegalStateException("The semi-explicit form needs the algebraic equations and a free pH");
+		}
+		jacobian(t, x, J, true);
+	}
+	
+	/**
+	 * @param given 	Semi-explicit form, S_h2 and the pH are unknowns instead of functions of the state
+	 */
+	private void jacobian(double t, double[] x, double[][] J, boolean given) {
+		int n = getDimension();
+		
+		// Bring algebraic states, rates and inhibition terms up to date for this point
+		evaluate(t, x, dxJac, xtemp, given);
+		boolean ionsODE = !shDAE && fix_pH < 0;
+		
+		for (int i=0;i<n;i++) {
+			Arrays.fill(jac[i], 0.0);
+		}
+		Arrays.fill(jacSH, 0.0);
+		Arrays.fill(dSH, 0.0);
+		for (int k=0;k<22;k++) {
+			Arrays.fill(dProc[k], 0.0);
+		}
+		Arrays.fill(dProcSH, 0.0);
+		
+		double RT = R*(273.15+xtemp[36]);
+		double D = xtemp[35]/param[98];
+		K_a[0] = K_a_va;
+		K_a[1] = K_a_bu;
+		K_a[2] = K_a_pro;
+		K_a[3] = K_a_ac;
+		K_a[4] = K_a_co2;
+		K_a[5] = K_a_IN;
+		
+		// Inhibition functions and gas flow at this point
+		double lnS_H_ion = Math.log(S_H_ion);
+		double I_pH_aa = pHInhibition(lnS_H_ion, n_aa, lnpHLim_aa);
+		double I_pH_ac = pHInhibition(lnS_H_ion, n_ac, lnpHLim_ac);
+		double I_pH_h2 = pHInhibition(lnS_H_ion, n_h2, lnpHLim_h2);
+		double I_IN_lim = 1.0/(1.0+param[19]/xtemp[10]);
+		double I_h2_fa = 1.0/(1.0+xtemp[7]/param[20]);
+		double I_h2_c4 = 1.0/(1.0+xtemp[7]/param[21]);
+		double I_h2_pro = 1.0/(1.0+xtemp[7]/param[22]);
+		double I_nh3 = 1.0/(1.0+xtemp[31]/param[23]);
+		double inhib0 = I_pH_aa*I_IN_lim;
+		double inhib1 = inhib0*I_h2_fa;
+		double inhib2 = inhib0*I_h2_c4;
+		double inhib3 = inhib0*I_h2_pro;
+		double inhib4 = I_pH_ac*I_IN_lim*I_nh3;
+		double inhib5 = I_pH_h2*I_IN_lim;
+		double q_gas = xtemp[38];
+		
+		// Derivatives of the inhibition functions
+		double dIpH_aa = -n_aa/S_H_ion*I_pH_aa*(1.0-I_pH_aa);
+		double dIpH_ac = -n_ac/S_H_ion*I_pH_ac*(1.0-I_pH_ac);
+		double dIpH_h2 = -n_h2/S_H_ion*I_pH_h2*(1.0-I_pH_h2);
+		double dIIN = param[19]/((xtemp[10]+param[19])*(xtemp[10]+param[19])); // dI_IN_lim/dS_IN
+		double dIh2_fa = -I_h2_fa*I_h2_fa/param[20]; // dI_h2_fa/dS_h2
+		double dIh2_c4 = -I_h2_c4*I_h2_c4/param[21]; // dI_h2_c4/dS_h2
+		double dIh2_pro = -I_h2_pro*I_h2_pro/param[22]; // dI_h2_pro/dS_h2
+		double dInh3 = -I_nh3*I_nh3/param[23]; // dI_nh3/dS_nh3
+		double dInhib0_IN = I_pH_aa*dIIN;
+		double dInhib0_SH = dIpH_aa*I_IN_lim;
+		
+		// Disintegration and hydrolysis
+		dProc[0][12] = param[24];
+		dProc[1][13] = param[25];
+		dProc[2][14] = param[26];
+		dProc[3][15] = param[27];
+		
+		// Uptake of sugars and amino acids
+		double m, dm;
+		m = xtemp[0]/(param[29]+xtemp[0]);
+		dm = param[29]/((param[29]+xtemp[0])*(param[29]+xtemp[0]));
+		dProc[4][0] = param[28]*dm*xtemp[16]*inhib0;
+		dProc[4][16] = param[28]*m*inhib0;
+		dProc[4][10] = param[28]*m*xtemp[16]*dInhib0_IN;
+		dProcSH[4] = param[28]*m*xtemp[16]*dInhib0_SH;
+		m = xtemp[1]/(param[31]+xtemp[1]);
+		dm = param[31]/((param[31]+xtemp[1])*(param[31]+xtemp[1]));
+		dProc[5][1] = param[30]*dm*xtemp[17]*inhib0;
+		dProc[5][17] = param[30]*m*inhib0;
+		dProc[5][10] = param[30]*m*xtemp[17]*dInhib0_IN;
+		dProcSH[5] = param[30]*m*xtemp[17]*dInhib0_SH;
+		
+		// Uptake of LCFA
+		m = xtemp[2]/(param[33]+xtemp[2]);
+		dm = param[33]/((param[33]+xtemp[2])*(param[33]+xtemp[2]));
+		dProc[6][2] = param[32]*dm*xtemp[18]*inhib1;
+		dProc[6][18] = param[32]*m*inhib1;
+		dProc[6][10] = param[32]*m*xtemp[18]*dInhib0_IN*I_h2_fa;
+		dProc[6][7] = param[32]*m*xtemp[18]*inhib0*dIh2_fa;
+		dProcSH[6] = param[32]*m*xtemp[18]*dInhib0_SH*I_h2_fa;
+		
+		// Uptake of valerate and butyrate, competing for the same biomass
+		double sum = xtemp[3]+xtemp[4]+eps;
+		double r8 = xtemp[3]/sum;
+		double r9 = xtemp[4]/sum;
+		m = xtemp[3]/(param[35]+xtemp[3]);
+		dm = param[35]/((param[35]+xtemp[3])*(param[35]+xtemp[3]));
+		dProc[7][3] = param[34]*xtemp[19]*inhib2*(dm*r8+m*(xtemp[4]+eps)/(sum*sum));
+		dProc[7][4] = -param[34]*xtemp[19]*inhib2*m*xtemp[3]/(sum*sum);
+		dProc[7][19] = param[34]*m*r8*inhib2;
+		dProc[7][10] = param[34]*m*xtemp[19]*r8*dInhib0_IN*I_h2_c4;
+		dProc[7][7] = param[34]*m*xtemp[19]*r8*inhib0*dIh2_c4;
+		dProcSH[7] = param[34]*m*xtemp[19]*r8*dInhib0_SH*I_h2_c4;
+		m = xtemp[4]/(param[35]+xtemp[4]);
+		dm = param[35]/((param[35]+xtemp[4])*(param[35]+xtemp[4]));
+		dProc[8][4] = param[34]*xtemp[19]*inhib2*(dm*r9+m*(xtemp[3]+eps)/(sum*sum));
+		dProc[8][3] = -param[34]*xtemp[19]*inhib2*m*xtemp[4]/(sum*sum);
+		dProc[8][19] = param[34]*m*r9*inhib2;
+		dProc[8][10] = param[34]*m*xtemp[19]*r9*dInhib0_IN*I_h2_c4;
+		dProc[8][7] = param[34]*m*xtemp[19]*r9*inhib0*dIh2_c4;
+		dProcSH[8] = param[34]*m*xtemp[19]*r9*dInhib0_SH*I_h2_c4;
+		
+		// Uptake of propionate
+		m = xtemp[5]/(param[37]+xtemp[5]);
+		dm = param[37]/((param[37]+xtemp[5])*(param[37]+xtemp[5]));
+		dProc[9][5] = param[36]*dm*xtemp[20]*inhib3;
+		dProc[9][20] = param[36]*m*inhib3;
+		dProc[9][10] = param[36]*m*xtemp[20]*dInhib0_IN*I_h2_pro;
+		dProc[9][7] = param[36]*m*xtemp[20]*inhib0*dIh2_pro;
+		dProcSH[9] = param[36]*m*xtemp[20]*dInhib0_SH*I_h2_pro;
+		
+		// Uptake of acetate
+		m = xtemp[6]/(param[39]+xtemp[6]);
+		dm = param[39]/((param[39]+xtemp[6])*(param[39]+xtemp[6]));
+		dProc[10][6] = param[38]*dm*xtemp[21]*inhib4;
+		dProc[10][21] = param[38]*m*inhib4;
+		dProc[10][10] = param[38]*m*xtemp[21]*I_pH_ac*dIIN*I_nh3;
+		dProc[10][31] = param[38]*m*xtemp[21]*I_pH_ac*I_IN_lim*dInh3;
+		dProcSH[10] = param[38]*m*xtemp[21]*dIpH_ac*I_IN_lim*I_nh3;
+		
+		// Uptake of hydrogen
+		m = xtemp[7]/(param[41]+xtemp[7]);
+		dm = param[41]/((param[41]+xtemp[7])*(param[41]+xtemp[7]));
+		dProc[11][7] = param[40]*dm*xtemp[22]*inhib5;
+		dProc[11][22] = param[40]*m*inhib5;
+		dProc[11][10] = param[40]*m*xtemp[22]*I_pH_h2*dIIN;
+		dProcSH[11] = param[40]*m*xtemp[22]*dIpH_h2*I_IN_lim;
+		
+		// Decay
+		for (int k=0;k<7;k++) {
+			dProc[12+k][16+k] = param[42+k];
+		}
+		
+		// Gas transfer
+		dProc[19][7] = param[55];
+		dProc[19][32] = -param[55]*K_H_h2*RT;
+		dProc[20][8] = param[55];
+		dProc[20][33] = -param[55]*K_H_ch4*RT;
+		dProc[21][9] = param[55];
+		dProc[21][30] = -param[55];
+		dProc[21][34] = -param[55]*K_H_co2*RT;
+		
+		// Water phase: dilution plus stoichiometry times process rate derivatives
+		for (int i=0;i<24;i++) {
+			double[] row = jac[i];
+			double[] nuRow = nu[i];
+			for (int k=0;k<22;k++) {
+				double c = nuRow[k];
+				if (c != 0.0) {
+					for (int j : PROC_DEPS[k]) {
+						row[j] += c*dProc[k][j];
+					}
+					jacSH[i] += c*dProcSH[k];
+				}
 			}
 		}
+		for (int i=0;i<26;i++) {
+			jac[i][i] -= D;
+		}
+		// Columns 35 and 36 stay zero although D and the constants depend on the flow and temperature:
+		// dx[35] = dx[36] = 0, so the Newton corrections of Q and T are always zero and these columns
+		// never enter a step. They have to be filled if flow or temperature ever get a derivative.
+		
+		// Acid-base rates as ODEs
+		if (ionsODE) {
+			for (int m2=0;m2<6;m2++) {
+				int ion = ION[m2];
+				double k_AB = param[49+m2];
+				jac[ion][ion] = -k_AB*(K_a[m2]+S_H_ion);
+				jac[ion][ION_TOTAL[m2]] = k_AB*K_a[m2];
+				jacSH[ion] = -k_AB*xtemp[ion];
+			}
+		}
+		
+		// Gas phase
+		double dq32 = 0.0, dq33 = 0.0, dq34 = 0.0;
+		if (q_gas > 0) {
+			dq32 = param[97]*RT/16.0;
+			dq33 = param[97]*RT/64.0;
+			dq34 = param[97]*RT;
+		}
+		for (int g=0;g<3;g++) {
+			int i = 32+g;
+			double[] row = jac[i];
+			row[32] -= xtemp[i]*dq32/param[99];
+			row[33] -= xtemp[i]*dq33/param[99];
+			row[34] -= xtemp[i]*dq34/param[99];
+			row[i] -= q_gas/param[99];
+			for (int j : PROC_DEPS[19+g]) {
+				row[j] += dProc[19+g][j]*param[98]/param[99];
+			}
+		}
+		
+		// States below zero are clamped by the model and have no influence
+		for (int j=0;j<n;j++) {
+			if (x[j] < 0 && !isAlgebraic(j)) {
+				for (int i=0;i<n;i++) {
+					jac[i][j] = 0.0;
+				}
+			}
+		}
+		
+		// Dependency of S_H_ion on the states
+		if (ionsODE) {
+			// Explicit charge balance: S_H_ion = -phi/2+sqrt(phi^2+4*K_w)/2
+			double phiNow = xtemp[24]+(xtemp[10]-xtemp[31])-xtemp[30]-(xtemp[29]/64.0)-(xtemp[28]/112.0)-
+					(xtemp[27]/160.0)-(xtemp[26]/208.0)-xtemp[25];
+			double dSHdphi = 0.5*(phiNow/Math.sqrt(phiNow*phiNow+4.0*K_w)-1.0);
+			dSH[24] = dSHdphi;
+			dSH[10] = dSHdphi;
+			dSH[31] = -dSHdphi;
+			dSH[30] = -dSHdphi;
+			dSH[29] = -dSHdphi/64.0;
+			dSH[28] = -dSHdphi/112.0;
+			dSH[27] = -dSHdphi/160.0;
+			dSH[26] = -dSHdphi/208.0;
+			dSH[25] = -dSHdphi;
+			for (int j=0;j<n;j++) {
+				if (x[j] < 0) {
+					dSH[j] = 0.0;
+				}
+			}
+		} else if (shDAE) {
+			// Implicit charge balance, dS_H_ion/dx = -(dg/dx)/(dg/dS_H_ion)
+			double dgdSH = 1.0+K_w/(S_H_ion*S_H_ion);
+			for (int m2=0;m2<6;m2++) {
+				double den = K_a[m2]+S_H_ion;
+				dgdSH += ION_CHARGE[m2]*K_a[m2]*xtemp[ION_TOTAL[m2]]/(den*den);
+				// Ions enter the balance negatively except ammonia, which is subtracted from S_IN
+				dSH[ION_TOTAL[m2]] = ION_CHARGE[m2]*K_a[m2]/den;
+			}
+			dSH[10] = -S_H_ion/(K_a_IN+S_H_ion);
+			dSH[24] = -1.0;
+			dSH[25] = 1.0;
+			for (int j=0;j<n;j++) {
+				dSH[j] = (x[j] < 0) ? 0.0 : dSH[j]/(given ? -1.0 : dgdSH);
+			}
+			if (given) {
+				// Charge balance residual, dSH holds dg/dx, and dS_H_ion/dpH = -ln(10)*S_H_ion
+				dSH[39] = -dgdSH*Math.log(10)*S_H_ion;
+			}
+			
+			// Acid-base states follow S_H_ion and their totals
+			for (int m2=0;m2<6;m2++) {
+				int ion = ION[m2];
+				int tot = ION_TOTAL[m2];
+				double den = K_a[m2]+S_H_ion;
+				double a = (x[tot] < 0) ? 0.0 : K_a[m2]/den;
+				double b = K_a[m2]*xtemp[tot]/(den*den);
+				for (int i=0;i<n;i++) {
+					double c = jac[i][ion];
+					if (c != 0.0) {
+						jac[i][tot] += c*a;
+						jacSH[i] -= c*b;
+						jac[i][ion] = 0.0;
+					}
+				}
+			}
+		}
+		if (given) {
+			// S_h2 and the pH stay unknowns, the charge balance becomes row 39
+			double dSHdpH = -Math.log(10)*S_H_ion;
+			for (int i=0;i<n;i++) {
+				jac[i][39] = jacSH[i]*dSHdpH;
+			}
+			System.arraycopy(dSH, 0, jac[39], 0, n);
+		} else {
+			for (int i=0;i<n;i++) {
+				double c = jacSH[i];
+				if (c != 0.0) {
+					for (int j=0;j<n;j++) {
+						jac[i][j] += c*dSH[j];
+					}
+				}
+			}
+		}
+		
+		// S_h2 from its own balance, dS_h2/dx = -(df7/dx)/(df7/dS_h2)
+		if (sh2DAE && !given) {
+			double[] row7 = jac[7];
+			double d77 = row7[7];
+			for (int i=0;i<n;i++) {
+				double c = jac[i][7];
+				if (i != 7 && c != 0.0) {
+					for (int j=0;j<n;j++) {
+						if (j != 7) {
+							jac[i][j] -= c*row7[j]/d77;
+						}
+					}
+				}
+			}
+			for (int i=0;i<n;i++) {
+				jac[i][7] = 0.0;
+			}
+			Arrays.fill(row7, 0.0);
+		}
+		if (!ionsODE) {
+			for (int ion : ION) {
+				Arrays.fill(jac[ion], 0.0);
+			}
+		}
+		
+		for (int i=0;i<n;i++) {
+			System.arraycopy(jac[i], 0, J[i], 0, n);
+		}
+	}
+	
+	/**
+	 * Structural non-zeros of the Jacobian for the current algebraic settings
+	 * 
+	 * @return	Pattern with true for every entry computeJacobian can fill
+	 */
+	public boolean[][] getJacobianPattern() {
+		int n = getDimension();
+		boolean ionsODE = !shDAE && fix_pH < 0;
+		boolean[][] pat = new boolean[n][n];
+		boolean[] shDep = new boolean[n];
+		
+		for (int i=0;i<24;i++) {
+			for (int k=0;k<22;k++) {
+				if (nu[i][k] != 0.0) {
+					for (int j : PROC_DEPS[k]) {
+						pat[i][j] = true;
+					}
+					shDep[i] |= PROC_PH[k];
+				}
+			}
+		}
+		for (int i=0;i<26;i++) {
+			pat[i][i] = true;
+		}
+		for (int g=0;g<3;g++) {
+			int i = 32+g;
+			pat[i][32] = pat[i][33] = pat[i][34] = true;
+			for (int j : PROC_DEPS[19+g]) {
+				pat[i][j] = true;
+			}
+		}
+		
+		int[] shCols = new int[0];
+		if (ionsODE) {
+			for (int m2=0;m2<6;m2++) {
+				pat[ION[m2]][ION[m2]] = true;
+				pat[ION[m2]][ION_TOTAL[m2]] = true;
+				shDep[ION[m2]] = true;
+			}
+			shCols = new int[] {24, 10, 31, 30, 29, 28, 27, 26, 25};
+		} else if (shDAE) {
+			for (int m2=0;m2<6;m2++) {
+				for (int i=0;i<n;i++) {
+					if (pat[i][ION[m2]]) {
+						pat[i][ION_TOTAL[m2]] = true;
+						shDep[i] = true;
+						pat[i][ION[m2]] = false;
+					}
+				}
+			}
+			shCols = new int[] {24, 25, 10, 9, 6, 5, 4, 3};
+		}
+		for (int i=0;i<n;i++) {
+			if (shDep[i]) {
+				for (int j : shCols) {
+					pat[i][j] = true;
+				}
+			}
+		}
+		
+		if (sh2DAE) {
+			for (int i=0;i<n;i++) {
+				if (i != 7 && pat[i][7]) {
+					for (int j=0;j<n;j++) {
+						pat[i][j] |= (j != 7 && pat[7][j]);
+					}
+				}
+			}
+			for (int i=0;i<n;i++) {
+				pat[i][7] = false;
+				pat[7][i] = false;
+			}
+		}
+		if (!ionsODE) {
+			for (int ion : ION) {
+				Arrays.fill(pat[ion], false);
+			}
+		}
+		return pat;
+	}
+	
+	/**
+	 * States that are solved algebraically rather than integrated with the current settings
+	 */
+	public boolean isAlgebraic(int i) {
+		if (i == 7) {
+			return sh2DAE;
+		}
+		if (i >= 26 && i <= 31) {
+			return shDAE;
+		}
+		return false;
 	}
 
 	@Override
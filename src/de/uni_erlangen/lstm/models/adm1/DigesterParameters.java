@@ -41,6 +41,22 @@ import de.uni_erlangen.lstm.file.CSVWriter;
 public class DigesterParameters {
 	public final static Logger LOGGER = Logger.getLogger(DigesterParameters.class.getName());
 	
+	/**
+	 * Parameter names in the order of {@link #getParameters()}
+	 */
+	public static final String[] NAMES = { 
+			"T_base", "T_op", "pK_w_base", "pK_a_va_base", "pK_a_bu_base", "pK_a_pro_base", "pK_a_ac_base",
+			"pK_a_co2_base", "pK_a_IN_base", "K_H_h2_base", "K_H_ch4_base", "K_H_co2_base", "K_H_h2o_base",
+			"pH_UL_aa", "pH_LL_aa", "pH_UL_ac", "pH_LL_ac", "pH_UL_h2", "pH_LL_h2", "K_S_IN", "K_Ih2_fa", "K_Ih2_c4",
+			"K_Ih2_pro", "K_I_nh3", "k_dis", "k_hyd_ch", "k_hyd_pr", "k_hyd_li", "k_m_su", "K_S_su", "k_m_aa",
+			"K_S_aa", "k_m_fa", "K_S_fa", "k_m_c4", "K_S_c4", "k_m_pro", "K_S_pro", "k_m_ac", "K_S_ac", "k_m_h2",
+			"K_S_h2", "k_dec_Xsu", "k_dec_Xaa", "k_dec_Xfa", "k_dec_Xc4", "k_dec_Xpro", "k_dec_Xac", "k_dec_Xh2",
+			"k_A_Bva", "k_A_Bbu", "k_A_Bpro", "k_A_Bac", "k_A_Bco2", "k_A_BIN", "kLa", "C_xc", "f_sI_xc", "C_sI",
+			"f_ch_xc", "C_ch", "f_pr_xc", "C_pr", "f_li_xc", "C_li", "f_xI_xc", "C_xI", "C_su", "C_aa", "f_fa_li",
+			"C_fa", "Y_su", "f_bu_su", "C_bu", "f_pro_su", "C_pro", "f_ac_su", "C_ac", "C_bac", "Y_aa", "f_va_aa",
+			"C_va", "f_bu_aa", "f_pro_aa", "f_ac_aa", "Y_fa", "Y_c4", "Y_pro", "Y_ac", "C_ch4", "Y_h2", "f_h2_su",
+			"f_h2_aa", "N_xc", "N_I", "N_aa", "N_bac", "k_P", "V_liq", "V_gas" };
+	
 	/*
 	 * Digestor Parameters
 	 */
@@ -0,0 +1,681 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.models.adm1;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import de.uni_erlangen.lstm.solvers.EnsembleEquations;
+
+/**
+ * Right-hand side of the DAE model (see {@link DAEModel}) for a batch of independent reactors
+ *
+ * The batch is stored as structure of arrays: every state, parameter, intermediate rate and
+ * derivative is one double[members] array. The model is split into many short loops over the
+ * members, each with a few operations on a few arrays and no branches, since HotSpot only
+ * unrolls and vectorises loops with small bodies. The mass balances of the liquid phase are
+ * the non-zero entries of the Petersen matrix of the members, each added as one
+ * dx[state] += coefficient*rate loop. The charge balance and the S_h2 balance are solved for
+ * all members in lock step with the same safeguarded Newton iteration as DAEModel, started from
+ * each member's last solution, until every member has converged (a member with non-finite
+ * values counts as converged, so it cannot hold up the batch).
+ *
+ * The algebraic equations are always solved (DAE mode) and the influent is held constant
+ * between calls to {@link #setInfluent}.
+ *
+ * @author liampetti
+ *
+ */
+public class EnsembleModel implements EnsembleEquations {
+	public final static Logger LOGGER = Logger.getLogger(EnsembleModel.class.getName());
+
+	private static final int DIMENSION = 42;
+	private static final int PARAMETERS = 100;
+	private static final int LIQUID = 24; // Liquid phase states with a mass balance (S_su to X_I)
+	private static final int PROCESSES = 22; // proc1-19 and procT8-10
+	private static final double TOL = 1e-12; // Residual tolerance of the algebraic equations
+	private static final int MAX_ITERATIONS = 100;
+	private static final double ULPS = 4.0*Math.ulp(1.0); // Newton step that counts as no change, relative to the unknown
+	private static final double EPS = 0.000001; // Small constant in case of poor choice of initial conditions for proc8,9
+	private static final double P_ATM = 1.013; // bar
+	private static final double R = 0.083145; // universal gas constant dm3*bar/(mol*K)
+	// Disintegration, hydrolysis and decay (proc1-4, proc13-19), first order in one state
+	private static final int[] FIRST_ORDER_PROC = {0, 1, 2, 3, 12, 13, 14, 15, 16, 17, 18};
+	private static final int[] FIRST_ORDER_STATE = {12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22};
+	private static final int[] FIRST_ORDER_RATE = {24, 25, 26, 27, 42, 43, 44, 45, 46, 47, 48};
+
+	private final int n; // Members
+	private final double[][] p; // [parameter][member]
+	private final double[][] u; // Influent [variable][member]
+
+	// Constant per member
+	private final int[] balanceState, balanceProc; // Non-zero entries of the Petersen matrices
+	private final double[][] balance; // Their coefficients [entry][member]
+	private final double[] lnpHLim_aa, lnpHLim_ac, lnpHLim_h2, n_aa, n_ac, n_h2;
+	private final double[] K_a_va, K_a_bu, K_a_pro, K_a_ac;
+	// Temperature dependent, recalculated when the temperature of a member changes
+	private final double[] K_w, K_a_co2, K_a_IN, K_H_h2, K_H_ch4, K_H_co2, p_gas_h2o, T_K, constantsT;
+
+	// Algebraic solutions, kept as starting points for the next evaluation
+	private final double[] S_H_ion, prevS_H_ion, lastS_h2;
+	private final double[] delta, dResidual, lo, hi;
+	private final boolean[] converged;
+	private final double[] h2_D, h2_const, h2_c7, h2_c4, h2_c10, h2_rate12, h2_eq;
+	private long algebraicIterations;
+
+	// Intermediate rates
+	private final double[] lnS_H_ion, I_pH_aa, I_pH_ac, I_pH_h2, I_IN_lim;
+	private final double[] inhib0, inhib1, inhib2, inhib3, inhib4, inhib5;
+	private final double[][] proc; // proc1-19 and procT8-10 in 0-21
+	private final double[] q_gas, P_gas, p_gas_h2, p_gas_ch4, p_gas_co2;
+	private final double[][] work; // Clamped states for the integrator calls
+
+	/**
+	 * @param influent 		Influent of each member [member][variable] (42 variables)
+	 * @param parameters 	Digester parameters of each member [member][parameter]
+	 * @param initial 		Initial state of each member [member][variable], for the starting S_H_ion
+	 */
+	public EnsembleModel(double[][] influent, double[][] parameters, double[][] initial) {
+		n = parameters.length;
+		p = new double[PARAMETERS][n];
+		u = new double[DIMENSION][n];
+		S_H_ion = new double[n];
+		for (int m=0;m<n;m++) {
+			for (int k=0;k<PARAMETERS;k++) {
+				p[k][m] = parameters[m][k];
+			}
+			S_H_ion[m] = DAEModel.initialS_H_ion(initial[m], parameters[m]);
+		}
+		for (int m=0;m<n;m++) {
+			setInfluent(m, influent[m]);
+		}
+
+		// Entries of the Petersen matrix that are not zero for all members
+		double[][][] petersen = new double[n][][];
+		boolean[][] used = new boolean[LIQUID][PROCESSES];
+		int entries = 0;
+		for (int m=0;m<n;m++) {
+			petersen[m] = petersen(parameters[m]);
+			for (int i=0;i<LIQUID;i++) {
+				for (int j=0;j<PROCESSES;j++) {
+					if (petersen[m][i][j] != 0.0 && !used[i][j]) {
+						used[i][j] = true;
+						entries++;
+					}
+				}
+			}
+		}
+		balanceState = new int[entries];
+		balanceProc = new int[entries];
+		balance = new double[entries][n];
+		int k = 0;
+		for (int i=0;i<LIQUID;i++) {
+			for (int j=0;j<PROCESSES;j++) {
+				if (used[i][j]) {
+					balanceState[k] = i;
+					balanceProc[k] = j;
+					for (int m=0;m<n;m++) {
+						balance[k][m] = petersen[m][i][j];
+					}
+					k++;
+				}
+			}
+		}
+
+		lnpHLim_aa = new double[n]; lnpHLim_ac = new double[n]; lnpHLim_h2 = new double[n];
+		n_aa = new double[n]; n_ac = new double[n]; n_h2 = new double[n];
+		K_a_va = new double[n]; K_a_bu = new double[n]; K_a_pro = new double[n]; K_a_ac = new double[n];
+		K_w = new double[n]; K_a_co2 = new double[n]; K_a_IN = new double[n];
+		K_H_h2 = new double[n]; K_H_ch4 = new double[n]; K_H_co2 = new double[n];
+		p_gas_h2o = new double[n]; T_K = new double[n]; constantsT = new double[n];
+		prevS_H_ion = new double[n];
+		lastS_h2 = new double[n];
+		Arrays.fill(lastS_h2, Double.NaN);
+		delta = new double[n];
+		dResidual = new double[n];
+		lo = new double[n];
+		hi = new double[n];
+		converged = new boolean[n];
+		h2_D = new double[n]; h2_const = new double[n]; h2_c7 = new double[n]; h2_c4 = new double[n];
+		h2_c10 = new double[n]; h2_rate12 = new double[n]; h2_eq = new double[n];
+		lnS_H_ion = new double[n]; I_pH_aa = new double[n]; I_pH_ac = new double[n]; I_pH_h2 = new double[n];
+		I_IN_lim = new double[n];
+		inhib0 = new double[n]; inhib1 = new double[n]; inhib2 = new double[n];
+		inhib3 = new double[n]; inhib4 = new double[n]; inhib5 = new double[n];
+		proc = new double[PROCESSES][n];
+		q_gas = new double[n];
+		P_gas = new double[n];
+		p_gas_h2 = new double[n];
+		p_gas_ch4 = new double[n];
+		p_gas_co2 = new double[n];
+		work = new double[DIMENSION][n];
+
+		for (int m=0;m<n;m++) {
+			double[] q = parameters[m];
+			lnpHLim_aa[m] = -Math.log(10)*(q[13] + q[14])/2.0;
+			lnpHLim_ac[m] = -Math.log(10)*(q[15] + q[16])/2.0;
+			lnpHLim_h2[m] = -Math.log(10)*(q[17] + q[18])/2.0;
+			n_aa[m] = 3.0/(q[13]-q[14]);
+			n_ac[m] = 3.0/(q[15]-q[16]);
+			n_h2[m] = 3.0/(q[17]-q[18]);
+			K_a_va[m] = Math.pow(10,-q[3]);
+			K_a_bu[m] = Math.pow(10,-q[4]);
+			K_a_pro[m] = Math.pow(10,-q[5]);
+			K_a_ac[m] = Math.pow(10,-q[6]);
+			constantsT[m] = Double.NaN;
+		}
+	}
+
+	/**
+	 * Petersen matrix of the liquid phase of one member (the S_h2 row is left out, it is solved algebraically)
+	 *
+	 * @param q 	Digester parameters of the member
+	 * @return Coefficients [state][process] of the first 24 states and proc1-19, procT8-10
+	 */
+	private static double[][] petersen(double[] q) {
+		double[][] a = new double[LIQUID][PROCESSES];
+		// Stoichiometry of the inorganic carbon, as in DAEModel
+		double[] stoich = {
+			-q[56]+q[57]*q[58]+q[59]*q[60]+q[61]*q[62]+q[63]*q[64]+q[65]*q[66],
+			-q[60]+q[67],
+			-q[62]+q[68],
+			-q[64]+(1.0-q[69])*q[67]+q[69]*q[70],
+			-q[67]+(1.0-q[71])*(q[72]*q[73]+q[74]*q[75]+q[76]*q[77])+q[71]*q[78],
+			-q[68]+(1.0-q[79])*(q[80]*q[81]+q[82]*q[73]+q[83]*q[75]+q[84]*q[77])+q[79]*q[78],
+			-q[70]+(1.0-q[85])*0.7*q[77]+q[85]*q[78],
+			-q[81]+(1.0-q[86])*0.54*q[75]+(1.0-q[86])*0.31*q[77]+q[86]*q[78],
+			-q[73]+(1.0-q[86])*0.8*q[77]+q[86]*q[78],
+			-q[75]+(1.0-q[87])*0.57*q[77]+q[87]*q[78],
+			-q[77]+(1.0-q[88])*q[89]+q[88]*q[78],
+			(1.0-q[90])*q[89]+q[90]*q[78],
+			-q[78]+q[56]
+		};
+		double f_fa_li = q[69], Y_su = q[71], Y_aa = q[79], Y_fa = q[85], Y_c4 = q[86], Y_pro = q[87],
+				Y_ac = q[88], Y_h2 = q[90], N_xc = q[93], N_I = q[94], N_aa = q[95], N_bac = q[96];
+
+		a[0][1] = 1.0; a[0][3] = 1.0-f_fa_li; a[0][4] = -1.0;
+		a[1][2] = 1.0; a[1][5] = -1.0;
+		a[2][3] = f_fa_li; a[2][6] = -1.0;
+		a[3][5] = (1.0-Y_aa)*q[80]; a[3][7] = -1.0;
+		a[4][4] = (1.0-Y_su)*q[72]; a[4][5] = (1.0-Y_aa)*q[82]; a[4][8] = -1.0;
+		a[5][4] = (1.0-Y_su)*q[74]; a[5][5] = (1.0-Y_aa)*q[83]; a[5][7] = (1.0-Y_c4)*0.54; a[5][9] = -1.0;
+		a[6][4] = (1.0-Y_su)*q[76]; a[6][5] = (1.0-Y_aa)*q[84]; a[6][6] = (1.0-Y_fa)*0.7;
+		a[6][7] = (1.0-Y_c4)*0.31; a[6][8] = (1.0-Y_c4)*0.8; a[6][9] = (1.0-Y_pro)*0.57; a[6][10] = -1.0;
+		a[8][10] = 1.0-Y_ac; a[8][11] = 1.0-Y_h2; a[8][20] = -1.0;
+		for (int j=0;j<12;j++) {
+			a[9][j] = -stoich[j];
+		}
+		a[9][21] = -1.0;
+		a[10][0] = -(N_xc-q[65]*N_I-q[57]*N_I-q[61]*N_aa);
+		a[10][4] = -Y_su*N_bac; a[10][5] = N_aa-Y_aa*N_bac; a[10][6] = -Y_fa*N_bac; a[10][7] = -Y_c4*N_bac;
+		a[10][8] = -Y_c4*N_bac; a[10][9] = -Y_pro*N_bac; a[10][10] = -Y_ac*N_bac; a[10][11] = -Y_h2*N_bac;
+		a[11][0] = q[57];
+		a[12][0] = -1.0;
+		for (int j=12;j<19;j++) {
+			// Decay of the biomass to composites
+			a[9][j] = -stoich[12];
+			a[10][j] = N_bac-N_xc;
+			a[12][j] = 1.0;
+		}
+		a[13][0] = q[59]; a[13][1] = -1.0;
+		a[14][0] = q[61]; a[14][2] = -1.0;
+		a[15][0] = q[63]; a[15][3] = -1.0;
+		a[16][4] = Y_su; a[16][12] = -1.0;
+		a[17][5] = Y_aa; a[17][13] = -1.0;
+		a[18][6] = Y_fa; a[18][14] = -1.0;
+		a[19][7] = Y_c4; a[19][8] = Y_c4; a[19][15] = -1.0;
+		a[20][9] = Y_pro; a[20][16] = -1.0;
+		a[21][10] = Y_ac; a[21][17] = -1.0;
+		a[22][11] = Y_h2; a[22][18] = -1.0;
+		a[23][0] = q[65];
+		return a;
+	}
+
+	/**
+	 * @param m 		Member
+	 * @param influent 	Influent of the member (42 variables), held constant until the next call
+	 */
+	public void setInfluent(int m, double[] influent) {
+		for (int i=0;i<DIMENSION;i++) {
+			u[i][m] = influent[i];
+		}
+	}
+
+	@Override
+	public int getDimension() {
+		return DIMENSION;
+	}
+
+	@Override
+	public int getMembers() {
+		return n;
+	}
+
+	/**
+	 * @return Newton iterations of the charge and S_h2 balances summed over the members
+	 * 			(a member that has converged waits for the others without counting)
+	 */
+	public long getAlgebraicIterations() {
+		return algebraicIterations;
+	}
+
+	@Override
+	public void computeDerivatives(double[][] x, double[][] dx) {
+		evaluate(x, dx, work);
+	}
+
+	/**
+	 * Temperature dependent constants of the members whose temperature changed
+	 */
+	private void updateConstants(double[] T) {
+		for (int m=0;m<n;m++) {
+			if (T[m] != constantsT[m]) {
+				double factor = (1.0/(p[0][m]) - 1.0/(273.15+T[m]))/(100.0*R);
+				K_w[m] = Math.pow(10,-p[2][m])*Math.exp(55900.0*factor);
+				K_a_co2[m] = Math.pow(10,-p[7][m])*Math.exp(7646.0*factor);
+				K_a_IN[m] = Math.pow(10,-p[8][m])*Math.exp(51965.0*factor);
+				K_H_h2[m] = p[9][m]*Math.exp(-4180.0*factor);
+				K_H_ch4[m] = p[10][m]*Math.exp(-14240.0*factor);
+				K_H_co2[m] = p[11][m]*Math.exp(-19410.0*factor);
+				p_gas_h2o[m] = p[12][m]*Math.exp(5290.0*(1.0/(p[0][m]) - 1.0/(273.15+T[m])));
+				T_K[m] = 273.15+T[m];
+				constantsT[m] = T[m];
+			}
+		}
+	}
+
+	/**
+	 * Right-hand side of all members
+	 *
+	 * @param x 	States [variable][member] (42 variables), not modified
+	 * @param dx 	Derivatives [variable][member], every entry is written (zero for algebraic states and outputs)
+	 * @param s 	Receives the states with negative values set to zero, the algebraic states and the outputs
+	 */
+	public void evaluate(double[][] x, double[][] dx, double[][] s) {
+		for (int i=0;i<DIMENSION;i++) {
+			final double[] xi = x[i], si = s[i];
+			for (int m=0;m<n;m++) {
+				si[m] = Math.max(xi[m], 0.0);
+			}
+		}
+		System.arraycopy(u[35], 0, s[35], 0, n); // Effluent flow rate = Influent flow rate
+		updateConstants(s[36]);
+		System.arraycopy(S_H_ion, 0, prevS_H_ion, 0, n);
+		solveChargeBalance(s);
+		solveH2Balance(s);
+		rates(s);
+		derivatives(s, dx);
+	}
+
+	/**
+	 * S_H_ion and the acid-base states
+	 */
+	private void solveChargeBalance(double[][] s) {
+		final double[] S_IN = s[10], S_IC = s[9], S_ac = s[6], S_pro = s[5], S_bu = s[4], S_va = s[3], S_cat = s[24], S_an = s[25];
+		for (int m=0;m<n;m++) {
+			if (!(S_H_ion[m] > 0.0 && S_H_ion[m] < Double.POSITIVE_INFINITY)) {
+				S_H_ion[m] = TOL;
+			}
+		}
+		startNewton();
+		int remaining = n;
+		for (int k=1;k<=MAX_ITERATIONS && remaining > 0;k++) {
+			// Residuals of all members, converged ones included
+			for (int m=0;m<n;m++) {
+				double x = S_H_ion[m];
+				delta[m] = S_cat[m]+S_IN[m]+x-K_w[m]/x-S_an[m];
+				dResidual[m] = 1.0+K_w[m]/(x*x);
+			}
+			acidBase(K_a_IN, S_IN, 1.0);
+			acidBase(K_a_co2, S_IC, 1.0);
+			acidBase(K_a_ac, S_ac, 1.0/64.0);
+			acidBase(K_a_pro, S_pro, 1.0/112.0);
+			acidBase(K_a_bu, S_bu, 1.0/160.0);
+			acidBase(K_a_va, S_va, 1.0/208.0);
+			algebraicIterations += remaining;
+			remaining = newtonStep(S_H_ion);
+		}
+
+		dissociated(K_a_va, S_va, s[26]);
+		dissociated(K_a_bu, S_bu, s[27]);
+		dissociated(K_a_pro, S_pro, s[28]);
+		dissociated(K_a_ac, S_ac, s[29]);
+		dissociated(K_a_co2, S_IC, s[30]);
+		dissociated(K_a_IN, S_IN, s[31]);
+	}
+
+	/**
+	 * Term of one acid-base pair in the charge balance residual and its derivative
+	 *
+	 * @param K 		Acid-base equilibrium constants
+	 * @param S 		Total concentrations
+	 * @param charge 	Charge per unit of concentration
+	 */
+	private void acidBase(double[] K, double[] S, double charge) {
+		for (int m=0;m<n;m++) {
+			double a = K[m]+S_H_ion[m];
+			double ion = charge*K[m]*S[m]/a;
+			delta[m] -= ion;
+			dResidual[m] += ion/a;
+		}
+	}
+
+	/**
+	 * Dissociated part K*S/(K+S_H_ion) of an acid-base pair
+	 */
+	private void dissociated(double[] K, double[] S, double[] ion) {
+		for (int m=0;m<n;m++) {
+			ion[m] = K[m]*S[m]/(K[m]+S_H_ion[m]);
+		}
+	}
+
+	/**
+	 * S_h2, with the inhibition of the S_H_ion from before the charge balance as in DAEModel
+	 */
+	private void solveH2Balance(double[][] s) {
+		final double[] S_su = s[0], S_aa = s[1], S_fa = s[2], S_va = s[3], S_bu = s[4], S_pro = s[5], S_IN = s[10];
+		final double[] X_su = s[16], X_aa = s[17], X_fa = s[18], X_c4 = s[19], X_pro = s[20], X_h2 = s[22];
+		final double[] Q = s[35], S_gas_h2 = s[32], S_h2 = s[7];
+
+		// Uptake rates without the S_h2 inhibition, the process rates serve as scratch space
+		inhibitions(prevS_H_ion, S_IN);
+		final double[] proc5 = proc[4], proc6 = proc[5], rate7 = proc[6], rate8 = proc[7], rate9 = proc[8], rate10 = proc[9];
+		monod(p[28], p[29], S_su, X_su, inhib0, proc5);
+		monod(p[30], p[31], S_aa, X_aa, inhib0, proc6);
+		monod(p[32], p[33], S_fa, X_fa, inhib0, rate7);
+		monod(p[34], p[35], S_va, X_c4, inhib0, rate8);
+		monod(p[34], p[35], S_bu, X_c4, inhib0, rate9);
+		valerateButyrate(S_va, S_bu, rate8, rate9);
+		monod(p[36], p[37], S_pro, X_pro, inhib0, rate10);
+
+		final double[] Y_su = p[71], Y_aa = p[79], Y_fa = p[85], Y_c4 = p[86], Y_pro = p[87], f_h2_su = p[91], f_h2_aa = p[92];
+		for (int m=0;m<n;m++) {
+			h2_c7[m] = (1.0-Y_fa[m])*0.3*rate7[m];
+			h2_c4[m] = (1.0-Y_c4[m])*(0.15*rate8[m]+0.2*rate9[m]);
+			h2_c10[m] = (1.0-Y_pro[m])*0.43*rate10[m];
+		}
+		for (int m=0;m<n;m++) {
+			h2_rate12[m] = p[40][m]*X_h2[m]*inhib5[m];
+			h2_D[m] = Q[m]/p[98][m];
+			h2_eq[m] = 16.0*K_H_h2[m]*(S_gas_h2[m]*R*T_K[m]/16.0);
+		}
+		for (int m=0;m<n;m++) {
+			h2_const[m] = h2_D[m]*u[7][m]+(1.0-Y_su[m])*f_h2_su[m]*proc5[m]+(1.0-Y_aa[m])*f_h2_aa[m]*proc6[m];
+		}
+
+		for (int m=0;m<n;m++) {
+			if (!Double.isNaN(lastS_h2[m])) {
+				S_h2[m] = lastS_h2[m];
+			}
+			if (!(S_h2[m] > 0.0 && S_h2[m] < Double.POSITIVE_INFINITY)) {
+				S_h2[m] = TOL;
+			}
+		}
+		startNewton();
+		final double[] K_S_h2 = p[41], kLa = p[55];
+		int remaining = n;
+		for (int k=1;k<=MAX_ITERATIONS && remaining > 0;k++) {
+			for (int m=0;m<n;m++) {
+				double x = S_h2[m];
+				double monod_h2 = 1.0/(K_S_h2[m]+x);
+				delta[m] = -h2_const[m]+h2_D[m]*x+h2_rate12[m]*x*monod_h2+kLa[m]*(x-h2_eq[m]);
+				dResidual[m] = h2_D[m]+h2_rate12[m]*K_S_h2[m]*monod_h2*monod_h2+kLa[m];
+			}
+			h2Inhibited(h2_c7, p[20], S_h2);
+			h2Inhibited(h2_c4, p[21], S_h2);
+			h2Inhibited(h2_c10, p[22], S_h2);
+			algebraicIterations += remaining;
+			remaining = newtonStep(S_h2);
+		}
+		System.arraycopy(S_h2, 0, lastS_h2, 0, n);
+	}
+
+	/**
+	 * Term c/(1+S_h2/K_I) of an S_h2 inhibited uptake in the S_h2 residual and its derivative
+	 */
+	private void h2Inhibited(double[] c, double[] K_I, double[] S_h2) {
+		for (int m=0;m<n;m++) {
+			double I = 1.0/(1.0+S_h2[m]/K_I[m]);
+			delta[m] -= c[m]*I;
+			dResidual[m] += c[m]*I*I/K_I[m];
+		}
+	}
+
+	/**
+	 * Empty brackets for the next Newton solve
+	 */
+	private void startNewton() {
+		Arrays.fill(lo, 0.0);
+		Arrays.fill(hi, Double.POSITIVE_INFINITY);
+		Arrays.fill(converged, false);
+	}
+
+	/**
+	 * One safeguarded Newton step for an increasing residual (see DAEModel.solveBracketed) of every
+	 * member that has not converged, from the residuals and derivatives in delta and dResidual
+	 *
+	 * @param x 	Unknown of each member, updated in place
+	 * @return Members that have not converged
+	 */
+	private int newtonStep(double[] x) {
+		int remaining = 0;
+		for (int m=0;m<n;m++) {
+			if (converged[m]) {
+				continue;
+			}
+			double xm = x[m], d = delta[m];
+			if (d < 0.0) {
+				lo[m] = xm;
+			} else {
+				hi[m] = xm;
+			}
+			double next = xm-d/dResidual[m];
+			if (Math.abs(d) <= TOL || Math.abs(next-xm) <= ULPS*xm) {
+				converged[m] = true;
+				x[m] = next > 0.0 ? next : xm;
+			} else if (!(Math.abs(d) < Double.POSITIVE_INFINITY)) {
+				converged[m] = true; // Failed member (NaN or infinite residual), left to the integrator
+			} else {
+				if (!(next > lo[m] && next < hi[m])) {
+					if (lo[m] == 0.0) {
+						next = 0.1*hi[m];
+					} else if (hi[m] == Double.POSITIVE_INFINITY) {
+						next = 10.0*lo[m];
+					} else {
+						next = Math.sqrt(lo[m]*hi[m]);
+					}
+				}
+				x[m] = next;
+				remaining++;
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * pH and nitrogen limitation, inhib0 and inhib5 (the S_h2 balance does not need the acetate inhibition)
+	 *
+	 * @param sh 	S_H_ion of the inhibition
+	 * @param S_IN 	Inorganic nitrogen
+	 */
+	private void inhibitions(double[] sh, double[] S_IN) {
+		for (int m=0;m<n;m++) {
+			lnS_H_ion[m] = Math.log(sh[m]);
+		}
+		pHInhibition(n_aa, lnpHLim_aa, I_pH_aa);
+		pHInhibition(n_h2, lnpHLim_h2, I_pH_h2);
+		final double[] K_S_IN = p[19];
+		for (int m=0;m<n;m++) {
+			I_IN_lim[m] = 1.0/(1.0+K_S_IN[m]/S_IN[m]);
+			inhib0[m] = I_pH_aa[m]*I_IN_lim[m];
+			inhib5[m] = I_pH_h2[m]*I_IN_lim[m];
+		}
+	}
+
+	/**
+	 * pH inhibition 1/(1+(S_H_ion/pHLim)^n) from the logarithms as in DAEModel
+	 */
+	private void pHInhibition(double[] nHill, double[] lnpHLim, double[] I) {
+		for (int m=0;m<n;m++) {
+			I[m] = 1.0/(1.0+Math.exp(nHill[m]*(lnS_H_ion[m]-lnpHLim[m])));
+		}
+	}
+
+	/**
+	 * Uptake rate k_m*S/(K_S+S)*X*I
+	 */
+	private void monod(double[] k_m, double[] K_S, double[] S, double[] X, double[] I, double[] rate) {
+		for (int m=0;m<n;m++) {
+			rate[m] = k_m[m]*S[m]/(K_S[m]+S[m])*X[m]*I[m];
+		}
+	}
+
+	/**
+	 * Share of valerate and butyrate in the uptake of the c4 degraders
+	 */
+	private void valerateButyrate(double[] S_va, double[] S_bu, double[] rate8, double[] rate9) {
+		for (int m=0;m<n;m++) {
+			double total = S_va[m]+S_bu[m]+EPS;
+			rate8[m] *= S_va[m]/total;
+			rate9[m] *= S_bu[m]/total;
+		}
+	}
+
+	/**
+	 * Inhibition terms, process and gas transfer rates
+	 */
+	private void rates(double[][] s) {
+		final double[] S_IN = s[10], S_h2 = s[7], S_nh3 = s[31];
+		final double[] K_Ih2_fa = p[20], K_Ih2_c4 = p[21], K_Ih2_pro = p[22], K_I_nh3 = p[23];
+		inhibitions(S_H_ion, S_IN);
+		pHInhibition(n_ac, lnpHLim_ac, I_pH_ac);
+		for (int m=0;m<n;m++) {
+			inhib1[m] = inhib0[m]/(1.0+S_h2[m]/K_Ih2_fa[m]);
+			inhib2[m] = inhib0[m]/(1.0+S_h2[m]/K_Ih2_c4[m]);
+			inhib3[m] = inhib0[m]/(1.0+S_h2[m]/K_Ih2_pro[m]);
+			inhib4[m] = I_pH_ac[m]*I_IN_lim[m]/(1.0+S_nh3[m]/K_I_nh3[m]);
+		}
+
+		// Disintegration, hydrolysis and decay
+		for (int j=0;j<FIRST_ORDER_PROC.length;j++) {
+			final double[] k = p[FIRST_ORDER_RATE[j]], X = s[FIRST_ORDER_STATE[j]], r = proc[FIRST_ORDER_PROC[j]];
+			for (int m=0;m<n;m++) {
+				r[m] = k[m]*X[m];
+			}
+		}
+
+		// Uptake
+		final double[] S_su = s[0], S_aa = s[1], S_fa = s[2], S_va = s[3], S_bu = s[4], S_pro = s[5], S_ac = s[6];
+		final double[] X_su = s[16], X_aa = s[17], X_fa = s[18], X_c4 = s[19], X_pro = s[20], X_ac = s[21], X_h2 = s[22];
+		monod(p[28], p[29], S_su, X_su, inhib0, proc[4]);
+		monod(p[30], p[31], S_aa, X_aa, inhib0, proc[5]);
+		monod(p[32], p[33], S_fa, X_fa, inhib1, proc[6]);
+		monod(p[34], p[35], S_va, X_c4, inhib2, proc[7]);
+		monod(p[34], p[35], S_bu, X_c4, inhib2, proc[8]);
+		valerateButyrate(S_va, S_bu, proc[7], proc[8]);
+		monod(p[36], p[37], S_pro, X_pro, inhib3, proc[9]);
+		monod(p[38], p[39], S_ac, X_ac, inhib4, proc[10]);
+		monod(p[40], p[41], S_h2, X_h2, inhib5, proc[11]);
+
+		// Gas pressures, gas flow and gas transfer
+		final double[] S_ch4 = s[8], S_IC = s[9], S_hco3 = s[30], S_gas_h2 = s[32], S_gas_ch4 = s[33], S_gas_co2 = s[34];
+		final double[] kLa = p[55], k_P = p[97];
+		final double[] procT8 = proc[19], procT9 = proc[20], procT10 = proc[21];
+		for (int m=0;m<n;m++) {
+			p_gas_h2[m] = S_gas_h2[m]*R*T_K[m]/16.0;
+			p_gas_ch4[m] = S_gas_ch4[m]*R*T_K[m]/64.0;
+			p_gas_co2[m] = S_gas_co2[m]*R*T_K[m];
+			P_gas[m] = p_gas_h2[m] + p_gas_ch4[m] + p_gas_co2[m] + p_gas_h2o[m];
+			q_gas[m] = Math.max(k_P[m]*(P_gas[m]-P_ATM), 0.0);
+		}
+		for (int m=0;m<n;m++) {
+			procT8[m] = kLa[m]*(S_h2[m]-16.0*K_H_h2[m]*p_gas_h2[m]);
+			procT9[m] = kLa[m]*(S_ch4[m]-64.0*K_H_ch4[m]*p_gas_ch4[m]);
+			procT10[m] = kLa[m]*((S_IC[m]-S_hco3[m])-K_H_co2[m]*p_gas_co2[m]);
+		}
+	}
+
+	/**
+	 * Mass balances and outputs
+	 */
+	private void derivatives(double[][] s, double[][] dx) {
+		final double[] Q = s[35];
+		final double[] D = dx[36]; // Dilution rate, the temperature derivative is zeroed at the end
+		for (int m=0;m<n;m++) {
+			D[m] = Q[m]/p[98][m];
+		}
+
+		// Dilution of the liquid phase states
+		for (int i=0;i<26;i++) {
+			final double[] ui = u[i], si = s[i], dxi = dx[i];
+			for (int m=0;m<n;m++) {
+				dxi[m] = D[m]*(ui[m]-si[m]);
+			}
+		}
+		Arrays.fill(dx[7], 0.0); // Solved algebraically
+
+		// Conversion processes
+		for (int k=0;k<balance.length;k++) {
+			final double[] c = balance[k], r = proc[balanceProc[k]], dxi = dx[balanceState[k]];
+			for (int m=0;m<n;m++) {
+				dxi[m] += c[m]*r[m];
+			}
+		}
+
+		// Gas phase
+		gas(s[32], proc[19], dx[32]);
+		gas(s[33], proc[20], dx[33]);
+		gas(s[34], proc[21], dx[34]);
+
+		// Algebraic states, flow, temperature and outputs have no derivative
+		for (int i=26;i<32;i++) {
+			Arrays.fill(dx[i], 0.0);
+		}
+		for (int i=35;i<DIMENSION;i++) {
+			Arrays.fill(dx[i], 0.0);
+		}
+
+		// Outputs: methane and gas flow, pH, S_co2 and S_nh4
+		final double[] gas_ch4 = s[37], gas_vol = s[38], pH = s[39], S_co2 = s[40], S_nh4 = s[41];
+		final double[] S_IC = s[9], S_IN = s[10], S_hco3 = s[30], S_nh3 = s[31];
+		for (int m=0;m<n;m++) {
+			gas_ch4[m] = q_gas[m]*(p_gas_ch4[m]/P_gas[m]);
+			gas_vol[m] = q_gas[m];
+			S_co2[m] = S_IC[m]-S_hco3[m];
+			S_nh4[m] = S_IN[m]-S_nh3[m];
+		}
+		for (int m=0;m<n;m++) {
+			pH[m] = -Math.log10(S_H_ion[m]);
+		}
+	}
+
+	/**
+	 * Gas phase balance, outflow with the gas and transfer from the liquid
+	 */
+	private void gas(double[] S_gas, double[] transfer, double[] dS_gas) {
+		final double[] V_liq = p[98], V_gas = p[99];
+		for (int m=0;m<n;m++) {
+			dS_gas[m] = (-S_gas[m]*q_gas[m]+transfer[m]*V_liq[m])/V_gas[m];
+		}
+	}
+}
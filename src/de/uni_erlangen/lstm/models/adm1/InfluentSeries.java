@@ -0,0 +1,245 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.models.adm1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.uni_erlangen.lstm.file.InfluentReader;
+
+/**
+ * Influent samples on a uniform time grid used as a forcing function for the model, 
+ * so a dynamic simulation can run with one integrator over the whole horizon
+ * 
+ * Row k holds the influent from time start+k*step. The influent is either held constant
+ * over each interval (as in the sample by sample simulation, the current row is moved on 
+ * by an event handler at each grid time) or interpolated linearly between the samples.
+ * 
+ * @author liampetti
+ *
+ */
+public class InfluentSeries {
+	
+	private final double[][] rows;
+	private final double start;
+	private final double step;
+	private boolean interpolate;
+	private int row; // Current row when held constant
+	private double[] factors; // Multiplies every sample, null for none
+	
+	/**
+	 * @param start 	Time of the first sample (in days)
+	 * @param step 		Time between samples (in days)
+	 * @param rows 		Influent samples, each in the 42 variable layout of {@link StateVariables}
+	 */
+	public InfluentSeries(double start, double step, double[][] rows) {
+		if (rows.length == 0) {
+			throw new IllegalArgumentException("Influent series is empty");
+		}
+		this.start = start;
+		this.step = step;
+		this.rows = rows;
+		interpolate = false;
+		row = 0;
+	}
+	
+	/**
+	 * Read all samples of an influent file (42 variables or 26 variables of a BSM2 export per line)
+	 * 
+	 * @param filename 	Influent file
+	 * @param separator Column separator
+	 * @param start 	Time of the first sample (in days)
+	 * @param step 		Time between samples (in days)
+	 */
+	public static InfluentSeries read(String filename, char separator, double start, double step) {
+		return read(new InfluentReader(filename, separator), start, step);
+	}
+	
+	/**
+	 * Read the remaining samples of an open influent file
+	 */
+	public static InfluentSeries read(InfluentReader reader, double start, double step) {
+		List<double[]> rows = new ArrayList<double[]>();
+		StateVariables influent = new StateVariables();
+		double[] in = new double[42];
+		int n;
+		while ((n = reader.next(in)) >= 0) {
+			if (n > 0) {
+				influent.setVar(in, n);
+				rows.add(influent.getVar());
+			}
+		}
+		return new InfluentSeries(start, step, rows.toArray(new double[rows.size()][]));
+	}
+	
+	/**
+	 * Copy with its own current row, the samples are shared (they are never modified),
+	 * so simulations on different threads can run the same series
+	 */
+	public InfluentSeries copy() {
+		InfluentSeries copy = new InfluentSeries(start, step, rows);
+		copy.setInterpolated(interpolate);
+		copy.factors = factors;
+		return copy;
+	}
+	
+	/**
+	 * Copy (as {@link #copy()}) with every variable of the influent multiplied by a factor
+	 * 
+	 * @param factors 	Factor for each influent variable
+	 */
+	public InfluentSeries scaled(double[] factors) {
+		InfluentSeries copy = copy();
+		copy.factors = factors.clone();
+		return copy;
+	}
+	
+	/**
+	 * Series on a coarser grid, each row the average of a block of samples, for cheap approximate runs.
+	 * Concentrations are averaged weighted by the flow so the loads of each block are kept,
+	 * flow and temperature are plain averages.
+	 *
+	 * @param samples 	Samples per row of the new series
+	 */
+	public InfluentSeries averaged(int samples) {
+		if (samples < 1) {
+			throw new IllegalArgumentException("Samples per row must be positive: " + samples);
+		}
+		double[][] averages = new double[(rows.length+samples-1)/samples][];
+		for (int b=0;b<averages.length;b++) {
+			int from = b*samples;
+			int to = Math.min(from+samples, rows.length);
+			double[] average = new double[rows[from].length];
+			double q = 0.0;
+			for (int k=from;k<to;k++) {
+				q += rows[k][35];
+			}
+			for (int k=from;k<to;k++) {
+				double[] r = rows[k];
+				double w = q > 0.0 ? r[35]/q : 1.0/(to-from);
+				for (int i=0;i<r.length;i++) {
+					average[i] += (i == 35 || i == 36 ? 1.0/(to-from) : w)*r[i];
+				}
+			}
+			averages[b] = average;
+		}
+		InfluentSeries coarse = new InfluentSeries(start, samples*step, averages);
+		coarse.factors = factors;
+		return coarse;
+	}
+
+	/**
+	 * Set the current row to the interval containing the given time
+	 */
+	public void setTime(double t) {
+		row = index(t);
+	}
+	
+	/**
+	 * Move on to the next interval, called at the grid times
+	 */
+	public void nextRow() {
+		if (row < rows.length-1) {
+			row++;
+		}
+	}
+	
+	public int getRow() {
+		return row;
+	}
+	
+	/**
+	 * Copy the influent at time t into the given array
+	 * 
+	 * @param t 	Time (in days), only used when interpolating
+	 * @param u 	Influent array to fill
+	 */
+	public void getInfluent(double t, double[] u) {
+		if (interpolate) {
+			int k = index(t);
+			double[] a = rows[k];
+			if (k == rows.length-1) {
+				System.arraycopy(a, 0, u, 0, u.length);
+			} else {
+				double[] b = rows[k+1];
+				double w = (t-(start+k*step))/step;
+				if (w < 0.0) {
+					w = 0.0;
+				} else if (w > 1.0) {
+					w = 1.0;
+				}
+				for (int i=0;i<u.length;i++) {
+					u[i] = a[i]+w*(b[i]-a[i]);
+				}
+			}
+		} else {
+			System.arraycopy(rows[row], 0, u, 0, u.length);
+		}
+		if (factors != null) {
+			for (int i=0;i<u.length;i++) {
+				u[i] *= factors[i];
+			}
+		}
+	}
+	
+	/**
+	 * Interval index for a given time, small offsets from rounding are ignored
+	 */
+	private int index(double t) {
+		int k = (int) Math.floor((t-start)/step+1.0e-9);
+		if (k < 0) {
+			return 0;
+		}
+		return Math.min(k, rows.length-1);
+	}
+	
+	public int size() {
+		return rows.length;
+	}
+	
+	public double[] getRow(int k) {
+		return rows[k];
+	}
+	
+	public double getStart() {
+		return start;
+	}
+	
+	public double getStep() {
+		return step;
+	}
+	
+	/**
+	 * @return End of the last interval
+	 */
+	public double getEnd() {
+		return start+rows.length*step;
+	}
+	
+	public boolean isInterpolated() {
+		return interpolate;
+	}
+	
+	public void setInterpolated(boolean interpolate) {
+		this.interpolate = interpolate;
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2015 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.models.adm1;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
+
+import de.uni_erlangen.lstm.solvers.SemiExplicitEquations;
+
+/**
+ * The differential states of a {@link DAEModel} packed into a shorter vector for the integrator
+ *
+ * Of the 42 model variables only those with a derivative are integrated (the non-empty rows of
+ * {@link DAEModel#getJacobianPattern()}, 28 with the algebraic equations switched on, 35 without).
+ * Flow and temperature keep the values they had when the state was packed, the algebraic states
+ * (S_h2 and acid-base) and the outputs (methane, gas flow, pH, S_co2, S_nh4) are only calculated
+ * when asked for with {@link #evaluate}, e.g. at the sample times of the output. The error norms,
+ * dense output and multistep histories of the integrator are correspondingly shorter, and the
+ * error norm is no longer diluted by the variables that never change.
+ *
+ * In the semi-explicit form S_h2 and the pH are packed as well, as algebraic unknowns with the
+ * residuals of the S_h2 and charge balances as their equations ({@link DAEModel#evaluateSemiExplicit}),
+ * for integrators that solve them together with the differential states.
+ *
+ * @author liampetti
+ *
+ */
+public class ReducedModel implements MainStateJacobianProvider, SemiExplicitEquations {
+	public final static Logger LOGGER = Logger.getLogger(ReducedModel.class.getName());
+
+	private DAEModel ode;
+	private boolean semiExplicit; // S_h2 and the pH are algebraic unknowns
+	private int[] index; // Model variable of each packed state
+	private int[] packed; // Packed state of each model variable, -1 if not integrated
+	private double[] x; // Complete model state, the variables that are not integrated are kept here
+	private double[] dx;
+	private double[][] jac;
+
+	/**
+	 * @param ode 	Model, the algebraic settings must not change afterwards
+	 * @param x0 	Complete model state, the values of the variables that are not integrated are kept
+	 */
+	public ReducedModel(DAEModel ode, double[] x0) {
+		this(ode, x0, false);
+	}
+	
+	/**
+	 * @param ode 			Model, the algebraic settings must not change afterwards
+	 * @param x0 			Complete model state, the values of the variables that are not integrated are kept
+	 * @param semiExplicit 	Integrate S_h2 and the pH as algebraic unknowns, needs the algebraic equations 
+	 * 						switched on and a free pH
+	 */
+	public ReducedModel(DAEModel ode, double[] x0, boolean semiExplicit) {
+		this.ode = ode;
+		this.semiExplicit = semiExplicit;
+		int n = ode.getDimension();
+		boolean[][] pattern = ode.getJacobianPattern();
+		packed = new int[n];
+		index = new int[n];
+		int m = 0;
+		for (int i=0;i<n;i++) {
+			packed[i] = -1;
+			if (semiExplicit && (i == 7 || i == 39)) {
+				packed[i] = m;
+				index[m++] = i;
+				continue;
+			}
+			for (boolean entry : pattern[i]) {
+				if (entry) {
+					packed[i] = m;
+					index[m++] = i;
+					break;
+				}
+			}
+		}
+		index = Arrays.copyOf(index, m);
+		x = x0.clone();
+		dx = new double[n];
+		jac = new double[n][n];
+	}
+
+	public DAEModel getModel() {
+		return ode;
+	}
+
+	/**
+	 * @return 	Packed state of the given model variable, -1 if it is not integrated
+	 */
+	public int getPacked(int i) {
+		return packed[i];
+	}
+
+	public boolean isSemiExplicit() {
+		return semiExplicit;
+	}
+	
+	/**
+	 * Packed state of a complete model state
+	 *
+	 * @param x0 	Complete model state, also replaces the kept values of the variables that are not integrated.
+	 * 				In the semi-explicit form S_h2 and the pH start from the balances solved by the model.
+	 */
+	public double[] pack(double[] x0) {
+		System.arraycopy(x0, 0, x, 0, x.length);
+		double[] y = new double[index.length];
+		for (int k=0;k<index.length;k++) {
+			y[k] = x0[index[k]];
+		}
+		if (semiExplicit) {
+			// Start from the balances solved by the model, the time is not needed without an influent series
+			double[] s = new double[x.length];
+			ode.evaluate(Double.NaN, x0, dx, s);
+			y[packed[7]] = s[7];
+			y[packed[39]] = s[39];
+		}
+		return y;
+	}
+
+	/**
+	 * Complete model state with the algebraic states and outputs calculated for the packed state
+	 *
+	 * @param t 	Time
+	 * @param y 	Packed state
+	 * @param s 	Output buffer (42 variables), as {@link DAEModel#evaluate}
+	 */
+	public void evaluate(double t, double[] y, double[] s) {
+		expand(y);
+		if (semiExplicit) {
+			ode.evaluateSemiExplicit(t, x, dx, s);
+		} else {
+			ode.evaluate(t, x, dx, s);
+		}
+	}
+
+	@Override
+	public int getDimension() {
+		return index.length;
+	}
+
+	@Override
+	public void computeDerivatives(double t, double[] y, double[] yDot)
+			throws MaxCountExceededException, DimensionMismatchException {
+		expand(y);
+		if (semiExplicit) {
+			ode.computeResiduals(t, x, dx);
+		} else {
+			ode.computeDerivatives(t, x, dx);
+		}
+		for (int k=0;k<index.length;k++) {
+			yDot[k] = dx[index[k]];
+		}
+	}
+
+	@Override
+	public void computeMainStateJacobian(double t, double[] y, double[] yDot, double[][] dFdY)
+			throws MaxCountExceededException, DimensionMismatchException {
+		expand(y);
+		if (semiExplicit) {
+			ode.computeSemiExplicitJacobian(t, x, jac);
+		} else {
+			ode.computeJacobian(t, x, jac);
+		}
+		for (int r=0;r<index.length;r++) {
+			double[] row = jac[index[r]];
+			double[] packedRow = dFdY[r];
+			for (int c=0;c<index.length;c++) {
+				packedRow[c] = row[index[c]];
+			}
+		}
+	}
+
+	@Override
+	public boolean isAlgebraic(int k) {
+		return semiExplicit && (index[k] == 7 || index[k] == 39);
+	}
+	
+	/**
+	 * Copy the packed state into the complete state
+	 */
+	private void expand(double[] y) {
+		for (int k=0;k<index.length;k++) {
+			x[index[k]] = y[k];
+		}
+	}
+}
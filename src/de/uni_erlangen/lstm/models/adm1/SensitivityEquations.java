@@ -0,0 +1,241 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.models.adm1;
+
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
+
+/**
+ * Forward sensitivity equations of the ADM1 for a subset of the digester parameters
+ * 
+ * The state y holds the model state x followed by one block S_k = dx/dp_k per selected 
+ * parameter, integrated alongside the state with the variational equations 
+ * dS_k/dt = J*S_k + df/dp_k. Both terms come from one central difference per parameter, 
+ * (f(x+dp_k*S_k, p+dp_k*e_k)-f(x-dp_k*S_k, p-dp_k*e_k))/(2*dp_k), evaluated on two models built 
+ * with the perturbed parameter (so the constants calculated from the parameters are perturbed as well). 
+ * An integration step therefore costs two model evaluations per parameter on top of the state, 
+ * instead of a complete simulation per parameter with brute-force perturbation runs.
+ * 
+ * The perturbation is relatively large (DELTA) as the algebraic equations are only solved to 
+ * their tolerance, smaller perturbations give noisy sensitivities and many rejected steps.
+ * 
+ * The implicit integrators get the Jacobian of these difference equations from two analytic 
+ * model Jacobians per parameter (see {@link #computeMainStateJacobian}). Leaving out the coupling 
+ * of the sensitivities to the state would limit the steps to the stable step of an explicit 
+ * method for the stiff acid-base and gas transfer terms.
+ * 
+ * Sensitivities of the algebraic states and outputs (S_h2, pH, gas flows) are calculated 
+ * the same way from the evaluated models with {@link #evaluate}.
+ * 
+ * @author liampetti
+ *
+ */
+public class SensitivityEquations implements MainStateJacobianProvider {
+	public final static Logger LOGGER = Logger.getLogger(SensitivityEquations.class.getName());
+	
+	private static final double DELTA = 1.0e-4; // Relative parameter perturbation
+	
+	private DAEModel ode;
+	private DAEModel[] plus; // One model per selected parameter, built with the parameter increased by delta
+	private DAEModel[] minus; // and one with the parameter decreased by delta
+	private int[] indices; // Selected parameters
+	private double[] delta; // Parameter perturbations
+	private int n; // Model dimension
+	private double[] x;
+	private double[] xPlus;
+	private double[] xMinus;
+	private double[] fPlus;
+	private double[] fMinus;
+	private double[] sPlus;
+	private double[] sMinus;
+	private double[][] jac;
+	private double[][] jacPlus;
+	private double[][] jacMinus;
+	
+	/**
+	 * @param influent 		The influent
+	 * @param parameters 	The digester parameters (see {@link DigesterParameters#getParameters()})
+	 * @param sh 			Initial S_H_ion value
+	 * @param dae 			Turn on or off the dae system
+	 * @param ph 			Fixed pH, negative to calculate the pH
+	 * @param indices 		Parameters to calculate the sensitivities for
+	 */
+	public SensitivityEquations(double[] influent, double[] parameters, double sh, boolean dae, double ph, int[] indices) {
+		this.indices = indices.clone();
+		ode = new DAEModel(influent, parameters, sh, dae, ph);
+		n = ode.getDimension();
+		plus = new DAEModel[indices.length];
+		minus = new DAEModel[indices.length];
+		delta = new double[indices.length];
+		for (int k=0;k<indices.length;k++) {
+			double pk = parameters[indices[k]];
+			delta[k] = DELTA*Math.max(Math.abs(pk), 1.0e-5);
+			double[] p = parameters.clone();
+			p[indices[k]] = pk+delta[k];
+			plus[k] = new DAEModel(influent, p, sh, dae, ph);
+			p = parameters.clone();
+			p[indices[k]] = pk-delta[k];
+			minus[k] = new DAEModel(influent, p, sh, dae, ph);
+		}
+		x = new double[n];
+		xPlus = new double[n];
+		xMinus = new double[n];
+		fPlus = new double[n];
+		fMinus = new double[n];
+		sPlus = new double[n];
+		sMinus = new double[n];
+		jac = new double[n][n];
+		jacPlus = new double[n][n];
+		jacMinus = new double[n][n];
+	}
+	
+	/**
+	 * Time varying influent, shared by all models
+	 */
+	public void setInfluentSeries(InfluentSeries series) {
+		ode.setInfluentSeries(series);
+		for (int k=0;k<indices.length;k++) {
+			plus[k].setInfluentSeries(series);
+			minus[k].setInfluentSeries(series);
+		}
+	}
+	
+	/**
+	 * Initial state of the sensitivity system, the given model state with zero sensitivities
+	 * 
+	 * @param x0 	Initial model state
+	 */
+	public double[] initialState(double[] x0) {
+		double[] y = new double[getDimension()];
+		System.arraycopy(x0, 0, y, 0, n);
+		return y;
+	}
+
+	@Override
+	public int getDimension() {
+		return n*(1+indices.length);
+	}
+
+	@Override
+	public void computeDerivatives(double t, double[] y, double[] yDot)
+			throws MaxCountExceededException, DimensionMismatchException {
+		System.arraycopy(y, 0, x, 0, n);
+		ode.computeDerivatives(t, x, yDot);
+		for (int k=0;k<indices.length;k++) {
+			int offset = n*(k+1);
+			perturb(k, y);
+			plus[k].computeDerivatives(t, xPlus, fPlus);
+			minus[k].computeDerivatives(t, xMinus, fMinus);
+			double scale = 0.5/delta[k];
+			for (int i=0;i<n;i++) {
+				yDot[offset+i] = (fPlus[i]-fMinus[i])*scale;
+			}
+		}
+	}
+	
+	/**
+	 * Perturbed states x+dp_k*S_k and x-dp_k*S_k
+	 */
+	private void perturb(int k, double[] y) {
+		int offset = n*(k+1);
+		for (int i=0;i<n;i++) {
+			double dx = delta[k]*y[offset+i];
+			xPlus[i] = x[i]+dx;
+			xMinus[i] = x[i]-dx;
+		}
+	}
+
+	/**
+	 * Jacobian of the difference equations, block lower triangular: the model Jacobian J for the state, 
+	 * (J_k+ + J_k-)/2 for each sensitivity block and (J_k+ - J_k-)/(2*dp_k) for the dependence of the 
+	 * sensitivities on the state, with J_k+ and J_k- the Jacobians of the perturbed models at the perturbed states
+	 */
+	@Override
+	public void computeMainStateJacobian(double t, double[] y, double[] yDot, double[][] dFdY)
+			throws MaxCountExceededException, DimensionMismatchException {
+		System.arraycopy(y, 0, x, 0, n);
+		ode.computeJacobian(t, x, jac);
+		for (int i=0;i<n;i++) {
+			System.arraycopy(jac[i], 0, dFdY[i], 0, n);
+		}
+		for (int k=0;k<indices.length;k++) {
+			int offset = n*(k+1);
+			perturb(k, y);
+			plus[k].computeJacobian(t, xPlus, jacPlus);
+			minus[k].computeJacobian(t, xMinus, jacMinus);
+			double scale = 0.5/delta[k];
+			for (int i=0;i<n;i++) {
+				double[] row = dFdY[offset+i];
+				double[] rowPlus = jacPlus[i];
+				double[] rowMinus = jacMinus[i];
+				for (int j=0;j<n;j++) {
+					row[j] = (rowPlus[j]-rowMinus[j])*scale;
+					row[offset+j] = 0.5*(rowPlus[j]+rowMinus[j]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Evaluate the models at a point of the sensitivity system
+	 * 
+	 * @param t 		Time
+	 * @param y 		State of the sensitivity system
+	 * @param s 		Receives the model state with the algebraic states and outputs (see {@link DAEModel#evaluate})
+	 * @param ds 		Receives the sensitivities of s, ds[k][i] = ds_i/dp_k for the k-th selected parameter
+	 */
+	public void evaluate(double t, double[] y, double[] s, double[][] ds) {
+		System.arraycopy(y, 0, x, 0, n);
+		ode.evaluate(t, x, fPlus, s);
+		for (int k=0;k<indices.length;k++) {
+			perturb(k, y);
+			plus[k].evaluate(t, xPlus, fPlus, sPlus);
+			minus[k].evaluate(t, xMinus, fMinus, sMinus);
+			double scale = 0.5/delta[k];
+			for (int i=0;i<n;i++) {
+				ds[k][i] = (sPlus[i]-sMinus[i])*scale;
+			}
+		}
+	}
+	
+	/**
+	 * @return The model of the unperturbed parameters
+	 */
+	public DAEModel getModel() {
+		return ode;
+	}
+	
+	public int[] getIndices() {
+		return indices.clone();
+	}
+	
+	/**
+	 * @return Perturbation of the k-th selected parameter used for the differences
+	 */
+	public double getDelta(int k) {
+		return delta[k];
+	}
+}
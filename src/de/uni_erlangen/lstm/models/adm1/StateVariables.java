@@ -41,6 +41,14 @@ import de.uni_erlangen.lstm.file.CSVWriter;
 public class StateVariables {	
 	public final static Logger LOGGER = Logger.getLogger(StateVariables.class.getName());
 	
+	/**
+	 * Variable names in the order of {@link #getVar()}
+	 */
+	public static final String[] NAMES = { "S_su", "S_aa", "S_fa", "S_va", "S_bu", "S_pro", "S_ac", "S_h2", "S_ch4",
+			"S_IC", "S_IN", "S_I", "X_xc", "X_ch", "X_pr", "X_li", "X_su", "X_aa", "X_fa", "X_c4", "X_pro", "X_ac",
+			"X_h2", "X_I", "S_cat", "S_an", "S_hva", "S_hbu", "S_hpro", "S_hac", "S_hco3", "S_nh3", "S_gas_h2", "S_gas_ch4",
+			"S_gas_co2", "Q_D", "T_D", "gas_ch4", "gas_vol", "ph", "S_co2", "S_nh4" };
+	
 	/*
 	 * Digestor Influent
 	 */
@@ -85,10 +93,65 @@ public class StateVariables {
 				S_gas_co2, Q_D, T_D, gas_ch4, gas_vol, ph, S_co2, S_nh4 };
 	}
 	
+	/**
+	 * Copies the outputs into an array of at least 42 values
+	 */
+	public void getVar(double[] x) {
+		x[0]=S_su;
+		x[1]=S_aa;
+		x[2]=S_fa;
+		x[3]=S_va;
+		x[4]=S_bu;
+		x[5]=S_pro;
+		x[6]=S_ac;
+		x[7]=S_h2;
+		x[8]=S_ch4;
+		x[9]=S_IC;
+		x[10]=S_IN;
+		x[11]=S_I;
+		x[12]=X_xc;
+		x[13]=X_ch;
+		x[14]=X_pr;
+		x[15]=X_li;
+		x[16]=X_su;
+		x[17]=X_aa;
+		x[18]=X_fa;
+		x[19]=X_c4;
+		x[20]=X_pro;
+		x[21]=X_ac;
+		x[22]=X_h2;
+		x[23]=X_I;
+		x[24]=S_cat;
+		x[25]=S_an;
+		x[26]=S_hva;
+		x[27]=S_hbu;
+		x[28]=S_hpro;
+		x[29]=S_hac;
+		x[30]=S_hco3;
+		x[31]=S_nh3;
+		x[32]=S_gas_h2;
+		x[33]=S_gas_ch4;
+		x[34]=S_gas_co2;
+		x[35]=Q_D;
+		x[36]=T_D;
+		x[37]=gas_ch4;
+		x[38]=gas_vol;
+		x[39]=ph;
+		x[40]=S_co2;
+		x[41]=S_nh4;
+	}
+	
 	/**
 	 * Sets the outputs from an array
 	 */
 	public void setVar(double[] x) {
+		setVar(x, x.length);
+	}
+	
+	/**
+	 * Sets the outputs from the first n values of an array (42 values, or 28 of a BSM2 export)
+	 */
+	public void setVar(double[] x, int n) {
 		S_su=x[0];
 		S_aa=x[1];
 		S_fa=x[2];
@@ -116,7 +179,7 @@ public class StateVariables {
 		S_cat=x[24];
 		S_an=x[25];
 		// CSV file generated by Matlab implementation does not describe all variables
-		if (x.length < 42) {
+		if (n < 42) {
 			Q_D=x[26];
 			T_D=x[27];
 			S_hva=0.0;
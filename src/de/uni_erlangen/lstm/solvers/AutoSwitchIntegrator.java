@@ -0,0 +1,475 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2015 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.exception.NoBracketingException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.ode.ExpandableStatefulODE;
+
+/**
+ * Integrator switching between an explicit and a linearly implicit method as the problem
+ * turns stiff or non-stiff, in the manner of LSODA.
+ *
+ * Non-stiff parts are integrated with the explicit Bogacki-Shampine 3(2) pair, stiff parts with
+ * the Rosenbrock-W 2(3) formula of {@link RosenbrockIntegrator} (the pair of MATLAB's ode23 and
+ * ode23s), both with the same error control and cubic Hermite dense output, so the step size
+ * carries over a switch.
+ *
+ * Stiffness is detected from the step size and error history: an explicit method limited by
+ * stability settles at a constant step size (or keeps being rejected around it), instead of
+ * growing the step as the solution smooths out. If the step has not grown by more than STALLED
+ * over the last STIFF_STEPS explicit steps, the spectral radius rho is estimated by a few power
+ * iterations on the Jacobian. If h*rho of the largest of these steps is close to the stability
+ * boundary of the explicit method, a trial implicit step of PROBE times that step predicts the
+ * step size of the implicit method from its error estimate. The integrator switches to the
+ * implicit method (starting with the same Jacobian) only if that costs less per unit of time,
+ * with an implicit step counted as IMPLICIT_COST and an explicit step as EXPLICIT_COST
+ * evaluations of the right-hand side. The spectral radius estimated from the stages of the
+ * explicit steps (Hairer and Wanner, Solving Ordinary Differential Equations II, IV.2) is not
+ * used, it stays far below the true one while the error control keeps the stiff components
+ * from being excited. After a test that keeps the explicit method the next tests are made after
+ * twice as many steps (up to MAX_BACKOFF times STIFF_STEPS), so a problem that is only mildly
+ * stiff pays little for them.
+ *
+ * In the implicit mode the spectral radius is estimated from the Jacobian of every step, and
+ * the integrator switches back once explicit steps at the stability limit would cost less than
+ * the steps the implicit method chooses for STIFF_STEPS steps in a row. Both comparisons ask
+ * for half the cost of the current method, so the integrator does not switch back and forth.
+ *
+ * For the ADM1 the Jacobian and the decomposition cost as much as about 18 evaluations, so the
+ * implicit method only pays off once its steps are several times the explicit ones, e.g. on
+ * the way to a steady state but not with influent changing every 15 minutes.
+ *
+ * The mode is kept between integrations, so runs continued interval by interval do not
+ * detect the stiffness again. Switch points are logged.
+ *
+ * @author liampetti
+ *
+ */
+public class AutoSwitchIntegrator extends ImplicitIntegrator {
+	public final static Logger LOGGER = Logger.getLogger(AutoSwitchIntegrator.class.getName());
+
+	private static final String METHOD_NAME = "Bogacki-Shampine 3(2) / Rosenbrock-W 2(3)";
+
+	private static final double D = 1.0/(2.0+Math.sqrt(2.0));
+	private static final double E32 = 6.0+Math.sqrt(2.0);
+
+	private static final double SAFETY = 0.9;
+	private static final double MIN_REDUCTION = 0.2;
+	private static final double MAX_GROWTH = 5.0;
+
+	private static final double STIFF_LIMIT = 1.5; // h*rho of explicit steps limited by stability (they settle at about 2)
+	private static final double EXPLICIT_COST = 3.0; // Right-hand side evaluations per explicit step
+	private static final double IMPLICIT_COST = 20.0; // Per implicit step, two evaluations plus the Jacobian and decomposition
+	private static final double PROBE = 10.0; // Trial implicit step relative to the explicit step
+	private static final double STALLED = 2.0; // Largest growth of the explicit steps over STIFF_STEPS counted as not growing
+	private static final int STIFF_STEPS = 15; // Steps in a row before testing for a switch
+	private static final int MAX_BACKOFF = 32; // Largest number of STIFF_STEPS between two tests
+	private static final int POWER_ITERATIONS = 8; // Power iterations for the spectral radius of the Jacobian
+
+	private boolean stiff; // Current mode, kept between integrations
+	private int switches;
+	private int stiffSteps;
+	private double[] powerStart; // Start vector of the power iterations
+
+	/**
+	 * @param minStep 					Minimal step (sign is irrelevant)
+	 * @param maxStep 					Maximal step (sign is irrelevant)
+	 * @param scalAbsoluteTolerance 	Allowed absolute error
+	 * @param scalRelativeTolerance 	Allowed relative error
+	 */
+	public AutoSwitchIntegrator(double minStep, double maxStep, double scalAbsoluteTolerance, double scalRelativeTolerance) {
+		super(METHOD_NAME, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+	}
+
+	public AutoSwitchIntegrator(double minStep, double maxStep, double[] vecAbsoluteTolerance, double[] vecRelativeTolerance) {
+		super(METHOD_NAME, minStep, maxStep, vecAbsoluteTolerance, vecRelativeTolerance);
+	}
+
+	@Override
+	public void integrate(ExpandableStatefulODE equations, double t)
+			throws NumberIsTooSmallException, DimensionMismatchException, MaxCountExceededException, NoBracketingException {
+		sanityChecks(equations, t);
+		setEquations(equations);
+		final boolean forward = t > equations.getTime();
+
+		final double[] y0 = equations.getCompleteState();
+		final int n = y0.length;
+		final double[] y = y0.clone();
+		final double[] yNew = new double[n];
+		final double[] yStage = new double[n];
+		final double[] f0 = new double[n];
+		final double[] f1 = new double[n];
+		final double[] f2 = new double[n];
+		final double[] k1 = new double[n];
+		final double[] k2 = new double[n];
+		final double[] k3 = new double[n];
+		final double[] err = new double[n];
+		final DenseLU lu = new DenseLU(n);
+		initImplicit(n);
+		switches = 0;
+		stiffSteps = 0;
+		if (powerStart == null || powerStart.length != n) {
+			powerStart = powerStart(n);
+		}
+
+		final HermiteStepInterpolator interpolator = new HermiteStepInterpolator();
+		interpolator.reinitialize(yNew, forward, equations.getPrimaryMapper(), equations.getSecondaryMappers());
+		interpolator.storeTime(equations.getTime());
+
+		stepStart = equations.getTime();
+		initIntegration(equations.getTime(), y0, t);
+
+		computeDerivatives(stepStart, y, f0);
+		double hNew = initialStep(forward, n, y, f0, yStage, f1);
+		double[][] jacobian = null;
+		int count = 0; // Steps in a row indicating the other mode
+		double hWindow = 0.0; // First explicit step of the current STIFF_STEPS
+		double hMax = 0.0; // Largest explicit step since then
+		int backoff = 1; // STIFF_STEPS between tests
+		int skip = 0; // STIFF_STEPS until the next test
+
+		isLastStep = false;
+		do {
+			interpolator.shift();
+			interpolator.storeStart(y, f0);
+
+			double error = 10.0;
+			while (error >= 1.0) {
+				stepSize = hNew;
+				if (forward ? (stepStart+stepSize >= t) : (stepStart+stepSize <= t)) {
+					stepSize = t-stepStart;
+				}
+				final double h = stepSize;
+
+				if (stiff) {
+					if (jacobian == null) {
+						jacobian = computeJacobian(stepStart, y, f0);
+					}
+					error = rosenbrockStep(h, n, y, f0, jacobian, lu, yNew, yStage, f1, f2, k1, k2, k3, err);
+				} else {
+					error = explicitStep(h, n, y, f0, yNew, yStage, f2, k2, k3, err);
+				}
+
+				if (error >= 1.0) {
+					rejectedSteps++;
+					double factor = Math.max(MIN_REDUCTION, SAFETY*Math.pow(error, -1.0/3.0));
+					hNew = filterStep(h*factor, forward, false);
+				}
+			}
+
+			// Spectral radius from the Jacobian of the implicit step
+			double rho = 0.0;
+			if (stiff) {
+				rho = spectralRadius(jacobian, n, powerStart, k1, k2);
+				stiffSteps++;
+			}
+
+			// Step accepted
+			acceptedSteps++;
+			interpolator.storeEnd(f2);
+			interpolator.storeTime(stepStart+stepSize);
+			System.arraycopy(yNew, 0, y, 0, n);
+			System.arraycopy(f2, 0, f0, 0, n);
+			stepStart = acceptStep(interpolator, y, f0, t);
+			System.arraycopy(y, 0, yNew, 0, n);
+			jacobian = null;
+
+			if (!isLastStep) {
+				interpolator.storeTime(stepStart);
+				double factor = Math.min(MAX_GROWTH, Math.max(MIN_REDUCTION, SAFETY*Math.pow(Math.max(error, 1.0e-10), -1.0/3.0)));
+				double scaledH = stepSize*factor;
+
+				// Switch when the other method has been the better choice for some steps
+				if (stiff) {
+					// Explicit steps at the stability limit against the next implicit step
+					boolean cheaper = EXPLICIT_COST*rho/STIFF_LIMIT < 0.5*IMPLICIT_COST/Math.abs(scaledH);
+					count = cheaper ? count+1 : 0;
+					if (count >= STIFF_STEPS) {
+						switchMode(false, rho);
+						count = 0;
+					}
+				} else {
+					if (count == 0) {
+						hWindow = Math.abs(stepSize);
+						hMax = 0.0;
+					}
+					hMax = Math.max(hMax, Math.abs(stepSize));
+					if (++count >= STIFF_STEPS) {
+						if (--skip <= 0 && Math.abs(stepSize) <= STALLED*hWindow) {
+							// Limited by stability or by accuracy, the Jacobian at the new point tells
+							jacobian = computeJacobian(stepStart, y, f0);
+							rho = spectralRadius(jacobian, n, powerStart, k1, k2);
+							if (hMax*rho >= STIFF_LIMIT && implicitStep(forward, t, hMax, n, y, f0, jacobian, lu, 
+									yNew, yStage, f1, f2, k1, k2, k3, err) > 2.0*IMPLICIT_COST/EXPLICIT_COST*hMax) {
+								switchMode(true, rho); // The Jacobian is used for the next step
+								backoff = 1;
+							} else {
+								jacobian = null;
+								backoff = Math.min(2*backoff, MAX_BACKOFF);
+							}
+							skip = backoff;
+						}
+						count = 0;
+					}
+				}
+
+				double nextT = stepStart+scaledH;
+				boolean nextIsLast = forward ? (nextT >= t) : (nextT <= t);
+				hNew = filterStep(scaledH, forward, nextIsLast);
+				double filteredNextT = stepStart+hNew;
+				boolean filteredNextIsLast = forward ? (filteredNextT >= t) : (filteredNextT <= t);
+				if (filteredNextIsLast) {
+					hNew = t-stepStart;
+				}
+			}
+		} while (!isLastStep);
+
+		equations.setTime(stepStart);
+		equations.setCompleteState(y);
+		resetInternalState();
+	}
+
+	/**
+	 * Bogacki-Shampine 3(2) step, the derivative at the new point is reused for the next step
+	 *
+	 * @return 	Error norm of the step
+	 */
+	private double explicitStep(double h, int n, double[] y, double[] f0, double[] yNew, double[] yStage,
+			double[] f2, double[] k2, double[] k3, double[] err)
+			throws MaxCountExceededException, DimensionMismatchException {
+		for (int i=0;i<n;i++) {
+			yStage[i] = y[i]+0.5*h*f0[i];
+		}
+		computeDerivatives(stepStart+0.5*h, yStage, k2);
+		for (int i=0;i<n;i++) {
+			yStage[i] = y[i]+0.75*h*k2[i];
+		}
+		computeDerivatives(stepStart+0.75*h, yStage, k3);
+		for (int i=0;i<n;i++) {
+			yNew[i] = y[i]+h*(2.0/9.0*f0[i]+1.0/3.0*k2[i]+4.0/9.0*k3[i]);
+		}
+		computeDerivatives(stepStart+h, yNew, f2);
+		for (int i=0;i<n;i++) {
+			err[i] = h*(-5.0/72.0*f0[i]+1.0/12.0*k2[i]+1.0/9.0*k3[i]-1.0/8.0*f2[i]);
+		}
+		return finite(errorNorm(err, y, yNew));
+	}
+
+	/**
+	 * Rosenbrock-W 2(3) step as in {@link RosenbrockIntegrator}, the derivative at the new point is reused for the next step
+	 *
+	 * @return 	Error norm of the step, infinite if the iteration matrix is singular
+	 */
+	private double rosenbrockStep(double h, int n, double[] y, double[] f0, double[][] jacobian, DenseLU lu, double[] yNew,
+			double[] yStage, double[] f1, double[] f2, double[] k1, double[] k2, double[] k3, double[] err)
+			throws MaxCountExceededException, DimensionMismatchException {
+		// W = I - h*d*J
+		double[][] w = lu.getMatrix();
+		double hd = h*D;
+		for (int i=0;i<n;i++) {
+			double[] row = w[i];
+			double[] jRow = jacobian[i];
+			for (int j=0;j<n;j++) {
+				row[j] = -hd*jRow[j];
+			}
+			row[i] += 1.0;
+		}
+		decompositions++;
+		if (!lu.decompose()) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		// Stage 1
+		System.arraycopy(f0, 0, k1, 0, n);
+		lu.solve(k1);
+
+		// Stage 2
+		for (int i=0;i<n;i++) {
+			yStage[i] = y[i]+0.5*h*k1[i];
+		}
+		computeDerivatives(stepStart+0.5*h, yStage, f1);
+		for (int i=0;i<n;i++) {
+			k2[i] = f1[i]-k1[i];
+		}
+		lu.solve(k2);
+		for (int i=0;i<n;i++) {
+			k2[i] += k1[i];
+			yNew[i] = y[i]+h*k2[i];
+		}
+
+		// Stage 3 (error estimate)
+		computeDerivatives(stepStart+h, yNew, f2);
+		for (int i=0;i<n;i++) {
+			k3[i] = f2[i]-E32*(k2[i]-f1[i])-2.0*(k1[i]-f0[i]);
+		}
+		lu.solve(k3);
+		for (int i=0;i<n;i++) {
+			err[i] = h/6.0*(k1[i]-2.0*k2[i]+k3[i]);
+		}
+		return finite(errorNorm(err, y, yNew));
+	}
+
+	/**
+	 * Step size the implicit method would take, predicted from the error of two trial steps.
+	 * The first step damps the stiff components the explicit method leaves at the level of the
+	 * tolerance, which would dominate its error estimate. The trial steps are thrown away, 
+	 * yNew is set back to y.
+	 *
+	 * @param hExplicit 	Explicit step the trial steps are scaled from
+	 * @return 				Predicted implicit step (absolute value), zero if a trial step failed
+	 */
+	private double implicitStep(boolean forward, double t, double hExplicit, int n, double[] y, double[] f0,
+			double[][] jacobian, DenseLU lu, double[] yNew, double[] yStage, double[] f1, double[] f2,
+			double[] k1, double[] k2, double[] k3, double[] err)
+			throws MaxCountExceededException, DimensionMismatchException {
+		double h = Math.min(PROBE*hExplicit, 0.5*Math.abs(t-stepStart));
+		double h0 = forward ? h : -h;
+		double start = stepStart;
+		double[] yTrial = new double[n];
+		double[] fTrial = new double[n];
+		double error = rosenbrockStep(h0, n, y, f0, jacobian, lu, yNew, yStage, f1, f2, k1, k2, k3, err);
+		if (!Double.isInfinite(error)) {
+			System.arraycopy(yNew, 0, yTrial, 0, n);
+			System.arraycopy(f2, 0, fTrial, 0, n);
+			stepStart = start+h0;
+			error = rosenbrockStep(h0, n, yTrial, fTrial, jacobian, lu, yNew, yStage, f1, f2, k1, k2, k3, err);
+			stepStart = start;
+		}
+		System.arraycopy(y, 0, yNew, 0, n);
+		if (Double.isInfinite(error)) {
+			return 0.0;
+		}
+		return h*Math.min(MAX_GROWTH, SAFETY*Math.pow(Math.max(error, 1.0e-10), -1.0/3.0));
+	}
+
+	/**
+	 * Start vector of the power iterations, fixed pseudo-random entries of unit norm. A vector 
+	 * with equal entries can miss the stiff components, e.g. those of a relaxation -lambda*(y_i-y_j).
+	 */
+	private static double[] powerStart(int n) {
+		Random random = new Random(n);
+		double[] v = new double[n];
+		double norm = 0.0;
+		for (int i=0;i<n;i++) {
+			v[i] = 0.5+random.nextDouble();
+			norm += v[i]*v[i];
+		}
+		norm = Math.sqrt(norm);
+		for (int i=0;i<n;i++) {
+			v[i] /= norm;
+		}
+		return v;
+	}
+
+	/**
+	 * Estimate of the largest eigenvalue magnitude of the Jacobian by power iteration
+	 *
+	 * @param start Start vector (unit norm)
+	 * @param v 	Work array
+	 * @param w 	Work array
+	 */
+	private static double spectralRadius(double[][] jacobian, int n, double[] start, double[] v, double[] w) {
+		double rho = 0.0;
+		double norm;
+		System.arraycopy(start, 0, v, 0, n);
+		for (int k=0;k<POWER_ITERATIONS;k++) {
+			norm = 0.0;
+			for (int i=0;i<n;i++) {
+				double sum = 0.0;
+				double[] row = jacobian[i];
+				for (int j=0;j<n;j++) {
+					sum += row[j]*v[j];
+				}
+				w[i] = sum;
+				norm += sum*sum;
+			}
+			norm = Math.sqrt(norm);
+			if (!(norm > 0.0) || Double.isInfinite(norm)) {
+				return norm > 0.0 ? norm : rho;
+			}
+			rho = norm;
+			for (int i=0;i<n;i++) {
+				v[i] = w[i]/norm;
+			}
+		}
+		return rho;
+	}
+
+	private void switchMode(boolean toStiff, double rho) {
+		stiff = toStiff;
+		switches++;
+		LOGGER.info("Switched to " + (stiff ? "implicit Rosenbrock-W" : "explicit Bogacki-Shampine") +
+				" at t = " + stepStart + " (step " + stepSize + ", spectral radius " + rho + ")");
+	}
+
+	private static double finite(double error) {
+		return Double.isNaN(error) ? Double.POSITIVE_INFINITY : error;
+	}
+
+	/**
+	 * Initial step size, either the user supplied one or the standard estimate
+	 */
+	private double initialStep(boolean forward, int n, double[] y, double[] yDot, double[] yTmp, double[] yDotTmp)
+			throws MaxCountExceededException, DimensionMismatchException {
+		double[] scale = new double[mainSetDimension];
+		for (int i=0;i<scale.length;i++) {
+			scale[i] = (vecAbsoluteTolerance == null) ?
+					scalAbsoluteTolerance+scalRelativeTolerance*Math.abs(y[i]) :
+					vecAbsoluteTolerance[i]+vecRelativeTolerance[i]*Math.abs(y[i]);
+		}
+		return initializeStep(forward, stiff ? 2 : 3, scale, stepStart, y, yDot, yTmp, yDotTmp);
+	}
+
+	/**
+	 * @return 	True if the integrator is in the implicit mode, the next integration starts with it
+	 */
+	public boolean isStiff() {
+		return stiff;
+	}
+
+	/**
+	 * @param stiff 	Mode the next integration starts in
+	 */
+	public void setStiff(boolean stiff) {
+		this.stiff = stiff;
+	}
+
+	/**
+	 * @return 	Switches between the methods during the last integration
+	 */
+	public int getSwitches() {
+		return switches;
+	}
+
+	/**
+	 * @return 	Accepted steps of the last integration taken with the implicit method
+	 */
+	public int getStiffSteps() {
+		return stiffSteps;
+	}
+}
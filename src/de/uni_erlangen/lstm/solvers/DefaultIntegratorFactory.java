@@ -0,0 +1,213 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.nonstiff.AdamsBashforthIntegrator;
+import org.apache.commons.math3.ode.nonstiff.AdamsMoultonIntegrator;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import org.apache.commons.math3.ode.nonstiff.GraggBulirschStoerIntegrator;
+import org.apache.commons.math3.ode.nonstiff.HighamHall54Integrator;
+
+/**
+ * Integrator factory configured by solver name, tolerances and step limits
+ * 
+ * Solver names ->
+ * ab		Adams-Bashforth (explicit multistep, default)
+ * am		Adams-Moulton (predictor-corrector multistep)
+ * dp54		Dormand-Prince 5(4)
+ * dp853	Dormand-Prince 8(5,3)
+ * hh54		Higham-Hall 5(4)
+ * gbs		Gragg-Bulirsch-Stoer extrapolation
+ * ros23	Rosenbrock-W 2(3), implicit for stiff problems
+ * auto		Bogacki-Shampine 3(2) switching to Rosenbrock-W 2(3) while the problem is stiff
+ * radau	Radau IIA order 5, implicit for stiff problems and DAEs (S_h2 and pH as algebraic unknowns)
+ * 
+ * @author liampetti
+ *
+ */
+public class DefaultIntegratorFactory implements IntegratorFactory {
+	public final static Logger LOGGER = Logger.getLogger(DefaultIntegratorFactory.class.getName());
+	
+	public enum Solver {
+		AB("ab"), AM("am"), DP54("dp54"), DP853("dp853"), HH54("hh54"), GBS("gbs"), ROS23("ros23"), AUTO("auto"), RADAU("radau");
+		
+		private final String name;
+		
+		Solver(String name) {
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public static Solver fromName(String name) {
+			for (Solver s : values()) {
+				if (s.name.equalsIgnoreCase(name)) {
+					return s;
+				}
+			}
+			throw new IllegalArgumentException("Unknown solver: " + name);
+		}
+	}
+	
+	private Solver solver;
+	private int order; // Number of steps for the Adams methods
+	private double rtol;
+	private double atol;
+	private double hmin;
+	private double hmax;
+	private double h0; // Initial step, zero lets the integrator choose
+	
+	/**
+	 * Default settings match the original hard-coded Adams-Bashforth integrator
+	 */
+	public DefaultIntegratorFactory() {
+		solver = Solver.AB;
+		order = 2;
+		rtol = Double.NaN;
+		atol = Double.NaN;
+		hmin = 1.0e-14;
+		hmax = 100.0;
+		h0 = 0.0;
+	}
+	
+	public DefaultIntegratorFactory(String solver) {
+		this();
+		setSolver(solver);
+	}
+	
+	@Override
+	public FirstOrderIntegrator create() {
+		double r = getRelativeTolerance();
+		double a = getAbsoluteTolerance();
+		AdaptiveStepsizeIntegrator integrator;
+		switch (solver) {
+			case AM:	integrator = new AdamsMoultonIntegrator(order, hmin, hmax, a, r);
+						break;
+			case DP54:	integrator = new DormandPrince54Integrator(hmin, hmax, a, r);
+						break;
+			case DP853:	integrator = new DormandPrince853Integrator(hmin, hmax, a, r);
+						break;
+			case HH54:	integrator = new HighamHall54Integrator(hmin, hmax, a, r);
+						break;
+			case GBS:	integrator = new GraggBulirschStoerIntegrator(hmin, hmax, a, r);
+						break;
+			case ROS23:	integrator = new RosenbrockIntegrator(hmin, hmax, a, r);
+						break;
+			case AUTO:	integrator = new AutoSwitchIntegrator(hmin, hmax, a, r);
+						break;
+			case RADAU:	integrator = new RadauIntegrator(hmin, hmax, a, r);
+						break;
+			case AB:
+			default:	integrator = new AdamsBashforthIntegrator(order, hmin, hmax, a, r);
+						break;
+		}
+		if (h0 > 0) {
+			integrator.setInitialStepSize(h0);
+		}
+		return integrator;
+	}
+	
+	@Override
+	public String getName() {
+		return solver.getName();
+	}
+	
+	public Solver getSolver() {
+		return solver;
+	}
+
+	public void setSolver(Solver solver) {
+		this.solver = solver;
+	}
+	
+	public void setSolver(String name) {
+		this.solver = Solver.fromName(name);
+	}
+
+	public int getOrder() {
+		return order;
+	}
+
+	public void setOrder(int order) {
+		this.order = order;
+	}
+
+	/**
+	 * Relative tolerance, the implicit and switching solvers default to a looser value since 
+	 * they do not need tight tolerances for stability
+	 */
+	public double getRelativeTolerance() {
+		if (Double.isNaN(rtol)) {
+			return (solver == Solver.ROS23 || solver == Solver.AUTO || solver == Solver.RADAU) ? 1.0e-6 : 1.0e-10;
+		}
+		return rtol;
+	}
+
+	public void setRelativeTolerance(double rtol) {
+		this.rtol = rtol;
+	}
+
+	public double getAbsoluteTolerance() {
+		return Double.isNaN(atol) ? 1.0e-10 : atol;
+	}
+
+	public void setAbsoluteTolerance(double atol) {
+		this.atol = atol;
+	}
+
+	public double getMinStep() {
+		return hmin;
+	}
+
+	public void setMinStep(double hmin) {
+		this.hmin = hmin;
+	}
+
+	public double getMaxStep() {
+		return hmax;
+	}
+
+	public void setMaxStep(double hmax) {
+		this.hmax = hmax;
+	}
+
+	public double getInitialStep() {
+		return h0;
+	}
+
+	public void setInitialStep(double h0) {
+		this.h0 = h0;
+	}
+	
+	@Override
+	public String toString() {
+		return solver.getName() + " (rtol " + getRelativeTolerance() + ", atol " + getAbsoluteTolerance() + 
+				", hmin " + hmin + ", hmax " + hmax + ")";
+	}
+}
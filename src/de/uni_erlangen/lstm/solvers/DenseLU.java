@@ -0,0 +1,149 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+/**
+ * In-place LU decomposition with partial pivoting for the small dense
+ * iteration matrices of the implicit integrators.
+ *
+ * The factorisation is stored in a buffer owned by this class so that
+ * repeated decompositions during an integration do not allocate.
+ *
+ * @author liampetti
+ *
+ */
+public class DenseLU {
+
+	private final int n;
+	private final double[][] lu;
+	private final int[] pivot;
+
+	public DenseLU(int n) {
+		this.n = n;
+		lu = new double[n][n];
+		pivot = new int[n];
+	}
+
+	public int getDimension() {
+		return n;
+	}
+
+	/**
+	 * Factorise the given matrix, the matrix itself is left untouched
+	 *
+	 * @param a 	Square matrix of dimension n
+	 * @return		False if the matrix is numerically singular
+	 */
+	public boolean decompose(double[][] a) {
+		for (int i=0;i<n;i++) {
+			System.arraycopy(a[i], 0, lu[i], 0, n);
+		}
+		return decompose();
+	}
+
+	/**
+	 * Factorise the matrix currently held in the internal buffer
+	 *
+	 * @return		False if the matrix is numerically singular
+	 */
+	public boolean decompose() {
+		for (int k=0;k<n;k++) {
+			// Find pivot row
+			int p = k;
+			double max = Math.abs(lu[k][k]);
+			for (int i=k+1;i<n;i++) {
+				double v = Math.abs(lu[i][k]);
+				if (v > max) {
+					max = v;
+					p = i;
+				}
+			}
+			pivot[k] = p;
+			if (max == 0.0) {
+				return false;
+			}
+			if (p != k) {
+				double[] tmp = lu[p];
+				lu[p] = lu[k];
+				lu[k] = tmp;
+			}
+
+			// Eliminate below the pivot
+			double[] rowK = lu[k];
+			double inv = 1.0/rowK[k];
+			for (int i=k+1;i<n;i++) {
+				double[] rowI = lu[i];
+				double m = rowI[k]*inv;
+				rowI[k] = m;
+				if (m != 0.0) {
+					for (int j=k+1;j<n;j++) {
+						rowI[j] -= m*rowK[j];
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Direct access to the internal buffer, used to assemble the matrix in place
+	 * before calling {@link #decompose()}
+	 */
+	public double[][] getMatrix() {
+		return lu;
+	}
+
+	/**
+	 * Solve A x = b, overwriting b with the solution
+	 *
+	 * @param b		Right hand side on entry, solution on exit
+	 */
+	public void solve(double[] b) {
+		// Row interchanges in the order they were made
+		for (int k=0;k<n;k++) {
+			int p = pivot[k];
+			if (p != k) {
+				double tmp = b[p];
+				b[p] = b[k];
+				b[k] = tmp;
+			}
+		}
+		// Forward substitution (unit lower triangle)
+		for (int k=0;k<n;k++) {
+			double bk = b[k];
+			if (bk != 0.0) {
+				for (int i=k+1;i<n;i++) {
+					b[i] -= lu[i][k]*bk;
+				}
+			}
+		}
+		// Back substitution
+		for (int i=n-1;i>=0;i--) {
+			double[] row = lu[i];
+			double sum = b[i];
+			for (int j=i+1;j<n;j++) {
+				sum -= row[j]*b[j];
+			}
+			b[i] = sum/row[i];
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.solvers;
+
+/**
+ * Right-hand side of a batch of independent systems of the same dimension, 
+ * stored as structure of arrays (one array over the members per variable)
+ * 
+ * @author liampetti
+ *
+ */
+public interface EnsembleEquations {
+	
+	/**
+	 * @return Variables of each member
+	 */
+	int getDimension();
+	
+	/**
+	 * @return Members in the batch
+	 */
+	int getMembers();
+	
+	/**
+	 * Derivatives of all members, independent of time (time varying inputs are 
+	 * set between the calls of the integrator)
+	 * 
+	 * @param y 	States [variable][member]
+	 * @param yDot 	Derivatives [variable][member]
+	 */
+	void computeDerivatives(double[][] y, double[][] yDot);
+}
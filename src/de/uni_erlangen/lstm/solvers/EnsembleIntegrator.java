@@ -0,0 +1,360 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.solvers;
+
+import java.util.Arrays;
+
+/**
+ * Lock-step Dormand-Prince 5(4) integrator for a batch of independent systems (see {@link EnsembleEquations})
+ *
+ * Every stage is one call of the batch right-hand side for all members. With adaptive steps each
+ * member has its own step size, error estimate and position in time: since the equations do not
+ * depend on time, members with different steps share the stage evaluations, and a member that
+ * has reached the end (or failed) takes steps of zero length until the others are done. With a
+ * fixed step all members take the same steps without error control. The last derivative of an
+ * accepted step is reused as the first of the next (FSAL) within a call of {@link #integrate}, 
+ * so the inputs of the equations may change between calls. The step sizes of the members are 
+ * kept from one call to the next as long as the batch size does not change.
+ *
+ * @author liampetti
+ *
+ */
+public class EnsembleIntegrator {
+
+	// Butcher tableau (Dormand and Prince, J. Comput. Appl. Math. 6, 1980)
+	private static final double A21 = 1.0/5.0;
+	private static final double A31 = 3.0/40.0, A32 = 9.0/40.0;
+	private static final double A41 = 44.0/45.0, A42 = -56.0/15.0, A43 = 32.0/9.0;
+	private static final double A51 = 19372.0/6561.0, A52 = -25360.0/2187.0, A53 = 64448.0/6561.0, A54 = -212.0/729.0;
+	private static final double A61 = 9017.0/3168.0, A62 = -355.0/33.0, A63 = 46732.0/5247.0, A64 = 49.0/176.0, A65 = -5103.0/18656.0;
+	private static final double B1 = 35.0/384.0, B3 = 500.0/1113.0, B4 = 125.0/192.0, B5 = -2187.0/6784.0, B6 = 11.0/84.0;
+	// Difference between the fifth and fourth order solutions
+	private static final double E1 = 71.0/57600.0, E3 = -71.0/16695.0, E4 = 71.0/1920.0, E5 = -17253.0/339200.0,
+			E6 = 22.0/525.0, E7 = -1.0/40.0;
+
+	private static final double SAFETY = 0.9;
+	private static final double MIN_REDUCTION = 0.2;
+	private static final double MAX_GROWTH = 10.0;
+
+	private final double minStep;
+	private final double maxStep;
+	private final double atol;
+	private final double rtol;
+	private double fixedStep; // Zero for adaptive steps
+
+	private int dim;
+	private int n; // Members
+	private double[][] k1, k2, k3, k4, k5, k6, k7, yStage;
+	private double[] h; // Next step of each member
+	private double[] hStep; // Current step of each member, zero if it does not move
+	private double[] elapsed;
+	private double[] error;
+	private boolean[] failed;
+
+	private long evaluations;
+	private long steps;
+	private long rejected;
+
+	/**
+	 * @param minStep 	Minimal step, a member that needs a smaller one has failed
+	 * @param maxStep 	Maximal step
+	 * @param atol 		Allowed absolute error
+	 * @param rtol 		Allowed relative error
+	 */
+	public EnsembleIntegrator(double minStep, double maxStep, double atol, double rtol) {
+		this.minStep = minStep;
+		this.maxStep = maxStep;
+		this.atol = atol;
+		this.rtol = rtol;
+	}
+
+	/**
+	 * @param fixedStep 	Step of all members without error control, zero (default) for adaptive steps
+	 */
+	public void setFixedStep(double fixedStep) {
+		this.fixedStep = fixedStep;
+	}
+
+	public double getFixedStep() {
+		return fixedStep;
+	}
+
+	/**
+	 * Advance every member by the same time, members that failed before are left where they are
+	 *
+	 * @param equations 	Batch right-hand side
+	 * @param y 			States [variable][member], integrated in place
+	 * @param duration 		Time to integrate over
+	 */
+	public void integrate(EnsembleEquations equations, double[][] y, double duration) {
+		if (equations.getDimension() != dim || equations.getMembers() != n) {
+			allocate(equations.getDimension(), equations.getMembers());
+		}
+		if (duration <= 0.0) {
+			return;
+		}
+		evaluate(equations, y, k1);
+		if (fixedStep > 0.0) {
+			integrateFixed(equations, y, duration);
+		} else {
+			integrateAdaptive(equations, y, duration);
+		}
+	}
+
+	/**
+	 * Forget the step sizes and the failed members, needed if the states have been changed outside the integrator
+	 */
+	public void reset() {
+		if (h != null) {
+			Arrays.fill(h, 0.0);
+			Arrays.fill(failed, false);
+		}
+	}
+
+	private void allocate(int dim, int n) {
+		this.dim = dim;
+		this.n = n;
+		k1 = new double[dim][n];
+		k2 = new double[dim][n];
+		k3 = new double[dim][n];
+		k4 = new double[dim][n];
+		k5 = new double[dim][n];
+		k6 = new double[dim][n];
+		k7 = new double[dim][n];
+		yStage = new double[dim][n];
+		h = new double[n];
+		hStep = new double[n];
+		elapsed = new double[n];
+		error = new double[n];
+		failed = new boolean[n];
+	}
+
+	private void integrateFixed(EnsembleEquations equations, double[][] y, double duration) {
+		int count = (int) Math.ceil(duration/fixedStep-1.0e-9);
+		double step = duration/count;
+		for (int m=0;m<n;m++) {
+			hStep[m] = failed[m] ? 0.0 : step;
+		}
+		for (int c=0;c<count;c++) {
+			stages(equations, y);
+			for (int m=0;m<n;m++) {
+				error[m] = 0.0;
+			}
+			for (int i=0;i<dim;i++) {
+				final double[] yi = y[i], si = yStage[i], err = error, hs = hStep;
+				for (int m=0;m<n;m++) {
+					yi[m] = hs[m] > 0.0 ? si[m] : yi[m];
+					err[m] += si[m]*0.0; // NaN or infinity of any variable fails the member
+				}
+			}
+			for (int m=0;m<n;m++) {
+				if (hStep[m] > 0.0) {
+					if (error[m] != 0.0) {
+						failed[m] = true;
+						hStep[m] = 0.0;
+					} else {
+						steps++;
+					}
+				}
+			}
+			// All members moved, the derivatives at the new states are the first stage of the next step
+			double[][] tmp = k1;
+			k1 = k7;
+			k7 = tmp;
+		}
+	}
+
+	private void integrateAdaptive(EnsembleEquations equations, double[][] y, double duration) {
+		int active = 0;
+		for (int m=0;m<n;m++) {
+			elapsed[m] = 0.0;
+			if (!failed[m]) {
+				active++;
+				if (!(h[m] > 0.0)) {
+					h[m] = initialStep(y, m);
+				}
+			}
+		}
+
+		while (active > 0) {
+			for (int m=0;m<n;m++) {
+				double remaining = duration-elapsed[m];
+				if (failed[m] || remaining <= 0.0) {
+					hStep[m] = 0.0;
+				} else {
+					// Stretch the last step instead of leaving a tiny remainder
+					hStep[m] = (h[m] >= remaining || remaining-h[m] < 1.0e-9*duration) ? remaining : h[m];
+				}
+			}
+			stages(equations, y);
+
+			// Scaled RMS error of each member
+			for (int m=0;m<n;m++) {
+				error[m] = 0.0;
+			}
+			for (int i=0;i<dim;i++) {
+				final double[] yi = y[i], si = yStage[i], err = error, hs = hStep;
+				final double[] a1 = k1[i], a3 = k3[i], a4 = k4[i], a5 = k5[i], a6 = k6[i], a7 = k7[i];
+				for (int m=0;m<n;m++) {
+					double e = hs[m]*(E1*a1[m]+E3*a3[m]+E4*a4[m]+E5*a5[m]+E6*a6[m]+E7*a7[m]);
+					double scale = atol+rtol*Math.max(Math.abs(yi[m]), Math.abs(si[m]));
+					double r = e/scale;
+					err[m] += r*r;
+				}
+			}
+
+			for (int m=0;m<n;m++) {
+				if (hStep[m] == 0.0) {
+					continue;
+				}
+				double e = Math.sqrt(error[m]/dim);
+				if (e <= 1.0) {
+					steps++;
+					elapsed[m] += hStep[m];
+					double factor = Math.min(MAX_GROWTH, SAFETY*Math.pow(Math.max(e, 1.0e-10), -0.2));
+					// A step shortened to reach the end does not hold back the next one
+					h[m] = Math.min(maxStep, (hStep[m] < h[m] && factor >= 1.0) ? h[m] : hStep[m]*factor);
+					if (elapsed[m] >= duration) {
+						active--;
+					}
+				} else {
+					rejected++;
+					double factor = (e < Double.POSITIVE_INFINITY) ? Math.max(MIN_REDUCTION, SAFETY*Math.pow(e, -0.2)) : MIN_REDUCTION;
+					h[m] = hStep[m]*factor;
+					hStep[m] = 0.0; // Not moved, keeps its state and derivatives
+					if (h[m] < minStep) {
+						failed[m] = true;
+						active--;
+					}
+				}
+			}
+
+			// Accepted members move to the new state, their last derivatives are the first of the next step
+			for (int i=0;i<dim;i++) {
+				final double[] yi = y[i], si = yStage[i], a1 = k1[i], a7 = k7[i], hs = hStep;
+				for (int m=0;m<n;m++) {
+					boolean move = hs[m] > 0.0;
+					yi[m] = move ? si[m] : yi[m];
+					a1[m] = move ? a7[m] : a1[m];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stages 2-7 with the steps in hStep, the new states end up in yStage and their derivatives in k7
+	 */
+	private void stages(EnsembleEquations equations, double[][] y) {
+		final double[] hs = hStep;
+		for (int i=0;i<dim;i++) {
+			final double[] yi = y[i], si = yStage[i], a1 = k1[i];
+			for (int m=0;m<n;m++) {
+				si[m] = yi[m]+hs[m]*A21*a1[m];
+			}
+		}
+		evaluate(equations, yStage, k2);
+		for (int i=0;i<dim;i++) {
+			final double[] yi = y[i], si = yStage[i], a1 = k1[i], a2 = k2[i];
+			for (int m=0;m<n;m++) {
+				si[m] = yi[m]+hs[m]*(A31*a1[m]+A32*a2[m]);
+			}
+		}
+		evaluate(equations, yStage, k3);
+		for (int i=0;i<dim;i++) {
+			final double[] yi = y[i], si = yStage[i], a1 = k1[i], a2 = k2[i], a3 = k3[i];
+			for (int m=0;m<n;m++) {
+				si[m] = yi[m]+hs[m]*(A41*a1[m]+A42*a2[m]+A43*a3[m]);
+			}
+		}
+		evaluate(equations, yStage, k4);
+		for (int i=0;i<dim;i++) {
+			final double[] yi = y[i], si = yStage[i], a1 = k1[i], a2 = k2[i], a3 = k3[i], a4 = k4[i];
+			for (int m=0;m<n;m++) {
+				si[m] = yi[m]+hs[m]*(A51*a1[m]+A52*a2[m]+A53*a3[m]+A54*a4[m]);
+			}
+		}
+		evaluate(equations, yStage, k5);
+		for (int i=0;i<dim;i++) {
+			final double[] yi = y[i], si = yStage[i], a1 = k1[i], a2 = k2[i], a3 = k3[i], a4 = k4[i], a5 = k5[i];
+			for (int m=0;m<n;m++) {
+				si[m] = yi[m]+hs[m]*(A61*a1[m]+A62*a2[m]+A63*a3[m]+A64*a4[m]+A65*a5[m]);
+			}
+		}
+		evaluate(equations, yStage, k6);
+		for (int i=0;i<dim;i++) {
+			final double[] yi = y[i], si = yStage[i], a1 = k1[i], a3 = k3[i], a4 = k4[i], a5 = k5[i], a6 = k6[i];
+			for (int m=0;m<n;m++) {
+				si[m] = yi[m]+hs[m]*(B1*a1[m]+B3*a3[m]+B4*a4[m]+B5*a5[m]+B6*a6[m]);
+			}
+		}
+		evaluate(equations, yStage, k7);
+	}
+
+	private void evaluate(EnsembleEquations equations, double[][] y, double[][] yDot) {
+		equations.computeDerivatives(y, yDot);
+		evaluations++;
+	}
+
+	/**
+	 * First step of a member from the size of its state and derivatives (Hairer, Norsett and Wanner,
+	 * Solving Ordinary Differential Equations I, II.4)
+	 */
+	private double initialStep(double[][] y, int m) {
+		double y0 = 0.0, f0 = 0.0;
+		for (int i=0;i<dim;i++) {
+			double scale = atol+rtol*Math.abs(y[i][m]);
+			y0 += (y[i][m]/scale)*(y[i][m]/scale);
+			f0 += (k1[i][m]/scale)*(k1[i][m]/scale);
+		}
+		double step = (y0 < 1.0e-10 || f0 < 1.0e-10) ? 1.0e-6 : 0.01*Math.sqrt(y0/f0);
+		return Math.max(minStep, Math.min(maxStep, step));
+	}
+
+	/**
+	 * @return True if the member needed a step below the minimum, it is no longer integrated
+	 */
+	public boolean isFailed(int m) {
+		return failed[m];
+	}
+
+	/**
+	 * @return Calls of the batch right-hand side
+	 */
+	public long getEvaluations() {
+		return evaluations;
+	}
+
+	/**
+	 * @return Accepted steps summed over the members
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return Rejected steps summed over the members
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.apache.commons.math3.ode.EquationsMapper;
+import org.apache.commons.math3.ode.sampling.AbstractStepInterpolator;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+/**
+ * Cubic Hermite dense output between two accepted steps.
+ *
+ * Only needs the states and derivatives at both ends of the step, which every
+ * one-step method in this package has available without extra evaluations.
+ *
+ * @author liampetti
+ *
+ */
+public class HermiteStepInterpolator extends AbstractStepInterpolator {
+	private static final long serialVersionUID = 20160301L;
+
+	private double[] y0;
+	private double[] f0;
+	private double[] f1;
+
+	/**
+	 * Empty constructor needed for externalization
+	 */
+	public HermiteStepInterpolator() {
+		super();
+	}
+
+	protected HermiteStepInterpolator(HermiteStepInterpolator interpolator) {
+		super(interpolator);
+		if (interpolator.y0 != null) {
+			y0 = interpolator.y0.clone();
+			f0 = interpolator.f0.clone();
+			f1 = interpolator.f1.clone();
+		}
+	}
+
+	/**
+	 * Bind the interpolator to the integrator state array
+	 *
+	 * @param y 		State array updated in place by the integrator
+	 * @param forward	Integration direction
+	 */
+	public void reinitialize(double[] y, boolean forward, EquationsMapper primaryMapper, EquationsMapper[] secondaryMappers) {
+		super.reinitialize(y, forward, primaryMapper, secondaryMappers);
+		y0 = new double[y.length];
+		f0 = new double[y.length];
+		f1 = new double[y.length];
+	}
+
+	/**
+	 * Store the state and derivative at the beginning of the step
+	 */
+	public void storeStart(double[] y, double[] yDot) {
+		System.arraycopy(y, 0, y0, 0, y0.length);
+		System.arraycopy(yDot, 0, f0, 0, f0.length);
+	}
+
+	/**
+	 * Store the derivative at the end of the step, the end state is the bound state array
+	 */
+	public void storeEnd(double[] yDot) {
+		System.arraycopy(yDot, 0, f1, 0, f1.length);
+	}
+
+	@Override
+	protected StepInterpolator doCopy() {
+		return new HermiteStepInterpolator(this);
+	}
+
+	@Override
+	protected void computeInterpolatedStateAndDerivatives(double theta, double oneMinusThetaH) {
+		double h = this.h;
+		double theta2 = theta*theta;
+		double theta3 = theta2*theta;
+
+		// Hermite basis functions and their time derivatives
+		double h00 = 2.0*theta3-3.0*theta2+1.0;
+		double h10 = theta3-2.0*theta2+theta;
+		double h01 = -2.0*theta3+3.0*theta2;
+		double h11 = theta3-theta2;
+		double d00 = 6.0*theta2-6.0*theta;
+		double d10 = 3.0*theta2-4.0*theta+1.0;
+		double d11 = 3.0*theta2-2.0*theta;
+
+		for (int i=0;i<interpolatedState.length;i++) {
+			double a = y0[i];
+			double b = currentState[i];
+			interpolatedState[i] = h00*a+h01*b+h*(h10*f0[i]+h11*f1[i]);
+			interpolatedDerivatives[i] = (h == 0.0) ? f0[i] : d00*(a-b)/h+d10*f0[i]+d11*f1[i];
+		}
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		writeBaseExternal(out);
+		int n = (y0 == null) ? -1 : y0.length;
+		out.writeInt(n);
+		for (int i=0;i<n;i++) {
+			out.writeDouble(y0[i]);
+			out.writeDouble(f0[i]);
+			out.writeDouble(f1[i]);
+		}
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		double t = readBaseExternal(in);
+		int n = in.readInt();
+		if (n >= 0) {
+			y0 = new double[n];
+			f0 = new double[n];
+			f1 = new double[n];
+			for (int i=0;i<n;i++) {
+				y0[i] = in.readDouble();
+				f0[i] = in.readDouble();
+				f1[i] = in.readDouble();
+			}
+		}
+		setInterpolatedTime(t);
+	}
+}
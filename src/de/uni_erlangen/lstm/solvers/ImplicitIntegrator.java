@@ -0,0 +1,144 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.ode.ExpandableStatefulODE;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
+
+/**
+ * Common base for the adaptive implicit integrators, handles the Jacobian
+ * (analytic when the equations implement {@link MainStateJacobianProvider},
+ * forward differences otherwise) and the step statistics.
+ *
+ * @author liampetti
+ *
+ */
+public abstract class ImplicitIntegrator extends AdaptiveStepsizeIntegrator {
+
+	private double[][] jacobian;
+	private double[] yPerturbed;
+	private double[] fPerturbed;
+
+	protected int acceptedSteps;
+	protected int rejectedSteps;
+	protected int jacobianEvaluations;
+	protected int decompositions;
+
+	public ImplicitIntegrator(String name, double minStep, double maxStep, double scalAbsoluteTolerance, double scalRelativeTolerance) {
+		super(name, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+	}
+
+	public ImplicitIntegrator(String name, double minStep, double maxStep, double[] vecAbsoluteTolerance, double[] vecRelativeTolerance) {
+		super(name, minStep, maxStep, vecAbsoluteTolerance, vecRelativeTolerance);
+	}
+
+	/**
+	 * Reset the statistics and allocate the Jacobian buffers at the start of an integration
+	 */
+	protected void initImplicit(int n) {
+		if (jacobian == null || jacobian.length != n) {
+			jacobian = new double[n][n];
+			yPerturbed = new double[n];
+			fPerturbed = new double[n];
+		}
+		acceptedSteps = 0;
+		rejectedSteps = 0;
+		jacobianEvaluations = 0;
+		decompositions = 0;
+	}
+
+	/**
+	 * Evaluate df/dy at the given point
+	 *
+	 * @param t 	Time
+	 * @param y		Complete state
+	 * @param yDot	Derivatives already evaluated at (t,y)
+	 * @return		The Jacobian buffer, valid until the next call
+	 */
+	protected double[][] computeJacobian(double t, double[] y, double[] yDot)
+			throws MaxCountExceededException, DimensionMismatchException {
+		jacobianEvaluations++;
+		ExpandableStatefulODE equations = getExpandable();
+		FirstOrderDifferentialEquations primary = equations.getPrimary();
+		if (primary instanceof MainStateJacobianProvider && equations.getTotalDimension() == primary.getDimension()) {
+			for (double[] row : jacobian) {
+				Arrays.fill(row, 0.0);
+			}
+			((MainStateJacobianProvider) primary).computeMainStateJacobian(t, y, yDot, jacobian);
+			return jacobian;
+		}
+
+		// Forward differences, one column at a time
+		int n = y.length;
+		System.arraycopy(y, 0, yPerturbed, 0, n);
+		for (int j=0;j<n;j++) {
+			double yj = y[j];
+			double delta = Math.sqrt(Math.ulp(1.0))*Math.max(Math.abs(yj), 1.0e-5);
+			yPerturbed[j] = yj+delta;
+			delta = yPerturbed[j]-yj;
+			computeDerivatives(t, yPerturbed, fPerturbed);
+			for (int i=0;i<n;i++) {
+				jacobian[i][j] = (fPerturbed[i]-yDot[i])/delta;
+			}
+			yPerturbed[j] = yj;
+		}
+		return jacobian;
+	}
+
+	/**
+	 * Weighted RMS norm of an error vector
+	 */
+	protected double errorNorm(double[] err, double[] y0, double[] y1) {
+		double sum = 0.0;
+		for (int i=0;i<mainSetDimension;i++) {
+			double yScale = Math.max(Math.abs(y0[i]), Math.abs(y1[i]));
+			double tol = (vecAbsoluteTolerance == null) ?
+					scalAbsoluteTolerance+scalRelativeTolerance*yScale :
+					vecAbsoluteTolerance[i]+vecRelativeTolerance[i]*yScale;
+			double ratio = err[i]/tol;
+			sum += ratio*ratio;
+		}
+		return Math.sqrt(sum/mainSetDimension);
+	}
+
+	public int getAcceptedSteps() {
+		return acceptedSteps;
+	}
+
+	public int getRejectedSteps() {
+		return rejectedSteps;
+	}
+
+	public int getJacobianEvaluations() {
+		return jacobianEvaluations;
+	}
+
+	public int getDecompositions() {
+		return decompositions;
+	}
+}
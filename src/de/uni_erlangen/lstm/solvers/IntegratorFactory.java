@@ -0,0 +1,44 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+
+/**
+ * Creates the integrator used by the model, lets the method and its settings
+ * be chosen at run time instead of in the source
+ * 
+ * @author liampetti
+ *
+ */
+public interface IntegratorFactory {
+	
+	/**
+	 * @return A new, fully configured integrator
+	 */
+	FirstOrderIntegrator create();
+	
+	/**
+	 * @return Short name of the method for reporting
+	 */
+	String getName();
+}
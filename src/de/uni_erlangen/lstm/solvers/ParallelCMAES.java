@@ -0,0 +1,387 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.solvers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * Bounded CMA-ES minimiser evaluating each generation in parallel
+ * 
+ * (mu/mu_w, lambda) evolution strategy with covariance matrix adaptation and cumulative step size 
+ * control (Hansen, The CMA Evolution Strategy: A Tutorial, 2016). The search runs in coordinates 
+ * scaled to the unit box, candidates outside the bounds are resampled a few times and then 
+ * clipped. The candidates of a generation are drawn on the calling thread and evaluated on a 
+ * fork-join pool, so with a fixed seed and population size the result does not depend on the 
+ * number of threads.
+ * 
+ * The commons-math CMAESOptimizer evaluates the candidates one after the other, which is why the 
+ * generation loop is implemented here. Failed evaluations should return a non-finite value, they 
+ * are ranked last.
+ * 
+ * @author liampetti
+ *
+ */
+public class ParallelCMAES {
+	public final static Logger LOGGER = Logger.getLogger(ParallelCMAES.class.getName());
+	
+	private static final int MAX_RESAMPLES = 10; // Draws for a candidate inside the bounds before it is clipped
+	
+	private int threads;
+	private int populationSize; // 0 for the default
+	private double sigma; // Initial step size, relative to the width of the bounds
+	private int maxEvaluations;
+	private double tolX; // Stop when the search distribution is this narrow (relative to the bounds)
+	private double tolFun; // Stop when the best values of the recent generations differ by less than this
+	private long seed;
+	
+	private double[] best;
+	private double bestValue;
+	private int evaluations;
+	private int generations;
+	
+	/**
+	 * @param threads 	Candidates evaluated at the same time
+	 */
+	public ParallelCMAES(int threads) {
+		this.threads = threads;
+		populationSize = 0;
+		sigma = 0.3;
+		maxEvaluations = 1000;
+		tolX = 1.0e-6;
+		tolFun = 1.0e-12;
+		seed = 42;
+	}
+	
+	public ParallelCMAES() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Minimise a function within bounds
+	 * 
+	 * @param f 		Objective, called from several threads at the same time
+	 * @param start 	Initial mean of the search distribution (moved inside the bounds)
+	 * @param lower 	Lower bounds
+	 * @param upper 	Upper bounds
+	 * @return Best point found
+	 */
+	public double[] minimize(final MultivariateFunction f, double[] start, double[] lower, double[] upper) {
+		final int n = start.length;
+		final double[] width = new double[n];
+		for (int i=0;i<n;i++) {
+			width[i] = upper[i]-lower[i];
+			if (!(width[i] > 0.0)) {
+				throw new IllegalArgumentException("Empty bounds for variable " + i);
+			}
+		}
+		
+		// Strategy parameters (tutorial defaults), at least one candidate per thread
+		int lambda = populationSize > 0 ? populationSize : Math.max(4+(int) Math.floor(3.0*Math.log(n)), threads);
+		int mu = lambda/2;
+		double[] weights = new double[mu];
+		double sum = 0.0;
+		for (int i=0;i<mu;i++) {
+			weights[i] = Math.log(mu+0.5)-Math.log(i+1);
+			sum += weights[i];
+		}
+		double sumSq = 0.0;
+		for (int i=0;i<mu;i++) {
+			weights[i] /= sum;
+			sumSq += weights[i]*weights[i];
+		}
+		double mueff = 1.0/sumSq;
+		double cc = (4.0+mueff/n)/(n+4.0+2.0*mueff/n);
+		double cs = (mueff+2.0)/(n+mueff+5.0);
+		double c1 = 2.0/((n+1.3)*(n+1.3)+mueff);
+		double cmu = Math.min(1.0-c1, 2.0*(mueff-2.0+1.0/mueff)/((n+2.0)*(n+2.0)+mueff));
+		double damps = 1.0+2.0*Math.max(0.0, Math.sqrt((mueff-1.0)/(n+1.0))-1.0)+cs;
+		double chiN = Math.sqrt(n)*(1.0-1.0/(4.0*n)+1.0/(21.0*n*n));
+		int history = 10+(int) Math.ceil(30.0*n/lambda);
+		
+		// Distribution in unit box coordinates
+		double[] mean = new double[n];
+		for (int i=0;i<n;i++) {
+			mean[i] = Math.min(Math.max((start[i]-lower[i])/width[i], 0.0), 1.0);
+		}
+		double step = sigma;
+		double[][] C = new double[n][n];
+		double[][] B = new double[n][n];
+		double[] D = new double[n];
+		for (int i=0;i<n;i++) {
+			C[i][i] = 1.0;
+			B[i][i] = 1.0;
+			D[i] = 1.0;
+		}
+		double[] pc = new double[n];
+		double[] ps = new double[n];
+		
+		RandomGenerator random = new MersenneTwister(seed);
+		double[][] z = new double[lambda][n]; // Unit box candidates
+		double[][] yk = new double[lambda][n]; // Steps (z - mean)/step
+		double[] values = new double[lambda];
+		double[] recent = new double[history]; // Best value of the recent generations
+		Integer[] order = new Integer[lambda];
+		
+		best = denormalize(mean, lower, width);
+		bestValue = Double.POSITIVE_INFINITY;
+		evaluations = 0;
+		generations = 0;
+		
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			while (evaluations+lambda <= maxEvaluations) {
+				// Sample the generation
+				for (int k=0;k<lambda;k++) {
+					double[] g = new double[n];
+					for (int r=0;r<=MAX_RESAMPLES;r++) {
+						for (int i=0;i<n;i++) {
+							g[i] = random.nextGaussian()*D[i];
+						}
+						boolean inside = true;
+						for (int i=0;i<n;i++) {
+							double bd = 0.0;
+							for (int j=0;j<n;j++) {
+								bd += B[i][j]*g[j];
+							}
+							z[k][i] = mean[i]+step*bd;
+							if (z[k][i] < 0.0 || z[k][i] > 1.0) {
+								inside = false;
+							}
+						}
+						if (inside) {
+							break;
+						}
+					}
+					for (int i=0;i<n;i++) {
+						z[k][i] = Math.min(Math.max(z[k][i], 0.0), 1.0);
+						yk[k][i] = (z[k][i]-mean[i])/step;
+					}
+				}
+				
+				// Evaluate in parallel
+				List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+				for (int k=0;k<lambda;k++) {
+					final double[] point = denormalize(z[k], lower, width);
+					tasks.add(new Callable<Double>() {
+						public Double call() {
+							return f.value(point);
+						}
+					});
+				}
+				List<Future<Double>> futures = pool.invokeAll(tasks);
+				for (int k=0;k<lambda;k++) {
+					double v = futures.get(k).get();
+					values[k] = Double.isNaN(v) ? Double.POSITIVE_INFINITY : v;
+					order[k] = k;
+				}
+				evaluations += lambda;
+				final double[] fv = values;
+				Arrays.sort(order, new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						return Double.compare(fv[a], fv[b]);
+					}
+				});
+				if (values[order[0]] < bestValue) {
+					bestValue = values[order[0]];
+					best = denormalize(z[order[0]], lower, width);
+				}
+				recent[generations%history] = values[order[0]];
+				generations++;
+				
+				// Recombination
+				double[] yw = new double[n];
+				for (int i=0;i<mu;i++) {
+					double[] y = yk[order[i]];
+					for (int j=0;j<n;j++) {
+						yw[j] += weights[i]*y[j];
+					}
+				}
+				for (int j=0;j<n;j++) {
+					mean[j] += step*yw[j];
+				}
+				
+				// Evolution paths, C^-1/2 yw = B D^-1 B' yw
+				double[] t = new double[n];
+				for (int i=0;i<n;i++) {
+					double bt = 0.0;
+					for (int j=0;j<n;j++) {
+						bt += B[j][i]*yw[j];
+					}
+					t[i] = bt/D[i];
+				}
+				double psNorm = 0.0;
+				for (int i=0;i<n;i++) {
+					double cy = 0.0;
+					for (int j=0;j<n;j++) {
+						cy += B[i][j]*t[j];
+					}
+					ps[i] = (1.0-cs)*ps[i]+Math.sqrt(cs*(2.0-cs)*mueff)*cy;
+					psNorm += ps[i]*ps[i];
+				}
+				psNorm = Math.sqrt(psNorm);
+				boolean hsig = psNorm/Math.sqrt(1.0-Math.pow(1.0-cs, 2.0*generations))/chiN < 1.4+2.0/(n+1.0);
+				for (int i=0;i<n;i++) {
+					pc[i] = (1.0-cc)*pc[i]+(hsig ? Math.sqrt(cc*(2.0-cc)*mueff)*yw[i] : 0.0);
+				}
+				
+				// Covariance matrix, rank one and rank mu updates
+				double old = 1.0-c1-cmu+(hsig ? 0.0 : c1*cc*(2.0-cc));
+				for (int i=0;i<n;i++) {
+					for (int j=0;j<=i;j++) {
+						double rankMu = 0.0;
+						for (int k=0;k<mu;k++) {
+							double[] y = yk[order[k]];
+							rankMu += weights[k]*y[i]*y[j];
+						}
+						C[i][j] = old*C[i][j]+c1*pc[i]*pc[j]+cmu*rankMu;
+						C[j][i] = C[i][j];
+					}
+				}
+				
+				step *= Math.exp(cs/damps*(psNorm/chiN-1.0));
+				
+				// B and D from the eigen decomposition of C
+				EigenDecomposition eigen = new EigenDecomposition(new Array2DRowRealMatrix(C, false));
+				RealMatrix V = eigen.getV();
+				double[] ev = eigen.getRealEigenvalues();
+				double maxD = 0.0;
+				for (int i=0;i<n;i++) {
+					D[i] = Math.sqrt(Math.max(ev[i], 1.0e-20));
+					maxD = Math.max(maxD, D[i]);
+					for (int j=0;j<n;j++) {
+						B[j][i] = V.getEntry(j, i);
+					}
+				}
+				
+				LOGGER.info("Generation " + generations + ", evaluations " + evaluations + 
+						", best " + values[order[0]] + ", overall best " + bestValue + ", step " + step*maxD);
+				
+				// Stopping criteria
+				if (step*maxD < tolX) {
+					break;
+				}
+				if (generations >= history) {
+					double min = Double.POSITIVE_INFINITY;
+					double max = Double.NEGATIVE_INFINITY;
+					for (double v : recent) {
+						min = Math.min(min, v);
+						max = Math.max(max, v);
+					}
+					if (max-min < tolFun && values[order[lambda-1]]-values[order[0]] < tolFun) {
+						break;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.severe(e.toString());
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOGGER.severe(e.toString());
+		} finally {
+			pool.shutdownNow();
+		}
+		return best.clone();
+	}
+	
+	private static double[] denormalize(double[] z, double[] lower, double[] width) {
+		double[] x = new double[z.length];
+		for (int i=0;i<z.length;i++) {
+			x[i] = lower[i]+z[i]*width[i];
+		}
+		return x;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * @param populationSize 	Candidates per generation, 0 for 4+3ln(n) or the number of threads if that is larger
+	 */
+	public void setPopulationSize(int populationSize) {
+		this.populationSize = populationSize;
+	}
+	
+	/**
+	 * @param sigma 	Initial step size relative to the width of the bounds (default 0.3)
+	 */
+	public void setSigma(double sigma) {
+		this.sigma = sigma;
+	}
+	
+	public void setMaxEvaluations(int maxEvaluations) {
+		this.maxEvaluations = maxEvaluations;
+	}
+	
+	/**
+	 * @param tolX 		Stop when the standard deviation of the search distribution is below this (relative to the bounds)
+	 * @param tolFun 	Stop when the best values of the recent generations and the values of 
+	 * 					the current generation differ by less than this
+	 */
+	public void setTolerance(double tolX, double tolFun) {
+		this.tolX = tolX;
+		this.tolFun = tolFun;
+	}
+	
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+	
+	/**
+	 * @return Objective value of the best point
+	 */
+	public double getBestValue() {
+		return bestValue;
+	}
+	
+	public double[] getBest() {
+		return best.clone();
+	}
+	
+	public int getEvaluations() {
+		return evaluations;
+	}
+	
+	public int getGenerations() {
+		return generations;
+	}
+}
@@ -0,0 +1,643 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.solvers;
+
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.exception.NoBracketingException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.ode.ExpandableStatefulODE;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+
+/**
+ * Implicit Runge-Kutta integrator (three stage Radau IIA, order 5) for stiff problems and
+ * semi-explicit differential-algebraic systems of index one.
+ *
+ * Follows RADAU5 of Hairer and Wanner (Solving Ordinary Differential Equations II, 1996):
+ * the stage equations M Z = h A F(y+Z) are solved by a simplified Newton iteration, transformed
+ * with the eigenvectors of A so that one real and one complex system of the problem dimension
+ * are decomposed instead of one of three times the dimension (the complex one is solved as a
+ * real system of twice the dimension). Step sizes come from an embedded third order estimate
+ * with the predictive controller of Gustafsson, and the Jacobian and decompositions are kept
+ * while the Newton iteration converges quickly and the step size changes little.
+ *
+ * For equations implementing {@link SemiExplicitEquations} the mass matrix M has zeros for the
+ * algebraic components, which are then solved together with the stage equations instead of by
+ * the right-hand side. The method is stiffly accurate, so the step ends on the algebraic
+ * constraints. The algebraic components are made consistent by Newton iterations on the
+ * constraints at the start and after each reset of the state or derivatives (e.g. an influent
+ * switch).
+ *
+ * As in RADAU5 the tolerances are applied as 0.1*rtol^(2/3) to the third order estimate, which
+ * makes the global error of the fifth order solution roughly match the requested tolerance.
+ *
+ * @author liampetti
+ *
+ */
+public class RadauIntegrator extends ImplicitIntegrator {
+	public final static Logger LOGGER = Logger.getLogger(RadauIntegrator.class.getName());
+
+	private static final String METHOD_NAME = "Radau IIA 5";
+
+	// Nodes and the embedded error estimate
+	private static final double SQ6 = Math.sqrt(6.0);
+	private static final double C1 = (4.0-SQ6)/10.0;
+	private static final double C2 = (4.0+SQ6)/10.0;
+	private static final double C1M1 = C1-1.0;
+	private static final double C2M1 = C2-1.0;
+	private static final double C1MC2 = C1-C2;
+	private static final double DD1 = -(13.0+7.0*SQ6)/3.0;
+	private static final double DD2 = (-13.0+7.0*SQ6)/3.0;
+	private static final double DD3 = -1.0/3.0;
+
+	// Eigenvalues of the inverse of A, one real (U1) and a complex pair (ALPH +/- i BETA)
+	private static final double U1;
+	private static final double ALPH;
+	private static final double BETA;
+	static {
+		double u1 = (6.0+Math.cbrt(81.0)-Math.cbrt(9.0))/30.0;
+		double alph = (12.0-Math.cbrt(81.0)+Math.cbrt(9.0))/60.0;
+		double beta = (Math.cbrt(81.0)+Math.cbrt(9.0))*Math.sqrt(3.0)/60.0;
+		double cno = alph*alph+beta*beta;
+		U1 = 1.0/u1;
+		ALPH = alph/cno;
+		BETA = beta/cno;
+	}
+
+	// Eigenvectors T of the inverse of A and the inverse TI
+	private static final double T11 = 9.1232394870892942792e-02;
+	private static final double T12 = -0.14125529502095420843;
+	private static final double T13 = -3.0029194105147424492e-02;
+	private static final double T21 = 0.24171793270710701896;
+	private static final double T22 = 0.20412935229379993199;
+	private static final double T23 = 0.38294211275726193779;
+	private static final double T31 = 0.96604818261509293619;
+	private static final double TI11 = 4.3255798900631553510;
+	private static final double TI12 = 0.33919925181580986954;
+	private static final double TI13 = 0.54177053993587487119;
+	private static final double TI21 = -4.1787185915519047273;
+	private static final double TI22 = -0.32768282076106238708;
+	private static final double TI23 = 0.47662355450055045196;
+	private static final double TI31 = -0.50287263494578687595;
+	private static final double TI32 = 2.5719269498556054292;
+	private static final double TI33 = -0.59603920482822492497;
+
+	private static final int MAX_NEWTON = 7; // Newton iterations per step
+	private static final double SAFETY = 0.9;
+	private static final double MIN_REDUCTION = 0.2;
+	private static final double MAX_GROWTH = 8.0;
+	private static final double FAST_CONVERGENCE = 0.1; // Newton contraction below which the Jacobian is kept (0.001 in RADAU5, raised for costly Jacobians)
+	private static final double KEEP_LOW = 1.0; // Step ratios in [KEEP_LOW, KEEP_HIGH] keep the step and the decompositions
+	private static final double KEEP_HIGH = 1.2;
+	private static final double MIN_FIRST_STEP = 1.0e-6; // First step with algebraic components if the derivatives give no scale
+	private static final int MAX_CONSISTENT = 10; // Newton iterations to make the algebraic components consistent
+
+	private double firstStep; // Step set by the user, negative if not set
+	private int newtonIterations;
+
+	/**
+	 * @param minStep 					Minimal step (sign is irrelevant)
+	 * @param maxStep 					Maximal step (sign is irrelevant)
+	 * @param scalAbsoluteTolerance 	Allowed absolute error
+	 * @param scalRelativeTolerance 	Allowed relative error
+	 */
+	public RadauIntegrator(double minStep, double maxStep, double scalAbsoluteTolerance, double scalRelativeTolerance) {
+		super(METHOD_NAME, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+		firstStep = -1.0;
+	}
+
+	public RadauIntegrator(double minStep, double maxStep, double[] vecAbsoluteTolerance, double[] vecRelativeTolerance) {
+		super(METHOD_NAME, minStep, maxStep, vecAbsoluteTolerance, vecRelativeTolerance);
+		firstStep = -1.0;
+	}
+
+	@Override
+	public void setInitialStepSize(double initialStepSize) {
+		super.setInitialStepSize(initialStepSize);
+		firstStep = (initialStepSize < getMinStep() || initialStepSize > getMaxStep()) ? -1.0 : initialStepSize;
+	}
+
+	@Override
+	public void integrate(ExpandableStatefulODE equations, double t)
+			throws NumberIsTooSmallException, DimensionMismatchException, MaxCountExceededException, NoBracketingException {
+		sanityChecks(equations, t);
+		setEquations(equations);
+		final boolean forward = t > equations.getTime();
+
+		final double[] y0 = equations.getCompleteState();
+		final int n = y0.length;
+		final double[] y = y0.clone();
+		final double[] yNew = new double[n];
+		final double[] yStage = new double[n];
+		final double[] f0 = new double[n];
+		final double[] f1 = new double[n];
+		final double[] f2 = new double[n];
+		final double[] f3 = new double[n];
+		final double[] z1 = new double[n];
+		final double[] z2 = new double[n];
+		final double[] z3 = new double[n];
+		final double[] w1 = new double[n];
+		final double[] w2 = new double[n];
+		final double[] w3 = new double[n];
+		final double[] dw1 = new double[n];
+		final double[] dw23 = new double[2*n];
+		final double[] err = new double[n];
+		final double[] scal = new double[n];
+		final DenseLU real = new DenseLU(n);
+		final DenseLU complex = new DenseLU(2*n);
+		initImplicit(n);
+		newtonIterations = 0;
+
+		// Diagonal mass matrix, zero for algebraic components
+		final double[] mass = new double[n];
+		int algebraic = 0;
+		FirstOrderDifferentialEquations primary = equations.getPrimary();
+		for (int i=0;i<n;i++) {
+			mass[i] = 1.0;
+			if (primary instanceof SemiExplicitEquations && i < primary.getDimension() && ((SemiExplicitEquations) primary).isAlgebraic(i)) {
+				mass[i] = 0.0;
+				algebraic++;
+			}
+		}
+
+		final RadauStepInterpolator interpolator = new RadauStepInterpolator();
+		interpolator.reinitialize(yNew, forward, equations.getPrimaryMapper(), equations.getSecondaryMappers());
+		interpolator.storeTime(equations.getTime());
+		final double[][] cont = interpolator.getCoefficients();
+
+		stepStart = equations.getTime();
+		initIntegration(equations.getTime(), y0, t);
+
+		computeDerivatives(stepStart, y, f0);
+		double[][] jacobian = null;
+		if (algebraic > 0) {
+			jacobian = consistent(stepStart, y, f0, mass, algebraic);
+		}
+		scale(y, scal);
+		final double fnewt = Math.max(10.0*Math.ulp(1.0)/tolerance(), Math.min(0.03, Math.sqrt(tolerance())));
+
+		double hNew;
+		if (firstStep > 0) {
+			hNew = forward ? firstStep : -firstStep;
+		} else if (algebraic > 0) {
+			hNew = filterStep(algebraicInitialStep(forward, y, f0, mass, scal), forward, true);
+		} else {
+			hNew = initialStep(forward, n, y, f0, yStage, f1);
+		}
+
+		boolean jacobianFresh = false; // Jacobian evaluated at the current step start
+		double luStep = Double.NaN; // Step the decompositions are valid for
+		boolean first = true; // No usable previous step (start or reset)
+		boolean reject = false;
+		double hOld = 0.0;
+		double hAcc = 0.0;
+		double errAcc = 0.0;
+		double faccon = 1.0;
+		double theta = 1.0;
+
+		isLastStep = false;
+		do {
+			interpolator.shift();
+			if (jacobian == null) {
+				jacobian = computeJacobian(stepStart, y, f0);
+				jacobianFresh = true;
+				luStep = Double.NaN;
+			}
+
+			double error = 10.0;
+			int newt = 0;
+			while (error >= 1.0) {
+				stepSize = hNew;
+				if (forward ? (stepStart+stepSize >= t) : (stepStart+stepSize <= t)) {
+					stepSize = t-stepStart;
+				}
+				final double h = stepSize;
+				if (h == 0.0) {
+					// Empty step finishing the integration after an event right at its end
+					for (int i=0;i<n;i++) {
+						z1[i] = 0.0;
+						z2[i] = 0.0;
+						z3[i] = 0.0;
+					}
+					System.arraycopy(y, 0, yNew, 0, n);
+					break;
+				}
+				final double fac1 = U1/h;
+				final double alphn = ALPH/h;
+				final double betan = BETA/h;
+
+				// E1 = fac1*M - J and E2 = (alphn + i betan)*M - J as a real system of twice the size
+				if (h != luStep) {
+					double[][] e1 = real.getMatrix();
+					double[][] e2 = complex.getMatrix();
+					for (int i=0;i<n;i++) {
+						double[] jRow = jacobian[i];
+						double[] row = e1[i];
+						double[] rowRe = e2[i];
+						double[] rowIm = e2[n+i];
+						for (int j=0;j<n;j++) {
+							row[j] = -jRow[j];
+							rowRe[j] = -jRow[j];
+							rowRe[n+j] = 0.0;
+							rowIm[j] = 0.0;
+							rowIm[n+j] = -jRow[j];
+						}
+						row[i] += fac1*mass[i];
+						rowRe[i] += alphn*mass[i];
+						rowRe[n+i] = -betan*mass[i];
+						rowIm[i] = betan*mass[i];
+						rowIm[n+i] += alphn*mass[i];
+					}
+					decompositions++;
+					if (!real.decompose() || !complex.decompose()) {
+						// Singular iteration matrix, try a smaller step
+						rejectedSteps++;
+						reject = true;
+						luStep = Double.NaN;
+						hNew = filterStep(0.5*h, forward, false);
+						continue;
+					}
+					luStep = h;
+				}
+
+				// Starting values, extrapolated from the collocation polynomial of the last step
+				if (first) {
+					for (int i=0;i<n;i++) {
+						z1[i] = 0.0;
+						z2[i] = 0.0;
+						z3[i] = 0.0;
+						w1[i] = 0.0;
+						w2[i] = 0.0;
+						w3[i] = 0.0;
+					}
+				} else {
+					double c3q = h/hOld;
+					double c1q = C1*c3q;
+					double c2q = C2*c3q;
+					for (int i=0;i<n;i++) {
+						double ak1 = cont[0][i];
+						double ak2 = cont[1][i];
+						double ak3 = cont[2][i];
+						z1[i] = c1q*(ak1+(c1q-C2M1)*(ak2+(c1q-C1M1)*ak3));
+						z2[i] = c2q*(ak1+(c2q-C2M1)*(ak2+(c2q-C1M1)*ak3));
+						z3[i] = c3q*(ak1+(c3q-C2M1)*(ak2+(c3q-C1M1)*ak3));
+						w1[i] = TI11*z1[i]+TI12*z2[i]+TI13*z3[i];
+						w2[i] = TI21*z1[i]+TI22*z2[i]+TI23*z3[i];
+						w3[i] = TI31*z1[i]+TI32*z2[i]+TI33*z3[i];
+					}
+				}
+
+				// Simplified Newton iteration on the transformed stage equations
+				faccon = Math.pow(Math.max(faccon, Math.ulp(1.0)), 0.8);
+				theta = Math.abs(theta);
+				double dynold = 0.0;
+				double thqold = 0.0;
+				newt = 0;
+				double hFactor = Double.NaN; // Step reduction if the iteration fails
+				while (true) {
+					if (newt >= MAX_NEWTON) {
+						hFactor = 0.5;
+						break;
+					}
+					stage(stepStart+C1*h, y, z1, yStage, f1);
+					stage(stepStart+C2*h, y, z2, yStage, f2);
+					stage(stepStart+h, y, z3, yStage, f3);
+					newt++;
+					newtonIterations++;
+
+					for (int i=0;i<n;i++) {
+						double a1 = TI11*f1[i]+TI12*f2[i]+TI13*f3[i];
+						double a2 = TI21*f1[i]+TI22*f2[i]+TI23*f3[i];
+						double a3 = TI31*f1[i]+TI32*f2[i]+TI33*f3[i];
+						dw1[i] = a1-fac1*mass[i]*w1[i];
+						dw23[i] = a2-mass[i]*(alphn*w2[i]-betan*w3[i]);
+						dw23[n+i] = a3-mass[i]*(betan*w2[i]+alphn*w3[i]);
+					}
+					real.solve(dw1);
+					complex.solve(dw23);
+
+					double dyno = 0.0;
+					for (int i=0;i<n;i++) {
+						double r1 = dw1[i]/scal[i];
+						double r2 = dw23[i]/scal[i];
+						double r3 = dw23[n+i]/scal[i];
+						dyno += r1*r1+r2*r2+r3*r3;
+					}
+					dyno = Math.sqrt(dyno/(3*n));
+					if (!(dyno < Double.POSITIVE_INFINITY)) {
+						hFactor = 0.5;
+						break;
+					}
+
+					// Rate of convergence, give up early if the tolerance is out of reach
+					if (newt > 1 && newt < MAX_NEWTON) {
+						double thq = dyno/dynold;
+						theta = (newt == 2) ? thq : Math.sqrt(thq*thqold);
+						thqold = thq;
+						if (theta < 0.99) {
+							faccon = theta/(1.0-theta);
+							double dyth = faccon*dyno*Math.pow(theta, MAX_NEWTON-1-newt)/fnewt;
+							if (dyth >= 1.0) {
+								double qnewt = Math.max(1.0e-4, Math.min(20.0, dyth));
+								hFactor = 0.8*Math.pow(qnewt, -1.0/(4.0+MAX_NEWTON-1-newt));
+								break;
+							}
+						} else {
+							hFactor = 0.5;
+							break;
+						}
+					}
+					dynold = Math.max(dyno, Math.ulp(1.0));
+
+					for (int i=0;i<n;i++) {
+						w1[i] += dw1[i];
+						w2[i] += dw23[i];
+						w3[i] += dw23[n+i];
+						z1[i] = T11*w1[i]+T12*w2[i]+T13*w3[i];
+						z2[i] = T21*w1[i]+T22*w2[i]+T23*w3[i];
+						z3[i] = T31*w1[i]+w2[i];
+					}
+					if (faccon*dyno <= fnewt) {
+						break;
+					}
+				}
+
+				if (!Double.isNaN(hFactor)) {
+					// Newton iteration diverged or too slow, smaller step with a Jacobian at the step start
+					rejectedSteps++;
+					reject = true;
+					hNew = filterStep(h*hFactor, forward, false);
+					if (!jacobianFresh) {
+						jacobian = computeJacobian(stepStart, y, f0);
+						jacobianFresh = true;
+						luStep = Double.NaN;
+					}
+					continue;
+				}
+
+				// Error estimate, (fac1*M - J)^-1 (f0 + M (DD1 z1 + DD2 z2 + DD3 z3)/h)
+				for (int i=0;i<n;i++) {
+					f1[i] = mass[i]*(DD1*z1[i]+DD2*z2[i]+DD3*z3[i])/h;
+					err[i] = f0[i]+f1[i];
+					yNew[i] = y[i]+z3[i];
+				}
+				real.solve(err);
+				error = Math.max(norm(err, scal, n), 1.0e-10);
+				if (error >= 1.0 && (first || reject)) {
+					// Filtered once more, the first estimate is unreliable after a rejection or restart
+					for (int i=0;i<n;i++) {
+						yStage[i] = y[i]+err[i];
+					}
+					computeDerivatives(stepStart, yStage, err);
+					for (int i=0;i<n;i++) {
+						err[i] += f1[i];
+					}
+					real.solve(err);
+					error = Math.max(norm(err, scal, n), 1.0e-10);
+				}
+
+				double fac = Math.min(SAFETY, SAFETY*(1+2*MAX_NEWTON)/(newt+2*MAX_NEWTON));
+				double quot = Math.max(1.0/MAX_GROWTH, Math.min(1.0/MIN_REDUCTION, Math.pow(error, 0.25)/fac));
+				if (error >= 1.0) {
+					rejectedSteps++;
+					reject = true;
+					hNew = filterStep(first ? 0.1*h : h/quot, forward, false);
+					if (!jacobianFresh) {
+						jacobian = computeJacobian(stepStart, y, f0);
+						jacobianFresh = true;
+						luStep = Double.NaN;
+					}
+				} else {
+					// Predictive step size control
+					if (acceptedSteps > 0 && !first) {
+						double facgus = (hAcc/h)*Math.pow(error*error/errAcc, 0.25)/SAFETY;
+						facgus = Math.max(1.0/MAX_GROWTH, Math.min(1.0/MIN_REDUCTION, facgus));
+						quot = Math.max(quot, facgus);
+					}
+					hAcc = h;
+					errAcc = Math.max(1.0e-2, error);
+					hNew = h/quot;
+				}
+			}
+
+			// Step accepted, dense output from the stage values
+			acceptedSteps++;
+			for (int i=0;i<n;i++) {
+				double ak = (z1[i]-z2[i])/C1MC2;
+				double acont3 = (ak-z1[i]/C1)/C2;
+				cont[0][i] = (z2[i]-z3[i])/C2M1;
+				cont[1][i] = (ak-cont[0][i])/C1M1;
+				cont[2][i] = cont[1][i]-acont3;
+			}
+			computeDerivatives(stepStart+stepSize, yNew, f0);
+			interpolator.storeTime(stepStart+stepSize);
+			System.arraycopy(yNew, 0, y, 0, n);
+			hOld = stepSize;
+			first = false;
+			stepStart = acceptStep(interpolator, y, f0, t);
+			if (resetOccurred) {
+				// State or derivatives changed by an event, start again from the event time
+				jacobian = null;
+				if (algebraic > 0) {
+					jacobian = consistent(stepStart, y, f0, mass, algebraic);
+				}
+				first = true;
+				theta = 1.0;
+				hNew = Math.min(Math.abs(hNew), Math.abs(hOld));
+				hNew = forward ? hNew : -hNew;
+			}
+			System.arraycopy(y, 0, yNew, 0, n);
+			scale(y, scal);
+
+			if (!isLastStep) {
+				interpolator.storeTime(stepStart);
+				if (reject) {
+					hNew = forward ? Math.min(hNew, stepSize) : Math.max(hNew, stepSize);
+					reject = false;
+				}
+				double qt = hNew/stepSize;
+				if (!first && theta <= FAST_CONVERGENCE && qt >= KEEP_LOW && qt <= KEEP_HIGH) {
+					hNew = stepSize; // Keep the decompositions
+				}
+				double nextT = stepStart+hNew;
+				boolean nextIsLast = forward ? (nextT >= t) : (nextT <= t);
+				hNew = filterStep(hNew, forward, nextIsLast);
+				double filteredNextT = stepStart+hNew;
+				boolean filteredNextIsLast = forward ? (filteredNextT >= t) : (filteredNextT <= t);
+				if (filteredNextIsLast) {
+					hNew = t-stepStart;
+				}
+				jacobianFresh = false;
+				if (!first && theta > FAST_CONVERGENCE) {
+					jacobian = null;
+				}
+			}
+		} while (!isLastStep);
+
+		equations.setTime(stepStart);
+		equations.setCompleteState(y);
+		resetInternalState();
+	}
+
+	/**
+	 * Right-hand side at a stage, y+z
+	 */
+	private void stage(double t, double[] y, double[] z, double[] yStage, double[] f)
+			throws MaxCountExceededException, DimensionMismatchException {
+		for (int i=0;i<y.length;i++) {
+			yStage[i] = y[i]+z[i];
+		}
+		computeDerivatives(t, yStage, f);
+	}
+
+	/**
+	 * Simplified Newton iterations on the algebraic equations with the differential components fixed,
+	 * so the integration starts on the constraints
+	 *
+	 * @param y 	State, the algebraic components are corrected in place
+	 * @param f 	Right-hand side at the state, updated with it
+	 * @return 		Jacobian at the uncorrected state, close enough for the next step
+	 */
+	private double[][] consistent(double t, double[] y, double[] f, double[] mass, int algebraic)
+			throws MaxCountExceededException, DimensionMismatchException {
+		int n = y.length;
+		int[] index = new int[algebraic];
+		int m = 0;
+		for (int i=0;i<n;i++) {
+			if (mass[i] == 0.0) {
+				index[m++] = i;
+			}
+		}
+		double[] scal = new double[n];
+		scale(y, scal);
+		DenseLU lu = new DenseLU(m);
+		double[] dz = new double[m];
+		double[][] jacobian = computeJacobian(t, y, f);
+		double[][] a = lu.getMatrix();
+		for (int r=0;r<m;r++) {
+			for (int c=0;c<m;c++) {
+				a[r][c] = jacobian[index[r]][index[c]];
+			}
+		}
+		if (!lu.decompose()) {
+			LOGGER.warning("Singular algebraic equations at t = " + t);
+			return jacobian;
+		}
+		for (int k=0;k<MAX_CONSISTENT;k++) {
+			for (int r=0;r<m;r++) {
+				dz[r] = -f[index[r]];
+			}
+			lu.solve(dz);
+			double norm = 0.0;
+			for (int r=0;r<m;r++) {
+				int i = index[r];
+				y[i] += dz[r];
+				norm += (dz[r]/scal[i])*(dz[r]/scal[i]);
+			}
+			computeDerivatives(t, y, f);
+			if (Math.sqrt(norm/m) <= 1.0e-3) {
+				return jacobian;
+			}
+		}
+		LOGGER.fine("Algebraic components not consistent after " + MAX_CONSISTENT + " iterations at t = " + t);
+		return jacobian;
+	}
+
+	/**
+	 * Error weights atol+rtol*|y| with the tolerances converted as in RADAU5
+	 */
+	private void scale(double[] y, double[] scal) {
+		for (int i=0;i<scal.length;i++) {
+			double rtol = (vecRelativeTolerance == null) ? scalRelativeTolerance : vecRelativeTolerance[i];
+			double atol = (vecAbsoluteTolerance == null) ? scalAbsoluteTolerance : vecAbsoluteTolerance[i];
+			double rtolConverted = 0.1*Math.pow(rtol, 2.0/3.0);
+			scal[i] = atol*rtolConverted/rtol+rtolConverted*Math.abs(y[i]);
+		}
+	}
+
+	/**
+	 * Smallest converted relative tolerance, for the Newton stopping criterion
+	 */
+	private double tolerance() {
+		double rtol = scalRelativeTolerance;
+		if (vecRelativeTolerance != null) {
+			rtol = Double.POSITIVE_INFINITY;
+			for (double r : vecRelativeTolerance) {
+				rtol = Math.min(rtol, r);
+			}
+		}
+		return 0.1*Math.pow(rtol, 2.0/3.0);
+	}
+
+	/**
+	 * Root mean square of the weighted vector
+	 */
+	private static double norm(double[] v, double[] scal, int n) {
+		double sum = 0.0;
+		for (int i=0;i<n;i++) {
+			double ratio = v[i]/scal[i];
+			sum += ratio*ratio;
+		}
+		return Math.sqrt(sum/n);
+	}
+
+	/**
+	 * Initial step size with algebraic components, the first guess of the standard estimate
+	 * (1% of the state over its derivative) taken over the differential components only
+	 */
+	private double algebraicInitialStep(boolean forward, double[] y, double[] f, double[] mass, double[] scal) {
+		double d0 = 0.0;
+		double d1 = 0.0;
+		for (int i=0;i<mainSetDimension;i++) {
+			if (mass[i] != 0.0) {
+				d0 += (y[i]/scal[i])*(y[i]/scal[i]);
+				d1 += (f[i]/scal[i])*(f[i]/scal[i]);
+			}
+		}
+		double h = (d0 < 1.0e-10 || d1 < 1.0e-10) ? MIN_FIRST_STEP : Math.max(MIN_FIRST_STEP, 0.01*Math.sqrt(d0/d1));
+		return forward ? h : -h;
+	}
+
+	/**
+	 * Initial step size for problems without algebraic components, either the user supplied one or the standard estimate
+	 */
+	private double initialStep(boolean forward, int n, double[] y, double[] yDot, double[] yTmp, double[] yDotTmp)
+			throws MaxCountExceededException, DimensionMismatchException {
+		double[] scale = new double[mainSetDimension];
+		for (int i=0;i<scale.length;i++) {
+			scale[i] = (vecAbsoluteTolerance == null) ?
+					scalAbsoluteTolerance+scalRelativeTolerance*Math.abs(y[i]) :
+					vecAbsoluteTolerance[i]+vecRelativeTolerance[i]*Math.abs(y[i]);
+		}
+		return initializeStep(forward, 5, scale, stepStart, y, yDot, yTmp, yDotTmp);
+	}
+
+	/**
+	 * @return Newton iterations of the stage equations in the last integration
+	 */
+	public int getNewtonIterations() {
+		return newtonIterations;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.solvers;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.apache.commons.math3.ode.EquationsMapper;
+import org.apache.commons.math3.ode.sampling.AbstractStepInterpolator;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+/**
+ * Dense output of the Radau IIA integrator, the collocation polynomial of the step.
+ *
+ * The cubic through the state at the start of the step and the three stage values is
+ * written in Newton form around the end of the step, y(s) = y1+s*(a1+(s-c2+1)*(a2+(s-c1+1)*a3))
+ * with s = (t-t1)/h in [-1, 0]. Algebraic components are interpolated the same way.
+ *
+ * @author liampetti
+ *
+ */
+public class RadauStepInterpolator extends AbstractStepInterpolator {
+	private static final long serialVersionUID = 20160315L;
+
+	private static final double C1M1 = (4.0-Math.sqrt(6.0))/10.0-1.0;
+	private static final double C2M1 = (4.0+Math.sqrt(6.0))/10.0-1.0;
+
+	private double[] a1;
+	private double[] a2;
+	private double[] a3;
+
+	/**
+	 * Empty constructor needed for externalization
+	 */
+	public RadauStepInterpolator() {
+		super();
+	}
+
+	protected RadauStepInterpolator(RadauStepInterpolator interpolator) {
+		super(interpolator);
+		if (interpolator.a1 != null) {
+			a1 = interpolator.a1.clone();
+			a2 = interpolator.a2.clone();
+			a3 = interpolator.a3.clone();
+		}
+	}
+
+	/**
+	 * Bind the interpolator to the integrator state array
+	 *
+	 * @param y 		State array updated in place by the integrator
+	 * @param forward	Integration direction
+	 */
+	public void reinitialize(double[] y, boolean forward, EquationsMapper primaryMapper, EquationsMapper[] secondaryMappers) {
+		super.reinitialize(y, forward, primaryMapper, secondaryMappers);
+		a1 = new double[y.length];
+		a2 = new double[y.length];
+		a3 = new double[y.length];
+	}
+
+	/**
+	 * Coefficients of the collocation polynomial, also used by the integrator to
+	 * extrapolate the starting values of the next step
+	 */
+	public double[][] getCoefficients() {
+		return new double[][] {a1, a2, a3};
+	}
+
+	@Override
+	protected StepInterpolator doCopy() {
+		return new RadauStepInterpolator(this);
+	}
+
+	@Override
+	protected void computeInterpolatedStateAndDerivatives(double theta, double oneMinusThetaH) {
+		double s = theta-1.0;
+		for (int i=0;i<interpolatedState.length;i++) {
+			double inner = a2[i]+(s-C1M1)*a3[i];
+			double middle = a1[i]+(s-C2M1)*inner;
+			interpolatedState[i] = currentState[i]+s*middle;
+			interpolatedDerivatives[i] = (middle+s*(inner+(s-C2M1)*a3[i]))/h;
+		}
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		writeBaseExternal(out);
+		int n = (a1 == null) ? -1 : a1.length;
+		out.writeInt(n);
+		for (int i=0;i<n;i++) {
+			out.writeDouble(a1[i]);
+			out.writeDouble(a2[i]);
+			out.writeDouble(a3[i]);
+		}
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		double t = readBaseExternal(in);
+		int n = in.readInt();
+		if (n >= 0) {
+			a1 = new double[n];
+			a2 = new double[n];
+			a3 = new double[n];
+			for (int i=0;i<n;i++) {
+				a1[i] = in.readDouble();
+				a2[i] = in.readDouble();
+				a3[i] = in.readDouble();
+			}
+		}
+		setInterpolatedTime(t);
+	}
+}
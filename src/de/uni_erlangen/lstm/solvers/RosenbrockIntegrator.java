@@ -0,0 +1,239 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.exception.NoBracketingException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.ode.ExpandableStatefulODE;
+
+/**
+ * Linearly implicit (Rosenbrock-W) integrator for stiff problems.
+ *
+ * Uses the L-stable second order formula with third order error estimate of
+ * Shampine and Reichelt (The MATLAB ODE Suite, SIAM J. Sci. Comput. 18, 1997).
+ * The second order formula is a W-method, so it keeps its order with an approximate
+ * Jacobian and without the time derivative of the right-hand side. One LU decomposition
+ * and two new right-hand side evaluations are needed per step (the third is reused
+ * for the next step), no Newton iterations are required.
+ *
+ * The Jacobian is taken analytically from equations implementing
+ * MainStateJacobianProvider, otherwise by forward differences. As a W-method does not
+ * need the exact Jacobian it is kept over the steps (also over the influent switches) and 
+ * only evaluated again after a rejected step, a large change of the step size or when a 
+ * step with the old Jacobian only just met the tolerance, which would keep the steps 
+ * from growing.
+ *
+ * @author liampetti
+ *
+ */
+public class RosenbrockIntegrator extends ImplicitIntegrator {
+	private static final String METHOD_NAME = "Rosenbrock-W 2(3)";
+
+	private static final double D = 1.0/(2.0+Math.sqrt(2.0));
+	private static final double E32 = 6.0+Math.sqrt(2.0);
+
+	private static final double SAFETY = 0.9;
+	private static final double MIN_REDUCTION = 0.2;
+	private static final double MAX_GROWTH = 5.0;
+	private static final double JACOBIAN_RATIO = 2.0; // Step size ratio beyond which the Jacobian is evaluated again
+	private static final double JACOBIAN_ERROR = 0.5; // Error of a step with an old Jacobian beyond which it is evaluated again
+
+	/**
+	 * @param minStep 					Minimal step (sign is irrelevant)
+	 * @param maxStep 					Maximal step (sign is irrelevant)
+	 * @param scalAbsoluteTolerance 	Allowed absolute error
+	 * @param scalRelativeTolerance 	Allowed relative error
+	 */
+	public RosenbrockIntegrator(double minStep, double maxStep, double scalAbsoluteTolerance, double scalRelativeTolerance) {
+		super(METHOD_NAME, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+	}
+
+	public RosenbrockIntegrator(double minStep, double maxStep, double[] vecAbsoluteTolerance, double[] vecRelativeTolerance) {
+		super(METHOD_NAME, minStep, maxStep, vecAbsoluteTolerance, vecRelativeTolerance);
+	}
+
+	@Override
+	public void integrate(ExpandableStatefulODE equations, double t)
+			throws NumberIsTooSmallException, DimensionMismatchException, MaxCountExceededException, NoBracketingException {
+		sanityChecks(equations, t);
+		setEquations(equations);
+		final boolean forward = t > equations.getTime();
+
+		final double[] y0 = equations.getCompleteState();
+		final int n = y0.length;
+		final double[] y = y0.clone();
+		final double[] yNew = new double[n];
+		final double[] yStage = new double[n];
+		final double[] f0 = new double[n];
+		final double[] f1 = new double[n];
+		final double[] f2 = new double[n];
+		final double[] k1 = new double[n];
+		final double[] k2 = new double[n];
+		final double[] k3 = new double[n];
+		final double[] err = new double[n];
+		final DenseLU lu = new DenseLU(n);
+		initImplicit(n);
+
+		final HermiteStepInterpolator interpolator = new HermiteStepInterpolator();
+		interpolator.reinitialize(yNew, forward, equations.getPrimaryMapper(), equations.getSecondaryMappers());
+		interpolator.storeTime(equations.getTime());
+
+		stepStart = equations.getTime();
+		initIntegration(equations.getTime(), y0, t);
+
+		computeDerivatives(stepStart, y, f0);
+		double hNew = initialStep(forward, n, y, f0, yStage, f1);
+		double[][] jacobian = null;
+		boolean jacobianFresh = false; // Evaluated at the start of the current step
+
+		isLastStep = false;
+		do {
+			interpolator.shift();
+			interpolator.storeStart(y, f0);
+			if (jacobian == null) {
+				jacobian = computeJacobian(stepStart, y, f0);
+				jacobianFresh = true;
+			}
+
+			double error = 10.0;
+			while (error >= 1.0) {
+				stepSize = hNew;
+				if (forward ? (stepStart+stepSize >= t) : (stepStart+stepSize <= t)) {
+					stepSize = t-stepStart;
+				}
+				final double h = stepSize;
+
+				// W = I - h*d*J
+				double[][] w = lu.getMatrix();
+				double hd = h*D;
+				for (int i=0;i<n;i++) {
+					double[] row = w[i];
+					double[] jRow = jacobian[i];
+					for (int j=0;j<n;j++) {
+						row[j] = -hd*jRow[j];
+					}
+					row[i] += 1.0;
+				}
+				decompositions++;
+				if (!lu.decompose()) {
+					// Singular iteration matrix, try a smaller step
+					rejectedSteps++;
+					hNew = filterStep(h*MIN_REDUCTION, forward, false);
+					if (!jacobianFresh) {
+						jacobian = computeJacobian(stepStart, y, f0);
+						jacobianFresh = true;
+					}
+					continue;
+				}
+
+				// Stage 1
+				System.arraycopy(f0, 0, k1, 0, n);
+				lu.solve(k1);
+
+				// Stage 2
+				for (int i=0;i<n;i++) {
+					yStage[i] = y[i]+0.5*h*k1[i];
+				}
+				computeDerivatives(stepStart+0.5*h, yStage, f1);
+				for (int i=0;i<n;i++) {
+					k2[i] = f1[i]-k1[i];
+				}
+				lu.solve(k2);
+				for (int i=0;i<n;i++) {
+					k2[i] += k1[i];
+					yNew[i] = y[i]+h*k2[i];
+				}
+
+				// Stage 3 (error estimate), derivative at the new point is reused for the next step
+				computeDerivatives(stepStart+h, yNew, f2);
+				for (int i=0;i<n;i++) {
+					k3[i] = f2[i]-E32*(k2[i]-f1[i])-2.0*(k1[i]-f0[i]);
+				}
+				lu.solve(k3);
+				for (int i=0;i<n;i++) {
+					err[i] = h/6.0*(k1[i]-2.0*k2[i]+k3[i]);
+				}
+				error = errorNorm(err, y, yNew);
+
+				if (error >= 1.0) {
+					rejectedSteps++;
+					double factor = Math.max(MIN_REDUCTION, SAFETY*Math.pow(error, -1.0/3.0));
+					hNew = filterStep(h*factor, forward, false);
+					if (!jacobianFresh) {
+						// The old Jacobian may be the reason, try again with the current one
+						jacobian = computeJacobian(stepStart, y, f0);
+						jacobianFresh = true;
+					}
+				}
+			}
+
+			// Step accepted
+			acceptedSteps++;
+			interpolator.storeEnd(f2);
+			interpolator.storeTime(stepStart+stepSize);
+			System.arraycopy(yNew, 0, y, 0, n);
+			System.arraycopy(f2, 0, f0, 0, n);
+			stepStart = acceptStep(interpolator, y, f0, t);
+			System.arraycopy(y, 0, yNew, 0, n);
+			boolean stale = !jacobianFresh;
+			jacobianFresh = false;
+
+			if (!isLastStep) {
+				interpolator.storeTime(stepStart);
+				double factor = Math.min(MAX_GROWTH, Math.max(MIN_REDUCTION, SAFETY*Math.pow(Math.max(error, 1.0e-10), -1.0/3.0)));
+				double scaledH = stepSize*factor;
+				double nextT = stepStart+scaledH;
+				boolean nextIsLast = forward ? (nextT >= t) : (nextT <= t);
+				hNew = filterStep(scaledH, forward, nextIsLast);
+				double filteredNextT = stepStart+hNew;
+				boolean filteredNextIsLast = forward ? (filteredNextT >= t) : (filteredNextT <= t);
+				if (filteredNextIsLast) {
+					hNew = t-stepStart;
+				}
+				double ratio = Math.abs(hNew/stepSize);
+				if (ratio > JACOBIAN_RATIO || ratio < 1.0/JACOBIAN_RATIO || (stale && error > JACOBIAN_ERROR)) {
+					jacobian = null;
+				}
+			}
+		} while (!isLastStep);
+
+		equations.setTime(stepStart);
+		equations.setCompleteState(y);
+		resetInternalState();
+	}
+
+	/**
+	 * Initial step size, either the user supplied one or the standard estimate
+	 */
+	private double initialStep(boolean forward, int n, double[] y, double[] yDot, double[] yTmp, double[] yDotTmp)
+			throws MaxCountExceededException, DimensionMismatchException {
+		double[] scale = new double[mainSetDimension];
+		for (int i=0;i<scale.length;i++) {
+			scale[i] = (vecAbsoluteTolerance == null) ?
+					scalAbsoluteTolerance+scalRelativeTolerance*Math.abs(y[i]) :
+					vecAbsoluteTolerance[i]+vecRelativeTolerance[i]*Math.abs(y[i]);
+		}
+		return initializeStep(forward, 2, scale, stepStart, y, yDot, yTmp, yDotTmp);
+	}
+}
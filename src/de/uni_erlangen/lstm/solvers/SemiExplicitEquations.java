@@ -0,0 +1,46 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package de.uni_erlangen.lstm.solvers;
+
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+
+/**
+ * Semi-explicit differential-algebraic system of index one
+ * 
+ * 	y' = f(t, y, z)
+ * 	0  = g(t, y, z)
+ * 
+ * with dg/dz non-singular. {@link #computeDerivatives} returns f for the differential 
+ * components and the residual g for the algebraic ones, so the system is M y' = F(t, y) 
+ * with a diagonal mass matrix M of ones and zeros.
+ * 
+ * @author liampetti
+ *
+ */
+public interface SemiExplicitEquations extends FirstOrderDifferentialEquations {
+	
+	/**
+	 * @return True if the component is algebraic (zero in the mass matrix)
+	 */
+	boolean isAlgebraic(int i);
+}
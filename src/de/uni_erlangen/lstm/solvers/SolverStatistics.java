@@ -0,0 +1,186 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+
+/**
+ * Work counters of one or more integrations
+ * 
+ * @author liampetti
+ *
+ */
+public class SolverStatistics {
+	
+	private long steps;
+	private long rejected; // Negative if the integrator does not report rejections
+	private long evaluations;
+	private long jacobians;
+	private int runs;
+	private long switches; // Method switches of the switching integrator, negative if not used
+	private long stiffSteps; // Steps taken with the implicit method of the switching integrator
+	private long stageIterations; // Newton iterations on the stage equations of the Radau integrator, negative if not used
+	// Newton solutions of the algebraic equations (DAE model)
+	private long algebraicSolves;
+	private long algebraicIterations;
+	private int algebraicMaxIterations;
+	private long bisections;
+	private long algebraicFailures;
+	
+	public SolverStatistics() {
+		reset();
+	}
+	
+	public void reset() {
+		steps = 0;
+		rejected = 0;
+		evaluations = 0;
+		jacobians = 0;
+		runs = 0;
+		switches = -1;
+		stiffSteps = 0;
+		stageIterations = -1;
+		algebraicSolves = 0;
+		algebraicIterations = 0;
+		algebraicMaxIterations = 0;
+		bisections = 0;
+		algebraicFailures = 0;
+	}
+	
+	/**
+	 * Add the counters of an integrator after its integrate call returned
+	 * 
+	 * @param integrator 	The integrator used
+	 * @param steps 		Accepted steps seen by a step handler
+	 */
+	public void add(FirstOrderIntegrator integrator, long steps) {
+		this.steps += steps;
+		this.evaluations += integrator.getEvaluations();
+		if (integrator instanceof ImplicitIntegrator) {
+			ImplicitIntegrator implicit = (ImplicitIntegrator) integrator;
+			if (rejected >= 0) {
+				rejected += implicit.getRejectedSteps();
+			}
+			jacobians += implicit.getJacobianEvaluations();
+		} else {
+			rejected = -1;
+		}
+		if (integrator instanceof AutoSwitchIntegrator) {
+			AutoSwitchIntegrator auto = (AutoSwitchIntegrator) integrator;
+			switches = Math.max(switches, 0)+auto.getSwitches();
+			stiffSteps += auto.getStiffSteps();
+		}
+		if (integrator instanceof RadauIntegrator) {
+			stageIterations = Math.max(stageIterations, 0)+((RadauIntegrator) integrator).getNewtonIterations();
+		}
+		runs++;
+	}
+	
+	public void add(SolverStatistics other) {
+		steps += other.steps;
+		evaluations += other.evaluations;
+		jacobians += other.jacobians;
+		rejected = (rejected < 0 || other.rejected < 0) ? -1 : rejected+other.rejected;
+		runs += other.runs;
+		switches = (switches < 0 && other.switches < 0) ? -1 : Math.max(switches, 0)+Math.max(other.switches, 0);
+		stiffSteps += other.stiffSteps;
+		stageIterations = (stageIterations < 0 && other.stageIterations < 0) ? -1 : Math.max(stageIterations, 0)+Math.max(other.stageIterations, 0);
+		algebraicSolves += other.algebraicSolves;
+		algebraicIterations += other.algebraicIterations;
+		algebraicMaxIterations = Math.max(algebraicMaxIterations, other.algebraicMaxIterations);
+		bisections += other.bisections;
+		algebraicFailures += other.algebraicFailures;
+	}
+	
+	/**
+	 * Add the counters of the algebraic equation solver of a model
+	 * 
+	 * @param solves 			Algebraic solves (one per model evaluation)
+	 * @param iterations 		Newton iterations summed over all solves
+	 * @param maxIterations 	Largest number of iterations of a single solve
+	 * @param bisections 		Newton steps replaced by a bisection
+	 * @param failures 			Solves stopped at the iteration limit
+	 */
+	public void addAlgebraic(long solves, long iterations, int maxIterations, long bisections, long failures) {
+		algebraicSolves += solves;
+		algebraicIterations += iterations;
+		algebraicMaxIterations = Math.max(algebraicMaxIterations, maxIterations);
+		this.bisections += bisections;
+		algebraicFailures += failures;
+	}
+	
+	public long getSteps() {
+		return steps;
+	}
+	
+	public long getRejected() {
+		return rejected;
+	}
+	
+	public long getEvaluations() {
+		return evaluations;
+	}
+	
+	public long getJacobians() {
+		return jacobians;
+	}
+	
+	public int getRuns() {
+		return runs;
+	}
+	
+	public long getAlgebraicSolves() {
+		return algebraicSolves;
+	}
+	
+	public long getAlgebraicIterations() {
+		return algebraicIterations;
+	}
+	
+	public int getAlgebraicMaxIterations() {
+		return algebraicMaxIterations;
+	}
+	
+	public long getBisections() {
+		return bisections;
+	}
+	
+	public long getAlgebraicFailures() {
+		return algebraicFailures;
+	}
+	
+	@Override
+	public String toString() {
+		return "Steps; " + steps + 
+				"; Rejected; " + (rejected < 0 ? "n/a" : String.valueOf(rejected)) + 
+				"; RHS evaluations; " + evaluations + 
+				"; Jacobians; " + jacobians +
+				(switches < 0 ? "" : "; Switches; " + switches + "; Stiff steps; " + stiffSteps) +
+				(stageIterations < 0 ? "" : "; Stage iterations; " + stageIterations) +
+				(algebraicSolves == 0 ? "" : 
+				"; Algebraic solves; " + algebraicSolves + 
+				"; Newton iterations; " + algebraicIterations + 
+				"; Max iterations; " + algebraicMaxIterations + 
+				"; Bisections; " + bisections + 
+				"; Not converged; " + algebraicFailures);
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2015 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
+
+/**
+ * Direct solution of the steady state f(x) = 0 of a time independent right-hand side by
+ * pseudo-transient continuation.
+ *
+ * Every iteration is a linearly implicit Euler step (I/dt - J) dx = f(x) over the solved states.
+ * The pseudo time step dt starts small, where the iteration follows the transient of the model,
+ * and grows with the decrease of the residual (switched evolution relaxation, dt is scaled by
+ * the ratio of the last two residual norms), so the iteration turns into Newton's method near
+ * the steady state and converges quadratically. Steps are damped so positive states lose at most
+ * 90% per iteration, steps giving a residual that is not a number are repeated with a smaller dt.
+ *
+ * The residual norm is the root mean square of f_i/(atol+rtol*|x_i|) over the solved states,
+ * the steady state is reached when it and the same norm of the last step are both below one.
+ *
+ * @author liampetti
+ *
+ */
+public class SteadyStateSolver {
+	public final static Logger LOGGER = Logger.getLogger(SteadyStateSolver.class.getName());
+
+	private static final double MAX_GROWTH = 10.0; // Largest increase of dt per iteration
+	private static final double MIN_REDUCTION = 0.1; // Largest decrease of dt per iteration
+	private static final double REJECT_REDUCTION = 0.25; // Decrease of dt after a failed step
+	private static final double MAX_DECREASE = 0.9; // Largest relative decrease of a positive state per step
+
+	private double atol;
+	private double rtol;
+	private int maxIterations;
+	private double initialStep; // First pseudo time step (in days)
+	private double minStep; // Pseudo time step below which the iteration gives up
+
+	private int iterations;
+	private int rejected;
+	private int evaluations;
+	private int jacobians;
+	private double[] residuals; // Residual norm after each accepted iteration, the first is the initial residual
+	private double maxResidual; // Largest |f_i| of the solved states at the end
+	private boolean converged;
+
+	public SteadyStateSolver() {
+		this(1.0e-10, 1.0e-8, 200);
+	}
+
+	/**
+	 * @param atol 				Absolute tolerance of the residual (per day)
+	 * @param rtol 				Relative tolerance of the residual (per day)
+	 * @param maxIterations 	Largest number of iterations, rejected ones included
+	 */
+	public SteadyStateSolver(double atol, double rtol, int maxIterations) {
+		this.atol = atol;
+		this.rtol = rtol;
+		this.maxIterations = maxIterations;
+		initialStep = 1.0e-2;
+		minStep = 1.0e-12;
+		residuals = new double[0];
+	}
+
+	/**
+	 * Solve for the steady state, starting from and overwriting the given state.
+	 * States that are not solved keep their values.
+	 *
+	 * @param equations 	Time independent right-hand side with its Jacobian
+	 * @param t 			Time the right-hand side is evaluated at
+	 * @param x 			Starting point on entry, last iterate on exit
+	 * @param solved 		States solved for, all others have to have no derivative
+	 * 						(e.g. algebraic states, inputs and outputs), null to solve for all
+	 * @return 				True if the residual and step norms reached the tolerance
+	 */
+	public boolean solve(MainStateJacobianProvider equations, double t, double[] x, boolean[] solved) {
+		final int n = equations.getDimension();
+		int m = 0;
+		final int[] index = new int[n];
+		for (int i=0;i<n;i++) {
+			if (solved == null || solved[i]) {
+				index[m++] = i;
+			}
+		}
+		final double[] f = new double[n];
+		final double[] fNew = new double[n];
+		final double[] xNew = new double[n];
+		final double[] dx = new double[m];
+		final double[][] jacobian = new double[n][n];
+		final DenseLU lu = new DenseLU(m);
+
+		iterations = 0;
+		rejected = 0;
+		jacobians = 0;
+		converged = false;
+		double[] history = new double[maxIterations+1];
+		int accepted = 0;
+
+		equations.computeDerivatives(t, x, f);
+		evaluations = 1;
+		double norm = norm(f, x, index, m);
+		history[accepted++] = norm;
+		converged = norm <= 1.0;
+
+		double dt = initialStep;
+		boolean jacobianCurrent = false;
+		while (!converged && iterations < maxIterations && Double.isFinite(norm)) {
+			iterations++;
+			if (!jacobianCurrent) {
+				for (double[] row : jacobian) {
+					Arrays.fill(row, 0.0);
+				}
+				equations.computeMainStateJacobian(t, x, f, jacobian);
+				jacobians++;
+				jacobianCurrent = true;
+			}
+
+			// (I/dt - J) dx = f over the solved states
+			double[][] a = lu.getMatrix();
+			for (int r=0;r<m;r++) {
+				double[] row = a[r];
+				double[] jRow = jacobian[index[r]];
+				for (int c=0;c<m;c++) {
+					row[c] = -jRow[index[c]];
+				}
+				row[r] += 1.0/dt;
+				dx[r] = f[index[r]];
+			}
+			if (!lu.decompose()) {
+				rejected++;
+				dt *= REJECT_REDUCTION;
+				if (dt < minStep) {
+					break;
+				}
+				continue;
+			}
+			lu.solve(dx);
+
+			// Damping, positive states lose at most MAX_DECREASE of their value
+			double theta = 1.0;
+			for (int r=0;r<m;r++) {
+				double xi = x[index[r]];
+				if (dx[r] < 0.0 && xi > 0.0) {
+					theta = Math.min(theta, MAX_DECREASE*xi/-dx[r]);
+				}
+			}
+			System.arraycopy(x, 0, xNew, 0, n);
+			for (int r=0;r<m;r++) {
+				int i = index[r];
+				xNew[i] = x[i] > 0.0 ? x[i]+theta*dx[r] : Math.max(x[i]+theta*dx[r], 0.0);
+			}
+
+			equations.computeDerivatives(t, xNew, fNew);
+			evaluations++;
+			double normNew = norm(fNew, xNew, index, m);
+			if (!Double.isFinite(normNew)) {
+				rejected++;
+				dt *= REJECT_REDUCTION;
+				if (dt < minStep) {
+					break;
+				}
+				continue;
+			}
+
+			// Step accepted
+			double stepNorm = 0.0;
+			for (int r=0;r<m;r++) {
+				int i = index[r];
+				double ratio = (xNew[i]-x[i])/(atol+rtol*Math.max(Math.abs(x[i]), Math.abs(xNew[i])));
+				stepNorm += ratio*ratio;
+			}
+			stepNorm = Math.sqrt(stepNorm/m);
+			System.arraycopy(xNew, 0, x, 0, n);
+			System.arraycopy(fNew, 0, f, 0, n);
+			jacobianCurrent = false;
+
+			// Switched evolution relaxation, dt shrinks with the damping of a damped step
+			double factor = Math.min(MAX_GROWTH, norm/normNew);
+			dt *= Math.max(MIN_REDUCTION, theta < 1.0 ? Math.min(factor, theta) : factor);
+			norm = normNew;
+			history[accepted++] = norm;
+			converged = norm <= 1.0 && stepNorm <= 1.0;
+			LOGGER.fine("Iteration " + iterations + ", residual " + norm + ", step " + stepNorm + ", dt " + dt);
+		}
+
+		residuals = Arrays.copyOf(history, accepted);
+		maxResidual = 0.0;
+		for (int r=0;r<m;r++) {
+			maxResidual = Math.max(maxResidual, Math.abs(f[index[r]]));
+		}
+		if (!converged) {
+			LOGGER.fine("Steady state not reached after " + iterations + " iterations, residual " + norm);
+		}
+		return converged;
+	}
+
+	/**
+	 * Root mean square of the scaled residual over the solved states
+	 */
+	private double norm(double[] f, double[] x, int[] index, int m) {
+		double sum = 0.0;
+		for (int r=0;r<m;r++) {
+			int i = index[r];
+			double ratio = f[i]/(atol+rtol*Math.abs(x[i]));
+			sum += ratio*ratio;
+		}
+		return Math.sqrt(sum/m);
+	}
+
+	public void setAbsoluteTolerance(double atol) {
+		this.atol = atol;
+	}
+
+	public double getAbsoluteTolerance() {
+		return atol;
+	}
+
+	public void setRelativeTolerance(double rtol) {
+		this.rtol = rtol;
+	}
+
+	public double getRelativeTolerance() {
+		return rtol;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	public int getMaxIterations() {
+		return maxIterations;
+	}
+
+	/**
+	 * @param initialStep 	First pseudo time step (in days), small values follow the transient of the model longer
+	 */
+	public void setInitialStep(double initialStep) {
+		this.initialStep = initialStep;
+	}
+
+	public double getInitialStep() {
+		return initialStep;
+	}
+
+	public boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * @return Iterations of the last solve, rejected ones included
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	public int getRejected() {
+		return rejected;
+	}
+
+	public int getEvaluations() {
+		return evaluations;
+	}
+
+	public int getJacobians() {
+		return jacobians;
+	}
+
+	/**
+	 * @return Scaled residual norm at the start and after each accepted iteration of the last solve
+	 */
+	public double[] getResiduals() {
+		return residuals.clone();
+	}
+
+	/**
+	 * @return Scaled residual norm at the end of the last solve
+	 */
+	public double getResidual() {
+		return residuals.length == 0 ? Double.NaN : residuals[residuals.length-1];
+	}
+
+	/**
+	 * @return Largest absolute derivative of the solved states at the end of the last solve
+	 */
+	public double getMaxResidual() {
+		return maxResidual;
+	}
+
+	@Override
+	public String toString() {
+		return "Iterations; " + iterations +
+				"; Rejected; " + rejected +
+				"; RHS evaluations; " + evaluations +
+				"; Jacobians; " + jacobians +
+				"; Initial residual; " + (residuals.length == 0 ? Double.NaN : residuals[0]) +
+				"; Residual; " + getResidual() +
+				"; Max |dx/dt|; " + maxResidual;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Values parsed by the influent reader must be bit for bit those of Double.parseDouble, 
+ * on the exact fast path as well as on the fallback
+ * 
+ * @author liampetti
+ *
+ */
+public class InfluentReaderTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * Write the fields as one line each and check every parsed value, buffered and memory mapped
+	 */
+	private void check(String... fields) throws IOException {
+		File file = folder.newFile();
+		PrintWriter writer = new PrintWriter(file);
+		for (String field : fields) {
+			writer.print(field + "\n");
+		}
+		writer.close();
+		for (boolean mapped : new boolean[] { false, true }) {
+			InfluentReader reader = new InfluentReader(file.getPath(), ',', mapped);
+			double[] values = new double[1];
+			for (String field : fields) {
+				assertEquals(field, 1, reader.next(values));
+				assertEquals(field, Double.doubleToRawLongBits(Double.parseDouble(field)), 
+						Double.doubleToRawLongBits(values[0]));
+			}
+			assertEquals(-1, reader.next(values));
+		}
+	}
+	
+	@Test
+	public void signs() throws IOException {
+		check("1.5", "-1.5", "+1.5", "0", "-0", "+0", "-0.0", "0.0", "-.5", "+.5", "5.", "-5.");
+	}
+	
+	@Test
+	public void exponents() throws IOException {
+		check("1e0", "1E5", "1e+5", "1e-5", "-2.5e-3", "2.5E+03", "1e22", "1e-22", "1e23", "1e-23", 
+				"9.999999999999999e22", "4.9e-324", "2.4e-324", "1.7976931348623157e308", "1e309", "-1e309", 
+				"1e-400", "0e999999", "123456789e-30", "0.000001234e10");
+	}
+	
+	@Test
+	public void longMantissas() throws IOException {
+		check("9007199254740991", "9007199254740992", "9007199254740993", "123456789012345678", 
+				"1234567890123456789", "12345678901234567890123", "0.1234567890123456789", 
+				"3.14159265358979323846264338327950288", "1.00000000000000000001", "0.30000000000000004", 
+				"2.2250738585072011e-308", "2.2250738585072012e-308", "0.00000000000000000000000000001");
+	}
+	
+	@Test
+	public void otherForms() throws IOException {
+		check("NaN", "Infinity", "-Infinity", "1.5d", "2f", "0x1p3", "  7.25  ");
+	}
+	
+	@Test
+	public void randomValues() throws IOException {
+		Random random = new Random(42);
+		String[] fields = new String[2000];
+		for (int i=0;i<fields.length;i++) {
+			double value = Math.pow(10, 40*random.nextDouble()-20)*(random.nextBoolean() ? 1 : -1);
+			switch (i%4) {
+			case 0:
+				fields[i] = Double.toString(value);
+				break;
+			case 1:
+				fields[i] = String.format("%.17g", value);
+				break;
+			case 2:
+				fields[i] = String.format("%.6e", value);
+				break;
+			default:
+				fields[i] = String.format("%.10f", value);
+			}
+		}
+		check(fields);
+	}
+	
+	@Test
+	public void malformedFields() throws IOException {
+		for (String field : new String[] { "1e", "1e+", ".", "-", "1.2.3", "1 2", "abc" }) {
+			File file = folder.newFile();
+			PrintWriter writer = new PrintWriter(file);
+			writer.print(field + "\n");
+			writer.close();
+			InfluentReader reader = new InfluentReader(file.getPath(), ',');
+			try {
+				reader.next(new double[1]);
+				fail(field);
+			} catch (NumberFormatException e) {
+				// Expected
+			}
+			reader.close();
+		}
+	}
+}
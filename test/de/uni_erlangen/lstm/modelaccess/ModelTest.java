@@ -0,0 +1,103 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2015 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+
+/**
+ * The final state of a run must not depend on how often the outputs are recorded
+ * 
+ * @author liampetti
+ *
+ */
+public class ModelTest {
+	
+	private static final double END = 2.0;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * @param series 	Influent series, null for the constant BSM2 influent
+	 * @param record 	Record the outputs every resolution days
+	 */
+	private double[] run(String solver, boolean reduced, InfluentSeries series, double resolution, boolean record) {
+		BSM2Defaults defaults = new BSM2Defaults();
+		StateVariables initial = new StateVariables();
+		initial.setVar(defaults.DigesterInit());
+		StateVariables influent = new StateVariables();
+		influent.setVar(defaults.Influent());
+		File file = new File(folder.getRoot(), "output.bin");
+		Model model = new Model(0.0, END, resolution, new DigesterParameters(), initial, influent, record, file.getPath());
+		model.setBinaryOutput(true);
+		model.setReduced(reduced);
+		DefaultIntegratorFactory factory = new DefaultIntegratorFactory(solver);
+		factory.setRelativeTolerance(1.0e-8);
+		model.setIntegratorFactory(factory);
+		if (series != null) {
+			model.setInfluentSeries(series.copy());
+		}
+		model.simulate();
+		return model.getX();
+	}
+	
+	private void check(String solver, boolean reduced, InfluentSeries series, double resolution) {
+		double[] expected = run(solver, reduced, series, resolution, false);
+		double[] actual = run(solver, reduced, series, resolution, true);
+		for (int i=0;i<expected.length;i++) {
+			assertEquals(solver + " variable " + i, expected[i], actual[i], 1.0e-12*Math.abs(expected[i]));
+		}
+	}
+	
+	@Test
+	public void constantInfluent() {
+		check("ros23", false, null, 0.01);
+		check("dp54", true, null, 0.01);
+	}
+	
+	/**
+	 * Outputs recorded by the influent event at every sample
+	 */
+	@Test
+	public void influentSeries() {
+		double[][] rows = new double[(int) Math.round(END/0.05)][];
+		for (int k=0;k<rows.length;k++) {
+			rows[k] = new BSM2Defaults().Influent();
+			rows[k][35] *= 1.0+0.5*Math.sin(k);
+		}
+		InfluentSeries series = new InfluentSeries(0.0, 0.05, rows);
+		check("ros23", false, series, 0.05);
+		check("ab", false, series, 0.05);
+	}
+}
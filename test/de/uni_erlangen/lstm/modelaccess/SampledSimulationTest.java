@@ -0,0 +1,99 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.InfluentSeries;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+
+/**
+ * The integration and the last sample of a run must not depend on how many sample times are taken
+ * 
+ * @author liampetti
+ *
+ */
+public class SampledSimulationTest {
+	
+	private static final double END = 5.0;
+	
+	/**
+	 * @param x 	Initial state, integrated in place
+	 * @return 		Last sample
+	 */
+	private double[] run(String solver, double rtol, InfluentSeries series, int samples, double[] x) {
+		SampledSimulation simulation = new SampledSimulation(0.0);
+		DefaultIntegratorFactory factory = new DefaultIntegratorFactory(solver);
+		factory.setRelativeTolerance(rtol);
+		simulation.setIntegratorFactory(factory);
+		double[] times = new double[samples];
+		for (int i=0;i<samples;i++) {
+			times[i] = END*(i+1)/samples;
+		}
+		final double[][] last = new double[1][];
+		simulation.run(x, new BSM2Defaults().Influent(), series, new DigesterParameters().getParameters(), times, 
+				new SampledSimulation.Sink() {
+			@Override
+			public void sample(int i, double t, double[] s) {
+				last[0] = s.clone();
+			}
+		});
+		return last[0];
+	}
+	
+	private void check(String solver, double rtol, InfluentSeries series) {
+		double[] x1 = new BSM2Defaults().DigesterInit();
+		double[] x2 = x1.clone();
+		double[] s1 = run(solver, rtol, series == null ? null : series.copy(), 1, x1);
+		double[] s2 = run(solver, rtol, series == null ? null : series.copy(), 1000, x2);
+		assertArrayEquals(x1, x2, 0.0);
+		for (int i=0;i<s1.length;i++) {
+			assertEquals(solver + " " + i, s1[i], s2[i], 1.0e-12*Math.abs(s1[i]));
+		}
+	}
+	
+	@Test
+	public void constantInfluent() {
+		check("ab", 1.0e-10, null);
+		check("dp54", 1.0e-8, null);
+	}
+	
+	/**
+	 * Influent switched in by the event handler (ros23) and by restarts at every sample (ab)
+	 */
+	@Test
+	public void influentSeries() {
+		double[][] rows = new double[(int) Math.round(END/0.25)][];
+		for (int k=0;k<rows.length;k++) {
+			rows[k] = new BSM2Defaults().Influent();
+			rows[k][35] *= 1.0+0.5*Math.sin(k);
+		}
+		InfluentSeries series = new InfluentSeries(0.0, 0.25, rows);
+		check("ros23", 1.0e-8, series);
+		check("ab", 1.0e-8, series);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2016 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.modelaccess;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.uni_erlangen.lstm.file.TrajectoryReader;
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+import de.uni_erlangen.lstm.solvers.DefaultIntegratorFactory;
+
+/**
+ * Rows of the sensitivity trajectory on the resolution grid, and results that do not depend on how many rows are recorded
+ * 
+ * @author liampetti
+ *
+ */
+public class SensitivityAnalysisTest {
+	
+	private static final double END = 2.0;
+	private static final int[] INDICES = { 24, 40 }; // k_dis and k_m_h2
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private SensitivityAnalysis run(double resolution, String file) {
+		BSM2Defaults defaults = new BSM2Defaults();
+		StateVariables initial = new StateVariables();
+		initial.setVar(defaults.DigesterInit());
+		StateVariables influent = new StateVariables();
+		influent.setVar(defaults.Influent());
+		SensitivityAnalysis analysis = new SensitivityAnalysis(0.0, END, resolution, new DigesterParameters(), 
+				initial, influent, INDICES);
+		DefaultIntegratorFactory factory = new DefaultIntegratorFactory("ros23");
+		factory.setRelativeTolerance(1.0e-8);
+		analysis.setIntegratorFactory(factory);
+		analysis.setOutputFile(file);
+		analysis.run();
+		return analysis;
+	}
+	
+	@Test
+	public void rowsOnTheGrid() throws IOException {
+		double resolution = 0.1;
+		File file = new File(folder.getRoot(), "sensitivity.bin");
+		run(resolution, file.getPath());
+		try (TrajectoryReader reader = new TrajectoryReader(file.getPath())) {
+			assertEquals(Math.round(END/resolution)+1, reader.getRows());
+			for (long k=0;k<reader.getRows();k++) {
+				assertEquals(k*resolution, reader.getTime(k), 1.0e-12);
+			}
+		}
+	}
+	
+	@Test
+	public void independentOfTheRows() throws IOException {
+		SensitivityAnalysis coarse = run(END, new File(folder.getRoot(), "coarse.bin").getPath());
+		SensitivityAnalysis fine = run(0.01, new File(folder.getRoot(), "fine.bin").getPath());
+		double[] x1 = coarse.getX();
+		double[] x2 = fine.getX();
+		for (int i=0;i<x1.length;i++) {
+			assertEquals("Variable " + i, x1[i], x2[i], 1.0e-12*Math.abs(x1[i]));
+		}
+		// Sensitivities are differences of perturbed models over 2e-4 of the parameter, 
+		// so the rounding of the charge balance (pH and the ions) shows at 1e-7
+		double[][] ds1 = coarse.getSensitivities();
+		double[][] ds2 = fine.getSensitivities();
+		for (int k=0;k<ds1.length;k++) {
+			for (int i=0;i<ds1[k].length;i++) {
+				assertEquals("Sensitivity " + k + " of " + i, ds1[k][i], ds2[k][i], 1.0e-6*Math.abs(ds1[k][i])+1.0e-14);
+			}
+		}
+	}
+}
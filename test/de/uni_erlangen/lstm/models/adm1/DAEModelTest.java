@@ -0,0 +1,134 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2015 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.models.adm1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Analytic Jacobian of the model against central differences of the right-hand side, 
+ * with the algebraic equations, with the acid-base states as ODEs and with a fixed pH
+ * 
+ * @author liampetti
+ *
+ */
+public class DAEModelTest {
+	
+	private static final int N = 42;
+	
+	/**
+	 * BSM2 initial state moved away from the steady state so all process rates have an influence, 
+	 * with the influent flow
+	 */
+	private double[] state() {
+		BSM2Defaults defaults = new BSM2Defaults();
+		double[] x = defaults.DigesterInit();
+		for (int i=0;i<35;i++) {
+			x[i] *= 1.0+0.05*Math.sin(i);
+		}
+		x[35] = defaults.Influent()[35];
+		return x;
+	}
+	
+	private DAEModel model(boolean dae, double ph) {
+		double[] param = new DigesterParameters().getParameters();
+		return new DAEModel(new BSM2Defaults().Influent(), param, DAEModel.initialS_H_ion(state(), param), dae, ph);
+	}
+	
+	/**
+	 * Largest difference between an entry of the analytic Jacobian and its central difference, 
+	 * relative to the largest entry of its row, over the columns of the 35 differential states
+	 * 
+	 * The S_h2 balance takes its pH inhibition from the S_H_ion of the previous evaluation, so the 
+	 * unperturbed state is evaluated again before every perturbed one.
+	 */
+	private double maxError(DAEModel ode) {
+		double[] x = state();
+		double[][] J = new double[N][N];
+		double[] f = new double[N];
+		double[] fp = new double[N];
+		double[] fm = new double[N];
+		ode.computeDerivatives(0.0, x, f);
+		ode.computeJacobian(0.0, x, J);
+		double max = 0.0;
+		for (int j=0;j<35;j++) {
+			if (ode.isAlgebraic(j)) {
+				continue;
+			}
+			double h = 1.0e-6*Math.max(Math.abs(x[j]), 1.0e-8);
+			double[] xp = x.clone();
+			double[] xm = x.clone();
+			xp[j] += h;
+			xm[j] -= h;
+			ode.computeDerivatives(0.0, x, f);
+			ode.computeDerivatives(0.0, xp, fp);
+			ode.computeDerivatives(0.0, x, f);
+			ode.computeDerivatives(0.0, xm, fm);
+			for (int i=0;i<N;i++) {
+				double scale = 1.0e-12;
+				for (int k=0;k<N;k++) {
+					scale = Math.max(scale, Math.abs(J[i][k]));
+				}
+				max = Math.max(max, Math.abs((fp[i]-fm[i])/(2.0*h)-J[i][j])/scale);
+			}
+		}
+		return max;
+	}
+	
+	@Test
+	public void jacobianWithAlgebraicEquations() {
+		assertTrue(maxError(model(true, -1.0)) < 1.0e-4);
+	}
+	
+	@Test
+	public void jacobianWithAcidBaseODEs() {
+		assertTrue(maxError(model(false, -1.0)) < 1.0e-4);
+	}
+	
+	@Test
+	public void jacobianWithFixedPH() {
+		assertTrue(maxError(model(true, 7.2)) < 1.0e-4);
+	}
+	
+	/**
+	 * Columns 35 and 36 of the Jacobian are left zero although the dilution depends on the flow, 
+	 * which is only right while the flow and temperature have no derivative
+	 */
+	@Test
+	public void flowAndTemperatureAreConstant() {
+		DAEModel ode = model(true, -1.0);
+		double[] x = state();
+		double[] dx = new double[N];
+		double[][] J = new double[N][N];
+		ode.computeDerivatives(0.0, x, dx);
+		ode.computeJacobian(0.0, x, J);
+		for (int i=35;i<37;i++) {
+			assertEquals(0.0, dx[i], 0.0);
+			for (int j=0;j<N;j++) {
+				assertEquals(0.0, J[i][j], 0.0);
+				assertEquals(0.0, J[j][i], 0.0);
+			}
+		}
+	}
+}
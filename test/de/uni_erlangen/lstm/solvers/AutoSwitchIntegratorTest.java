@@ -0,0 +1,146 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2015 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+import org.junit.Test;
+
+/**
+ * Switching between the explicit and the implicit mode on a problem that is stiff at the start, 
+ * non-stiff in the middle and stiff again at the end
+ * 
+ * y0 relaxes towards y1 = sin(t) with the rate lambda, which falls from 1e4 at t = 0 to 1 at
+ * t = 10 and rises to 1e4 again at t = 20. The forcing and the time are states (y1, y2 = cos(t) 
+ * and y3 = t), so the problem is autonomous as the ADM1 with an influent held constant.
+ * 
+ * @author liampetti
+ *
+ */
+public class AutoSwitchIntegratorTest {
+	
+	private static final double END = 20.0;
+	
+	private static class VaryingStiffness implements FirstOrderDifferentialEquations {
+
+		@Override
+		public int getDimension() {
+			return 4;
+		}
+
+		@Override
+		public void computeDerivatives(double t, double[] y, double[] yDot) {
+			double lambda = 1.0+0.5e4*(1.0+Math.cos(2.0*Math.PI*y[3]/END));
+			yDot[0] = -lambda*(y[0]-y[1]);
+			yDot[1] = y[2];
+			yDot[2] = -y[1];
+			yDot[3] = 1.0;
+		}
+	}
+	
+	/**
+	 * Records the times the mode of the steps changed, step handlers are called before a switch
+	 */
+	private static class ModeRecorder implements StepHandler {
+		private final AutoSwitchIntegrator integrator;
+		private boolean stiff;
+		final List<Double> changes = new ArrayList<Double>();
+		
+		ModeRecorder(AutoSwitchIntegrator integrator) {
+			this.integrator = integrator;
+		}
+
+		@Override
+		public void init(double t0, double[] y0, double t) {
+			stiff = integrator.isStiff();
+		}
+
+		@Override
+		public void handleStep(StepInterpolator interpolator, boolean isLast) {
+			if (integrator.isStiff() != stiff) {
+				stiff = integrator.isStiff();
+				changes.add(interpolator.getPreviousTime());
+			}
+		}
+	}
+	
+	private static double[] initial() {
+		return new double[] {0.5, 0.0, 1.0, 0.0};
+	}
+	
+	@Test
+	public void switchesBothWays() {
+		AutoSwitchIntegrator integrator = new AutoSwitchIntegrator(1.0e-12, END, 1.0e-8, 1.0e-6);
+		ModeRecorder recorder = new ModeRecorder(integrator);
+		integrator.addStepHandler(recorder);
+		double[] y = initial();
+		integrator.integrate(new VaryingStiffness(), 0.0, y, END, y);
+		
+		// Implicit at the stiff start, explicit in the middle and implicit again towards the end
+		List<Double> changes = recorder.changes;
+		assertEquals("Mode changes at " + changes, 3, changes.size());
+		assertEquals(changes.size(), integrator.getSwitches());
+		assertTrue("To implicit at " + changes.get(0), changes.get(0) < 1.0);
+		assertTrue("To explicit at " + changes.get(1), changes.get(1) > 5.0 && changes.get(1) < 10.0);
+		assertTrue("To implicit at " + changes.get(2), changes.get(2) > 10.0 && changes.get(2) < 15.0);
+		assertTrue(integrator.isStiff());
+		assertTrue(integrator.getStiffSteps() > 0 && integrator.getStiffSteps() < integrator.getAcceptedSteps());
+		
+		// Same solution as an explicit integrator at a tight tolerance, to the global error 
+		// of the second order implicit steps (1.5e-4 for RosenbrockIntegrator alone)
+		double[] reference = initial();
+		new DormandPrince853Integrator(1.0e-12, END, 1.0e-12, 1.0e-12).integrate(new VaryingStiffness(), 0.0, reference, END, reference);
+		assertEquals(reference[0], y[0], 3.0e-4);
+		assertEquals(reference[1], y[1], 3.0e-4);
+	}
+	
+	@Test
+	public void staysExplicitWhenNotStiff() {
+		AutoSwitchIntegrator integrator = new AutoSwitchIntegrator(1.0e-12, END, 1.0e-8, 1.0e-6);
+		double[] y = new double[] {0.0, 1.0};
+		integrator.integrate(new FirstOrderDifferentialEquations() {
+			@Override
+			public int getDimension() {
+				return 2;
+			}
+
+			@Override
+			public void computeDerivatives(double t, double[] y, double[] yDot) {
+				yDot[0] = y[1];
+				yDot[1] = -y[0];
+			}
+		}, 0.0, y, END, y);
+		
+		assertEquals(0, integrator.getSwitches());
+		assertFalse(integrator.isStiff());
+		assertEquals(Math.sin(END), y[0], 1.0e-4);
+	}
+}
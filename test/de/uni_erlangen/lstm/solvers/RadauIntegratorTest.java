@@ -0,0 +1,124 @@
+/*
+ * jADM1 -- Java Implementation of Anaerobic Digestion Model No 1
+ * ===============================================================
+ *
+ * Copyright 2015 Liam Pettigrew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package de.uni_erlangen.lstm.solvers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.uni_erlangen.lstm.file.TrajectoryReader;
+import de.uni_erlangen.lstm.modelaccess.Model;
+import de.uni_erlangen.lstm.models.adm1.BSM2Defaults;
+import de.uni_erlangen.lstm.models.adm1.DAEModel;
+import de.uni_erlangen.lstm.models.adm1.DigesterParameters;
+import de.uni_erlangen.lstm.models.adm1.StateVariables;
+
+/**
+ * Radau IIA on the semi-explicit model (S_h2 and the pH as algebraic unknowns) against the 
+ * DAE model integrated by Adams-Bashforth with the balances solved in every evaluation
+ * 
+ * One day of the BSM2 influent followed by one day with three times the flow
+ * 
+ * @author liampetti
+ *
+ */
+public class RadauIntegratorTest {
+	
+	private static final double RESOLUTION = 0.05;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * Output rows of both days, the rows of the second day follow those of the first
+	 */
+	private File simulate(String solver, double rtol) throws IOException {
+		BSM2Defaults defaults = new BSM2Defaults();
+		StateVariables initial = new StateVariables();
+		initial.setVar(defaults.DigesterInit());
+		StateVariables influent = new StateVariables();
+		influent.setVar(defaults.Influent());
+		File file = new File(folder.getRoot(), solver + ".bin");
+		
+		Model model = new Model(0.0, 1.0, RESOLUTION, new DigesterParameters(), initial, influent, true, file.getPath());
+		model.setBinaryOutput(true);
+		DefaultIntegratorFactory factory = new DefaultIntegratorFactory(solver);
+		factory.setRelativeTolerance(rtol);
+		model.setIntegratorFactory(factory);
+		model.simulate();
+		
+		double[] shock = defaults.Influent();
+		shock[35] *= 3.0;
+		influent.setVar(shock);
+		model.setInfluent(influent);
+		model.setTime(1.0, 2.0);
+		model.setOutputRows(Math.round(1.0/RESOLUTION));
+		model.simulate();
+		return file;
+	}
+	
+	@Test
+	public void matchesDAEModel() throws IOException {
+		File radau = simulate("radau", 1.0e-6);
+		File reference = simulate("ab", 1.0e-10);
+		
+		try (TrajectoryReader r = new TrajectoryReader(radau.getPath());
+				TrajectoryReader a = new TrajectoryReader(reference.getPath())) {
+			assertEquals(Math.round(2.0/RESOLUTION), r.getRows());
+			assertEquals(a.getRows(), r.getRows());
+			double[] row = new double[r.getColumns()];
+			double[] x = new double[row.length-1];
+			double[] dx = new double[x.length];
+			double[] s = new double[x.length];
+			double[] shock = new BSM2Defaults().Influent();
+			shock[35] *= 3.0;
+			for (long k=0;k<r.getRows();k++) {
+				double t = r.getTime(k);
+				assertEquals(a.getTime(k), t, 1.0e-12);
+				
+				// Every state and output against the reference
+				for (int i=1;i<row.length;i++) {
+					double expected = a.get(k, i);
+					assertEquals("Variable " + (i-1) + " at t = " + t, expected, r.get(k, i), 1.0e-5*Math.abs(expected)+1.0e-9);
+				}
+				
+				/*
+				 * Charge and S_h2 balances: the pH and S_h2 of the Radau solution against those the
+				 * balances give for its differential states, solved by a model of its own, to the tolerance
+				 */
+				r.getRow(k, row);
+				System.arraycopy(row, 1, x, 0, x.length);
+				double[] u = t <= 1.0 ? new BSM2Defaults().Influent() : shock;
+				DAEModel balances = new DAEModel(u, new DigesterParameters().getParameters(), Math.pow(10, -x[39]), true, -1.0);
+				balances.evaluate(t, x, dx, s);
+				assertTrue("Charge balance at t = " + t + ": pH " + x[39] + " against " + s[39], Math.abs(x[39]-s[39]) < 1.0e-6);
+				assertTrue("S_h2 balance at t = " + t + ": " + x[7] + " against " + s[7], Math.abs(x[7]-s[7]) < 1.0e-6*s[7]);
+			}
+		}
+	}
+}